@@ -19,10 +19,34 @@ package com.android.camera;
 import android.test.InstrumentationTestRunner;
 import android.test.InstrumentationTestSuite;
 
+import com.android.camera.data.CameraRollSyncTest;
+import com.android.camera.data.MetadataIndexTest;
+import com.android.camera.exif.ExifFileRewriterTest;
+import com.android.camera.exif.ExifGatherWriterTest;
+import com.android.camera.exif.IfdDataTest;
 import com.android.camera.functional.CameraTest;
 import com.android.camera.functional.ImageCaptureIntentTest;
 import com.android.camera.functional.VideoCaptureIntentTest;
+import com.android.camera.processing.ProcessingServiceManagerTest;
+import com.android.camera.unittest.BitmapCacheTest;
 import com.android.camera.unittest.CameraUnitTest;
+import com.android.camera.unittest.CaptureDataRecorderTest;
+import com.android.camera.unittest.ConcurrentSharedRingBufferTest;
+import com.android.camera.unittest.ExifBatchReaderTest;
+import com.android.camera.unittest.ExifBufferReaderTest;
+import com.android.camera.unittest.JpegBufferPoolTest;
+import com.android.camera.unittest.JpegEncoderTest;
+import com.android.camera.unittest.JpegMetadataSnifferTest;
+import com.android.camera.unittest.LatencyHistogramTest;
+import com.android.camera.unittest.LocalDataListTest;
+import com.android.camera.unittest.LogTest;
+import com.android.camera.unittest.MediaStoreBatcherTest;
+import com.android.camera.unittest.PriorityTaskExecutorTest;
+import com.android.camera.unittest.TinyPlanetRendererTest;
+import com.android.camera.unittest.UsageStatisticsTest;
+import com.android.camera.util.CaptureDataDecoderTest;
+import com.android.ex.camera2.portability.DispatchThreadTest;
+import com.android.ex.camera2.utils.Camera2RequestSettingsSetTest;
 
 import junit.framework.TestSuite;
 
@@ -36,6 +60,30 @@ public class CameraTestRunner extends InstrumentationTestRunner {
         suite.addTestSuite(ImageCaptureIntentTest.class);
         suite.addTestSuite(VideoCaptureIntentTest.class);
         suite.addTestSuite(CameraUnitTest.class);
+        suite.addTestSuite(ExifBufferReaderTest.class);
+        suite.addTestSuite(ExifBatchReaderTest.class);
+        suite.addTestSuite(ConcurrentSharedRingBufferTest.class);
+        suite.addTestSuite(MediaStoreBatcherTest.class);
+        suite.addTestSuite(LocalDataListTest.class);
+        suite.addTestSuite(JpegEncoderTest.class);
+        suite.addTestSuite(BitmapCacheTest.class);
+        suite.addTestSuite(LatencyHistogramTest.class);
+        suite.addTestSuite(UsageStatisticsTest.class);
+        suite.addTestSuite(LogTest.class);
+        suite.addTestSuite(CaptureDataRecorderTest.class);
+        suite.addTestSuite(ProcessingServiceManagerTest.class);
+        suite.addTestSuite(PriorityTaskExecutorTest.class);
+        suite.addTestSuite(ExifFileRewriterTest.class);
+        suite.addTestSuite(ExifGatherWriterTest.class);
+        suite.addTestSuite(IfdDataTest.class);
+        suite.addTestSuite(CameraRollSyncTest.class);
+        suite.addTestSuite(MetadataIndexTest.class);
+        suite.addTestSuite(JpegBufferPoolTest.class);
+        suite.addTestSuite(JpegMetadataSnifferTest.class);
+        suite.addTestSuite(TinyPlanetRendererTest.class);
+        suite.addTestSuite(CaptureDataDecoderTest.class);
+        suite.addTestSuite(DispatchThreadTest.class);
+        suite.addTestSuite(Camera2RequestSettingsSetTest.class);
         return suite;
     }
 
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.filmstrip.DataAdapter;
+import com.android.camera.filmstrip.ImageData;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the snapshot file of {@link CameraRollSync}, the delta it computes
+ * from the media store key columns and how a delta is merged into a
+ * {@link LocalDataList}. The media store itself is never queried.
+ */
+@SmallTest
+public class CameraRollSyncTest extends TestCase {
+    private File mSnapshotFile;
+
+    /** Records the listener events as strings like "insert 3 id". */
+    private static class RecordingListener implements DataAdapter.Listener {
+        final List<String> events = new ArrayList<String>();
+        private final LocalDataList mImages;
+
+        RecordingListener(LocalDataList images) {
+            mImages = images;
+        }
+
+        @Override
+        public void onDataLoaded() {
+            events.add("load");
+        }
+
+        @Override
+        public void onDataUpdated(DataAdapter.UpdateReporter reporter) {
+            for (int i = 0; i < mImages.size(); i++) {
+                if (reporter.isDataUpdated(i)) {
+                    events.add("update " + i + " " + mImages.get(i).getContentId());
+                }
+            }
+        }
+
+        @Override
+        public void onDataInserted(int dataID, ImageData data) {
+            events.add("insert " + dataID + " " + ((LocalData) data).getContentId());
+        }
+
+        @Override
+        public void onDataRemoved(int dataID, ImageData data) {
+            events.add("remove " + dataID + " " + ((LocalData) data).getContentId());
+        }
+    }
+
+    private static LocalMediaData.PhotoData newPhoto(long id, long date) {
+        return newPhoto(id, date, 1000, 0);
+    }
+
+    private static LocalMediaData.PhotoData newPhoto(long id, long date, long size,
+            int orientation) {
+        return new LocalMediaData.PhotoData(id, "IMG_" + id, LocalData.MIME_TYPE_JPEG, date,
+                date / 1000, "/sdcard/DCIM/Camera/IMG_" + id + ".jpg", orientation, 4000, 3000,
+                size, 1.5, -2.5);
+    }
+
+    private static LocalMediaData.VideoData newVideo(long id, long date) {
+        return new LocalMediaData.VideoData(id, "VID_" + id, "video/mp4", date, date / 1000,
+                "/sdcard/DCIM/Camera/VID_" + id + ".mp4", 1920, 1080, 5000, 0, 0, 12);
+    }
+
+    private static LocalDataList newestFirst(LocalData... data) {
+        List<LocalData> sorted = new ArrayList<LocalData>(Arrays.asList(data));
+        Collections.sort(sorted, new LocalData.NewestFirstComparator());
+        LocalDataList list = new LocalDataList();
+        list.addAll(sorted);
+        return list;
+    }
+
+    private static void assertIds(LocalDataList images, long... ids) {
+        assertEquals(ids.length, images.size());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals("position " + i, ids[i], images.get(i).getContentId());
+            assertEquals(i, images.indexOf(images.get(i).getUri()));
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mSnapshotFile = File.createTempFile("camera_roll_snapshot", null);
+        mSnapshotFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSnapshotFile.delete();
+    }
+
+    private CameraRollSync newSyncWithSnapshot() throws IOException {
+        // The returned instance has to read the rows back from the file.
+        CameraRollSync writer = new CameraRollSync(mSnapshotFile);
+        writeSnapshot(writer, newPhoto(1, 1000), newPhoto(2, 3000, 1000, 90),
+                newVideo(3, 2000));
+        return new CameraRollSync(mSnapshotFile);
+    }
+
+    private void writeSnapshot(CameraRollSync sync, LocalMediaData... data) {
+        Map<Long, LocalMediaData> photos = new HashMap<Long, LocalMediaData>();
+        Map<Long, LocalMediaData> videos = new HashMap<Long, LocalMediaData>();
+        for (LocalMediaData d : data) {
+            (d instanceof LocalMediaData.VideoData ? videos : photos).put(d.getContentId(), d);
+        }
+        sync.setRows(photos, videos);
+        sync.saveSnapshot();
+    }
+
+    public void testSnapshotRoundTrip() throws IOException {
+        CameraRollSync sync = newSyncWithSnapshot();
+        assertFalse(sync.hasSnapshot());
+        List<LocalData> rows = sync.getSnapshot();
+        assertTrue(sync.hasSnapshot());
+
+        assertEquals(3, rows.size());
+        assertEquals(2, rows.get(0).getContentId());
+        assertEquals(3, rows.get(1).getContentId());
+        assertEquals(1, rows.get(2).getContentId());
+        assertEquals(2, sync.getLastPhotoId());
+
+        LocalMediaData photo = (LocalMediaData) rows.get(0);
+        assertEquals("IMG_2", photo.mTitle);
+        assertEquals(LocalData.MIME_TYPE_JPEG, photo.mMimeType);
+        assertEquals(3000, photo.mDateTakenInMilliSeconds);
+        assertEquals(3, photo.mDateModifiedInSeconds);
+        assertEquals("/sdcard/DCIM/Camera/IMG_2.jpg", photo.mPath);
+        assertEquals(4000, photo.mWidth);
+        assertEquals(3000, photo.mHeight);
+        assertEquals(1000, photo.mSizeInBytes);
+        assertEquals(1.5, photo.mLatitude, 0);
+        assertEquals(-2.5, photo.mLongitude, 0);
+        assertEquals(90, photo.getRotation());
+        assertEquals(12, ((LocalMediaData.VideoData) rows.get(1)).getDurationInSeconds());
+    }
+
+    public void testMissingSnapshot() {
+        CameraRollSync sync = new CameraRollSync(mSnapshotFile);
+        assertNull(sync.getSnapshot());
+        assertFalse(sync.hasSnapshot());
+    }
+
+    public void testTruncatedSnapshotIsIgnored() throws IOException {
+        newSyncWithSnapshot();
+        RandomAccessFile file = new RandomAccessFile(mSnapshotFile, "rw");
+        try {
+            file.setLength(file.length() - 5);
+        } finally {
+            file.close();
+        }
+        CameraRollSync sync = new CameraRollSync(mSnapshotFile);
+        assertNull(sync.getSnapshot());
+        assertFalse(sync.hasSnapshot());
+    }
+
+    public void testSnapshotWithOtherVersionIsIgnored() throws IOException {
+        FileOutputStream out = new FileOutputStream(mSnapshotFile);
+        try {
+            out.write(new byte[] { 0, 0, 0, 99, 0, 0, 0, 0 });
+        } finally {
+            out.close();
+        }
+        assertNull(new CameraRollSync(mSnapshotFile).getSnapshot());
+    }
+
+    public void testCorruptSnapshotIsIgnored() throws IOException {
+        newSyncWithSnapshot();
+        // Claim far more rows than the file holds.
+        RandomAccessFile file = new RandomAccessFile(mSnapshotFile, "rw");
+        try {
+            file.seek(4);
+            file.writeInt(Integer.MAX_VALUE);
+        } finally {
+            file.close();
+        }
+        assertNull(new CameraRollSync(mSnapshotFile).getSnapshot());
+    }
+
+    public void testFindChanges() {
+        Map<Long, LocalMediaData> rows = new HashMap<Long, LocalMediaData>();
+        rows.put(1L, newPhoto(1, 1000));
+        rows.put(2L, newPhoto(2, 2000));
+        rows.put(3L, newPhoto(3, 3000));
+        rows.put(4L, newPhoto(4, 4000));
+        rows.put(5L, newPhoto(5, 5000));
+
+        MatrixCursor keys = new MatrixCursor(new String[] {
+                "_id", "date_modified", "_size", "orientation" });
+        keys.addRow(new Object[] { 1, 1, 1000, 0 });   // unchanged
+        keys.addRow(new Object[] { 2, 9, 1000, 0 });   // modified
+        keys.addRow(new Object[] { 3, 3, 2000, 0 });   // resized
+        keys.addRow(new Object[] { 4, 4, 1000, 180 }); // rotated
+        keys.addRow(new Object[] { 6, 6, 1000, 0 });   // new
+        CameraRollSync.Delta delta = new CameraRollSync.Delta();
+        List<Long> changed = CameraRollSync.findChanges(keys, CameraRollSync.TYPE_PHOTO, rows,
+                delta);
+
+        assertEquals(Arrays.asList(2L, 3L, 4L, 6L), changed);
+        assertEquals(1, delta.removed.size());
+        assertEquals(5, delta.removed.get(0).getContentId());
+        assertFalse(rows.containsKey(5L));
+        assertTrue(delta.inserted.isEmpty());
+        assertTrue(delta.updated.isEmpty());
+    }
+
+    public void testVideoOrientationIsNotCompared() {
+        Map<Long, LocalMediaData> rows = new HashMap<Long, LocalMediaData>();
+        rows.put(1L, newVideo(1, 1000));
+        MatrixCursor keys = new MatrixCursor(new String[] { "_id", "date_modified", "_size" });
+        keys.addRow(new Object[] { 1, 1, 5000 });
+        List<Long> changed = CameraRollSync.findChanges(keys, CameraRollSync.TYPE_VIDEO, rows,
+                new CameraRollSync.Delta());
+        assertTrue(changed.isEmpty());
+    }
+
+    public void testAddLoaded() {
+        Map<Long, LocalMediaData> rows = new HashMap<Long, LocalMediaData>();
+        rows.put(1L, newPhoto(1, 1000));
+        rows.put(2L, newPhoto(2, 2000));
+        CameraRollSync.Delta delta = new CameraRollSync.Delta();
+        List<LocalData> loaded = new ArrayList<LocalData>();
+        LocalData updated = newPhoto(1, 1500);
+        LocalData inserted = newPhoto(3, 3000);
+        loaded.add(updated);
+        loaded.add(inserted);
+        // Id 2 changed but was deleted before its full row was loaded.
+        CameraRollSync.addLoaded(rows, Arrays.asList(1L, 2L, 3L), loaded, delta);
+
+        assertEquals(Arrays.asList(updated), delta.updated);
+        assertEquals(Arrays.asList(inserted), delta.inserted);
+        assertEquals(1, delta.removed.size());
+        assertEquals(2, delta.removed.get(0).getContentId());
+        assertSame(updated, rows.get(1L));
+        assertSame(inserted, rows.get(3L));
+        assertFalse(rows.containsKey(2L));
+    }
+
+    public void testApplyDeltaRemovesUpdatesAndInserts() {
+        LocalDataList images = newestFirst(newPhoto(1, 1000), newPhoto(2, 2000),
+                newPhoto(3, 3000), newPhoto(4, 4000));
+        RecordingListener listener = new RecordingListener(images);
+        CameraRollSync.Delta delta = new CameraRollSync.Delta();
+        delta.removed.add(newPhoto(3, 3000));
+        delta.updated.add(newPhoto(2, 2000, 2000, 90));
+        delta.inserted.add(newPhoto(6, 5000));
+        delta.inserted.add(newPhoto(5, 2500));
+        CameraRollSync.applyDelta(images, delta, listener);
+
+        assertIds(images, 6, 4, 5, 2, 1);
+        assertEquals(90, images.get(3).getRotation());
+        assertEquals(Arrays.asList("remove 1 3", "update 1 2", "insert 0 6", "insert 2 5"),
+                listener.events);
+    }
+
+    public void testApplyDeltaMovesItemWhoseDateChanged() {
+        LocalDataList images = newestFirst(newPhoto(1, 1000), newPhoto(2, 2000),
+                newPhoto(3, 3000), newPhoto(4, 4000));
+        RecordingListener listener = new RecordingListener(images);
+        CameraRollSync.Delta delta = new CameraRollSync.Delta();
+        delta.updated.add(newPhoto(1, 3500));
+        delta.updated.add(newPhoto(4, 500));
+        CameraRollSync.applyDelta(images, delta, listener);
+
+        assertIds(images, 1, 3, 2, 4);
+        assertEquals(Arrays.asList("remove 3 1", "remove 0 4", "insert 0 1", "insert 3 4"),
+                listener.events);
+    }
+
+    public void testApplyDeltaMovesItemAlreadyAddedByNewPhotos() {
+        LocalDataList images = newestFirst(newPhoto(1, 1000), newPhoto(2, 2000),
+                newPhoto(3, 3000));
+        RecordingListener listener = new RecordingListener(images);
+        CameraRollSync.Delta delta = new CameraRollSync.Delta();
+        // Id 3 was shown as new before the sync, and is older than it looked.
+        delta.inserted.add(newPhoto(4, 4000));
+        delta.inserted.add(newPhoto(3, 1500));
+        CameraRollSync.applyDelta(images, delta, listener);
+
+        assertIds(images, 4, 2, 3, 1);
+        assertEquals(Arrays.asList("insert 0 4", "remove 1 3", "insert 2 3"), listener.events);
+    }
+
+    public void testApplyEmptyDeltaWithoutListener() {
+        LocalDataList images = newestFirst(newPhoto(1, 1000), newPhoto(2, 2000));
+        CameraRollSync.applyDelta(images, new CameraRollSync.Delta(), null);
+        assertIds(images, 2, 1);
+    }
+}
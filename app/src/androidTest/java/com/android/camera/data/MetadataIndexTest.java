@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.util.JpegMetadataSniffer;
+import com.android.camera.util.PhotoSphereHelper;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Checks that {@link MetadataIndex} keeps the last record of each image
+ * across reopening, compaction and damaged files.
+ */
+@SmallTest
+public class MetadataIndexTest extends TestCase {
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("metadata_index", null);
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    private static JpegMetadataSniffer.Result newResult(int orientation, String model) {
+        JpegMetadataSniffer.ExifSummary exif = new JpegMetadataSniffer.ExifSummary();
+        exif.width = 4000;
+        exif.height = 3000;
+        exif.flash = 16;
+        exif.iso = 100;
+        exif.aperture = 2.0;
+        exif.exposureTime = 0.01;
+        exif.focalLength = 4.7;
+        exif.make = "Make";
+        exif.model = model;
+        return new JpegMetadataSniffer.Result(
+                new PhotoSphereHelper.PanoramaMetadata(true, false), true, orientation, exif);
+    }
+
+    private static void assertResult(JpegMetadataSniffer.Result result, int orientation,
+            String model) {
+        assertNotNull(result);
+        assertEquals(orientation, result.orientation);
+        assertTrue(result.isRgbz);
+        assertTrue(result.panorama.mUsePanoramaViewer);
+        assertFalse(result.panorama.mIsPanorama360);
+        JpegMetadataSniffer.ExifSummary exif = result.exif;
+        assertEquals(4000, exif.width);
+        assertEquals(3000, exif.height);
+        assertEquals(16, exif.flash);
+        assertEquals(100, exif.iso);
+        assertEquals(-1, exif.whiteBalance);
+        assertEquals(2.0, exif.aperture, 0);
+        assertEquals(0.01, exif.exposureTime, 0);
+        assertEquals(4.7, exif.focalLength, 0);
+        assertEquals("Make", exif.make);
+        assertEquals(model, exif.model);
+    }
+
+    private void writeHeader(int magic, int version, int count) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.writeInt(magic);
+            file.writeInt(version);
+            file.writeInt(count);
+        } finally {
+            file.close();
+        }
+    }
+
+    public void testGetChecksDateModified() {
+        MetadataIndex index = MetadataIndex.open(mFile);
+        index.put(1, 1000, newResult(90, "Model"));
+        assertResult(index.get(1, 1000), 90, "Model");
+        assertNull(index.get(1, 2000));
+        assertNull(index.get(2, 1000));
+        index.close();
+    }
+
+    public void testNullValuesAndEmptySummary() {
+        MetadataIndex index = MetadataIndex.open(mFile);
+        index.put(1, 1000, new JpegMetadataSniffer.Result(PhotoSphereHelper.NOT_PANORAMA,
+                false, 0, new JpegMetadataSniffer.ExifSummary()));
+        JpegMetadataSniffer.Result result = index.get(1, 1000);
+        assertSame(PhotoSphereHelper.NOT_PANORAMA, result.panorama);
+        assertNull(result.exif.make);
+        assertNull(result.exif.model);
+        assertEquals(-1, result.exif.iso);
+        assertTrue(Double.isNaN(result.exif.aperture));
+        index.close();
+    }
+
+    public void testReopenAfterAppend() {
+        MetadataIndex index = MetadataIndex.open(mFile);
+        index.put(1, 1000, newResult(0, "First"));
+        index.put(2, 1000, newResult(90, "Second"));
+        index.put(1, 1500, newResult(180, "Changed"));
+        index.put(3, 1000, newResult(270, "Removed"));
+        index.remove(3);
+        index.close();
+
+        index = MetadataIndex.open(mFile);
+        assertEquals(5, index.getRecordCount());
+        assertNull(index.get(1, 1000));
+        assertResult(index.get(1, 1500), 180, "Changed");
+        assertResult(index.get(2, 1000), 90, "Second");
+        assertNull(index.get(3, 1000));
+
+        // Records appended after reopening are kept as well.
+        index.put(4, 1000, newResult(0, "Fourth"));
+        index.close();
+        index = MetadataIndex.open(mFile);
+        assertResult(index.get(4, 1000), 0, "Fourth");
+        assertResult(index.get(2, 1000), 90, "Second");
+        index.close();
+    }
+
+    public void testLongStringsAreNotIndexed() {
+        StringBuilder model = new StringBuilder();
+        for (int i = 0; i < MetadataIndex.MAX_STRING_LENGTH; i++) {
+            model.append('m');
+        }
+        MetadataIndex index = MetadataIndex.open(mFile);
+        index.put(1, 1000, newResult(0, model.toString()));
+        assertResult(index.get(1, 1000), 0, model.toString());
+
+        // A model which no longer fits drops the earlier record.
+        model.append('m');
+        index.put(1, 2000, newResult(0, model.toString()));
+        assertNull(index.get(1, 2000));
+        assertNull(index.get(1, 1000));
+        index.close();
+    }
+
+    public void testCompactionKeepsLastRecords() {
+        MetadataIndex index = MetadataIndex.open(mFile);
+        index.put(1, 1000, newResult(0, "Kept"));
+        index.put(2, 1000, newResult(0, "Removed"));
+        index.remove(2);
+        for (int i = 0; i < 2000; i++) {
+            index.put(3, i, newResult(90, "Model " + i));
+        }
+        // Mostly stale records are compacted before the file has to grow.
+        assertTrue("Records: " + index.getRecordCount(), index.getRecordCount() < 1024);
+        assertEquals(MetadataIndex.HEADER_SIZE + 1024L * MetadataIndex.RECORD_SIZE,
+                mFile.length());
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+        assertResult(index.get(1, 1000), 0, "Kept");
+        assertNull(index.get(2, 1000));
+        assertResult(index.get(3, 1999), 90, "Model 1999");
+        index.close();
+
+        index = MetadataIndex.open(mFile);
+        assertResult(index.get(1, 1000), 0, "Kept");
+        assertNull(index.get(2, 1000));
+        assertResult(index.get(3, 1999), 90, "Model 1999");
+        index.close();
+    }
+
+    public void testTruncatedFileKeepsWholeRecords() throws IOException {
+        MetadataIndex index = MetadataIndex.open(mFile);
+        index.put(1, 1000, newResult(0, "First"));
+        index.put(2, 1000, newResult(90, "Second"));
+        index.put(3, 1000, newResult(180, "Third"));
+        index.close();
+
+        // Cut the file in the middle of the third record.
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(MetadataIndex.HEADER_SIZE + 2 * MetadataIndex.RECORD_SIZE
+                    + MetadataIndex.RECORD_SIZE / 2);
+        } finally {
+            file.close();
+        }
+
+        index = MetadataIndex.open(mFile);
+        assertEquals(2, index.getRecordCount());
+        assertResult(index.get(1, 1000), 0, "First");
+        assertResult(index.get(2, 1000), 90, "Second");
+        assertNull(index.get(3, 1000));
+        index.put(3, 1000, newResult(180, "Third"));
+        index.close();
+
+        index = MetadataIndex.open(mFile);
+        assertResult(index.get(3, 1000), 180, "Third");
+        index.close();
+    }
+
+    public void testFileShorterThanHeaderStartsFresh() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.write(new byte[] { 1, 2, 3 });
+        } finally {
+            file.close();
+        }
+        MetadataIndex index = MetadataIndex.open(mFile);
+        assertNotNull(index);
+        assertEquals(0, index.getRecordCount());
+        index.put(1, 1000, newResult(0, "Model"));
+        assertResult(index.get(1, 1000), 0, "Model");
+        index.close();
+    }
+
+    public void testOtherVersionStartsFresh() throws IOException {
+        MetadataIndex index = MetadataIndex.open(mFile);
+        index.put(1, 1000, newResult(0, "Model"));
+        index.close();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(4);
+            file.writeInt(MetadataIndex.VERSION - 1);
+        } finally {
+            file.close();
+        }
+
+        index = MetadataIndex.open(mFile);
+        assertEquals(0, index.getRecordCount());
+        assertNull(index.get(1, 1000));
+        index.close();
+
+        // The file was rewritten with the current version.
+        file = new RandomAccessFile(mFile, "r");
+        try {
+            file.seek(4);
+            assertEquals(MetadataIndex.VERSION, file.readInt());
+        } finally {
+            file.close();
+        }
+    }
+
+    public void testOtherMagicStartsFresh() throws IOException {
+        writeHeader(0x12345678, MetadataIndex.VERSION, 1);
+        MetadataIndex index = MetadataIndex.open(mFile);
+        assertEquals(0, index.getRecordCount());
+        assertNull(index.get(0, 0));
+        index.close();
+    }
+}
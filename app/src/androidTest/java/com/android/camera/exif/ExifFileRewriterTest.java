@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Checks both ways {@link ExifFileRewriter} replaces the EXIF header of a
+ * file: in place when the new header fits, and through a temporary file when
+ * it grows. A failure on either path must leave the original file intact.
+ */
+@SmallTest
+public class ExifFileRewriterTest extends TestCase {
+    private static final int IMAGE_DATA_SIZE = 100 * 1024;
+
+    private File mFile;
+    private File mTempFile;
+    private byte[] mImageData;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("exif_rewriter", ".jpg");
+        mTempFile = new File(mFile.getPath() + ".exiftmp");
+
+        // Everything from SOS to EOI. The entropy coded data of a real JPEG
+        // has no 0xff bytes which are not followed by 0.
+        Random random = new Random(42);
+        byte[] scan = new byte[IMAGE_DATA_SIZE];
+        for (int i = 0; i < scan.length; i++) {
+            scan[i] = (byte) random.nextInt(0xff);
+        }
+        mImageData = new byte[10 + scan.length + 2];
+        byte[] sos = { (byte) 0xff, (byte) 0xda, 0, 8, 1, 1, 0, 0, 0x3f, 0 };
+        System.arraycopy(sos, 0, mImageData, 0, sos.length);
+        System.arraycopy(scan, 0, mImageData, sos.length, scan.length);
+        mImageData[mImageData.length - 2] = (byte) 0xff;
+        mImageData[mImageData.length - 1] = (byte) 0xd9;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        mTempFile.delete();
+    }
+
+    /** Writes a JPEG file whose EXIF data has the given description. */
+    private void writeJpeg(String description) throws IOException {
+        byte[] dqt = { (byte) 0xff, (byte) 0xdb, 0, 4, 0, 0 };
+        byte[] jpeg = new byte[2 + dqt.length + mImageData.length];
+        jpeg[0] = (byte) 0xff;
+        jpeg[1] = (byte) 0xd8;
+        System.arraycopy(dqt, 0, jpeg, 2, dqt.length);
+        System.arraycopy(mImageData, 0, jpeg, 2 + dqt.length, mImageData.length);
+
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Make"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_DESCRIPTION, description));
+        exif.writeExif(jpeg, mFile.getPath());
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void rewrite(ExifFileRewriter rewriter, String description) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        ExifTag tag = exif.buildTag(ExifInterface.TAG_IMAGE_DESCRIPTION, description);
+        rewriter.rewrite(mFile.getPath(), Collections.singletonList(tag));
+    }
+
+    private void rewrite(String description) throws IOException {
+        rewrite(new ExifFileRewriter(new ExifInterface()), description);
+    }
+
+    /** Checks the tags of the file and that its image data did not change. */
+    private void assertFile(String description) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(mFile.getPath());
+        // ASCII values keep their terminating null.
+        assertEquals(description,
+                exif.getTagStringValue(ExifInterface.TAG_IMAGE_DESCRIPTION).trim());
+        assertEquals("Make", exif.getTagStringValue(ExifInterface.TAG_MAKE).trim());
+
+        byte[] data = readFile(mFile);
+        assertTrue(data.length > mImageData.length);
+        byte[] imageData = Arrays.copyOfRange(data, data.length - mImageData.length,
+                data.length);
+        assertTrue("Image data changed", Arrays.equals(mImageData, imageData));
+        assertFalse(mTempFile.exists());
+    }
+
+    public void testShrinkingHeaderIsRewrittenInPlace() throws IOException {
+        writeJpeg(repeat('a', 500));
+        long length = mFile.length();
+
+        rewrite("short");
+        assertFile("short");
+        // The APP1 segment was padded to its old size.
+        assertEquals(length, mFile.length());
+    }
+
+    public void testGrowingHeaderMovesImageData() throws IOException {
+        writeJpeg("short");
+        long length = mFile.length();
+
+        String longer = repeat('b', 2000);
+        rewrite(longer);
+        assertFile(longer);
+        assertTrue(mFile.length() > length + 2000);
+
+        // The padding reserved by the move lets the next update fit in place.
+        length = mFile.length();
+        String evenLonger = repeat('c', 2500);
+        rewrite(evenLonger);
+        assertFile(evenLonger);
+        assertEquals(length, mFile.length());
+    }
+
+    public void testFailedInPlaceWriteKeepsOriginal() throws IOException {
+        writeJpeg(repeat('a', 500));
+        byte[] original = readFile(mFile);
+
+        ExifFileRewriter failing = new ExifFileRewriter(new ExifInterface()) {
+            @Override
+            byte[] encodeHeader(byte[] oldHeader) throws IOException {
+                throw new IOException("Interrupted");
+            }
+        };
+        try {
+            rewrite(failing, "short");
+            fail("The failure was not reported");
+        } catch (IOException e) {
+        }
+        assertTrue(Arrays.equals(original, readFile(mFile)));
+        assertFile(repeat('a', 500));
+    }
+
+    public void testInterruptedMoveKeepsOriginal() throws IOException {
+        writeJpeg("short");
+        byte[] original = readFile(mFile);
+
+        ExifFileRewriter failing = new ExifFileRewriter(new ExifInterface()) {
+            @Override
+            void copyImageData(FileChannel src, long start, long end, FileChannel dst)
+                    throws IOException {
+                // Copy half of the image data, then fail.
+                super.copyImageData(src, start, start + (end - start) / 2, dst);
+                throw new IOException("Interrupted");
+            }
+        };
+        try {
+            rewrite(failing, repeat('b', 2000));
+            fail("The failure was not reported");
+        } catch (IOException e) {
+        }
+        assertTrue(Arrays.equals(original, readFile(mFile)));
+        assertFile("short");
+    }
+}
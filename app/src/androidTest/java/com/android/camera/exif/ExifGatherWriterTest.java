@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+
+/**
+ * Checks that the gathering write of {@link ExifGatherWriter} produces the
+ * same bytes as writing the JPEG through {@link ExifOutputStream}.
+ */
+@SmallTest
+public class ExifGatherWriterTest extends TestCase {
+    private static final byte[] SOI = { (byte) 0xff, (byte) 0xd8 };
+    private static final byte[] APP0 = { (byte) 0xff, (byte) 0xe0, 0, 7, 'J', 'F', 'I', 'F', 0 };
+    private static final byte[] APP2 = { (byte) 0xff, (byte) 0xe2, 0, 4, 1, 2 };
+    private static final byte[] DQT = { (byte) 0xff, (byte) 0xdb, 0, 4, 0, 0 };
+    private static final byte[] SOF0 = { (byte) 0xff, (byte) 0xc0, 0, 4, 8, 0 };
+    private static final byte[] SOS = { (byte) 0xff, (byte) 0xda, 0, 8, 1, 1, 0, 0, 0x3f, 0,
+            1, 2, 3, 4, 5, 6, 7, 8 };
+    private static final byte[] EOI = { (byte) 0xff, (byte) 0xd9 };
+
+    /**
+     * Collects what is written, taking at most a few bytes per call so that
+     * partial writes are exercised.
+     */
+    private static class SlowChannel implements GatheringByteChannel {
+        private static final int MAX_WRITE = 100;
+        final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length && written < MAX_WRITE; i++) {
+                written += write(srcs[i], (int) (MAX_WRITE - written));
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return write(src, MAX_WRITE);
+        }
+
+        private int write(ByteBuffer src, int max) {
+            int count = Math.min(src.remaining(), max);
+            byte[] data = new byte[count];
+            src.get(data);
+            mOut.write(data, 0, count);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static ExifInterface createExif(String description) {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Make"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_DESCRIPTION, description));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(90)));
+        return exif;
+    }
+
+    /** Returns the JPEG with an EXIF header, written through the stream. */
+    private static byte[] addExif(byte[] jpeg, String description) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        createExif(description).writeExif(jpeg, out);
+        return out.toByteArray();
+    }
+
+    private static void assertSameOutput(byte[] jpeg) throws IOException {
+        assertSameOutput(jpeg, jpeg.length);
+    }
+
+    private static void assertSameOutput(byte[] jpeg, int length) throws IOException {
+        ExifInterface exif = createExif("New description");
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        exif.writeExif(Arrays.copyOf(jpeg, length), expected);
+
+        SlowChannel channel = new SlowChannel();
+        long written = exif.writeExif(jpeg, length, channel);
+        byte[] actual = channel.mOut.toByteArray();
+        assertEquals(actual.length, written);
+        assertTrue("Gathered output differs from the stream output",
+                Arrays.equals(expected.toByteArray(), actual));
+    }
+
+    public void testJpegWithoutApp1() throws IOException {
+        assertSameOutput(concat(SOI, DQT, SOF0, SOS, EOI));
+        assertSameOutput(concat(SOI, APP0, DQT, SOF0, SOS, EOI));
+    }
+
+    public void testExifIsReplaced() throws IOException {
+        byte[] jpeg = addExif(concat(SOI, DQT, SOF0, SOS, EOI), "Old description");
+        assertSameOutput(jpeg);
+    }
+
+    public void testSegmentsAroundApp1AreKept() throws IOException {
+        byte[] exif = addExif(concat(SOI, SOF0, SOS, EOI), "Old description");
+        // SOI and the APP1 segment, without the rest of that image.
+        int app1End = 4 + (((exif[4] & 0xff) << 8) | (exif[5] & 0xff));
+        byte[] app1 = Arrays.copyOfRange(exif, 2, app1End);
+        assertSameOutput(concat(SOI, APP0, app1, APP2, DQT, SOF0, SOS, EOI));
+    }
+
+    public void testLengthLimitsJpeg() throws IOException {
+        byte[] jpeg = addExif(concat(SOI, APP0, DQT, SOF0, SOS, EOI), "Old description");
+        int length = jpeg.length;
+        byte[] padded = Arrays.copyOf(jpeg, length + 1000);
+        Arrays.fill(padded, length, padded.length, (byte) 0x55);
+        assertSameOutput(padded, length);
+    }
+
+    public void testEmptyJpeg() throws IOException {
+        // The stream appends two stray bytes after EOI here, so only the
+        // part up to EOI is compared.
+        ExifInterface exif = createExif("New description");
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        exif.writeExif(concat(SOI, EOI), stream);
+        SlowChannel channel = new SlowChannel();
+        exif.writeExif(concat(SOI, EOI), channel);
+
+        byte[] actual = channel.mOut.toByteArray();
+        byte[] expected = Arrays.copyOf(stream.toByteArray(), actual.length);
+        assertTrue(Arrays.equals(expected, actual));
+        assertTrue(Arrays.equals(EOI, Arrays.copyOfRange(actual, actual.length - 2,
+                actual.length)));
+    }
+
+    public void testNotAJpeg() {
+        try {
+            createExif("New description").writeExif(new byte[] { 'G', 'I', 'F' },
+                    new SlowChannel());
+            fail("Wrote EXIF data into something which is not a JPEG");
+        } catch (IOException e) {
+        }
+    }
+}
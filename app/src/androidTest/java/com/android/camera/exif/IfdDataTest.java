@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link IfdData} keeps its tags sorted by unsigned tag id
+ * through inserts, replacements and removals.
+ */
+@SmallTest
+public class IfdDataTest extends TestCase {
+    private static ExifTag newTag(int tagId, long value) {
+        ExifTag tag = new ExifTag((short) tagId, ExifTag.TYPE_UNSIGNED_LONG, 1,
+                IfdId.TYPE_IFD_0, true);
+        tag.setValue(value);
+        return tag;
+    }
+
+    private static void assertTagIds(IfdData ifd, int... tagIds) {
+        ExifTag[] tags = ifd.getAllTags();
+        assertEquals(tagIds.length, ifd.getTagCount());
+        assertEquals(tagIds.length, tags.length);
+        for (int i = 0; i < tagIds.length; i++) {
+            assertEquals("tag " + i, tagIds[i], tags[i].getTagId() & 0xffff);
+            assertSame(tags[i], ifd.getTag((short) tagIds[i]));
+        }
+    }
+
+    public void testInsertKeepsUnsignedOrder() {
+        IfdData ifd = new IfdData(IfdId.TYPE_IFD_EXIF);
+        // Ids above 0x7fff are negative as shorts but come last in the file.
+        int[] ids = { 0xa002, 0x0110, 0x8769, 0x010f, 0x9003, 0x0100, 0xa003, 0x0101,
+                0x0112, 0x8827, 0x0001, 0xffff, 0x0000 };
+        for (int id : ids) {
+            assertNull(ifd.setTag(newTag(id, id)));
+        }
+        assertTagIds(ifd, 0x0000, 0x0001, 0x0100, 0x0101, 0x010f, 0x0110, 0x0112, 0x8769,
+                0x8827, 0x9003, 0xa002, 0xa003, 0xffff);
+        for (ExifTag tag : ifd.getAllTags()) {
+            assertEquals(IfdId.TYPE_IFD_EXIF, tag.getIfd());
+            assertEquals(tag.getTagId() & 0xffff, tag.getValueAsLong(-1));
+        }
+    }
+
+    public void testAppendInFileOrder() {
+        IfdData ifd = new IfdData(IfdId.TYPE_IFD_0);
+        for (int id = 1; id <= 100; id++) {
+            ifd.setTag(newTag(id, id));
+        }
+        assertEquals(100, ifd.getTagCount());
+        for (int id = 1; id <= 100; id++) {
+            assertEquals(id, ifd.getTag((short) id).getValueAsLong(-1));
+        }
+        assertNull(ifd.getTag((short) 0));
+        assertNull(ifd.getTag((short) 101));
+    }
+
+    public void testReplaceReturnsOldTag() {
+        IfdData ifd = new IfdData(IfdId.TYPE_IFD_0);
+        ExifTag first = newTag(0x0110, 1);
+        ifd.setTag(newTag(0x010f, 0));
+        ifd.setTag(first);
+        ifd.setTag(newTag(0x0112, 2));
+
+        ExifTag second = newTag(0x0110, 3);
+        assertSame(first, ifd.setTag(second));
+        assertTagIds(ifd, 0x010f, 0x0110, 0x0112);
+        assertSame(second, ifd.getTag((short) 0x0110));
+        assertTrue(ifd.checkCollision((short) 0x0110));
+    }
+
+    public void testRemove() {
+        IfdData ifd = new IfdData(IfdId.TYPE_IFD_0);
+        for (int id : new int[] { 0x0100, 0x0101, 0x0110, 0x8769, 0xa002 }) {
+            ifd.setTag(newTag(id, id));
+        }
+        ifd.removeTag((short) 0x0110);
+        assertTagIds(ifd, 0x0100, 0x0101, 0x8769, 0xa002);
+        ifd.removeTag((short) 0x0100);
+        assertTagIds(ifd, 0x0101, 0x8769, 0xa002);
+        ifd.removeTag((short) 0xa002);
+        assertTagIds(ifd, 0x0101, 0x8769);
+        // Removing a missing tag changes nothing.
+        ifd.removeTag((short) 0x0110);
+        assertTagIds(ifd, 0x0101, 0x8769);
+        assertFalse(ifd.checkCollision((short) 0x0110));
+
+        // Removed slots can be filled again.
+        ifd.setTag(newTag(0x0110, 7));
+        ifd.setTag(newTag(0x0000, 8));
+        assertTagIds(ifd, 0x0000, 0x0101, 0x0110, 0x8769);
+        ifd.removeTag((short) 0x0000);
+        ifd.removeTag((short) 0x0101);
+        ifd.removeTag((short) 0x0110);
+        ifd.removeTag((short) 0x8769);
+        assertTagIds(ifd);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.processing;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.location.Location;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.app.CameraServices;
+import com.android.camera.session.CaptureSession;
+
+/**
+ * Checks the order in which {@link ProcessingServiceManager} hands out tasks
+ * and how it holds tasks back until their memory is free. The service itself
+ * is never started.
+ */
+@SmallTest
+public class ProcessingServiceManagerTest extends AndroidTestCase {
+    private static final int BUDGET_MB = 200;
+
+    /** A task which is never processed, only queued. */
+    private static class QueuedOnlyTask implements ProcessingTask {
+        private final String mName;
+
+        QueuedOnlyTask(String name) {
+            mName = name;
+        }
+
+        @Override
+        public ProcessingResult process(Context context, CameraServices services,
+                CaptureSession session) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void suspend() {
+        }
+
+        @Override
+        public void resume() {
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public Location getLocation() {
+            return null;
+        }
+
+        @Override
+        public CaptureSession getSession() {
+            return null;
+        }
+
+        @Override
+        public void setDoneListener(ProcessingTaskDoneListener listener) {
+        }
+    }
+
+    private ProcessingServiceManager mManager;
+    private int mServiceStarts;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServiceStarts = 0;
+        mManager = new ProcessingServiceManager(new ContextWrapper(getContext()) {
+            @Override
+            public ComponentName startService(Intent service) {
+                mServiceStarts++;
+                return null;
+            }
+        });
+    }
+
+    public void testTasksComeOutByPriorityThenInOrder() {
+        ProcessingTask first = new QueuedOnlyTask("first");
+        ProcessingTask second = new QueuedOnlyTask("second");
+        ProcessingTask visible = new QueuedOnlyTask("visible");
+        mManager.enqueueTask(first, ProcessingServiceManager.PRIORITY_BACKGROUND, 10);
+        mManager.enqueueTask(second, ProcessingServiceManager.PRIORITY_BACKGROUND, 10);
+        mManager.enqueueTask(visible, ProcessingServiceManager.PRIORITY_USER_VISIBLE, 10);
+        assertEquals(3, mServiceStarts);
+
+        assertSame(visible, poll(BUDGET_MB, false));
+        assertSame(first, poll(BUDGET_MB, false));
+        assertSame(second, poll(BUDGET_MB, false));
+        assertNull(poll(BUDGET_MB, true));
+        assertFalse(mManager.isRunningOrHasItems());
+    }
+
+    public void testTaskEnqueuedWhileAnotherRunsIsPickedUp() {
+        ProcessingTask first = new QueuedOnlyTask("first");
+        mManager.enqueueTask(first, ProcessingServiceManager.PRIORITY_BACKGROUND, 10);
+        assertEquals(1, mServiceStarts);
+        assertSame(first, poll(BUDGET_MB, true));
+
+        // The service runs the first task and must hear about the second
+        // one now, not when the first one is done.
+        ProcessingTask second = new QueuedOnlyTask("second");
+        mManager.enqueueTask(second, ProcessingServiceManager.PRIORITY_BACKGROUND, 10);
+        assertEquals(2, mServiceStarts);
+        assertSame(second, poll(BUDGET_MB - 10, false));
+    }
+
+    public void testPromotedTaskComesOutFirst() {
+        ProcessingTask first = new QueuedOnlyTask("first");
+        ProcessingTask second = new QueuedOnlyTask("second");
+        mManager.enqueueTask(first, ProcessingServiceManager.PRIORITY_BACKGROUND, 10);
+        mManager.enqueueTask(second, ProcessingServiceManager.PRIORITY_BACKGROUND, 10);
+
+        assertTrue(mManager.setTaskPriority(second,
+                ProcessingServiceManager.PRIORITY_USER_VISIBLE));
+        assertSame(second, poll(BUDGET_MB, false));
+        assertSame(first, poll(BUDGET_MB, false));
+        assertFalse(mManager.setTaskPriority(first,
+                ProcessingServiceManager.PRIORITY_USER_VISIBLE));
+    }
+
+    public void testCancelledTaskIsNotHandedOut() {
+        ProcessingTask cancelled = new QueuedOnlyTask("cancelled");
+        ProcessingTask kept = new QueuedOnlyTask("kept");
+        mManager.enqueueTask(cancelled, ProcessingServiceManager.PRIORITY_USER_VISIBLE, 10);
+        mManager.enqueueTask(kept, ProcessingServiceManager.PRIORITY_BACKGROUND, 10);
+
+        assertTrue(mManager.cancelTask(cancelled));
+        assertFalse(mManager.cancelTask(cancelled));
+        assertSame(kept, poll(BUDGET_MB, false));
+    }
+
+    public void testTaskWaitsUntilItsMemoryIsFree() {
+        ProcessingTask large = new QueuedOnlyTask("large");
+        mManager.enqueueTask(large, ProcessingServiceManager.PRIORITY_BACKGROUND, 150);
+
+        assertNull(poll(100, false));
+        assertSame(large, poll(150, false));
+    }
+
+    public void testLowerPriorityTaskDoesNotSkipAhead() {
+        ProcessingTask large = new QueuedOnlyTask("large");
+        ProcessingTask small = new QueuedOnlyTask("small");
+        mManager.enqueueTask(large, ProcessingServiceManager.PRIORITY_USER_VISIBLE, 150);
+        mManager.enqueueTask(small, ProcessingServiceManager.PRIORITY_BACKGROUND, 10);
+
+        assertNull(poll(100, false));
+        assertSame(large, poll(150, false));
+        assertSame(small, poll(50, false));
+    }
+
+    public void testTaskLargerThanBudgetRunsWhenIdle() {
+        ProcessingTask huge = new QueuedOnlyTask("huge");
+        mManager.enqueueTask(huge, ProcessingServiceManager.PRIORITY_BACKGROUND,
+                BUDGET_MB * 2);
+
+        assertNull(poll(BUDGET_MB - 1, false));
+        ProcessingServiceManager.QueuedTask queued = mManager.pollTask(BUDGET_MB, BUDGET_MB,
+                true);
+        assertSame(huge, queued.task);
+        assertEquals(BUDGET_MB, queued.getMemoryMb(BUDGET_MB));
+    }
+
+    public void testUnknownMemoryTaskRunsAlone() {
+        ProcessingTask unknown = new QueuedOnlyTask("unknown");
+        mManager.enqueueTask(unknown, ProcessingServiceManager.PRIORITY_BACKGROUND,
+                ProcessingServiceManager.MEMORY_UNKNOWN);
+
+        assertNull(poll(BUDGET_MB - 1, false));
+        assertSame(unknown, poll(BUDGET_MB - 1, true));
+    }
+
+    public void testLegacyTasksRunNextToEachOther() {
+        ProcessingTask first = new QueuedOnlyTask("first");
+        ProcessingTask second = new QueuedOnlyTask("second");
+        mManager.enqueueTask(first);
+        mManager.enqueueTask(second);
+
+        ProcessingServiceManager.QueuedTask queued = mManager.pollTask(BUDGET_MB, BUDGET_MB,
+                true);
+        assertSame(first, queued.task);
+        int inUseMb = queued.getMemoryMb(BUDGET_MB);
+        assertEquals(ProcessingServiceManager.DEFAULT_MEMORY_MB, inUseMb);
+        assertSame(second, poll(BUDGET_MB - inUseMb, false));
+    }
+
+    public void testHoldStopsTasksUntilResumed() {
+        assertTrue(mManager.suspendProcessing());
+        ProcessingTask task = new QueuedOnlyTask("task");
+        mManager.enqueueTask(task, ProcessingServiceManager.PRIORITY_BACKGROUND, 10);
+        assertEquals(0, mServiceStarts);
+        assertFalse(mManager.suspendProcessing());
+
+        mManager.resumeProcessing();
+        assertEquals(1, mServiceStarts);
+        assertSame(task, poll(BUDGET_MB, true));
+    }
+
+    /** Polls with the given memory free, and returns the task or null. */
+    private ProcessingTask poll(int freeMemoryMb, boolean idle) {
+        ProcessingServiceManager.QueuedTask queued = mManager.pollTask(freeMemoryMb, BUDGET_MB,
+                idle);
+        return queued == null ? null : queued.task;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.util.BitmapCache;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the eviction order, reference counting and reuse pool of
+ * {@link BitmapCache}.
+ */
+@SmallTest
+public class BitmapCacheTest extends TestCase {
+    private static final int SIDE = 10;
+    private static final int BITMAP_BYTES = SIDE * SIDE * 4;
+
+    private BitmapCache mCache;
+    private Uri[] mUris;
+    private Bitmap[] mBitmaps;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCache = new BitmapCache(3 * BITMAP_BYTES, 2 * BITMAP_BYTES);
+        mUris = new Uri[5];
+        mBitmaps = new Bitmap[5];
+        for (int i = 0; i < mUris.length; i++) {
+            mUris[i] = Uri.parse("content://media/external/images/media/" + i);
+            mBitmaps[i] = Bitmap.createBitmap(SIDE, SIDE, Bitmap.Config.ARGB_8888);
+        }
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        assertNull(mCache.acquire(mUris[0], 1, 0));
+        for (int i = 0; i < 3; i++) {
+            mCache.put(mUris[i], 1, 0, mBitmaps[i]);
+            mCache.release(mBitmaps[i]);
+        }
+        assertSame(mBitmaps[0], mCache.acquire(mUris[0], 1, 0));
+        mCache.release(mBitmaps[0]);
+        assertNull(mCache.acquire(mUris[0], 2, 0));
+        assertNull(mCache.acquire(mUris[0], 1, 90));
+
+        mCache.put(mUris[3], 1, 0, mBitmaps[3]);
+        assertNull(mCache.acquire(mUris[1], 1, 0));
+        assertSame(mBitmaps[0], mCache.acquire(mUris[0], 1, 0));
+        assertEquals(1, mCache.getEvictionCount());
+        assertEquals(2, mCache.getHitCount());
+        assertEquals(4, mCache.getMissCount());
+        assertEquals(3 * BITMAP_BYTES, mCache.getSize());
+    }
+
+    public void testOnlyUnreferencedBitmapsAreReused() {
+        for (int i = 0; i < 3; i++) {
+            mCache.put(mUris[i], 1, 0, mBitmaps[i]);
+        }
+        mCache.release(mBitmaps[0]);
+        // Evicts the unreferenced bitmap 0, then the referenced bitmap 1.
+        mCache.put(mUris[3], 1, 0, mBitmaps[3]);
+        mCache.put(mUris[4], 1, 0, mBitmaps[4]);
+        mCache.release(mBitmaps[1]);
+        assertEquals(BITMAP_BYTES, mCache.getPoolSize());
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inSampleSize = 2;
+        assertFalse(mCache.prepareReuse(options, SIDE * 4, SIDE * 4));
+        assertTrue(mCache.prepareReuse(options, SIDE * 2, SIDE * 2 - 1));
+        assertSame(mBitmaps[0], options.inBitmap);
+        assertFalse(mCache.hasReusableBitmaps());
+        assertEquals(1, mCache.getReuseCount());
+    }
+
+    public void testTrimMemory() {
+        for (int i = 0; i < 3; i++) {
+            mCache.put(mUris[i], 1, 0, mBitmaps[i]);
+            mCache.release(mBitmaps[i]);
+        }
+        mCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertTrue(mCache.getSize() <= mCache.getMaxSize() / 2);
+        assertEquals(0, mCache.getPoolSize());
+
+        mCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, mCache.getSize());
+    }
+}
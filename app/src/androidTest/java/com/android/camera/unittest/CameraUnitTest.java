@@ -17,12 +17,16 @@
 package com.android.camera.unittest;
 
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.ImageBlur;
 
 import android.graphics.Matrix;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import junit.framework.TestCase;
 
+import java.util.Arrays;
+import java.util.Random;
+
 @SmallTest
 public class CameraUnitTest extends TestCase {
     public void testRoundOrientation() {
@@ -99,6 +103,62 @@ public class CameraUnitTest extends TestCase {
         assertEquals(expected, points);
     }
 
+    public void testBlurKeepsFlatColors() {
+        int w = 97;
+        int h = 61;
+        int[] src = new int[w * h];
+        int[] out = new int[w * h];
+        int[] scratch = new int[w * h];
+        Arrays.fill(src, 0xff80c0ff);
+        for (int size : new int[] {3, 9, CameraUtil.MAX_BLUR_MASK_SIZE, 41}) {
+            CameraUtil.blur(src, out, scratch, w, h, size);
+            for (int i = 0; i < out.length; i++) {
+                assertEquals("Mask size " + size + " at " + i, src[i], out[i]);
+            }
+        }
+    }
+
+    public void testBlurMatchesFloatConvolution() {
+        int w = 64;
+        int h = 48;
+        Random random = new Random(0);
+        int[] src = new int[w * h];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        float[] weights = {0.05f, 0.25f, 0.4f, 0.25f, 0.05f};
+        int[] out = new int[w * h];
+        ImageBlur.convolve(src, out, new int[w * h], w, h, ImageBlur.toFixedPoint(weights));
+
+        int off = weights.length / 2;
+        float[] tmp = new float[w * h * 3];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                for (int c = 0; c < 3; c++) {
+                    for (int i = 0; i < weights.length; i++) {
+                        int color = src[y * w + CameraUtil.clamp(x + i - off, 0, w - 1)];
+                        tmp[(y * w + x) * 3 + c] += weights[i] * ((color >> (8 * c)) & 0xff);
+                    }
+                }
+            }
+        }
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                for (int c = 0; c < 3; c++) {
+                    float expected = 0;
+                    for (int i = 0; i < weights.length; i++) {
+                        int row = CameraUtil.clamp(y + i - off, 0, h - 1);
+                        expected += weights[i] * tmp[(row * w + x) * 3 + c];
+                    }
+                    int actual = (out[y * w + x] >> (8 * c)) & 0xff;
+                    assertTrue("Pixel " + x + "," + y + " is off",
+                            Math.abs(expected - actual) <= 1);
+                }
+                assertEquals(0xff, out[y * w + x] >>> 24);
+            }
+        }
+    }
+
     private void assertEquals(int expected[], float[] actual) {
         for (int i = 0; i < expected.length; i++) {
             assertEquals("Array index " + i + " mismatch", expected[i], Math.round(actual[i]));
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.util.CaptureDataDecoder;
+import com.android.camera.util.CaptureDataRecorder;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records values with {@link CaptureDataRecorder} and checks that
+ * {@link CaptureDataDecoder} reads back the newest ones, in order.
+ */
+@SmallTest
+public class CaptureDataRecorderTest extends TestCase {
+    /** The smallest ring, which wraps around after a few dozen records. */
+    private static final int CAPACITY = 1024;
+
+    private File mFile;
+    private CaptureDataRecorder mRecorder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(System.getProperty("java.io.tmpdir"), "CaptureDataRecorderTest.bin");
+        mRecorder = new CaptureDataRecorder(mFile, CAPACITY);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRecorder.close();
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws IOException {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("android.sensor.exposureTime", 33000000L);
+        values.put("android.lens.aperture", 2.0f);
+        values.put("android.control.aeRegions", new int[] { 1, 2, 3 });
+        values.put("android.control.mode", "auto");
+        mRecorder.record("Result", 7, values);
+
+        List<String> lines = readLines();
+        assertEquals(9, lines.size());
+        assertTrue(lines.get(0).startsWith("Result frame 7 at "));
+        assertEquals("    android.sensor.exposureTime", lines.get(1));
+        assertEquals("        33000000", lines.get(2));
+        assertEquals("        2.0", lines.get(4));
+        assertEquals("        [1, 2, 3]", lines.get(6));
+        assertEquals("        auto", lines.get(8));
+    }
+
+    public void testWrapAroundKeepsNewestRecords() throws IOException {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        int count = 200;
+        for (int i = 0; i < count; i++) {
+            values.put("index", (long) i);
+            mRecorder.record("Result", i, values);
+        }
+
+        List<Long> frames = new ArrayList<Long>();
+        List<String> lines = readLines();
+        for (int i = 0; i < lines.size(); i += 3) {
+            String title = lines.get(i);
+            long frame = Long.parseLong(title.split(" ")[2]);
+            assertEquals("        " + frame, lines.get(i + 2));
+            frames.add(frame);
+        }
+        // The ring kept the newest records, oldest first, without gaps.
+        assertTrue(frames.size() > 10);
+        assertTrue(frames.size() < count);
+        for (int i = 0; i < frames.size(); i++) {
+            assertEquals(count - frames.size() + i, frames.get(i).longValue());
+        }
+    }
+
+    public void testFullDictionary() throws IOException {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        // Each name takes about 20 bytes of the 64KB dictionary.
+        for (int i = 0; i < 4000; i++) {
+            values.clear();
+            values.put("android.test.key" + i, i);
+            mRecorder.record("Result", i, values);
+        }
+        values.clear();
+        mRecorder.record("A title which no longer fits", -1, values);
+
+        List<String> lines = readLines();
+        assertTrue(lines.get(lines.size() - 1).startsWith("<unknown -1> at "));
+    }
+
+    private List<String> readLines() throws IOException {
+        StringWriter writer = new StringWriter();
+        CaptureDataDecoder.decode(mFile, writer);
+        List<String> lines = new ArrayList<String>();
+        for (String line : writer.toString().split("\n")) {
+            lines.add(line);
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.util.ConcurrentSharedRingBuffer;
+import com.android.camera.util.ConcurrentSharedRingBuffer.Selector;
+import com.android.camera.util.ConcurrentSharedRingBuffer.SwapTask;
+import com.android.camera.util.Task;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.util.Pair;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exercises {@link ConcurrentSharedRingBuffer} from several threads at once,
+ * the way ImageCaptureManager does from its image and capture result
+ * callbacks, and checks that pinned elements are never swapped out.
+ */
+@LargeTest
+public class ConcurrentSharedRingBufferTest extends TestCase {
+    private static final String TAG = "ConcurrentSharedRingBufferTest";
+    private static final int CAPACITY = 6;
+    private static final int PIN_THREADS = 4;
+    private static final int SWAPS = 20000;
+
+    /** An element which tracks how many pins it has and which key it holds. */
+    private static class Frame {
+        volatile long mKey;
+        final AtomicInteger mPins = new AtomicInteger();
+    }
+
+    private static class FrameSwapper implements SwapTask<Frame> {
+        private final long mKey;
+        private final AtomicReference<String> mError;
+
+        FrameSwapper(long key, AtomicReference<String> error) {
+            mKey = key;
+            mError = error;
+        }
+
+        @Override
+        public Frame create() {
+            Frame frame = new Frame();
+            frame.mKey = mKey;
+            return frame;
+        }
+
+        @Override
+        public Frame swap(Frame oldElement) {
+            if (oldElement.mPins.get() != 0) {
+                mError.compareAndSet(null, "Swapped out a pinned element " + oldElement.mKey);
+            }
+            oldElement.mKey = mKey;
+            return oldElement;
+        }
+
+        @Override
+        public void update(Frame existingElement) {
+        }
+    }
+
+    public void testSingleThreadedSemantics() throws InterruptedException {
+        AtomicReference<String> error = new AtomicReference<String>();
+        ConcurrentSharedRingBuffer<Frame> buffer = new ConcurrentSharedRingBuffer<Frame>(3);
+        assertNull(buffer.tryPinGreatest());
+        for (long key = 1; key <= 3; key++) {
+            assertTrue(buffer.swapLeast(key, new FrameSwapper(key, error)));
+        }
+
+        // Only capacity - 1 elements may be pinned at a time.
+        Pair<Long, Frame> greatest = buffer.tryPinGreatest();
+        assertEquals(3L, greatest.first.longValue());
+        assertEquals(3L, greatest.second.mKey);
+        assertNotNull(buffer.tryPin(2));
+        assertNull(buffer.tryPin(1));
+        // Pinning an element which is already pinned needs no extra permit.
+        assertNotNull(buffer.tryPin(3));
+
+        // The only unpinned element is the one swapped out.
+        assertTrue(buffer.swapLeast(4, new FrameSwapper(4, error)));
+        assertNull(buffer.tryPin(1));
+        assertNull(error.get());
+
+        buffer.release(3);
+        buffer.release(3);
+        buffer.release(2);
+        try {
+            buffer.release(2);
+            fail("Released an unpinned element");
+        } catch (IllegalArgumentException e) {
+        }
+
+        Pair<Long, Frame> selected = buffer.tryPinGreatestSelected(new Selector<Frame>() {
+            @Override
+            public boolean select(Frame element) {
+                return element.mKey < 4;
+            }
+        });
+        assertEquals(3L, selected.first.longValue());
+        buffer.release(3);
+
+        final AtomicInteger closed = new AtomicInteger();
+        buffer.close(new Task<Frame>() {
+            @Override
+            public void run(Frame t) {
+                closed.incrementAndGet();
+            }
+        });
+        assertEquals(3, closed.get());
+        assertNull(buffer.tryPinGreatest());
+        assertFalse(buffer.swapLeast(5, new FrameSwapper(5, error)));
+    }
+
+    public void testConcurrentPinAndSwap() throws InterruptedException {
+        final AtomicReference<String> error = new AtomicReference<String>();
+        final ConcurrentSharedRingBuffer<Frame> buffer =
+                new ConcurrentSharedRingBuffer<Frame>(CAPACITY);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicLong latestKey = new AtomicLong();
+        final AtomicLong pins = new AtomicLong();
+        final CountDownLatch finished = new CountDownLatch(PIN_THREADS);
+
+        for (int t = 0; t < PIN_THREADS; t++) {
+            final int thread = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            Pair<Long, Frame> pinned;
+                            switch (thread % 3) {
+                                case 0:
+                                    pinned = buffer.tryPinGreatest();
+                                    break;
+                                case 1:
+                                    pinned = buffer.tryPin(latestKey.get() - 2);
+                                    break;
+                                default:
+                                    pinned = buffer.tryPinGreatestSelected(
+                                            new Selector<Frame>() {
+                                                @Override
+                                                public boolean select(Frame element) {
+                                                    return element.mKey % 2 == 0;
+                                                }
+                                            });
+                                    break;
+                            }
+                            if (pinned == null) {
+                                continue;
+                            }
+                            Frame frame = pinned.second;
+                            frame.mPins.incrementAndGet();
+                            if (frame.mKey != pinned.first) {
+                                error.compareAndSet(null, "Pinned " + frame.mKey
+                                        + " for key " + pinned.first);
+                            }
+                            Thread.yield();
+                            frame.mPins.decrementAndGet();
+                            buffer.release(pinned.first);
+                            pins.incrementAndGet();
+                        }
+                    } catch (RuntimeException e) {
+                        error.compareAndSet(null, e.toString());
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long start = System.nanoTime();
+        try {
+            for (long key = 1; key <= SWAPS; key++) {
+                assertTrue(buffer.swapLeast(key, new FrameSwapper(key, error)));
+                latestKey.set(key);
+            }
+        } finally {
+            done.set(true);
+            finished.await();
+        }
+        long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+        assertNull(error.get(), error.get());
+        Log.v(TAG, SWAPS + " swaps and " + pins.get() + " pins in " + elapsedMs + "ms ("
+                + (SWAPS * 1000L / elapsedMs) + " swaps/s)");
+
+        buffer.close(new Task<Frame>() {
+            @Override
+            public void run(Frame t) {
+                assertEquals(0, t.mPins.get());
+            }
+        });
+    }
+
+    public void testPinsRacingClose() throws InterruptedException {
+        for (int round = 0; round < 200; round++) {
+            final AtomicReference<String> error = new AtomicReference<String>();
+            final ConcurrentSharedRingBuffer<Frame> buffer =
+                    new ConcurrentSharedRingBuffer<Frame>(CAPACITY);
+            for (long key = 1; key <= CAPACITY; key++) {
+                buffer.swapLeast(key, new FrameSwapper(key, error));
+            }
+            final AtomicBoolean closed = new AtomicBoolean();
+            final CountDownLatch finished = new CountDownLatch(PIN_THREADS);
+            for (int t = 0; t < PIN_THREADS; t++) {
+                final long key = CAPACITY - t % (CAPACITY - 1);
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (!closed.get()) {
+                                Pair<Long, Frame> pinned = buffer.tryPin(key);
+                                if (pinned != null) {
+                                    pinned.second.mPins.incrementAndGet();
+                                    pinned.second.mPins.decrementAndGet();
+                                    buffer.release(pinned.first);
+                                }
+                            }
+                        } catch (RuntimeException e) {
+                            error.compareAndSet(null, e.toString());
+                        } finally {
+                            finished.countDown();
+                        }
+                    }
+                }.start();
+            }
+
+            final AtomicInteger closedElements = new AtomicInteger();
+            buffer.close(new Task<Frame>() {
+                @Override
+                public void run(Frame t) {
+                    if (t.mPins.get() != 0) {
+                        error.compareAndSet(null, "Closed a pinned element " + t.mKey);
+                    }
+                    closedElements.incrementAndGet();
+                }
+            });
+            closed.set(true);
+            finished.await();
+
+            assertNull(error.get(), error.get());
+            assertEquals(CAPACITY, closedElements.get());
+        }
+    }
+}
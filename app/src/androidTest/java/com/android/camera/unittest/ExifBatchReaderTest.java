@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.exif.ExifBatchReader;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.tests.R;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks {@link ExifBatchReader} against {@link ExifInterface} and measures
+ * scanning a directory of a few thousand JPEG files with both. Only the
+ * latency test writes that many files.
+ */
+@LargeTest
+public class ExifBatchReaderTest extends InstrumentationTestCase {
+    private static final String TAG = "ExifBatchReaderTest";
+    /** More than one task's worth, so the batch is split across threads. */
+    private static final int FILE_COUNT = 20;
+    /** Only written by the latency test. */
+    private static final int LATENCY_FILE_COUNT = 2000;
+
+    private File mDir;
+    private byte[] mJpeg;
+    private List<String> mPaths;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "exif_batch_reader_test");
+        mDir.mkdirs();
+        mJpeg = readResource(R.raw.galaxy_nexus);
+        mPaths = new ArrayList<String>(LATENCY_FILE_COUNT);
+        writeFiles(FILE_COUNT);
+    }
+
+    /** Adds copies of the test image until there are count files. */
+    private void writeFiles(int count) throws IOException {
+        for (int i = mPaths.size(); i < count; i++) {
+            File file = new File(mDir, i + ".jpg");
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(mJpeg);
+            } finally {
+                out.close();
+            }
+            mPaths.add(file.getAbsolutePath());
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (String path : mPaths) {
+            new File(path).delete();
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    public void testMatchesExifInterface() throws IOException {
+        ExifBatchReader.Result result = ExifBatchReader.read(mPaths,
+                ExifBatchReader.OPTION_IFD_0 | ExifBatchReader.OPTION_IFD_EXIF
+                        | ExifBatchReader.OPTION_IFD_GPS);
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(mPaths.get(0));
+
+        assertEquals(FILE_COUNT, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertTrue(result.hasExif[i]);
+            assertFalse(result.failed[i]);
+            assertEquals(ExifInterface.getRotationForOrientationValue(
+                    exif.getTagIntValue(ExifInterface.TAG_ORIENTATION).shortValue()),
+                    result.orientation[i]);
+            assertEquals(exif.getTagIntValue(ExifInterface.TAG_PIXEL_X_DIMENSION).intValue(),
+                    result.width[i]);
+            assertEquals(exif.getTagIntValue(ExifInterface.TAG_PIXEL_Y_DIMENSION).intValue(),
+                    result.height[i]);
+            assertEquals("2012:07:30 16:28:42", result.dateTime[i]);
+            assertTrue(Double.isNaN(result.latitude[i]));
+        }
+    }
+
+    public void testOptionsLimitFields() {
+        ExifBatchReader.Result result = ExifBatchReader.read(mPaths.subList(0, 1),
+                ExifBatchReader.OPTION_IFD_0);
+        assertTrue(result.hasExif[0]);
+        assertEquals(0, result.width[0]);
+        assertEquals(0, result.height[0]);
+    }
+
+    public void testFailuresAreRecordedPerFile() throws IOException {
+        File notJpeg = new File(mDir, "not_a.jpg");
+        OutputStream out = new FileOutputStream(notJpeg);
+        try {
+            out.write(new byte[] { 'G', 'I', 'F', '8', '9', 'a' });
+        } finally {
+            out.close();
+        }
+        List<String> paths = new ArrayList<String>(mPaths);
+        paths.set(3, new File(mDir, "missing.jpg").getAbsolutePath());
+        paths.set(11, notJpeg.getAbsolutePath());
+        ExifBatchReader.Result result;
+        try {
+            result = ExifBatchReader.read(paths, ExifBatchReader.OPTION_IFD_0);
+        } finally {
+            notJpeg.delete();
+        }
+
+        for (int i = 0; i < result.size(); i++) {
+            boolean bad = i == 3 || i == 11;
+            assertEquals("file " + i, bad, result.failed[i]);
+            assertEquals("file " + i, !bad, result.hasExif[i]);
+        }
+        assertEquals(0, result.orientation[3]);
+        assertNull(result.dateTime[11]);
+    }
+
+    public void testScanLatency() throws IOException {
+        writeFiles(LATENCY_FILE_COUNT);
+        long start = System.nanoTime();
+        ExifBatchReader.read(mPaths, ExifBatchReader.OPTION_IFD_0
+                | ExifBatchReader.OPTION_IFD_EXIF | ExifBatchReader.OPTION_IFD_GPS);
+        long batchMs = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        for (String path : mPaths) {
+            ExifInterface exif = new ExifInterface();
+            exif.readExif(path);
+            exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+            exif.getTagStringValue(ExifInterface.TAG_DATE_TIME_ORIGINAL);
+            exif.getTagIntValue(ExifInterface.TAG_PIXEL_X_DIMENSION);
+            exif.getTagIntValue(ExifInterface.TAG_PIXEL_Y_DIMENSION);
+            exif.getLatLongAsDoubles();
+        }
+        long sequentialMs = (System.nanoTime() - start) / 1000000;
+
+        Log.v(TAG, "Scanned " + mPaths.size() + " files: ExifBatchReader = " + batchMs
+                + "ms, ExifInterface = " + sequentialMs + "ms");
+    }
+
+    private byte[] readResource(int id) throws IOException {
+        InputStream in = getInstrumentation().getContext().getResources().openRawResource(id);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.exif.ExifBufferReader;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.IfdId;
+import com.android.camera.tests.R;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Checks {@link ExifBufferReader} against {@link ExifInterface} and compares
+ * the cost of reading a single tag through both.
+ */
+@MediumTest
+public class ExifBufferReaderTest extends InstrumentationTestCase {
+    private static final String TAG = "ExifBufferReaderTest";
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int ITERATIONS = 200;
+
+    private File mJpegFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mJpegFile = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                "exif_buffer_reader_test.jpg");
+        InputStream in = getInstrumentation().getContext().getResources()
+                .openRawResource(R.raw.galaxy_nexus);
+        OutputStream out = new FileOutputStream(mJpegFile);
+        try {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mJpegFile.delete();
+        super.tearDown();
+    }
+
+    public void testMatchesExifInterface() throws IOException {
+        String path = mJpegFile.getAbsolutePath();
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(path);
+        ExifBufferReader reader = ExifBufferReader.open(path);
+
+        assertTrue(reader.hasExif());
+        assertEquals(exif.getTagIntValue(ExifInterface.TAG_ORIENTATION).intValue(),
+                reader.getTagIntValue(ExifInterface.TAG_ORIENTATION, -1));
+        assertEquals(exif.getTagIntValue(ExifInterface.TAG_PIXEL_X_DIMENSION).intValue(),
+                reader.getTagIntValue(ExifInterface.TAG_PIXEL_X_DIMENSION, -1));
+        assertEquals(exif.getTagIntValue(ExifInterface.TAG_IMAGE_WIDTH, IfdId.TYPE_IFD_1)
+                .intValue(),
+                reader.getTagIntValue(ExifInterface.TAG_IMAGE_WIDTH, IfdId.TYPE_IFD_1, -1));
+        assertEquals(exif.getTagRationalValue(ExifInterface.TAG_FOCAL_LENGTH),
+                reader.getTagRationalValues(ExifInterface.TAG_FOCAL_LENGTH)[0]);
+        assertEquals("Nexus S", reader.getTagStringValue(ExifInterface.TAG_MODEL));
+        assertEquals("2012:07:30 16:28:42",
+                reader.getTagStringValue(ExifInterface.TAG_DATE_TIME_ORIGINAL));
+        assertFalse(reader.hasTag(ExifInterface.TAG_GPS_LATITUDE));
+        assertNull(reader.getLatLongAsDoubles());
+    }
+
+    public void testReadOrientationLatency() throws IOException {
+        String path = mJpegFile.getAbsolutePath();
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            readWithExifInterface(path);
+            readWithBufferReader(path);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            readWithExifInterface(path);
+        }
+        long parserNs = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            readWithBufferReader(path);
+        }
+        long readerNs = (System.nanoTime() - start) / ITERATIONS;
+
+        Log.v(TAG, "Avg orientation read: ExifParser = " + parserNs + "ns, ExifBufferReader = "
+                + readerNs + "ns");
+    }
+
+    private static int readWithExifInterface(String path) throws IOException {
+        ExifInterface exif = new ExifInterface();
+        exif.readExif(path);
+        return exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+    }
+
+    private static int readWithBufferReader(String path) throws IOException {
+        return ExifBufferReader.open(path).getTagIntValue(ExifInterface.TAG_ORIENTATION, -1);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.util.JpegBufferPool;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the size classes of {@link JpegBufferPool} and that released
+ * buffers are reused.
+ */
+@SmallTest
+public class JpegBufferPoolTest extends TestCase {
+    private static final int KB = 1024;
+    private static final int MB = 1024 * 1024;
+
+    private final JpegBufferPool mPool = new JpegBufferPool(4 * MB, 4 * MB);
+
+    public void testRoundsUpToSizeClass() {
+        assertEquals(64 * KB, mPool.acquireHeap(1).getCapacity());
+        assertEquals(64 * KB, mPool.acquireHeap(64 * KB).getCapacity());
+        assertEquals(96 * KB, mPool.acquireHeap(64 * KB + 1).getCapacity());
+        assertEquals(128 * KB, mPool.acquireDirect(100 * KB).getCapacity());
+        JpegBufferPool.Lease lease = mPool.acquireHeap(100 * KB);
+        assertEquals(100 * KB, lease.getLength());
+    }
+
+    public void testExactSizeClass() {
+        int size = 1000 * 750 * 3;
+        assertEquals(3 * MB, mPool.acquireDirect(size).getCapacity());
+
+        mPool.addSizeClass(size);
+        mPool.addSizeClass(size);
+        JpegBufferPool.Lease lease = mPool.acquireDirect(size);
+        assertEquals(size, lease.getCapacity());
+        // Smaller requests still use the default classes below it.
+        assertEquals(2 * MB, mPool.acquireHeap(2 * MB).getCapacity());
+        assertEquals(size, mPool.acquireHeap(2 * MB + 1).getCapacity());
+
+        lease.release();
+        assertSame(lease.getBuffer(), mPool.acquireDirect(size).getBuffer());
+    }
+
+    public void testReleasedBufferIsReused() {
+        JpegBufferPool.Lease lease = mPool.acquireHeap(100 * KB);
+        byte[] array = lease.getArray();
+        lease.retain();
+        lease.release();
+        assertNotSame(array, mPool.acquireHeap(100 * KB).getArray());
+        lease.release();
+        assertSame(array, mPool.acquireHeap(100 * KB).getArray());
+
+        // Buffers acquired before a class was added are still reused.
+        JpegBufferPool.Lease before = mPool.acquireHeap(3 * MB);
+        mPool.addSizeClass(3 * MB - 1);
+        before.release();
+        assertSame(before.getArray(), mPool.acquireHeap(3 * MB).getArray());
+    }
+
+    public void testIdleBytesAreLimited() {
+        JpegBufferPool.Lease first = mPool.acquireHeap(3 * MB);
+        JpegBufferPool.Lease second = mPool.acquireHeap(3 * MB);
+        first.release();
+        second.release();
+        assertSame(first.getArray(), mPool.acquireHeap(3 * MB).getArray());
+        assertNotSame(second.getArray(), mPool.acquireHeap(3 * MB).getArray());
+    }
+}
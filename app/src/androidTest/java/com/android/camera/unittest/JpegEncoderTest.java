@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.util.JpegEncoder;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checks that {@link JpegEncoder} produces decodable images from planar and
+ * semi-planar YUV buffers, and measures quality against throughput at camera
+ * resolutions.
+ */
+@LargeTest
+public class JpegEncoderTest extends TestCase {
+    private static final String TAG = "JpegEncoderTest";
+    private static final int[][] BENCHMARK_SIZES = {
+            { 3264, 2448 }, { 4000, 3000 }
+    };
+    private static final int[] BENCHMARK_QUALITIES = { 50, 75, 90, 95 };
+    private static final int BENCHMARK_RUNS = 3;
+
+    /** A synthetic frame with planar chroma. */
+    private static class Frame {
+        final int mWidth;
+        final int mHeight;
+        final byte[] mY;
+        final byte[] mCb;
+        final byte[] mCr;
+
+        Frame(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+            int chromaWidth = (width + 1) / 2;
+            int chromaHeight = (height + 1) / 2;
+            mY = new byte[width * height];
+            mCb = new byte[chromaWidth * chromaHeight];
+            mCr = new byte[chromaWidth * chromaHeight];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    mY[y * width + x] =
+                            (byte) (128 + 100 * Math.sin(x / 37.0) * Math.cos(y / 23.0));
+                }
+            }
+            for (int y = 0; y < chromaHeight; y++) {
+                for (int x = 0; x < chromaWidth; x++) {
+                    mCb[y * chromaWidth + x] = (byte) (128 + 60 * Math.sin(x / 50.0));
+                    mCr[y * chromaWidth + x] = (byte) (128 + 60 * Math.cos(y / 40.0));
+                }
+            }
+        }
+
+        int encode(ByteBuffer out, int quality) {
+            int chromaWidth = (mWidth + 1) / 2;
+            return JpegEncoder.compressYUV420p(mWidth, mHeight,
+                    ByteBuffer.wrap(mY), 1, mWidth,
+                    ByteBuffer.wrap(mCb), 1, chromaWidth,
+                    ByteBuffer.wrap(mCr), 1, chromaWidth,
+                    out, quality);
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    public void testSemiPlanarMatchesPlanar() {
+        Frame frame = new Frame(333, 201);
+        ByteBuffer planarOut = ByteBuffer.allocate(frame.mWidth * frame.mHeight * 3);
+        int planarLength = frame.encode(planarOut, 90);
+
+        // Padded rows and interleaved chroma, like the planes of an Image.
+        int chromaWidth = (frame.mWidth + 1) / 2;
+        int chromaHeight = (frame.mHeight + 1) / 2;
+        int lumaRowStride = frame.mWidth + 19;
+        int chromaRowStride = chromaWidth * 2 + 6;
+        ByteBuffer luma = ByteBuffer.allocateDirect(lumaRowStride * frame.mHeight);
+        for (int y = 0; y < frame.mHeight; y++) {
+            luma.position(y * lumaRowStride);
+            luma.put(frame.mY, y * frame.mWidth, frame.mWidth);
+        }
+        ByteBuffer chroma = ByteBuffer.allocateDirect(chromaRowStride * chromaHeight);
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                chroma.put(y * chromaRowStride + 2 * x, frame.mCb[y * chromaWidth + x]);
+                chroma.put(y * chromaRowStride + 2 * x + 1, frame.mCr[y * chromaWidth + x]);
+            }
+        }
+        chroma.position(1);
+        ByteBuffer cr = chroma.slice();
+        chroma.position(0);
+        ByteBuffer semiPlanarOut = ByteBuffer.allocateDirect(planarOut.capacity());
+        int semiPlanarLength = JpegEncoder.compressYUV420p(frame.mWidth, frame.mHeight,
+                luma, 1, lumaRowStride, chroma, 2, chromaRowStride, cr, 2, chromaRowStride,
+                semiPlanarOut, 90);
+
+        assertTrue(planarLength > 0);
+        assertTrue(Arrays.equals(toArray(planarOut, planarLength),
+                toArray(semiPlanarOut, semiPlanarLength)));
+    }
+
+    public void testDecodesToSameImage() {
+        Frame frame = new Frame(640, 480);
+        ByteBuffer out = ByteBuffer.allocate(frame.mWidth * frame.mHeight * 3);
+        int length = frame.encode(out, 95);
+        assertTrue(length > 0);
+
+        Bitmap bitmap = BitmapFactory.decodeByteArray(out.array(), 0, length);
+        assertNotNull(bitmap);
+        assertEquals(frame.mWidth, bitmap.getWidth());
+        assertEquals(frame.mHeight, bitmap.getHeight());
+        assertTrue(getLumaPsnr(frame, bitmap) > 30);
+        bitmap.recycle();
+    }
+
+    public void testOutputBufferTooSmall() {
+        Frame frame = new Frame(64, 64);
+        ByteBuffer out = ByteBuffer.allocate(64 * 64 * 3);
+        int length = frame.encode(out, 90);
+        assertEquals(length, frame.encode(ByteBuffer.allocate(length), 90));
+        assertEquals(JpegEncoder.ERROR_OUT_BUF_TOO_SMALL,
+                frame.encode(ByteBuffer.allocate(length - 1), 90));
+    }
+
+    public void testQualityVersusThroughput() {
+        for (int[] size : BENCHMARK_SIZES) {
+            Frame frame = new Frame(size[0], size[1]);
+            ByteBuffer out = ByteBuffer.allocateDirect(frame.mWidth * frame.mHeight * 3);
+            for (int quality : BENCHMARK_QUALITIES) {
+                long bestNs = Long.MAX_VALUE;
+                int length = 0;
+                for (int i = 0; i < BENCHMARK_RUNS; i++) {
+                    long start = System.nanoTime();
+                    length = frame.encode(out, quality);
+                    bestNs = Math.min(bestNs, System.nanoTime() - start);
+                }
+                assertTrue(length > 0);
+
+                byte[] jpeg = toArray(out, length);
+                Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, length);
+                double psnr = getLumaPsnr(frame, bitmap);
+                bitmap.recycle();
+                Log.v(TAG, frame.mWidth + "x" + frame.mHeight + " at quality " + quality
+                        + ": " + (bestNs / 1000000) + "ms, "
+                        + (frame.mWidth * (long) frame.mHeight * 1000 / bestNs) + " MP/s, "
+                        + (length / 1024) + "KB, luma PSNR " + Math.round(psnr) + "dB");
+            }
+        }
+    }
+
+    /** Compares the luma of the decoded image to the source, on a grid. */
+    private static double getLumaPsnr(Frame frame, Bitmap bitmap) {
+        double squaredError = 0;
+        int count = 0;
+        for (int y = 0; y < frame.mHeight; y += 4) {
+            for (int x = 0; x < frame.mWidth; x += 4) {
+                int color = bitmap.getPixel(x, y);
+                double luma = 0.299 * ((color >> 16) & 0xff) + 0.587 * ((color >> 8) & 0xff)
+                        + 0.114 * (color & 0xff);
+                double error = luma - (frame.mY[y * frame.mWidth + x] & 0xff);
+                squaredError += error * error;
+                count++;
+            }
+        }
+        return 10 * Math.log10(255.0 * 255.0 * count / Math.max(squaredError, 1e-9));
+    }
+}
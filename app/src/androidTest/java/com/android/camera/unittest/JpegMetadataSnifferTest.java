@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.adobe.internal.xmp.XMPException;
+import com.adobe.internal.xmp.XMPMeta;
+import com.adobe.internal.xmp.XMPMetaFactory;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.Rational;
+import com.android.camera.util.JpegMetadataSniffer;
+import com.android.camera.util.PhotoSphereHelper;
+import com.android.camera.util.XmpUtil;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Checks what {@link JpegMetadataSniffer} finds in the EXIF and XMP segments
+ * of small synthetic JPEG files.
+ */
+@SmallTest
+public class JpegMetadataSnifferTest extends TestCase {
+    private static final String GPANO = "http://ns.google.com/photos/1.0/panorama/";
+    private static final String GDEPTH = "http://ns.google.com/photos/1.0/depthmap/";
+
+    /** SOI, an APP0 segment, a quantization table, SOS, scan data and EOI. */
+    private static byte[] createJpeg() {
+        return new byte[] {
+                (byte) 0xff, (byte) 0xd8,
+                (byte) 0xff, (byte) 0xe0, 0, 7, 'J', 'F', 'I', 'F', 0,
+                (byte) 0xff, (byte) 0xdb, 0, 4, 0, 0,
+                (byte) 0xff, (byte) 0xda, 0, 8, 1, 1, 0, 0, 0x3f, 0,
+                1, 2, 3, 4, 5, 6, 7, 8,
+                (byte) 0xff, (byte) 0xd9 };
+    }
+
+    private static byte[] addExif(byte[] jpeg, ExifInterface exif) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(jpeg, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] addXmp(byte[] jpeg, XMPMeta xmp) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(XmpUtil.writeXMPMeta(new ByteArrayInputStream(jpeg), out, xmp));
+        return out.toByteArray();
+    }
+
+    private static JpegMetadataSniffer.Result sniff(byte[] jpeg) throws IOException {
+        return JpegMetadataSniffer.sniff(new ByteArrayInputStream(jpeg));
+    }
+
+    private static XMPMeta createPano(Boolean usePanoramaViewer, int fullWidth,
+            int croppedWidth) throws XMPException {
+        XMPMeta xmp = XmpUtil.createXMPMeta();
+        if (usePanoramaViewer != null) {
+            xmp.setPropertyBoolean(GPANO, "UsePanoramaViewer", usePanoramaViewer);
+        }
+        if (fullWidth > 0) {
+            xmp.setPropertyInteger(GPANO, "FullPanoWidthPixels", fullWidth);
+        }
+        if (croppedWidth > 0) {
+            xmp.setPropertyInteger(GPANO, "CroppedAreaImageWidthPixels", croppedWidth);
+        }
+        return xmp;
+    }
+
+    private static ExifInterface createExif() {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(90)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_WIDTH, 4000));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_LENGTH, 3000));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Make"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Model"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ISO_SPEED_RATINGS, 400));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_FLASH, 1));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_APERTURE_VALUE, new Rational(28, 10)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_EXPOSURE_TIME, new Rational(1, 50)));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_FOCAL_LENGTH, new Rational(47, 10)));
+        return exif;
+    }
+
+    private static void assertExif(JpegMetadataSniffer.Result result) {
+        assertEquals(90, result.orientation);
+        JpegMetadataSniffer.ExifSummary exif = result.exif;
+        assertEquals(4000, exif.width);
+        assertEquals(3000, exif.height);
+        assertEquals("Make", exif.make.trim());
+        assertEquals("Model", exif.model.trim());
+        assertEquals(400, exif.iso);
+        assertEquals(1, exif.flash);
+        assertEquals(-1, exif.whiteBalance);
+        assertEquals(2.8, exif.aperture, 1e-9);
+        assertEquals(0.02, exif.exposureTime, 1e-9);
+        assertEquals(4.7, exif.focalLength, 1e-9);
+    }
+
+    public void testNotAJpeg() throws IOException {
+        assertNull(sniff(new byte[] { 'G', 'I', 'F', '8', '9', 'a' }));
+        assertNull(sniff(new byte[0]));
+    }
+
+    public void testJpegWithoutMetadata() throws IOException {
+        JpegMetadataSniffer.Result result = sniff(createJpeg());
+        assertSame(PhotoSphereHelper.NOT_PANORAMA, result.panorama);
+        assertFalse(result.isRgbz);
+        assertEquals(0, result.orientation);
+        assertEquals(0, result.exif.width);
+        assertEquals(-1, result.exif.iso);
+        assertTrue(Double.isNaN(result.exif.aperture));
+        assertNull(result.exif.make);
+    }
+
+    public void testExif() throws IOException {
+        assertExif(sniff(addExif(createJpeg(), createExif())));
+    }
+
+    public void testFull360Panorama() throws Exception {
+        byte[] jpeg = addXmp(addExif(createJpeg(), createExif()),
+                createPano(true, 8000, 8000));
+        JpegMetadataSniffer.Result result = sniff(jpeg);
+        assertTrue(result.panorama.mUsePanoramaViewer);
+        assertTrue(result.panorama.mIsPanorama360);
+        assertFalse(result.isRgbz);
+        // Both segments are found in the same pass.
+        assertExif(result);
+    }
+
+    public void testPartialPanorama() throws Exception {
+        JpegMetadataSniffer.Result result =
+                sniff(addXmp(createJpeg(), createPano(false, 8000, 3000)));
+        assertNotSame(PhotoSphereHelper.NOT_PANORAMA, result.panorama);
+        assertFalse(result.panorama.mUsePanoramaViewer);
+        assertFalse(result.panorama.mIsPanorama360);
+    }
+
+    public void testPanoramaViewerIsTheDefault() throws Exception {
+        JpegMetadataSniffer.Result result =
+                sniff(addXmp(createJpeg(), createPano(null, 8000, 3000)));
+        assertTrue(result.panorama.mUsePanoramaViewer);
+    }
+
+    public void testIncompleteGPanoIsNoPanorama() throws Exception {
+        JpegMetadataSniffer.Result result =
+                sniff(addXmp(createJpeg(), createPano(true, 8000, 0)));
+        assertSame(PhotoSphereHelper.NOT_PANORAMA, result.panorama);
+    }
+
+    public void testDepthMap() throws Exception {
+        XMPMetaFactory.getSchemaRegistry().registerNamespace(GDEPTH, "GDepth");
+        XMPMeta format = XmpUtil.createXMPMeta();
+        format.setProperty(GDEPTH, "Format", "RangeInverse");
+        assertTrue(sniff(addXmp(createJpeg(), format)).isRgbz);
+
+        XMPMeta mime = XmpUtil.createXMPMeta();
+        mime.setProperty(GDEPTH, "Mime", "image/png");
+        JpegMetadataSniffer.Result result = sniff(addXmp(createJpeg(), mime));
+        assertTrue(result.isRgbz);
+        assertSame(PhotoSphereHelper.NOT_PANORAMA, result.panorama);
+    }
+
+    public void testTruncatedHeader() throws Exception {
+        byte[] jpeg = addXmp(addExif(createJpeg(), createExif()),
+                createPano(true, 8000, 8000));
+        // Cut the file inside the XMP segment, which follows the EXIF one.
+        int xmp = indexOf(jpeg, "http://ns.adobe.com/xap/1.0/".getBytes("US-ASCII"));
+        assertTrue(xmp > 0);
+        JpegMetadataSniffer.Result result = sniff(Arrays.copyOf(jpeg, xmp + 40));
+        assertExif(result);
+        assertSame(PhotoSphereHelper.NOT_PANORAMA, result.panorama);
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
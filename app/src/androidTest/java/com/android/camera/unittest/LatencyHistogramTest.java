@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.util.LatencyHistogram;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.CameraPerformanceTracker;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the precision of {@link LatencyHistogram} and the stages of
+ * {@link CameraPerformanceTracker}.
+ */
+@SmallTest
+public class LatencyHistogramTest extends TestCase {
+    private static final long MS = 1000000L;
+
+    public void testPercentilesAreWithinAQuarter() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * MS);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000 * MS, histogram.getMaxNs());
+        long p50 = histogram.getPercentileNs(50);
+        assertTrue(p50 >= 500 * MS && p50 <= 625 * MS);
+        long p90 = histogram.getPercentileNs(90);
+        assertTrue(p90 >= 900 * MS && p90 <= 1000 * MS);
+    }
+
+    public void testAddMergesSamples() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        first.record(2 * MS);
+        second.record(4 * MS);
+        second.record(400 * MS);
+        first.add(second);
+        assertEquals(3, first.getCount());
+        assertEquals(400 * MS, first.getMaxNs());
+        assertEquals(406 * MS / 3, first.getMeanNs());
+    }
+
+    public void testSpansAreRecordedOnce() throws InterruptedException {
+        final String stage = "LatencyHistogramTest";
+        CameraPerformanceTracker.Span cancelled = CameraPerformanceTracker.beginSpan(stage);
+        cancelled.cancel();
+        assertEquals(-1, cancelled.end());
+
+        final CameraPerformanceTracker.Span span = CameraPerformanceTracker.beginSpan(stage);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                span.end();
+            }
+        });
+        thread.start();
+        thread.join();
+        assertEquals(-1, span.end());
+        CameraPerformanceTracker.recordLatency(stage, 3 * MS);
+
+        LatencyHistogram latency = CameraPerformanceTracker.getLatency(stage);
+        assertEquals(2, latency.getCount());
+        assertTrue(latency.getMaxNs() >= 3 * MS);
+    }
+}
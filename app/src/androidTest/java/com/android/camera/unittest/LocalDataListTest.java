@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.data.LocalData;
+import com.android.camera.data.LocalDataList;
+import com.android.camera.data.LocalMediaData;
+
+import android.net.Uri;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that {@link LocalDataList} keeps positions and Uris in sync, and
+ * measures the access pattern of scrolling the filmstrip through a 10k item
+ * camera roll.
+ */
+@LargeTest
+public class LocalDataListTest extends TestCase {
+    private static final String TAG = "LocalDataListTest";
+    private static final int ROLL_SIZE = 10000;
+    /** Items around the current one the filmstrip touches per frame. */
+    private static final int VISIBLE_RADIUS = 3;
+
+    private static LocalData newPhoto(long id) {
+        return new LocalMediaData.PhotoData(id, "IMG_" + id, LocalData.MIME_TYPE_JPEG, id, id,
+                "/sdcard/DCIM/Camera/IMG_" + id + ".jpg", 0, 4000, 3000, 1000000, 0, 0);
+    }
+
+    public void testPositionsFollowInsertAndRemove() {
+        LocalDataList list = new LocalDataList();
+        List<LocalData> expected = new ArrayList<LocalData>();
+        for (int i = 0; i < 10; i++) {
+            LocalData data = newPhoto(i);
+            list.add(data);
+            expected.add(data);
+        }
+        LocalData newest = newPhoto(100);
+        list.add(0, newest);
+        expected.add(0, newest);
+        list.remove(5);
+        LocalData removed = expected.remove(5);
+        LocalData replacement = newPhoto(200);
+        LocalData replaced = expected.set(3, replacement);
+        list.set(3, replacement);
+
+        assertEquals(expected.size(), list.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Uri uri = expected.get(i).getUri();
+            assertSame(expected.get(i), list.get(i));
+            assertSame(expected.get(i), list.get(uri));
+            assertEquals(i, list.indexOf(uri));
+        }
+        assertEquals(-1, list.indexOf(removed.getUri()));
+        assertEquals(-1, list.indexOf(replaced.getUri()));
+        assertNull(list.get(removed.getUri()));
+    }
+
+    public void testScrollingLargeRoll() {
+        LocalDataList list = new LocalDataList();
+        List<LocalData> photos = new ArrayList<LocalData>(ROLL_SIZE);
+        Uri[] uris = new Uri[ROLL_SIZE];
+        for (int i = 0; i < ROLL_SIZE; i++) {
+            photos.add(newPhoto(i));
+            uris[i] = photos.get(i).getUri();
+        }
+        list.addAll(photos);
+
+        // Each frame looks up the items around the current one by position
+        // and by Uri, like the filmstrip and the data adapter do.
+        long start = System.nanoTime();
+        for (int current = 0; current < ROLL_SIZE; current++) {
+            for (int i = current - VISIBLE_RADIUS; i <= current + VISIBLE_RADIUS; i++) {
+                int pos = Math.max(0, Math.min(ROLL_SIZE - 1, i));
+                assertNotNull(list.get(pos));
+                assertEquals(pos, list.indexOf(uris[pos]));
+            }
+        }
+        long scrollNs = System.nanoTime() - start;
+
+        // New captures go to the front while the roll is shown.
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            LocalData data = newPhoto(ROLL_SIZE + i);
+            list.add(0, data);
+            assertEquals(0, list.indexOf(data.getUri()));
+        }
+        long insertNs = System.nanoTime() - start;
+
+        Log.v(TAG, "Scrolled " + ROLL_SIZE + " items at " + (scrollNs / ROLL_SIZE)
+                + "ns per frame, 100 inserts at the front in " + (insertNs / 1000) + "us");
+        assertEquals(ROLL_SIZE - 1 + 100, list.indexOf(uris[ROLL_SIZE - 1]));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import android.os.Debug;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.camera.debug.Log;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Checks that disabled log calls with arguments neither format nor allocate,
+ * and that the recent entries are kept and formatted when dumped.
+ */
+@SmallTest
+public class LogTest extends TestCase {
+    private static final Log.Tag TAG = new Log.Tag("LogTest");
+    private static final int CALLS = 100000;
+
+    @Override
+    protected void tearDown() throws Exception {
+        Log.overrideLevel(0);
+        Log.keepRecentEntries(0);
+        super.tearDown();
+    }
+
+    // The thread allocation counters are deprecated, but nothing else counts
+    // allocations on a device.
+    @SuppressWarnings("deprecation")
+    public void testDisabledCallsDoNotAllocate() {
+        Log.overrideLevel(android.util.Log.ERROR);
+        Log.keepRecentEntries(64);
+        // Resolves the level of the tag before counting.
+        Log.v(TAG, "warm up %d", 1L);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long startNs = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            Log.v(TAG, "frame %d took %dns", 1000000L + i, 33000000L + i);
+            Log.d(TAG, "open images = %d", 100000L + i);
+            Log.i(TAG, "state: %s", TAG);
+        }
+        long durationNs = System.nanoTime() - startNs;
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        android.util.Log.i(TAG.toString(), "Disabled call: " + durationNs / (3 * CALLS) + "ns");
+        assertEquals(0, allocations);
+    }
+
+    public void testRecentEntriesAreDumped() {
+        Log.overrideLevel(android.util.Log.ASSERT);
+        Log.keepRecentEntries(2);
+        Log.d(TAG, "dropped %d", 1L);
+        Log.v(TAG, "took %dms for %s", 42L, "capture");
+        Log.w(TAG, "plain");
+
+        StringWriter dump = new StringWriter();
+        PrintWriter writer = new PrintWriter(dump);
+        Log.dumpRecentEntries(writer);
+        writer.flush();
+        String[] lines = dump.toString().split("\n");
+
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith(" V " + TAG + ": took 42ms for capture"));
+        assertTrue(lines[1].endsWith(" W " + TAG + ": plain"));
+    }
+
+    public void testBadFormatIsLoggedAsIs() {
+        Log.overrideLevel(android.util.Log.VERBOSE);
+        Log.keepRecentEntries(1);
+        Log.v(TAG, "took %dms", "long");
+
+        StringWriter dump = new StringWriter();
+        PrintWriter writer = new PrintWriter(dump);
+        Log.dumpRecentEntries(writer);
+        writer.flush();
+
+        assertTrue(dump.toString().trim().endsWith(": took %dms long"));
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.MediaStoreBatcher;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs {@link MediaStoreBatcher} against a local provider which is as slow
+ * per call as the media provider, and checks that concurrent writes are
+ * batched and each caller gets its own result back.
+ */
+@MediumTest
+public class MediaStoreBatcherTest extends AndroidTestCase {
+    private static final String TAG = "MediaStoreBatcherTest";
+    private static final String AUTHORITY = "com.android.camera.tests.fakemedia";
+    private static final Uri TABLE_URI = Uri.parse("content://" + AUTHORITY + "/images");
+    private static final int WRITER_THREADS = 8;
+    private static final int WRITES_PER_THREAD = 25;
+    private static final long ROUND_TRIP_MS = 20;
+
+    /** A provider which charges a fixed cost per call, like a binder round-trip. */
+    private static class FakeMediaProvider extends ContentProvider {
+        /** Set while the operations of a batch are applied, which is one call. */
+        private static final ThreadLocal<Boolean> sBatching = new ThreadLocal<Boolean>();
+
+        final AtomicInteger mCalls = new AtomicInteger();
+        final AtomicInteger mNextId = new AtomicInteger();
+        volatile boolean mFailBatches;
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            if (!isBatching()) {
+                roundTrip();
+            }
+            return ContentUris.withAppendedId(uri, mNextId.incrementAndGet());
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            if (!isBatching()) {
+                roundTrip();
+            }
+            return 1;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            roundTrip();
+            if (mFailBatches) {
+                throw new OperationApplicationException("Batch rejected");
+            }
+            sBatching.set(Boolean.TRUE);
+            try {
+                return super.applyBatch(operations);
+            } finally {
+                sBatching.set(Boolean.FALSE);
+            }
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            return null;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        private static boolean isBatching() {
+            return Boolean.TRUE.equals(sBatching.get());
+        }
+
+        private void roundTrip() {
+            mCalls.incrementAndGet();
+            try {
+                Thread.sleep(ROUND_TRIP_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private FakeMediaProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new FakeMediaProvider();
+        mProvider.attachInfo(getContext(), null);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(AUTHORITY, mProvider);
+    }
+
+    public void testConcurrentInsertsAreBatched() throws InterruptedException {
+        final MediaStoreBatcher batcher = new MediaStoreBatcher(AUTHORITY, 16);
+        final Set<Uri> uris = new HashSet<Uri>();
+        final AtomicReference<String> error = new AtomicReference<String>();
+        final CountDownLatch finished = new CountDownLatch(WRITER_THREADS);
+
+        long start = System.nanoTime();
+        for (int t = 0; t < WRITER_THREADS; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < WRITES_PER_THREAD; i++) {
+                            Uri uri = batcher.insert(mResolver, TABLE_URI, new ContentValues());
+                            if (uri == null) {
+                                error.compareAndSet(null, "Insert returned no uri");
+                                return;
+                            }
+                            synchronized (uris) {
+                                uris.add(uri);
+                            }
+                        }
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }.start();
+        }
+        finished.await();
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        assertNull(error.get(), error.get());
+        int writes = WRITER_THREADS * WRITES_PER_THREAD;
+        // Every caller got the uri of its own row.
+        assertEquals(writes, uris.size());
+        int calls = mProvider.mCalls.get();
+        assertTrue("Expected batching, got " + calls + " provider calls", calls < writes / 2);
+        Log.v(TAG, writes + " inserts in " + calls + " provider calls, " + elapsedMs + "ms");
+    }
+
+    public void testSingleWrites() {
+        MediaStoreBatcher batcher = new MediaStoreBatcher(AUTHORITY, 16);
+        Uri uri = batcher.insert(mResolver, TABLE_URI, new ContentValues());
+        assertTrue(uri.toString().startsWith(TABLE_URI.toString()));
+        assertEquals(1, batcher.update(mResolver, uri, new ContentValues()));
+        assertEquals(2, mProvider.mCalls.get());
+    }
+
+    public void testFailedBatchFallsBackToSingleWrites() throws InterruptedException {
+        mProvider.mFailBatches = true;
+        final MediaStoreBatcher batcher = new MediaStoreBatcher(AUTHORITY, 16);
+        final AtomicInteger inserted = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(WRITER_THREADS);
+        for (int t = 0; t < WRITER_THREADS; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    if (batcher.insert(mResolver, TABLE_URI, new ContentValues()) != null) {
+                        inserted.incrementAndGet();
+                    }
+                    finished.countDown();
+                }
+            }.start();
+        }
+        finished.await();
+        assertEquals(WRITER_THREADS, inserted.get());
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.util.PriorityTaskExecutor;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the order in which {@link PriorityTaskExecutor} runs tasks, and
+ * which tasks it drops when its queue is full. The single thread of the
+ * executor is held by a blocking task while the queue is set up.
+ */
+@SmallTest
+public class PriorityTaskExecutorTest extends TestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final int MAX_QUEUED = 3;
+    /** Tasks with priority 0 are never dropped. */
+    private static final int MIN_DROPPED_PRIORITY = 1;
+
+    private PriorityTaskExecutor mExecutor;
+    private CountDownLatch mRelease;
+    /** The names of the tasks which ran, in order. Guarded by itself. */
+    private final List<String> mRan = new ArrayList<String>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = new PriorityTaskExecutor("PriorityTaskExecutorTest", 1, MAX_QUEUED,
+                MIN_DROPPED_PRIORITY);
+        mRelease = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    mRelease.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 0);
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRelease.countDown();
+        super.tearDown();
+    }
+
+    public void testRunsByPriorityThenInOrder() throws Exception {
+        mExecutor.submit(record("late"), 5);
+        mExecutor.submit(record("first"), 1);
+        mExecutor.submit(record("second"), 1);
+
+        assertRan("first", "second", "late");
+    }
+
+    public void testReprioritizedTaskRunsFirst() throws Exception {
+        mExecutor.submit(record("first"), 1);
+        PriorityTaskExecutor.Task promoted = mExecutor.submit(record("promoted"), 5);
+
+        assertTrue(mExecutor.setPriority(promoted, 0));
+        assertRan("promoted", "first");
+        assertFalse(mExecutor.setPriority(promoted, 0));
+    }
+
+    public void testCancelledTaskDoesNotRun() throws Exception {
+        PriorityTaskExecutor.Task cancelled = mExecutor.submit(record("cancelled"), 1);
+        mExecutor.submit(record("kept"), 2);
+
+        mExecutor.cancel(cancelled);
+        assertFalse(cancelled.isPending());
+        assertRan("kept");
+    }
+
+    public void testFullQueueDropsLeastUrgentTask() throws Exception {
+        mExecutor.submit(record("a"), 1);
+        PriorityTaskExecutor.Task dropped = mExecutor.submit(record("dropped"), 4);
+        mExecutor.submit(record("b"), 2);
+        PriorityTaskExecutor.Task urgent = mExecutor.submit(record("urgent"), 1);
+
+        assertFalse(dropped.isPending());
+        assertTrue(urgent.isPending());
+        PriorityTaskExecutor.Task rejected = mExecutor.submit(record("rejected"), 3);
+        assertFalse(rejected.isPending());
+        assertRan("a", "urgent", "b");
+    }
+
+    public void testFullQueueKeepsUrgentTasks() throws Exception {
+        for (int i = 0; i <= MAX_QUEUED; i++) {
+            PriorityTaskExecutor.Task task = mExecutor.submit(record("visible" + i), 0);
+            assertTrue(task.isPending());
+        }
+        // A less urgent task is still dropped while the queue is over its limit.
+        PriorityTaskExecutor.Task background = mExecutor.submit(record("background"), 2);
+        assertFalse(background.isPending());
+
+        assertRan("visible0", "visible1", "visible2", "visible3");
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mRan) {
+                    mRan.add(name);
+                    mRan.notifyAll();
+                }
+            }
+        };
+    }
+
+    /** Releases the executor and waits until the given tasks ran, in order. */
+    private void assertRan(String... names) throws InterruptedException {
+        mRelease.countDown();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        synchronized (mRan) {
+            while (mRan.size() < names.length && System.currentTimeMillis() < deadline) {
+                mRan.wait(deadline - System.currentTimeMillis());
+            }
+            // Gives a task which should not run a chance to show up.
+            mRan.wait(50);
+            List<String> expected = new ArrayList<String>();
+            for (String name : names) {
+                expected.add(name);
+            }
+            assertEquals(expected, mRan);
+        }
+    }
+}
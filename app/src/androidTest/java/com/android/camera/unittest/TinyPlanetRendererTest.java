@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.tinyplanet.TinyPlanetRenderer;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares {@link TinyPlanetRenderer} against a direct floating-point
+ * evaluation of the stereographic projection, and checks that bands, coarse
+ * passes and partial panoramas agree with a full render.
+ */
+@SmallTest
+public class TinyPlanetRendererTest extends TestCase {
+    private static final int PANO_WIDTH = 512;
+    private static final int PANO_HEIGHT = 256;
+
+    /**
+     * A smooth panorama, so that the fixed-point rounding of the sample
+     * positions moves colors by less than a level.
+     */
+    private static int[] createPanorama(int width, int height) {
+        int[] pano = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double angle = 2 * Math.PI * x / width;
+                int r = (int) Math.round(127.5 + 127.5 * Math.sin(angle));
+                int g = y * 255 / (height - 1);
+                int b = (int) Math.round(127.5 + 127.5 * Math.cos(angle + Math.PI * y / height));
+                pano[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return pano;
+    }
+
+    /** Evaluates the projection of the renderer for one output pixel. */
+    private static int[] referenceColor(int[] pano, int width, int height, int size,
+            float scale, float angle, int x, int y) {
+        double center = size / 2.0;
+        double dx = x + 0.5 - center;
+        double dy = y + 0.5 - center;
+        double turns = Math.atan2(dy, dx) / (2 * Math.PI) + angle / (2 * Math.PI);
+        double column = (turns - Math.floor(turns)) * width;
+        double radius = Math.sqrt(dx * dx + dy * dy) / center;
+        double row = height * (1 - 2 * Math.atan(radius / scale) / Math.PI) - 0.5;
+        row = Math.max(0, Math.min(height - 1, row));
+
+        int x0 = (int) Math.floor(column) % width;
+        int y0 = (int) Math.floor(row);
+        double fx = column - Math.floor(column);
+        double fy = row - y0;
+        int x1 = (x0 + 1) % width;
+        int y1 = Math.min(y0 + 1, height - 1);
+        int[] rgb = new int[3];
+        for (int c = 0; c < 3; c++) {
+            int shift = 16 - 8 * c;
+            double top = ((pano[y0 * width + x0] >> shift) & 0xff) * (1 - fx)
+                    + ((pano[y0 * width + x1] >> shift) & 0xff) * fx;
+            double bottom = ((pano[y1 * width + x0] >> shift) & 0xff) * (1 - fx)
+                    + ((pano[y1 * width + x1] >> shift) & 0xff) * fx;
+            rgb[c] = (int) Math.round(top * (1 - fy) + bottom * fy);
+        }
+        return rgb;
+    }
+
+    private static void assertMatchesReference(int[] pano, int size, float scale,
+            float angle) {
+        TinyPlanetRenderer renderer =
+                new TinyPlanetRenderer(pano, PANO_WIDTH, PANO_HEIGHT, size);
+        int[] out = new int[size * size];
+        renderer.render(out, scale, angle, 1);
+
+        int maxError = 0;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int[] expected = referenceColor(pano, PANO_WIDTH, PANO_HEIGHT, size, scale,
+                        angle, x, y);
+                int actual = out[y * size + x];
+                assertEquals(0xff, actual >>> 24);
+                for (int c = 0; c < 3; c++) {
+                    int level = (actual >> (16 - 8 * c)) & 0xff;
+                    maxError = Math.max(maxError, Math.abs(level - expected[c]));
+                }
+            }
+        }
+        assertTrue("Off by " + maxError + " levels at size " + size + ", scale " + scale
+                + ", angle " + angle, maxError <= 1);
+    }
+
+    public void testMatchesFloatingPointProjection() {
+        int[] pano = createPanorama(PANO_WIDTH, PANO_HEIGHT);
+        assertMatchesReference(pano, 200, 0.5f, 0);
+        assertMatchesReference(pano, 201, 0.3f, 1.0f);
+        assertMatchesReference(pano, 128, 1.0f, 4.5f);
+        assertMatchesReference(pano, 97, 0.05f, -2.0f);
+    }
+
+    public void testBandsMatchFullRender() {
+        int[] pano = createPanorama(PANO_WIDTH, PANO_HEIGHT);
+        int size = 150;
+        TinyPlanetRenderer renderer = new TinyPlanetRenderer(pano, PANO_WIDTH, PANO_HEIGHT,
+                size);
+        int[] full = new int[size * size];
+        renderer.render(full, 0.6f, 2.0f, 1);
+
+        int bandRows = 64;
+        int[] band = new int[bandRows * size];
+        for (int start = 0; start < size; start += bandRows) {
+            int end = Math.min(start + bandRows, size);
+            renderer.render(band, 0.6f, 2.0f, 1, start, end);
+            for (int i = 0; i < (end - start) * size; i++) {
+                assertEquals(full[start * size + i], band[i]);
+            }
+        }
+    }
+
+    public void testCoarsePassFillsBlocksWithTheirFirstSample() {
+        int[] pano = createPanorama(PANO_WIDTH, PANO_HEIGHT);
+        int size = 101;
+        int step = 4;
+        TinyPlanetRenderer renderer = new TinyPlanetRenderer(pano, PANO_WIDTH, PANO_HEIGHT,
+                size);
+        int[] full = new int[size * size];
+        renderer.render(full, 0.5f, 0.5f, 1);
+        int[] coarse = new int[size * size];
+        renderer.render(coarse, 0.5f, 0.5f, step);
+
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int sample = (y / step * step) * size + (x / step * step);
+                assertEquals(full[sample], coarse[y * size + x]);
+            }
+        }
+    }
+
+    public void testPartialPanoramaMatchesPaddedPanorama() {
+        int width = 300;
+        int height = 100;
+        int left = 150;
+        int top = 60;
+        int[] area = createPanorama(width, height);
+        int[] padded = new int[PANO_WIDTH * PANO_HEIGHT];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(area, y * width, padded, (top + y) * PANO_WIDTH + left, width);
+        }
+
+        int size = 160;
+        int[] expected = new int[size * size];
+        new TinyPlanetRenderer(padded, PANO_WIDTH, PANO_HEIGHT, size)
+                .render(expected, 0.7f, 3.0f, 1);
+        int[] actual = new int[size * size];
+        new TinyPlanetRenderer(area, width, height, PANO_WIDTH, PANO_HEIGHT, left, top, size)
+                .render(actual, 0.7f, 3.0f, 1);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("pixel " + i, expected[i], actual[i]);
+        }
+    }
+
+    public void testAreaOutsideOfPanoramaIsRejected() {
+        try {
+            new TinyPlanetRenderer(new int[100 * 50], 100, 50, 120, 60, 30, 0, 64);
+            fail("Accepted an area outside of the panorama");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
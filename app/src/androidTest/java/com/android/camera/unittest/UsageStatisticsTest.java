@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.stats.EventPipeline;
+import com.android.camera.stats.EventSink;
+import com.android.camera.stats.RotatingFileEventSink;
+import com.android.camera.util.UsageStatistics;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Checks that {@link UsageStatistics} events reach the sink of its
+ * {@link EventPipeline} intact, and that {@link RotatingFileEventSink} keeps
+ * its files bounded.
+ */
+@SmallTest
+public class UsageStatisticsTest extends TestCase {
+    /** Keeps a copy of every record it receives. */
+    private static class RecordingSink implements EventSink {
+        final List<ByteBuffer> mRecords = new ArrayList<ByteBuffer>();
+        int mBatches;
+        boolean mClosed;
+
+        @Override
+        public synchronized void onBatch(byte[] data, int length, int eventCount) {
+            mBatches++;
+            ByteBuffer batch = ByteBuffer.wrap(data, 0, length);
+            for (int i = 0; i < eventCount; i++) {
+                byte[] record = new byte[batch.getInt(batch.position())];
+                batch.get(record);
+                mRecords.add(ByteBuffer.wrap(record));
+            }
+            assertFalse(batch.hasRemaining());
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+        }
+    }
+
+    private RecordingSink mSink;
+    private UsageStatistics mStatistics;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSink = new RecordingSink();
+        mStatistics = new UsageStatistics();
+        mStatistics.initialize(mSink);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // Stops the pipeline thread.
+        mStatistics.close();
+        super.tearDown();
+    }
+
+    public void testEventsAreEncoded() throws InterruptedException {
+        mStatistics.cameraFailure(3, "Camera disabled", 4, 5);
+        mStatistics.latency("ShutterToJpeg", 123456789L);
+        mStatistics.flush();
+
+        assertEquals(2, mSink.mRecords.size());
+        ByteBuffer failure = mSink.mRecords.get(0);
+        assertEquals(UsageStatistics.EVENT_CAMERA_FAILURE, readHeader(failure));
+        assertEquals(3, failure.getInt());
+        assertEquals("Camera disabled", readString(failure));
+        assertEquals(4, failure.getInt());
+        assertEquals(5, failure.getInt());
+        assertFalse(failure.hasRemaining());
+
+        ByteBuffer latency = mSink.mRecords.get(1);
+        assertEquals(UsageStatistics.EVENT_LATENCY, readHeader(latency));
+        assertEquals("ShutterToJpeg", readString(latency));
+        assertEquals(123456789L, latency.getLong());
+    }
+
+    public void testLongReportsAreSplit() throws InterruptedException {
+        HashMap<String, Long> memory = new HashMap<String, Long>();
+        for (int i = 0; i < 20; i++) {
+            memory.put("someMemoryMetric" + i, (long) i);
+        }
+        mStatistics.reportMemoryConsumed(memory, "launch");
+        mStatistics.flush();
+
+        assertTrue(mSink.mRecords.size() > 1);
+        int values = 0;
+        for (ByteBuffer record : mSink.mRecords) {
+            assertEquals(UsageStatistics.EVENT_MEMORY_CONSUMED, readHeader(record));
+            assertEquals("launch", readString(record));
+            int count = record.getShort();
+            for (int i = 0; i < count; i++) {
+                String key = readString(record);
+                assertEquals(memory.get(key).longValue(), record.getLong());
+                values++;
+            }
+            assertFalse(record.hasRemaining());
+        }
+        assertEquals(memory.size(), values);
+    }
+
+    public void testFullRingDropsEvents() throws InterruptedException {
+        EventPipeline pipeline = new EventPipeline("Test", mSink, 4, 4, 60000);
+        for (int i = 0; i < 4; i++) {
+            long position = pipeline.claim((short) 1);
+            pipeline.getRecord(position).putInt(i);
+            pipeline.publish(position);
+        }
+        // The first four may or may not have been delivered yet.
+        pipeline.flush();
+        assertEquals(4, mSink.mRecords.size());
+        for (int i = 0; i < 6; i++) {
+            long position = pipeline.claim((short) 1);
+            if (position >= 0) {
+                pipeline.publish(position);
+            }
+        }
+        pipeline.flush();
+        pipeline.close();
+        pipeline.flush();
+        assertTrue(pipeline.getDroppedCount() + mSink.mRecords.size() == 10);
+        assertTrue(mSink.mRecords.size() >= 8);
+        assertTrue(mSink.mClosed);
+        assertEquals(-1, pipeline.claim((short) 1));
+    }
+
+    public void testEventsAddedWhileClosingAreCounted() throws InterruptedException {
+        EventPipeline pipeline = new EventPipeline("Test", mSink, 4, 4, 60000);
+        long published = pipeline.claim((short) 1);
+        pipeline.publish(published);
+        long unpublished = pipeline.claim((short) 1);
+        pipeline.close();
+        pipeline.flush();
+        pipeline.publish(unpublished);
+
+        assertEquals(1, mSink.mRecords.size());
+        assertEquals(1, pipeline.getDroppedCount());
+        assertTrue(mSink.mClosed);
+    }
+
+    public void testFilesAreRotated() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "UsageStatisticsTest");
+        // Starts from an empty directory, whatever an earlier run left behind.
+        File[] leftovers = directory.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                file.delete();
+            }
+        }
+        RotatingFileEventSink sink = new RotatingFileEventSink(directory, "events", 100, 2);
+        byte[] batch = new byte[60];
+        for (int i = 0; i < 5; i++) {
+            sink.onBatch(batch, batch.length, 1);
+        }
+        sink.close();
+        assertEquals(64, new File(directory, "events").length());
+        assertEquals(64, new File(directory, "events.1").length());
+        assertFalse(new File(directory, "events.2").exists());
+        new File(directory, "events").delete();
+        new File(directory, "events.1").delete();
+        directory.delete();
+    }
+
+    private static short readHeader(ByteBuffer record) {
+        assertEquals(record.capacity(), record.getInt());
+        short type = record.getShort();
+        record.getLong();
+        return type;
+    }
+
+    private static String readString(ByteBuffer record) {
+        int length = record.getShort();
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = record.getChar();
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Checks that a recording stays readable when the app dies while a record is
+ * written, and that {@link CaptureDataDecoder} stops at a corrupt record.
+ */
+@SmallTest
+public class CaptureDataDecoderTest extends TestCase {
+    private static final int CAPACITY = 1024;
+
+    /** Thrown in place of the app dying. */
+    private static class CrashException extends RuntimeException {
+    }
+
+    /** Overwrites the ring with garbage and dies after a number of records. */
+    private static class CrashingRecorder extends CaptureDataRecorder {
+        int mRecordsUntilCrash;
+
+        CrashingRecorder(File file, int recordsUntilCrash) throws IOException {
+            super(file, CAPACITY);
+            mRecordsUntilCrash = recordsUntilCrash;
+        }
+
+        @Override
+        void putRecord(int offset, ByteBuffer record) {
+            if (--mRecordsUntilCrash > 0) {
+                super.putRecord(offset, record);
+                return;
+            }
+            byte[] garbage = new byte[record.remaining()];
+            Arrays.fill(garbage, (byte) 0x7f);
+            super.putRecord(offset, ByteBuffer.wrap(garbage));
+            throw new CrashException();
+        }
+    }
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(System.getProperty("java.io.tmpdir"), "CaptureDataDecoderTest.bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private String decode() throws IOException {
+        StringWriter writer = new StringWriter();
+        CaptureDataDecoder.decode(mFile, writer);
+        return writer.toString();
+    }
+
+    private static Map<String, Object> values(long index) {
+        return Collections.<String, Object>singletonMap("index", index);
+    }
+
+    public void testCrashWhileOverwritingOldRecords() throws IOException {
+        // Crash at every point of the first laps around the ring.
+        for (int crashAt = 1; crashAt < 120; crashAt++) {
+            CrashingRecorder recorder = new CrashingRecorder(mFile, crashAt);
+            try {
+                for (int i = 0; i < crashAt; i++) {
+                    recorder.record("Result", i, values(i));
+                }
+                fail("Did not crash");
+            } catch (CrashException e) {
+            } finally {
+                recorder.close();
+            }
+
+            String text = decode();
+            assertFalse("Crash at " + crashAt + ":\n" + text, text.contains("corrupt"));
+            String[] lines = text.isEmpty() ? new String[0] : text.split("\n");
+            assertEquals(0, lines.length % 3);
+            // The records before the crash are intact and in order.
+            long expected = crashAt - 1 - lines.length / 3;
+            for (int i = 0; i < lines.length; i += 3) {
+                assertTrue(lines[i], lines[i].startsWith("Result frame " + expected + " "));
+                assertEquals("        " + expected, lines[i + 2]);
+                expected++;
+            }
+        }
+    }
+
+    /**
+     * Records three values, changes the file at the given offset into the
+     * second record and returns the offset of that record in the ring.
+     */
+    private int corruptSecondRecord(int offsetInRecord, short value) throws IOException {
+        CaptureDataRecorder recorder = new CaptureDataRecorder(mFile, CAPACITY);
+        for (int i = 0; i < 3; i++) {
+            recorder.record("Result", i, values(i));
+        }
+        recorder.close();
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(CaptureDataDecoder.HEADER_DICTIONARY_CAPACITY);
+            int dataStart = CaptureDataDecoder.HEADER_SIZE + file.readInt();
+            file.seek(dataStart);
+            int secondRecord = file.readInt();
+            file.seek(dataStart + secondRecord + offsetInRecord);
+            file.writeShort(value);
+            return secondRecord;
+        } finally {
+            file.close();
+        }
+    }
+
+    private void assertStopsAtSecondRecord(int secondRecord) throws IOException {
+        String[] lines = decode().split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].startsWith("Result frame 0 "));
+        assertEquals("        0", lines[2]);
+        assertEquals("<corrupt record at offset " + secondRecord + ">", lines[3]);
+    }
+
+    public void testBadLengthStopsDecoding() throws IOException {
+        // The high half of the length, which makes it far too large.
+        assertStopsAtSecondRecord(corruptSecondRecord(0, (short) 0x7fff));
+    }
+
+    public void testEntriesPastRecordStopDecoding() throws IOException {
+        // The entry count, the last field of the record header.
+        assertStopsAtSecondRecord(corruptSecondRecord(
+                CaptureDataDecoder.RECORD_HEADER_SIZE - 2, (short) 100));
+    }
+
+    public void testUnknownTypeStopsDecoding() throws IOException {
+        // The key id and the type of the first entry.
+        assertStopsAtSecondRecord(corruptSecondRecord(
+                CaptureDataDecoder.RECORD_HEADER_SIZE + 1, (short) 0x7f7f));
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks the job queue of {@link DispatchThread}: the order of jobs queued
+ * from several threads, waiting for a job in runJobSync(), and waking the
+ * dispatch thread once it is idle.
+ */
+@MediumTest
+public class DispatchThreadTest extends TestCase {
+    private static final long TIMEOUT_MS = 5000;
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private DispatchThread mDispatchThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        mHandlerThread = new HandlerThread("Camera Handler Thread");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mDispatchThread = new DispatchThread(mHandler, mHandlerThread);
+        mDispatchThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDispatchThread.end();
+        mDispatchThread.join(TIMEOUT_MS);
+        mHandlerThread.join(TIMEOUT_MS);
+    }
+
+    /** Waits until the dispatch thread has nothing left to run. */
+    private void waitUntilIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mDispatchThread.getState() != Thread.State.WAITING) {
+            assertTrue("Dispatch thread never went idle", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    public void testJobsOfEachProducerRunInOrder() throws InterruptedException {
+        final int producers = 4;
+        final int jobsPerProducer = 2000;
+        // Only ever touched by the dispatch thread.
+        final List<int[]> runs = new ArrayList<int[]>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < jobsPerProducer; i++) {
+                        final int[] job = { producer, i };
+                        mDispatchThread.runJob(new Runnable() {
+                            @Override
+                            public void run() {
+                                runs.add(job);
+                            }
+                        });
+                    }
+                }
+            };
+            threads[p].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(TIMEOUT_MS);
+        }
+
+        // Queued after every other job, so it runs last.
+        final int[] count = new int[1];
+        final int[] next = new int[producers];
+        final boolean[] inOrder = { true };
+        mDispatchThread.runJobSync(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = runs.size();
+                for (int[] job : runs) {
+                    if (job[1] != next[job[0]]) {
+                        inOrder[0] = false;
+                    }
+                    next[job[0]] = job[1] + 1;
+                }
+            }
+        }, null, TIMEOUT_MS, "check order");
+
+        assertEquals(producers * jobsPerProducer, count[0]);
+        assertTrue("Jobs of a producer ran out of order", inOrder[0]);
+        for (int p = 0; p < producers; p++) {
+            assertEquals(jobsPerProducer, next[p]);
+        }
+    }
+
+    public void testRunJobSyncWaitsForJobAndCameraHandler() {
+        final AtomicBoolean jobRan = new AtomicBoolean();
+        final AtomicBoolean messageHandled = new AtomicBoolean();
+        for (int i = 0; i < 100; i++) {
+            jobRan.set(false);
+            messageHandled.set(false);
+            mDispatchThread.runJobSync(new Runnable() {
+                @Override
+                public void run() {
+                    jobRan.set(true);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                Thread.sleep(1);
+                            } catch (InterruptedException e) {
+                            }
+                            messageHandled.set(true);
+                        }
+                    });
+                }
+            }, null, TIMEOUT_MS, "sync job");
+            assertTrue(jobRan.get());
+            assertTrue("Returned before the camera handler was drained",
+                    messageHandled.get());
+        }
+    }
+
+    public void testRunJobSyncTimesOut() {
+        final CountDownLatch release = new CountDownLatch(1);
+        mDispatchThread.runJob(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        try {
+            mDispatchThread.runJobSync(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, null, 50, "blocked job");
+            fail("runJobSync did not time out");
+        } catch (IllegalStateException e) {
+        } finally {
+            release.countDown();
+        }
+    }
+
+    public void testIdleThreadIsWoken() throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            // Every other job is queued while the thread is parked, the rest
+            // race with it going idle.
+            if (i % 2 == 0) {
+                waitUntilIdle();
+            }
+            final CountDownLatch ran = new CountDownLatch(1);
+            mDispatchThread.runJob(new Runnable() {
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            });
+            assertTrue("Job " + i + " never ran", ran.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    public void testEndRunsQueuedJobsThenStops() throws InterruptedException {
+        final CountDownLatch ran = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            mDispatchThread.runJob(new Runnable() {
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            });
+        }
+        mDispatchThread.end();
+        mDispatchThread.join(TIMEOUT_MS);
+        assertFalse(mDispatchThread.isAlive());
+        assertEquals(0, ran.getCount());
+        try {
+            mDispatchThread.runJob(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail("Queued a job after end()");
+        } catch (IllegalStateException e) {
+        }
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.utils;
+
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureRequest.Key;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.InputConfiguration;
+import android.os.Handler;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.view.Surface;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the copy-on-write settings of {@link Camera2RequestSettingsSet} and
+ * its cache of request builders, using builders which record what is set on
+ * them instead of a camera.
+ */
+@SmallTest
+public class Camera2RequestSettingsSetTest extends TestCase {
+    private static final Key<Integer> AE_MODE = CaptureRequest.CONTROL_AE_MODE;
+    private static final Key<Integer> AF_MODE = CaptureRequest.CONTROL_AF_MODE;
+    private static final Key<Integer> AF_TRIGGER = CaptureRequest.CONTROL_AF_TRIGGER;
+
+    /** Only used to tell cached requests apart; no method is ever called. */
+    private static class FakeCamera extends CameraDevice {
+        @Override
+        public String getId() {
+            return "fake";
+        }
+
+        @Override
+        public void createCaptureSession(List<Surface> outputs,
+                CameraCaptureSession.StateCallback callback, Handler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void createReprocessableCaptureSession(InputConfiguration inputConfig,
+                List<Surface> outputs, CameraCaptureSession.StateCallback callback,
+                Handler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void createConstrainedHighSpeedCaptureSession(List<Surface> outputs,
+                CameraCaptureSession.StateCallback callback, Handler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CaptureRequest.Builder createCaptureRequest(int templateType) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CaptureRequest.Builder createReprocessCaptureRequest(
+                TotalCaptureResult inputResult) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Records the values set on it, in place of a {@link CaptureRequest.Builder}. */
+    private static class FakeBuilder implements Camera2RequestSettingsSet.RequestBuilder {
+        final int mTemplate;
+        final Map<Key<?>, Object> mValues = new HashMap<>();
+        /** Every key set, in order. */
+        final List<Key<?>> mSetKeys = new ArrayList<>();
+        int mBuildCount;
+
+        FakeBuilder(int template) {
+            mTemplate = template;
+        }
+
+        @Override
+        public <T> void set(Key<T> key, T value) {
+            mValues.put(key, value);
+            mSetKeys.add(key);
+        }
+
+        @Override
+        public void addTarget(Surface target) {
+        }
+
+        @Override
+        public CaptureRequest build() {
+            mBuildCount++;
+            return null;
+        }
+    }
+
+    private static class TestSettingsSet extends Camera2RequestSettingsSet {
+        final List<FakeBuilder> mBuilders = new ArrayList<>();
+
+        @Override
+        RequestBuilder newBuilder(CameraDevice camera, int template) {
+            FakeBuilder builder = new FakeBuilder(template);
+            mBuilders.add(builder);
+            return builder;
+        }
+
+        FakeBuilder lastBuilder() {
+            return mBuilders.get(mBuilders.size() - 1);
+        }
+
+        int buildCount() {
+            int count = 0;
+            for (FakeBuilder builder : mBuilders) {
+                count += builder.mBuildCount;
+            }
+            return count;
+        }
+    }
+
+    private final CameraDevice mCamera = new FakeCamera();
+
+    public void testCopiesAreIndependent() {
+        Camera2RequestSettingsSet original = new Camera2RequestSettingsSet();
+        original.set(AE_MODE, 1);
+        Camera2RequestSettingsSet copy = new Camera2RequestSettingsSet(original);
+        Camera2RequestSettingsSet copyOfCopy = new Camera2RequestSettingsSet(copy);
+        assertEquals(original.getRevision(), copy.getRevision());
+
+        assertTrue(copy.set(AE_MODE, 2));
+        assertEquals(Integer.valueOf(1), original.get(AE_MODE));
+        assertEquals(Integer.valueOf(2), copy.get(AE_MODE));
+        assertEquals(Integer.valueOf(1), copyOfCopy.get(AE_MODE));
+
+        assertTrue(original.set(AF_MODE, 3));
+        assertFalse(copy.contains(AF_MODE));
+        assertFalse(copyOfCopy.contains(AF_MODE));
+
+        assertTrue(copyOfCopy.unset(AE_MODE));
+        assertTrue(original.contains(AE_MODE));
+        assertTrue(copy.contains(AE_MODE));
+        assertFalse(copyOfCopy.contains(AE_MODE));
+    }
+
+    public void testUnchangedSettingsReuseRequest() throws Exception {
+        TestSettingsSet settings = new TestSettingsSet();
+        settings.set(AE_MODE, 1);
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+
+        assertEquals(1, settings.mBuilders.size());
+        assertEquals(1, settings.buildCount());
+        assertEquals(CameraDevice.TEMPLATE_PREVIEW, settings.lastBuilder().mTemplate);
+        assertEquals(1, settings.lastBuilder().mValues.get(AE_MODE));
+    }
+
+    public void testOnlyChangesAreApplied() throws Exception {
+        TestSettingsSet settings = new TestSettingsSet();
+        settings.set(AE_MODE, 1);
+        settings.set(AF_MODE, 1);
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+        FakeBuilder builder = settings.lastBuilder();
+        int setCount = builder.mSetKeys.size();
+
+        // The cached builder holds the old settings, so this write must not
+        // change them under it.
+        settings.set(AF_MODE, 2);
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+
+        assertEquals(1, settings.mBuilders.size());
+        assertEquals(2, settings.buildCount());
+        assertEquals(Collections.<Key<?>>singletonList(AF_MODE),
+                builder.mSetKeys.subList(setCount, builder.mSetKeys.size()));
+        assertEquals(2, builder.mValues.get(AF_MODE));
+        assertEquals(1, builder.mValues.get(AE_MODE));
+
+        // A change which was reverted before the next request sets nothing.
+        setCount = builder.mSetKeys.size();
+        settings.set(AF_MODE, 3);
+        settings.set(AF_MODE, 2);
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+        assertEquals(3, settings.buildCount());
+        assertEquals(setCount, builder.mSetKeys.size());
+    }
+
+    public void testRemovedSettingNeedsNewBuilder() throws Exception {
+        TestSettingsSet settings = new TestSettingsSet();
+        settings.set(AE_MODE, 1);
+        settings.set(AF_MODE, 1);
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+
+        settings.unset(AE_MODE);
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+        assertEquals(2, settings.mBuilders.size());
+        assertFalse(settings.lastBuilder().mValues.containsKey(AE_MODE));
+        assertEquals(1, settings.lastBuilder().mValues.get(AF_MODE));
+
+        // Forcing the template default can't be undone on a builder either.
+        settings.set(AF_MODE, null);
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+        assertEquals(3, settings.mBuilders.size());
+        assertTrue(settings.lastBuilder().mValues.isEmpty());
+
+        // Adding a setting back does not.
+        settings.set(AE_MODE, 2);
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+        assertEquals(3, settings.mBuilders.size());
+        assertEquals(2, settings.lastBuilder().mValues.get(AE_MODE));
+    }
+
+    public void testLeastRecentlyUsedRequestIsEvicted() throws Exception {
+        TestSettingsSet settings = new TestSettingsSet();
+        int templates = Camera2RequestSettingsSet.MAX_CACHED_REQUESTS;
+        for (int template = 1; template <= templates; template++) {
+            settings.createRequest(mCamera, template);
+        }
+        assertEquals(templates, settings.mBuilders.size());
+
+        // Use the oldest one again, so that the second one is evicted next.
+        settings.createRequest(mCamera, 1);
+        settings.createRequest(mCamera, templates + 1);
+        assertEquals(templates + 1, settings.mBuilders.size());
+        settings.createRequest(mCamera, 1);
+        for (int template = 3; template <= templates + 1; template++) {
+            settings.createRequest(mCamera, template);
+        }
+        assertEquals(templates + 1, settings.mBuilders.size());
+
+        settings.createRequest(mCamera, 2);
+        assertEquals(templates + 2, settings.mBuilders.size());
+        assertEquals(2, settings.lastBuilder().mTemplate);
+
+        // Another camera needs its own builder.
+        settings.createRequest(new FakeCamera(), 2);
+        assertEquals(templates + 3, settings.mBuilders.size());
+    }
+
+    public void testOneShotSetting() throws Exception {
+        TestSettingsSet settings = new TestSettingsSet();
+        settings.set(AE_MODE, 1);
+        settings.set(AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
+        long revision = settings.getRevision();
+
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW, AF_TRIGGER,
+                CaptureRequest.CONTROL_AF_TRIGGER_START);
+        FakeBuilder oneShot = settings.lastBuilder();
+        assertEquals(CaptureRequest.CONTROL_AF_TRIGGER_START, oneShot.mValues.get(AF_TRIGGER));
+        assertEquals(1, oneShot.mValues.get(AE_MODE));
+
+        // The same value again reuses the request, another one the builder.
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW, AF_TRIGGER,
+                CaptureRequest.CONTROL_AF_TRIGGER_START);
+        assertEquals(1, oneShot.mBuildCount);
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW, AF_TRIGGER,
+                CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
+        assertEquals(2, oneShot.mBuildCount);
+        assertEquals(1, settings.mBuilders.size());
+        assertEquals(CaptureRequest.CONTROL_AF_TRIGGER_CANCEL, oneShot.mValues.get(AF_TRIGGER));
+
+        // The persistent value is still used without the one-shot setting.
+        assertEquals(revision, settings.getRevision());
+        assertEquals(Integer.valueOf(CaptureRequest.CONTROL_AF_TRIGGER_IDLE),
+                settings.get(AF_TRIGGER));
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+        assertEquals(2, settings.mBuilders.size());
+        assertEquals(CaptureRequest.CONTROL_AF_TRIGGER_IDLE,
+                settings.lastBuilder().mValues.get(AF_TRIGGER));
+
+        // A changed persistent value does not override the one-shot one.
+        settings.set(AF_TRIGGER, null);
+        settings.set(AE_MODE, 2);
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW, AF_TRIGGER,
+                CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
+        assertEquals(2, settings.mBuilders.size());
+        assertEquals(CaptureRequest.CONTROL_AF_TRIGGER_CANCEL, oneShot.mValues.get(AF_TRIGGER));
+        assertEquals(2, oneShot.mValues.get(AE_MODE));
+    }
+
+    public void testOneShotSettingDoesNotLeak() throws Exception {
+        TestSettingsSet settings = new TestSettingsSet();
+        settings.set(AE_MODE, 1);
+        long revision = settings.getRevision();
+
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW, AF_TRIGGER,
+                CaptureRequest.CONTROL_AF_TRIGGER_START);
+        assertFalse(settings.contains(AF_TRIGGER));
+        assertEquals(revision, settings.getRevision());
+
+        settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+        assertEquals(2, settings.mBuilders.size());
+        assertFalse(settings.lastBuilder().mValues.containsKey(AF_TRIGGER));
+
+        // Nor into copies or unions.
+        Camera2RequestSettingsSet copy = new Camera2RequestSettingsSet(settings);
+        assertFalse(copy.contains(AF_TRIGGER));
+        Camera2RequestSettingsSet other = new Camera2RequestSettingsSet();
+        other.union(settings);
+        assertFalse(other.contains(AF_TRIGGER));
+    }
+
+    public void testUnionReportsChanges() throws Exception {
+        TestSettingsSet persistent = new TestSettingsSet();
+        Camera2RequestSettingsSet update = new Camera2RequestSettingsSet();
+        update.set(AE_MODE, 1);
+        update.set(AF_MODE, 2);
+
+        assertTrue(persistent.union(update));
+        long revision = persistent.getRevision();
+        persistent.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+
+        // The same settings again, as applyToRequest sees them for most
+        // parameter updates: no new request is needed.
+        Camera2RequestSettingsSet same = new Camera2RequestSettingsSet();
+        same.set(AF_MODE, 2);
+        assertFalse(persistent.union(same));
+        assertFalse(persistent.union(new Camera2RequestSettingsSet(update)));
+        assertFalse(persistent.union(null));
+        assertFalse(persistent.union(persistent));
+        assertEquals(revision, persistent.getRevision());
+        persistent.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW);
+        assertEquals(1, persistent.buildCount());
+
+        // Settings forced to the default are propagated.
+        same.set(AF_MODE, null);
+        assertTrue(persistent.union(same));
+        assertTrue(persistent.contains(AF_MODE));
+        assertNull(persistent.get(AF_MODE));
+        assertTrue(persistent.getRevision() > revision);
+    }
+}
@@ -16,11 +16,29 @@
 
 package android.util;
 
+import com.android.camera.util.LatencyHistogram;
+import com.android.camera.util.UsageStatistics;
+import com.android.ex.camera2.utils.SysTrace;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * This class tracks the timing of important state changes in camera app (e.g latency
  * of cold/warm start of the activity, mode switch duration, etc). We can then query
  * these values from the instrument tests, which will be helpful for tracking camera
  * app performance and regression tests.
+ * <p>
+ * It also keeps a latency histogram for each named stage of taking pictures,
+ * such as the STAGE_* constants below, fed by {@link Span}s or by
+ * {@link #recordLatency}. Any other name starts a new stage. Spans show up as
+ * async sections in systrace, the histograms are written by {@link #dump},
+ * and each latency is also reported to {@link UsageStatistics}.
  */
 public class CameraPerformanceTracker {
 
@@ -32,6 +50,32 @@ public class CameraPerformanceTracker {
     public static final int FIRST_PREVIEW_FRAME = 5;
     public static final int UNSET = -1;
 
+    // Stages whose latency is recorded.
+    /** From asking for a camera until it is opened. */
+    public static final String STAGE_CAMERA_OPEN = "CameraOpen";
+    /** From asking for a capture session until it is configured. */
+    public static final String STAGE_SESSION_CONFIGURED = "SessionConfigured";
+    /** From starting or resuming the activity until the first preview frame. */
+    public static final String STAGE_FIRST_FRAME = "FirstFrame";
+    /** From pressing the shutter until the JPEG is available. */
+    public static final String STAGE_SHUTTER_TO_JPEG = "ShutterToJpeg";
+    /** Writing a JPEG to its file. */
+    public static final String STAGE_JPEG_TO_DISK = "JpegToDisk";
+    /** Adding a written file to the media store. */
+    public static final String STAGE_DISK_TO_MEDIA_STORE = "DiskToMediaStore";
+    /** From a picture being saved until its filmstrip thumbnail is decoded. */
+    public static final String STAGE_THUMBNAIL_READY = "ThumbnailReady";
+
+    /**
+     * The number of histograms each stage records into, picked by thread, so
+     * that threads rarely update the same counters.
+     */
+    private static final int STRIPE_COUNT = 8;
+
+    private static final ConcurrentHashMap<String, LatencyHistogram[]> sStages =
+            new ConcurrentHashMap<String, LatencyHistogram[]>();
+    private static final AtomicInteger sNextCookie = new AtomicInteger();
+
     private static final String TAG = "CameraPerformanceTracker";
     private static final boolean DEBUG = false;
     private static CameraPerformanceTracker sInstance;
@@ -40,6 +84,8 @@ public class CameraPerformanceTracker {
     private long mAppStartTime = UNSET;
     private long mAppResumeTime = UNSET;
     private long mModeSwitchStartTime = UNSET;
+    // Whether the first frame since starting or resuming was recorded.
+    private boolean mFirstFrameRecorded;
 
     // Duration and/or latency or later querying.
     private long mFirstPreviewFrameLatencyColdStart = UNSET;
@@ -47,6 +93,49 @@ public class CameraPerformanceTracker {
     // TODO: Need to how to best track the duration for each switch from/to pair.
     private long mModeSwitchDuration = UNSET;
 
+    /**
+     * A measurement of one occurrence of a stage, which may end on another
+     * thread than the one it began on. A span which is never finished is not
+     * recorded.
+     */
+    public static final class Span {
+        private final String mStage;
+        private final int mCookie;
+        private final long mStartNs;
+        private final AtomicBoolean mFinished = new AtomicBoolean();
+
+        private Span(String stage) {
+            mStage = stage;
+            mCookie = sNextCookie.incrementAndGet();
+            mStartNs = System.nanoTime();
+            SysTrace.beginSectionAsync(stage, mCookie);
+        }
+
+        /**
+         * Records the time since the span began. Only the first call to this
+         * or {@link #cancel} counts.
+         *
+         * @return the duration in nanoseconds, or -1 if the span was already
+         *         finished.
+         */
+        public long end() {
+            if (!mFinished.compareAndSet(false, true)) {
+                return -1;
+            }
+            long durationNs = System.nanoTime() - mStartNs;
+            SysTrace.endSectionAsync(mStage, mCookie);
+            recordLatency(mStage, durationNs);
+            return durationNs;
+        }
+
+        /** Finishes the span without recording it, e.g. when the stage failed. */
+        public void cancel() {
+            if (mFinished.compareAndSet(false, true)) {
+                SysTrace.endSectionAsync(mStage, mCookie);
+            }
+        }
+    }
+
     private CameraPerformanceTracker() {
         // Private constructor to ensure that it can only be created from within
         // the class.
@@ -67,23 +156,30 @@ public class CameraPerformanceTracker {
         switch (eventType) {
             case ACTIVITY_START:
                 sInstance.mAppStartTime = currentTime;
+                sInstance.mFirstFrameRecorded = false;
                 break;
             case ACTIVITY_PAUSE:
                 sInstance.mFirstPreviewFrameLatencyWarmStart = UNSET;
                 break;
             case ACTIVITY_RESUME:
                 sInstance.mAppResumeTime = currentTime;
+                sInstance.mFirstFrameRecorded = false;
                 break;
             case FIRST_PREVIEW_FRAME:
                 Log.d(TAG, "First preview frame received");
+                long latency;
                 if (sInstance.mFirstPreviewFrameLatencyColdStart == UNSET) {
                     // Cold start.
-                    sInstance.mFirstPreviewFrameLatencyColdStart =
-                            currentTime - sInstance.mAppStartTime;
+                    latency = currentTime - sInstance.mAppStartTime;
+                    sInstance.mFirstPreviewFrameLatencyColdStart = latency;
                 } else {
                     // Warm Start.
-                    sInstance.mFirstPreviewFrameLatencyWarmStart =
-                            currentTime - sInstance.mAppResumeTime;
+                    latency = currentTime - sInstance.mAppResumeTime;
+                    sInstance.mFirstPreviewFrameLatencyWarmStart = latency;
+                }
+                if (!sInstance.mFirstFrameRecorded) {
+                    sInstance.mFirstFrameRecorded = true;
+                    recordLatency(STAGE_FIRST_FRAME, latency * 1000000L);
                 }
                 // If the new frame is triggered by the mode switch, track the duration.
                 if (sInstance.mModeSwitchStartTime != UNSET) {
@@ -149,4 +245,63 @@ public class CameraPerformanceTracker {
         }
         return sInstance.mModeSwitchDuration;
     }
+
+    /** Starts measuring an occurrence of a stage. */
+    public static Span beginSpan(String stage) {
+        return new Span(stage);
+    }
+
+    /**
+     * Records the latency of a stage which was measured by the caller. It is
+     * also reported to {@link UsageStatistics}.
+     */
+    public static void recordLatency(String stage, long durationNs) {
+        LatencyHistogram[] stripes = sStages.get(stage);
+        if (stripes == null) {
+            LatencyHistogram[] newStripes = new LatencyHistogram[STRIPE_COUNT];
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                newStripes[i] = new LatencyHistogram();
+            }
+            stripes = sStages.putIfAbsent(stage, newStripes);
+            if (stripes == null) {
+                stripes = newStripes;
+            }
+        }
+        int stripe = (int) Thread.currentThread().getId() & (STRIPE_COUNT - 1);
+        stripes[stripe].record(durationNs);
+        UsageStatistics.instance().latency(stage, durationNs);
+    }
+
+    /**
+     * Returns a copy of the latencies recorded for a stage, which is empty if
+     * nothing was recorded.
+     */
+    public static LatencyHistogram getLatency(String stage) {
+        LatencyHistogram latency = new LatencyHistogram();
+        LatencyHistogram[] stripes = sStages.get(stage);
+        if (stripes != null) {
+            for (LatencyHistogram stripe : stripes) {
+                latency.add(stripe);
+            }
+        }
+        return latency;
+    }
+
+    /** Forgets the latencies recorded for all stages. */
+    public static void resetLatencies() {
+        for (LatencyHistogram[] stripes : sStages.values()) {
+            for (LatencyHistogram stripe : stripes) {
+                stripe.reset();
+            }
+        }
+    }
+
+    /** Writes the latencies of each stage, one line per stage. */
+    public static void dump(String prefix, PrintWriter writer) {
+        List<String> stages = new ArrayList<String>(sStages.keySet());
+        Collections.sort(stages);
+        for (String stage : stages) {
+            writer.println(prefix + stage + ": " + getLatency(stage));
+        }
+    }
 }
@@ -76,6 +76,7 @@ import com.android.camera.app.CameraController;
 import com.android.camera.app.CameraProvider;
 import com.android.camera.app.CameraServices;
 import com.android.camera.app.LocationManager;
+import com.android.camera.app.MediaSaver;
 import com.android.camera.app.MemoryManager;
 import com.android.camera.app.MemoryQuery;
 import com.android.camera.app.ModuleManager;
@@ -130,6 +131,7 @@ import com.android.camera.util.GoogleHelpHelper;
 import com.android.camera.util.IntentHelper;
 import com.android.camera.util.PermissionsUtils;
 import com.android.camera.util.PhotoSphereHelper.PanoramaViewHelper;
+import com.android.camera.util.PriorityTaskExecutor;
 import com.android.camera.util.QuickActivity;
 import com.android.camera.util.ReleaseHelper;
 import com.android.camera.util.UsageStatistics;
@@ -150,8 +152,10 @@ import com.google.common.logging.eventprotos.MediaInteraction;
 import com.google.common.logging.eventprotos.NavigationChange;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -272,7 +276,7 @@ public class CameraActivity extends QuickActivity
     private long mOnCreateTime;
 
     private Menu mActionBarMenu;
-    private Preloader<Integer, AsyncTask> mPreloader;
+    private Preloader<Uri, PriorityTaskExecutor.Task> mPreloader;
 
     /**
      * Can be used to play custom sounds.
@@ -570,6 +574,7 @@ public class CameraActivity extends QuickActivity
                 eventprotos.CameraFailure.FailureReason.OPEN_FAILURE, info,
                 UsageStatistics.NONE, UsageStatistics.NONE);
         Log.w(TAG, "Camera open failure: " + info);
+        Log.logRecentEntries();
         CameraUtil.showErrorAndFinish(this, R.string.cannot_connect_camera);
     }
 
@@ -585,6 +590,7 @@ public class CameraActivity extends QuickActivity
                 eventprotos.CameraFailure.FailureReason.RECONNECT_FAILURE, null,
                 UsageStatistics.NONE, UsageStatistics.NONE);
         Log.w(TAG, "Camera reconnection failure:" + info);
+        Log.logRecentEntries();
         CameraUtil.showErrorAndFinish(this, R.string.cannot_connect_camera);
     }
 
@@ -785,8 +791,10 @@ public class CameraActivity extends QuickActivity
                 }
 
                 @Override
-                public void onScroll(int firstVisiblePosition, int visibleItemCount, int totalItemCount) {
-                    mPreloader.onScroll(null /*absListView*/, firstVisiblePosition, visibleItemCount, totalItemCount);
+                public void onScroll(int firstVisiblePosition, int visibleItemCount,
+                        int totalItemCount, float velocity) {
+                    mPreloader.onScroll(firstVisiblePosition, visibleItemCount, totalItemCount,
+                            velocity);
                 }
             };
 
@@ -1205,19 +1213,37 @@ public class CameraActivity extends QuickActivity
      * @param accessibilityString Accessibility string to announce on peek animation.
      */
     private void startPeekAnimation(final LocalData data, final String accessibilityString) {
+        startPeekAnimation(data, accessibilityString, null);
+    }
+
+    /**
+     * Like {@link #startPeekAnimation(LocalData, String)}, ending a span when
+     * the thumbnail is decoded, or cancelling it if there is no animation.
+     */
+    private void startPeekAnimation(final LocalData data, final String accessibilityString,
+            final CameraPerformanceTracker.Span thumbnailSpan) {
         if (mFilmstripVisible || mPeekAnimationHandler == null) {
+            if (thumbnailSpan != null) {
+                thumbnailSpan.cancel();
+            }
             return;
         }
 
         int dataType = data.getLocalDataType();
         if (dataType != LocalData.LOCAL_IMAGE && dataType != LocalData.LOCAL_IN_PROGRESS_DATA &&
                 dataType != LocalData.LOCAL_VIDEO) {
+            if (thumbnailSpan != null) {
+                thumbnailSpan.cancel();
+            }
             return;
         }
 
         mPeekAnimationHandler.startDecodingJob(data, new Callback<Bitmap>() {
             @Override
             public void onCallback(Bitmap result) {
+                if (thumbnailSpan != null) {
+                    thumbnailSpan.end();
+                }
                 mCameraAppUI.startPeekAnimation(result, true, accessibilityString);
             }
         });
@@ -1251,6 +1277,8 @@ public class CameraActivity extends QuickActivity
             return;
         }
 
+        final CameraPerformanceTracker.Span thumbnailSpan = CameraPerformanceTracker.beginSpan(
+                CameraPerformanceTracker.STAGE_THUMBNAIL_READY);
         // We are preloading the metadata for new video since we need the
         // rotation info for the thumbnail.
         new AsyncTask<LocalData, Void, LocalData>() {
@@ -1265,7 +1293,8 @@ public class CameraActivity extends QuickActivity
             protected void onPostExecute(LocalData data) {
                 // TODO: Figure out why sometimes the data is aleady there.
                 mDataAdapter.addData(data);
-                startPeekAnimation(data, mCurrentModule.getPeekAccessibilityString());
+                startPeekAnimation(data, mCurrentModule.getPeekAccessibilityString(),
+                        thumbnailSpan);
             }
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, newData);
     }
@@ -1375,6 +1404,7 @@ public class CameraActivity extends QuickActivity
                 return;
             }
             mCameraFatalError = true;
+            Log.logRecentEntries();
 
             // If the activity receives exception during onPause, just exit the app.
             if (mPaused && !isFinishing()) {
@@ -1515,8 +1545,8 @@ public class CameraActivity extends QuickActivity
         mDataAdapter = new CameraDataAdapter(mAppContext, R.color.photo_placeholder);
         mDataAdapter.setLocalDataListener(mLocalDataListener);
 
-        mPreloader = new Preloader<Integer, AsyncTask>(FILMSTRIP_PRELOAD_AHEAD_ITEMS, mDataAdapter,
-                mDataAdapter);
+        mPreloader = new Preloader<Uri, PriorityTaskExecutor.Task>(
+                FILMSTRIP_PRELOAD_AHEAD_ITEMS, mDataAdapter, mDataAdapter);
 
         mCameraAppUI.getFilmstripContentPanel().setFilmstripListener(mFilmstripListener);
         if (mSettingsManager.getBoolean(SettingsManager.SCOPE_GLOBAL,
@@ -1757,6 +1787,8 @@ public class CameraActivity extends QuickActivity
     @Override
     public void onResumeTasks() {
         CameraPerformanceTracker.onEvent(CameraPerformanceTracker.ACTIVITY_RESUME);
+        // Picks up log levels changed while the camera was in the background.
+        Log.refreshLevels();
         Log.v(TAG, "Build info: " + Build.DISPLAY);
 
         mPaused = false;
@@ -1964,6 +1996,27 @@ public class CameraActivity extends QuickActivity
         CameraAgentFactory.recycle(CameraAgentFactory.CameraApi.AUTO);
     }
 
+    /**
+     * Adds the latency of each capture stage, of saving images and the recent
+     * log entries to
+     * {@code adb shell dumpsys activity com.android.camera2}.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.println(prefix + "Latencies:");
+        CameraPerformanceTracker.dump(prefix + "  ", writer);
+        MediaSaver mediaSaver = getServices().getMediaSaver();
+        if (mediaSaver instanceof MediaSaverImpl) {
+            MediaSaverImpl saver = (MediaSaverImpl) mediaSaver;
+            writer.println(prefix + "  SaveQueue: " + saver.getQueueLatency());
+            writer.println(prefix + "  SaveStore: " + saver.getStoreLatency());
+            writer.println(prefix + "  SaveTotal: " + saver.getTotalLatency());
+        }
+        writer.println(prefix + "Recent log entries:");
+        Log.dumpRecentEntries(writer);
+    }
+
     @Override
     public void onConfigurationChanged(Configuration config) {
         super.onConfigurationChanged(config);
@@ -351,6 +351,12 @@ public class CaptureModule extends CameraModule
     }
 
     private void takePictureNow() {
+        if (getServices().getMediaSaver().isQueueFull()) {
+            // The media saver never blocks the camera threads, so pictures
+            // are held back here until it has caught up.
+            Log.w(TAG, "Not taking a picture, the save queue is full");
+            return;
+        }
         Location location = mLocationManager.getCurrentLocation();
 
         // Set up the capture session.
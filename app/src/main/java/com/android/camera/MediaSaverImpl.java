@@ -21,17 +21,34 @@ import android.content.ContentValues;
 import android.graphics.BitmapFactory;
 import android.location.Location;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.provider.MediaStore.Video;
 
 import com.android.camera.app.MediaSaver;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.util.JpegBufferPool;
+import com.android.camera.util.LatencyHistogram;
 
 import java.io.File;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A class implementing {@link com.android.camera.app.MediaSaver}.
+ * <p>
+ * Saves run on a dedicated pool of writer threads rather than the shared
+ * AsyncTask executor, so images may finish saving in a different order than
+ * they were added. The queue is weighted by the bytes of image data it
+ * holds. Images are never dropped and {@link #addImage} never blocks, as it
+ * is called from camera callback threads: when the queue is full the
+ * {@link QueueListener} is told so that the UI stops taking pictures until
+ * there is room again.
  */
 public class MediaSaverImpl implements MediaSaver {
     private static final Log.Tag TAG = new Log.Tag("MediaSaverImpl");
@@ -39,38 +56,109 @@ public class MediaSaverImpl implements MediaSaver {
 
     /** The memory limit for unsaved image is 20MB. */
     private static final int SAVE_TASK_MEMORY_LIMIT = 20 * 1024 * 1024;
+    private static final int DEFAULT_WRITER_THREADS = 2;
+    private static final int WRITER_KEEP_ALIVE_SECONDS = 10;
 
-    private QueueListener mQueueListener;
+    private final ThreadPoolExecutor mWriterExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
+    /** Guards mMemoryUse and mQueueDepth. */
+    private final Object mLock = new Object();
     /** Memory used by the total queued save request, in bytes. */
     private long mMemoryUse;
+    /** Number of save requests which have not finished yet. */
+    private int mQueueDepth;
+
+    private volatile QueueListener mQueueListener;
+
+    /** Time from addImage() until a writer picks the image up. */
+    private final LatencyHistogram mQueueLatency = new LatencyHistogram();
+    /** Time to write the file and insert it into the media store. */
+    private final LatencyHistogram mStoreLatency = new LatencyHistogram();
+    /** Time from addImage() until the image is saved. */
+    private final LatencyHistogram mTotalLatency = new LatencyHistogram();
 
     public MediaSaverImpl() {
+        this(DEFAULT_WRITER_THREADS);
+    }
+
+    /**
+     * @param writerThreads the number of images to save in parallel.
+     */
+    public MediaSaverImpl(int writerThreads) {
+        if (writerThreads <= 0) {
+            throw new IllegalArgumentException("Need at least one writer thread.");
+        }
         mMemoryUse = 0;
+        mWriterExecutor = new ThreadPoolExecutor(writerThreads, writerThreads,
+                WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new WriterThreadFactory());
+        mWriterExecutor.allowCoreThreadTimeOut(true);
     }
 
     @Override
     public boolean isQueueFull() {
-        return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
+        synchronized (mLock) {
+            return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
+        }
+    }
+
+    /** Returns the number of save requests which have not finished yet. */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mQueueDepth;
+        }
+    }
+
+    /** Returns the bytes of image data waiting to be saved. */
+    public long getBytesInFlight() {
+        synchronized (mLock) {
+            return mMemoryUse;
+        }
+    }
+
+    /** Returns the latency from adding an image until a writer starts on it. */
+    public LatencyHistogram getQueueLatency() {
+        return mQueueLatency;
+    }
+
+    /** Returns the latency of writing an image and adding it to the media store. */
+    public LatencyHistogram getStoreLatency() {
+        return mStoreLatency;
+    }
+
+    /** Returns the latency from adding an image until it is saved. */
+    public LatencyHistogram getTotalLatency() {
+        return mTotalLatency;
     }
 
     @Override
     public void addImage(final byte[] data, String title, long date, Location loc, int width,
             int height, int orientation, ExifInterface exif, OnMediaSavedListener l,
             ContentResolver resolver) {
-        if (isQueueFull()) {
-            Log.e(TAG, "Cannot add image when the queue is full");
-            return;
-        }
+        addImage(JpegBufferPool.wrap(data), title, date, loc, width, height, orientation, exif, l,
+                resolver);
+    }
+
+    @Override
+    public void addImage(JpegBufferPool.Lease data, String title, long date, Location loc,
+            int width, int height, int orientation, ExifInterface exif, OnMediaSavedListener l,
+            ContentResolver resolver) {
         ImageSaveTask t = new ImageSaveTask(data, title, date,
                 (loc == null) ? null : new Location(loc),
                 width, height, orientation, exif, resolver, l);
 
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
+        boolean becameFull;
+        synchronized (mLock) {
+            boolean wasFull = mMemoryUse >= SAVE_TASK_MEMORY_LIMIT;
+            mMemoryUse += data.getLength();
+            mQueueDepth++;
+            becameFull = !wasFull && mMemoryUse >= SAVE_TASK_MEMORY_LIMIT;
+        }
+        if (becameFull) {
+            notifyQueueStatus();
         }
-        t.execute();
+        mWriterExecutor.execute(t);
     }
 
     @Override
@@ -93,7 +181,7 @@ public class MediaSaverImpl implements MediaSaver {
                          ContentResolver resolver) {
         // We don't set a queue limit for video saving because the file
         // is already in the storage. Only updating the database.
-        new VideoSaveTask(path, values, l, resolver).execute();
+        mWriterExecutor.execute(new VideoSaveTask(path, values, l, resolver));
     }
 
     @Override
@@ -105,20 +193,64 @@ public class MediaSaverImpl implements MediaSaver {
         l.onQueueStatus(isQueueFull());
     }
 
-    private void onQueueFull() {
-        if (mQueueListener != null) {
-            mQueueListener.onQueueStatus(true);
+    private void onImageSaved(long bytes) {
+        boolean becameAvailable;
+        synchronized (mLock) {
+            boolean wasFull = mMemoryUse >= SAVE_TASK_MEMORY_LIMIT;
+            mMemoryUse -= bytes;
+            mQueueDepth--;
+            becameAvailable = wasFull && mMemoryUse < SAVE_TASK_MEMORY_LIMIT;
+        }
+        if (becameAvailable) {
+            notifyQueueStatus();
         }
     }
 
-    private void onQueueAvailable() {
-        if (mQueueListener != null) {
-            mQueueListener.onQueueStatus(false);
+    /**
+     * Tells the listener about a change of the queue status. The status is
+     * read when the main thread runs the notification rather than when it is
+     * posted: posts from the camera and writer threads may arrive in any
+     * order, and the last one must not report a stale status.
+     */
+    private void notifyQueueStatus() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                QueueListener listener = mQueueListener;
+                if (listener != null) {
+                    listener.onQueueStatus(isQueueFull());
+                }
+            }
+        });
+    }
+
+    private void notifyMediaSaved(final OnMediaSavedListener listener, final Uri uri) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onMediaSaved(uri);
+            }
+        });
+    }
+
+    private static class WriterThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "MediaSaver-" + mCount.incrementAndGet());
         }
     }
 
-    private class ImageSaveTask extends AsyncTask <Void, Void, Uri> {
-        private final byte[] data;
+    private class ImageSaveTask implements Runnable {
+        private final JpegBufferPool.Lease data;
+        private final int length;
         private final String title;
         private final long date;
         private final Location loc;
@@ -127,11 +259,13 @@ public class MediaSaverImpl implements MediaSaver {
         private final ExifInterface exif;
         private final ContentResolver resolver;
         private final OnMediaSavedListener listener;
+        private final long enqueueTimeNs;
 
-        public ImageSaveTask(byte[] data, String title, long date, Location loc,
+        public ImageSaveTask(JpegBufferPool.Lease data, String title, long date, Location loc,
                              int width, int height, int orientation, ExifInterface exif,
                              ContentResolver resolver, OnMediaSavedListener listener) {
             this.data = data;
+            this.length = data.getLength();
             this.title = title;
             this.date = date;
             this.loc = loc;
@@ -141,41 +275,42 @@ public class MediaSaverImpl implements MediaSaver {
             this.exif = exif;
             this.resolver = resolver;
             this.listener = listener;
+            this.enqueueTimeNs = System.nanoTime();
         }
 
         @Override
-        protected void onPreExecute() {
-            // do nothing.
-        }
-
-        @Override
-        protected Uri doInBackground(Void... v) {
-            if (width == 0 || height == 0) {
-                // Decode bounds
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inJustDecodeBounds = true;
-                BitmapFactory.decodeByteArray(data, 0, data.length, options);
-                width = options.outWidth;
-                height = options.outHeight;
+        public void run() {
+            long startNs = System.nanoTime();
+            mQueueLatency.record(startNs - enqueueTimeNs);
+            Uri uri = null;
+            try {
+                if (width == 0 || height == 0) {
+                    // Decode bounds
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inJustDecodeBounds = true;
+                    BitmapFactory.decodeByteArray(data.getArray(), 0, length, options);
+                    width = options.outWidth;
+                    height = options.outHeight;
+                }
+                long storeStartNs = System.nanoTime();
+                uri = Storage.addImage(resolver, title, date, loc, orientation, exif,
+                        data.getArray(), length, width, height);
+                mStoreLatency.record(System.nanoTime() - storeStartNs);
+            } finally {
+                // The image is on disk and in the media store, the buffer can
+                // be reused.
+                data.release();
+                onImageSaved(length);
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height);
-        }
+            mTotalLatency.record(System.nanoTime() - enqueueTimeNs);
 
-        @Override
-        protected void onPostExecute(Uri uri) {
             if (listener != null && uri != null) {
-                listener.onMediaSaved(uri);
-            }
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) {
-                onQueueAvailable();
+                notifyMediaSaved(listener, uri);
             }
         }
     }
 
-    private class VideoSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class VideoSaveTask implements Runnable {
         private String path;
         private final ContentValues values;
         private final OnMediaSavedListener listener;
@@ -190,7 +325,7 @@ public class MediaSaverImpl implements MediaSaver {
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        public void run() {
             Uri uri = null;
             try {
                 Uri videoTable = Uri.parse(VIDEO_BASE_URI);
@@ -213,13 +348,8 @@ public class MediaSaverImpl implements MediaSaver {
             } finally {
                 Log.v(TAG, "Current video URI: " + uri);
             }
-            return uri;
-        }
-
-        @Override
-        protected void onPostExecute(Uri uri) {
             if (listener != null) {
-                listener.onMediaSaved(uri);
+                notifyMediaSaved(listener, uri);
             }
         }
     }
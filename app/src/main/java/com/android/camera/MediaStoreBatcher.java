@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+
+import com.android.camera.debug.Log;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups content provider inserts and updates issued from several threads
+ * into {@link ContentResolver#applyBatch} calls, so that a burst of saves
+ * costs one provider round-trip instead of one per picture.
+ * <p>
+ * {@link #insert} and {@link #update} block like their
+ * {@link ContentResolver} counterparts and return the result of their own
+ * operation. A caller which finds no commit in progress commits everything
+ * pending right away, so a lone write never waits; callers arriving while a
+ * batch is being committed are collected into the next one. If a batch fails
+ * as a whole its operations are retried one by one, so a single bad item
+ * does not fail the rest.
+ */
+public class MediaStoreBatcher {
+    private static final Log.Tag TAG = new Log.Tag("MediaStoreBatcher");
+
+    private final String mAuthority;
+    private final int mMaxBatchSize;
+
+    private final Object mLock = new Object();
+    /** Operations waiting for a commit, in arrival order. */
+    private final ArrayList<Request> mPending = new ArrayList<Request>();
+    /** True while a caller is collecting or committing a batch. */
+    private boolean mCommitting;
+
+    private static class Request {
+        final ContentResolver resolver;
+        final Uri uri;
+        final ContentValues values;
+        final boolean isInsert;
+        Uri resultUri;
+        int resultCount;
+        boolean done;
+
+        Request(ContentResolver resolver, Uri uri, ContentValues values, boolean isInsert) {
+            this.resolver = resolver;
+            this.uri = uri;
+            this.values = values;
+            this.isInsert = isInsert;
+        }
+
+        ContentProviderOperation toOperation() {
+            return (isInsert ? ContentProviderOperation.newInsert(uri)
+                    : ContentProviderOperation.newUpdate(uri)).withValues(values).build();
+        }
+
+        void setResult(ContentProviderResult result) {
+            if (isInsert) {
+                resultUri = result.uri;
+            } else {
+                resultCount = (result.count != null) ? result.count : 0;
+            }
+        }
+
+        void apply() {
+            try {
+                if (isInsert) {
+                    resultUri = resolver.insert(uri, values);
+                } else {
+                    resultCount = resolver.update(uri, values, null, null);
+                }
+            } catch (Throwable th) {
+                // This can happen when the external volume is already mounted,
+                // but MediaScanner has not notify MediaProvider to add that
+                // volume.
+                Log.e(TAG, "Failed to write " + uri, th);
+            }
+        }
+    }
+
+    /**
+     * @param authority the authority of the provider all batched URIs belong
+     *            to. Operations on other authorities are applied right away.
+     * @param maxBatchSize the largest number of operations in one batch.
+     */
+    public MediaStoreBatcher(String authority, int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Invalid batch size " + maxBatchSize);
+        }
+        mAuthority = authority;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Inserts a row, blocking until the batch holding it is committed.
+     *
+     * @return The URI of the new row, or null if the insert failed.
+     */
+    public Uri insert(ContentResolver resolver, Uri tableUri, ContentValues values) {
+        Request request = new Request(resolver, tableUri, values, true);
+        submit(request);
+        return request.resultUri;
+    }
+
+    /**
+     * Updates a row, blocking until the batch holding it is committed.
+     *
+     * @return The number of rows updated, 0 if the update failed.
+     */
+    public int update(ContentResolver resolver, Uri uri, ContentValues values) {
+        Request request = new Request(resolver, uri, values, false);
+        submit(request);
+        return request.resultCount;
+    }
+
+    private void submit(Request request) {
+        if (!mAuthority.equals(request.uri.getAuthority())) {
+            request.apply();
+            return;
+        }
+
+        boolean interrupted = false;
+        synchronized (mLock) {
+            mPending.add(request);
+        }
+        try {
+            while (true) {
+                List<Request> batch;
+                synchronized (mLock) {
+                    while (!request.done && mCommitting) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (request.done) {
+                        return;
+                    }
+
+                    // Nobody else is committing, so this caller commits what
+                    // is pending without waiting for more.
+                    mCommitting = true;
+                    int size = Math.min(mPending.size(), mMaxBatchSize);
+                    batch = new ArrayList<Request>(mPending.subList(0, size));
+                    mPending.subList(0, size).clear();
+                }
+
+                try {
+                    commit(batch);
+                } finally {
+                    synchronized (mLock) {
+                        for (Request r : batch) {
+                            r.done = true;
+                        }
+                        mCommitting = false;
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void commit(List<Request> batch) {
+        // Requests normally share the application's resolver, but a batch can
+        // only be applied through one.
+        Map<ContentResolver, List<Request>> byResolver =
+                new IdentityHashMap<ContentResolver, List<Request>>();
+        for (Request r : batch) {
+            List<Request> requests = byResolver.get(r.resolver);
+            if (requests == null) {
+                requests = new ArrayList<Request>(batch.size());
+                byResolver.put(r.resolver, requests);
+            }
+            requests.add(r);
+        }
+        for (Map.Entry<ContentResolver, List<Request>> entry : byResolver.entrySet()) {
+            commit(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void commit(ContentResolver resolver, List<Request> requests) {
+        if (requests.size() == 1) {
+            requests.get(0).apply();
+            return;
+        }
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(requests.size());
+        for (Request r : requests) {
+            operations.add(r.toOperation());
+        }
+        try {
+            ContentProviderResult[] results = resolver.applyBatch(mAuthority, operations);
+            for (int i = 0; i < requests.size(); i++) {
+                requests.get(i).setResult(results[i]);
+            }
+            Log.v(TAG, "Committed a batch of " + requests.size());
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to apply a batch of " + requests.size()
+                    + ", applying one by one", e);
+            for (Request r : requests) {
+                r.apply();
+            }
+        }
+    }
+}
@@ -25,9 +25,11 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
+import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
 import android.provider.MediaStore.MediaColumns;
+import android.util.CameraPerformanceTracker;
 
 import com.android.camera.data.LocalData;
 import com.android.camera.debug.Log;
@@ -62,6 +64,10 @@ public class Storage {
     private static HashMap<Uri, Integer> sSessionsToPlaceholderVersions =
         new HashMap<Uri, Integer>();
 
+    private static final int MEDIA_STORE_MAX_BATCH_SIZE = 16;
+    private static final MediaStoreBatcher sMediaStoreBatcher = new MediaStoreBatcher(
+            MediaStore.AUTHORITY, MEDIA_STORE_MAX_BATCH_SIZE);
+
     /**
      * Save the image with default JPEG MIME type and add it to the MediaStore.
      *
@@ -81,8 +87,21 @@ public class Storage {
             Location location, int orientation, ExifInterface exif, byte[] jpeg, int width,
             int height) {
 
-        return addImage(resolver, title, date, location, orientation, exif, jpeg, width, height,
-                LocalData.MIME_TYPE_JPEG);
+        return addImage(resolver, title, date, location, orientation, exif, jpeg, jpeg.length,
+                width, height, LocalData.MIME_TYPE_JPEG);
+    }
+
+    /**
+     * Like {@link #addImage(ContentResolver, String, long, Location, int,
+     * ExifInterface, byte[], int, int)}, for JPEG data stored in the first
+     * jpegLength bytes of a larger buffer.
+     */
+    public static Uri addImage(ContentResolver resolver, String title, long date,
+            Location location, int orientation, ExifInterface exif, byte[] jpeg, int jpegLength,
+            int width, int height) {
+
+        return addImage(resolver, title, date, location, orientation, exif, jpeg, jpegLength,
+                width, height, LocalData.MIME_TYPE_JPEG);
     }
 
     /**
@@ -94,6 +113,7 @@ public class Storage {
      * @param resolver The The content resolver to use.
      * @param title The title of the media file.
      * @param data The data to save.
+     * @param dataLength The number of bytes of data to save.
      * @param date The date fo the media file.
      * @param location The location of the media file.
      * @param orientation The orientation of the media file.
@@ -107,16 +127,28 @@ public class Storage {
      *         added.
      */
     private static Uri addImage(ContentResolver resolver, String title, long date,
-            Location location, int orientation, ExifInterface exif, byte[] data, int width,
-            int height, String mimeType) {
+            Location location, int orientation, ExifInterface exif, byte[] data, int dataLength,
+            int width, int height, String mimeType) {
 
         String path = generateFilepath(title);
-        long fileLength = writeFile(path, data, exif);
-        if (fileLength >= 0) {
-            return addImageToMediaStore(resolver, title, date, location, orientation, fileLength,
-                    path, width, height, mimeType);
+        CameraPerformanceTracker.Span span = CameraPerformanceTracker.beginSpan(
+                CameraPerformanceTracker.STAGE_JPEG_TO_DISK);
+        long fileLength = writeFile(path, data, dataLength, exif);
+        if (fileLength < 0) {
+            span.cancel();
+            return null;
         }
-        return null;
+        span.end();
+        span = CameraPerformanceTracker.beginSpan(
+                CameraPerformanceTracker.STAGE_DISK_TO_MEDIA_STORE);
+        Uri uri = addImageToMediaStore(resolver, title, date, location, orientation, fileLength,
+                path, width, height, mimeType);
+        if (uri != null) {
+            span.end();
+        } else {
+            span.cancel();
+        }
+        return uri;
     }
 
     /**
@@ -143,18 +175,11 @@ public class Storage {
                 getContentValuesForData(title, date, location, orientation, jpegLength, path, width,
                         height, mimeType);
 
-        Uri uri = null;
-        try {
-            uri = resolver.insert(Images.Media.EXTERNAL_CONTENT_URI, values);
-        } catch (Throwable th)  {
-            // This can happen when the external volume is already mounted, but
-            // MediaScanner has not notify MediaProvider to add that volume.
-            // The picture is still safe and MediaScanner will find it and
-            // insert it into MediaProvider. The only problem is that the user
-            // cannot click the thumbnail to review the picture.
-            Log.e(TAG, "Failed to write MediaStore" + th);
-        }
-        return uri;
+        // Inserts from concurrent saves are committed together. If this fails
+        // the picture is still safe and MediaScanner will find it and insert
+        // it into MediaProvider. The only problem is that the user cannot
+        // click the thumbnail to review the picture.
+        return sMediaStoreBatcher.insert(resolver, Images.Media.EXTERNAL_CONTENT_URI, values);
     }
 
     // Get a ContentValues object for the given photo data
@@ -238,10 +263,22 @@ public class Storage {
     public static Uri updateImage(Uri imageUri, ContentResolver resolver, String title, long date,
            Location location, int orientation, ExifInterface exif,
            byte[] jpeg, int width, int height, String mimeType) {
+        return updateImage(imageUri, resolver, title, date, location, orientation, exif, jpeg,
+                jpeg.length, width, height, mimeType);
+    }
+
+    /**
+     * Like {@link #updateImage(Uri, ContentResolver, String, long, Location,
+     * int, ExifInterface, byte[], int, int, String)}, for JPEG data stored in
+     * the first jpegLength bytes of a larger buffer.
+     */
+    public static Uri updateImage(Uri imageUri, ContentResolver resolver, String title, long date,
+           Location location, int orientation, ExifInterface exif,
+           byte[] jpeg, int jpegLength, int width, int height, String mimeType) {
         String path = generateFilepath(title);
-        writeFile(path, jpeg, exif);
-        return updateImage(imageUri, resolver, title, date, location, orientation, jpeg.length, path,
-                width, height, mimeType);
+        writeFile(path, jpeg, jpegLength, exif);
+        return updateImage(imageUri, resolver, title, date, location, orientation, jpegLength,
+                path, width, height, mimeType);
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
@@ -259,21 +296,30 @@ public class Storage {
      *
      * @param path The path to the target file.
      * @param jpeg The JPEG data.
+     * @param jpegLength The number of bytes of JPEG data.
      * @param exif The EXIF info. Can be {@code null}.
      *
      * @return The size of the file. -1 if failed.
      */
-    private static long writeFile(String path, byte[] jpeg, ExifInterface exif) {
+    private static long writeFile(String path, byte[] jpeg, int jpegLength, ExifInterface exif) {
         if (exif != null) {
+            FileOutputStream out = null;
             try {
-                exif.writeExif(jpeg, path);
-                File f = new File(path);
-                return f.length();
+                out = new FileOutputStream(path);
+                return exif.writeExif(jpeg, jpegLength, out.getChannel());
             } catch (Exception e) {
                 Log.e(TAG, "Failed to write data", e);
+            } finally {
+                try {
+                    if (out != null) {
+                        out.close();
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to close file after write", e);
+                }
             }
         } else {
-            return writeFile(path, jpeg);
+            return writeFile(path, jpeg, jpegLength);
         }
         return -1;
     }
@@ -283,15 +329,16 @@ public class Storage {
      *
      * @param path The path to the target file.
      * @param data The data to save.
+     * @param dataLength The number of bytes of data to save.
      *
      * @return The size of the file. -1 if failed.
      */
-    private static long writeFile(String path, byte[] data) {
+    private static long writeFile(String path, byte[] data, int dataLength) {
         FileOutputStream out = null;
         try {
             out = new FileOutputStream(path);
-            out.write(data);
-            return data.length;
+            out.write(data, 0, dataLength);
+            return dataLength;
         } catch (Exception e) {
             Log.e(TAG, "Failed to write data", e);
         } finally {
@@ -323,7 +370,7 @@ public class Storage {
             sContentUrisToSessions.put(resultUri, imageUri);
         } else {
             // Update the MediaStore
-            resolver.update(imageUri, values, null, null);
+            sMediaStoreBatcher.update(resolver, imageUri, values);
         }
         return resultUri;
     }
@@ -21,6 +21,8 @@ import android.app.NotificationManager;
 import android.content.Context;
 
 import com.android.camera.MediaSaverImpl;
+import com.android.camera.debug.DebugPropertyHelper;
+import com.android.camera.debug.Log;
 import com.android.camera.debug.LogHelper;
 import com.android.camera.processing.ProcessingServiceManager;
 import com.android.camera.remote.RemoteShutterListener;
@@ -40,6 +42,9 @@ import com.android.camera.util.UsageStatistics;
  * to be used across modules.
  */
 public class CameraApp extends Application implements CameraServices {
+    /** The number of log entries kept to be dumped on failures, if enabled. */
+    private static final int RECENT_LOG_ENTRIES = 1024;
+
     private MediaSaver mMediaSaver;
     private CaptureSessionManager mSessionManager;
     private SessionStorageManager mSessionStorageManager;
@@ -55,6 +60,9 @@ public class CameraApp extends Application implements CameraServices {
 
         Context context = getApplicationContext();
         LogHelper.initialize(context);
+        if (DebugPropertyHelper.keepRecentLogEntries()) {
+            Log.keepRecentEntries(RECENT_LOG_ENTRIES);
+        }
 
         // It is important that this gets called early in execution before the
         // app has had the opportunity to create any shared preferences.
@@ -23,6 +23,7 @@ import com.android.camera.CameraDisabledException;
 import com.android.camera.debug.Log;
 import com.android.camera.util.CameraUtil;
 import com.android.camera.util.GservicesHelper;
+import com.android.camera.util.JpegBufferPool;
 import com.android.ex.camera2.portability.CameraAgent;
 import com.android.ex.camera2.portability.CameraDeviceInfo;
 import com.android.ex.camera2.portability.CameraExceptionHandler;
@@ -290,6 +291,8 @@ public class CameraController implements CameraAgent.CameraOpenCallback, CameraP
         }
         mRequestingCameraId = EMPTY_REQUEST;
         mUsingNewApi = false;
+        // Don't hold on to idle jpeg buffers while the camera is closed.
+        JpegBufferPool.getInstance().clear();
     }
 
     private static void checkAndOpenCamera(Context context, CameraAgent cameraManager,
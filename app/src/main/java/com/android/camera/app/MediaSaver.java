@@ -22,6 +22,7 @@ import android.location.Location;
 import android.net.Uri;
 
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.util.JpegBufferPool;
 
 /**
  * An interface defining the media saver which saves media files in the
@@ -84,6 +85,19 @@ public interface MediaSaver {
     void addImage(byte[] data, String title, long date, Location loc, int width, int height,
             int orientation, ExifInterface exif, OnMediaSavedListener l, ContentResolver resolver);
 
+    /**
+     * Like {@link #addImage(byte[], String, long, Location, int, int, int,
+     * ExifInterface, OnMediaSavedListener, ContentResolver)}, for JPEG data in
+     * a pooled buffer. The saver takes over the caller's reference to the
+     * lease and releases it once the image is in the media store, or if it
+     * cannot be saved.
+     *
+     * @param jpeg The JPEG image data.
+     */
+    void addImage(JpegBufferPool.Lease jpeg, String title, long date, Location loc, int width,
+            int height, int orientation, ExifInterface exif, OnMediaSavedListener l,
+            ContentResolver resolver);
+
     /**
      * Adds an image into {@link android.content.ContentResolver} and also
      * saves the file to the storage in the background. The width and height
@@ -23,7 +23,9 @@ import android.content.res.Configuration;
 
 import com.android.camera.app.MediaSaver.QueueListener;
 import com.android.camera.debug.Log;
+import com.android.camera.util.BitmapCache;
 import com.android.camera.util.GservicesHelper;
+import com.android.camera.util.JpegBufferPool;
 
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -118,11 +120,15 @@ public class MemoryManagerImpl implements MemoryManager, QueueListener, Componen
 
     @Override
     public void onLowMemory() {
+        BitmapCache.getInstance().trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        JpegBufferPool.getInstance().clear();
         notifyLowMemory();
     }
 
     @Override
     public void onTrimMemory(int level) {
+        BitmapCache.getInstance().trimMemory(level);
+        JpegBufferPool.getInstance().clear();
         for (int i = 0; i < sCriticalStates.length; ++i) {
             if (level == sCriticalStates[i]) {
                 notifyLowMemory();
@@ -18,9 +18,9 @@ package com.android.camera.data;
 
 import android.content.Context;
 import android.net.Uri;
-import android.os.AsyncTask;
 
 import com.android.camera.util.Callback;
+import com.android.camera.util.PriorityTaskExecutor;
 
 import java.util.List;
 
@@ -107,7 +107,7 @@ public abstract class AbstractLocalDataAdapterWrapper implements LocalDataAdapte
     }
 
     @Override
-    public AsyncTask updateMetadata(int dataId) {
+    public PriorityTaskExecutor.Task updateMetadata(int dataId) {
         return mAdapter.updateMetadata(dataId);
     }
 
@@ -117,17 +117,22 @@ public abstract class AbstractLocalDataAdapterWrapper implements LocalDataAdapte
     }
 
     @Override
-    public List<AsyncTask> preloadItems(List<Integer> items) {
-        return mAdapter.preloadItems(items);
+    public PriorityTaskExecutor.Task preloadItem(Uri item, int priority) {
+        return mAdapter.preloadItem(item, priority);
     }
 
     @Override
-    public void cancelItems(List<AsyncTask> loadTokens) {
-        mAdapter.cancelItems(loadTokens);
+    public boolean setItemPriority(PriorityTaskExecutor.Task loadToken, int priority) {
+        return mAdapter.setItemPriority(loadToken, priority);
     }
 
     @Override
-    public List<Integer> getItemsInRange(int startPosition, int endPosition) {
+    public void cancelItem(PriorityTaskExecutor.Task loadToken) {
+        mAdapter.cancelItem(loadToken);
+    }
+
+    @Override
+    public List<Uri> getItemsInRange(int startPosition, int endPosition) {
         return mAdapter.getItemsInRange(startPosition, endPosition);
     }
 
@@ -20,6 +20,8 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 
 import com.android.camera.Storage;
@@ -27,8 +29,11 @@ import com.android.camera.data.LocalData.ActionCallback;
 import com.android.camera.debug.Log;
 import com.android.camera.filmstrip.ImageData;
 import com.android.camera.util.Callback;
+import com.android.camera.util.PriorityTaskExecutor;
+import com.android.camera.widget.Preloader;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
@@ -39,6 +44,12 @@ public class CameraDataAdapter implements LocalDataAdapter {
     private static final Log.Tag TAG = new Log.Tag("CameraDataAdapter");
 
     private static final int DEFAULT_DECODE_SIZE = 1600;
+    private static final int METADATA_LOADER_THREADS = 2;
+    /**
+     * Covers the longest preload window, so that only stale loads are dropped.
+     * Loads of visible items are never dropped.
+     */
+    private static final int MAX_QUEUED_METADATA_LOADS = 48;
 
     private final Context mContext;
 
@@ -53,11 +64,17 @@ public class CameraDataAdapter implements LocalDataAdapter {
     private long mLastPhotoId = LocalMediaData.QUERY_ALL_MEDIA_ID;
 
     private LocalData mLocalDataToDelete;
+    private final CameraRollSync mCameraRollSync;
+    private final PriorityTaskExecutor mMetadataExecutor = new PriorityTaskExecutor(
+            "MetadataLoader", METADATA_LOADER_THREADS, MAX_QUEUED_METADATA_LOADS,
+            Preloader.PRIORITY_VISIBLE + 1);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
     public CameraDataAdapter(Context context, int placeholderResource) {
         mContext = context;
         mImages = new LocalDataList();
         mPlaceHolderResourceId = placeholderResource;
+        mCameraRollSync = new CameraRollSync(context);
     }
 
     @Override
@@ -73,15 +90,18 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     @Override
     public void requestLoad(Callback<Void> doneCallback) {
-        QueryTask qtask = new QueryTask(doneCallback);
+        // Once data is shown, only the changes are loaded.
+        QueryTask qtask = new QueryTask(doneCallback, mImages.size() > 0);
         qtask.execute(mContext);
     }
 
     @Override
-    public AsyncTask updateMetadata(int dataId) {
-        MetadataUpdateTask result = new MetadataUpdateTask();
-        result.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, dataId);
-        return result;
+    public PriorityTaskExecutor.Task updateMetadata(int dataId) {
+        if (dataId < 0 || dataId >= mImages.size()) {
+            return null;
+        }
+        return mMetadataExecutor.submit(new MetadataUpdateTask(mImages.get(dataId)),
+                Preloader.PRIORITY_VISIBLE);
     }
 
     @Override
@@ -192,9 +212,8 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     @Override
     public int findDataByContentUri(Uri uri) {
-        // LocalDataList will return in O(1) if the uri is not contained.
-        // Otherwise the performance is O(n), but this is acceptable as we will
-        // most often call this to find an element at the beginning of the list.
+        // LocalDataList keeps a Uri to position index, this is O(1) unless
+        // items were just inserted in front of it.
         return mImages.indexOf(uri);
     }
 
@@ -278,6 +297,14 @@ public class CameraDataAdapter implements LocalDataAdapter {
         }
     }
 
+    /**
+     * Applies the changes found by a {@link CameraRollSync} with fine-grained
+     * listener events, instead of replacing all data.
+     */
+    private void applyDelta(CameraRollSync.Delta delta) {
+        CameraRollSync.applyDelta(mImages, delta, mListener);
+    }
+
     /** Update all the data */
     private void replaceData(LocalDataList list) {
         if (list.size() == 0 && mImages.size() == 0) {
@@ -290,30 +317,30 @@ public class CameraDataAdapter implements LocalDataAdapter {
     }
 
     @Override
-    public List<AsyncTask> preloadItems(List<Integer> items) {
-        List<AsyncTask> result = new ArrayList<AsyncTask>();
-        for (Integer id : items) {
-            if (!isMetadataUpdated(id)) {
-                result.add(updateMetadata(id));
-            }
+    public PriorityTaskExecutor.Task preloadItem(Uri uri, int priority) {
+        LocalData data = mImages.get(uri);
+        if (data == null || data.isMetadataUpdated()) {
+            return null;
         }
-        return result;
+        return mMetadataExecutor.submit(new MetadataUpdateTask(data), priority);
     }
 
     @Override
-    public void cancelItems(List<AsyncTask> loadTokens) {
-        for (AsyncTask asyncTask : loadTokens) {
-            if (asyncTask != null) {
-                asyncTask.cancel(false);
-            }
-        }
+    public boolean setItemPriority(PriorityTaskExecutor.Task loadToken, int priority) {
+        return mMetadataExecutor.setPriority(loadToken, priority);
     }
 
     @Override
-    public List<Integer> getItemsInRange(int startPosition, int endPosition) {
-        List<Integer> result = new ArrayList<Integer>();
-        for (int i = Math.max(0, startPosition); i < endPosition; i++) {
-            result.add(i);
+    public void cancelItem(PriorityTaskExecutor.Task loadToken) {
+        mMetadataExecutor.cancel(loadToken);
+    }
+
+    @Override
+    public List<Uri> getItemsInRange(int startPosition, int endPosition) {
+        List<Uri> result = new ArrayList<Uri>();
+        int end = Math.min(endPosition, mImages.size());
+        for (int i = Math.max(0, startPosition); i < end; i++) {
+            result.add(mImages.get(i).getUri());
         }
         return result;
     }
@@ -376,81 +403,109 @@ public class CameraDataAdapter implements LocalDataAdapter {
 
     private class QueryTaskResult {
         public LocalDataList mLocalDataList;
+        public CameraRollSync.Delta mDelta;
         public long mLastPhotoId;
 
         public QueryTaskResult(LocalDataList localDataList, long lastPhotoId) {
             mLocalDataList = localDataList;
             mLastPhotoId = lastPhotoId;
         }
+
+        public QueryTaskResult(CameraRollSync.Delta delta, long lastPhotoId) {
+            mDelta = delta;
+            mLastPhotoId = lastPhotoId;
+        }
     }
 
-    private class QueryTask extends AsyncTask<Context, Void, QueryTaskResult> {
+    private class QueryTask extends AsyncTask<Context, QueryTaskResult, QueryTaskResult> {
         // The maximum number of data to load metadata for in a single task.
         private static final int MAX_METADATA = 5;
 
         private final Callback<Void> mDoneCallback;
+        private final boolean mHasData;
 
-        public QueryTask(Callback<Void> doneCallback) {
+        /**
+         * @param hasData whether the adapter shows the data of a previous
+         *            load, in which case only the changes are loaded.
+         */
+        public QueryTask(Callback<Void> doneCallback, boolean hasData) {
             mDoneCallback = doneCallback;
+            mHasData = hasData;
         }
 
         /**
-         * Loads all the photo and video data in the camera folder in background
-         * and combine them into one single list.
+         * Loads the photo and video data in the camera folder in background.
+         * If there is a snapshot from an earlier load, it is published first
+         * and only the changes since are loaded, otherwise everything is.
          *
          * @param contexts {@link Context} to load all the data.
          * @return An {@link com.android.camera.data.CameraDataAdapter.QueryTaskResult} containing
-         *  all loaded data and the highest photo id in the dataset.
+         *  either all loaded data or the changes, and the highest photo id in the dataset.
          */
         @Override
         protected QueryTaskResult doInBackground(Context... contexts) {
             final Context context = contexts[0];
             final ContentResolver cr = context.getContentResolver();
-            LocalDataList l = new LocalDataList();
-            // Photos
-            List<LocalData> photoData = LocalMediaData.PhotoData.query(cr,
-                    LocalMediaData.PhotoData.CONTENT_URI, LocalMediaData.QUERY_ALL_MEDIA_ID);
-            List<LocalData> videoData = LocalMediaData.VideoData.query(cr,
-                    LocalMediaData.VideoData.CONTENT_URI, LocalMediaData.QUERY_ALL_MEDIA_ID);
-
-            long lastPhotoId = LocalMediaData.QUERY_ALL_MEDIA_ID;
-            if (!photoData.isEmpty()) {
-                // This relies on {@link LocalMediaData.QUERY_ORDER} returning
-                // items sorted descending by ID, as such we can just pull the
-                // ID from the first item in the result to establish the last
-                // (max) photo ID.
-                lastPhotoId = photoData.get(0).getContentId();
-            }
 
-            if (photoData != null) {
-                Log.v(TAG, "retrieved photo metadata, number of items: " + photoData.size());
-                l.addAll(photoData);
+            if (!mHasData || !mCameraRollSync.hasSnapshot()) {
+                List<LocalData> snapshot = mCameraRollSync.getSnapshot();
+                if (snapshot == null) {
+                    List<LocalData> all = mCameraRollSync.loadAll(cr);
+                    loadMetadata(context, all);
+                    LocalDataList l = new LocalDataList();
+                    l.addAll(all);
+                    mCameraRollSync.saveSnapshot();
+                    return new QueryTaskResult(l, mCameraRollSync.getLastPhotoId());
+                }
+                // Show the last known camera roll right away.
+                loadMetadata(context, snapshot);
+                LocalDataList l = new LocalDataList();
+                l.addAll(snapshot);
+                publishProgress(new QueryTaskResult(l, mCameraRollSync.getLastPhotoId()));
             }
-            if (videoData != null) {
-                Log.v(TAG, "retrieved video metadata, number of items: " + videoData.size());
-                l.addAll(videoData);
+
+            CameraRollSync.Delta delta = mCameraRollSync.sync(cr);
+            if (!delta.isEmpty()) {
+                mCameraRollSync.saveSnapshot();
             }
-            Log.v(TAG, "sorting video/photo metadata");
-            // Photos should be sorted within photo/video by ID, which in most
-            // cases should correlate well to the date taken/modified. This sort
-            // operation makes all photos/videos sorted by date in one list.
-            l.sort(new LocalData.NewestFirstComparator());
-            Log.v(TAG, "sorted video/photo metadata");
-
-            // Load enough metadata so it's already loaded when we open the filmstrip.
-            for (int i = 0; i < MAX_METADATA && i < l.size(); i++) {
-                LocalData data = l.get(i);
-                MetadataLoader.loadMetadata(context, data);
+            MetadataLoader.removeIndexedMetadata(context, delta.removed);
+            loadMetadata(context, delta.inserted);
+            loadMetadata(context, delta.updated);
+            return new QueryTaskResult(delta, mCameraRollSync.getLastPhotoId());
+        }
+
+        /**
+         * Loads enough metadata so it's already loaded when we open the
+         * filmstrip. Images known from an earlier run get their metadata from
+         * the index, which costs no file reads.
+         */
+        private void loadMetadata(Context context, List<LocalData> l) {
+            for (int i = 0; i < l.size(); i++) {
+                if (!MetadataLoader.loadIndexedMetadata(context, l.get(i))
+                        && i < MAX_METADATA) {
+                    MetadataLoader.loadMetadata(context, l.get(i));
+                }
             }
-            return new QueryTaskResult(l, lastPhotoId);
+        }
+
+        @Override
+        protected void onProgressUpdate(QueryTaskResult... snapshot) {
+            mLastPhotoId = snapshot[0].mLastPhotoId;
+            replaceData(snapshot[0].mLocalDataList);
         }
 
         @Override
         protected void onPostExecute(QueryTaskResult result) {
-            // Since we're wiping away all of our data, we should always replace any existing last
-            // photo id with the new one we just obtained so it matches the data we're showing.
-            mLastPhotoId = result.mLastPhotoId;
-            replaceData(result.mLocalDataList);
+            if (result.mLocalDataList != null) {
+                // Since we're wiping away all of our data, we should always replace any existing
+                // last photo id with the new one we just obtained so it matches the data we're
+                // showing.
+                mLastPhotoId = result.mLastPhotoId;
+                replaceData(result.mLocalDataList);
+            } else {
+                mLastPhotoId = Math.max(mLastPhotoId, result.mLastPhotoId);
+                applyDelta(result.mDelta);
+            }
             if (mDoneCallback != null) {
                 mDoneCallback.onCallback(null);
             }
@@ -474,24 +529,31 @@ public class CameraDataAdapter implements LocalDataAdapter {
         }
     }
 
-    private class MetadataUpdateTask extends AsyncTask<Integer, Void, List<Integer> > {
+    private class MetadataUpdateTask implements Runnable {
+        private final LocalData mData;
+
+        MetadataUpdateTask(LocalData data) {
+            mData = data;
+        }
+
         @Override
-        protected List<Integer> doInBackground(Integer... dataId) {
-            List<Integer> updatedList = new ArrayList<Integer>();
-            for (Integer id : dataId) {
-                if (id < 0 || id >= mImages.size()) {
-                    continue;
-                }
-                final LocalData data = mImages.get(id);
-                if (MetadataLoader.loadMetadata(mContext, data)) {
-                    updatedList.add(id);
-                }
+        public void run() {
+            if (!MetadataLoader.loadMetadata(mContext, mData)) {
+                return;
             }
-            return updatedList;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // The data may have moved while its metadata was loading.
+                    int id = mImages.indexOf(mData.getUri());
+                    if (id >= 0) {
+                        onMetadataUpdated(Collections.singletonList(id));
+                    }
+                }
+            });
         }
 
-        @Override
-        protected void onPostExecute(final List<Integer> updatedData) {
+        private void onMetadataUpdated(final List<Integer> updatedData) {
             // Since the metadata will affect the width and height of the data
             // if it's a video, we need to notify the DataAdapter listener
             // because ImageData.getWidth() and ImageData.getHeight() now may
@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import com.android.camera.Storage;
+import com.android.camera.debug.Log;
+import com.android.camera.filmstrip.DataAdapter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the camera roll in sync with the media store without querying all of
+ * it on every load.
+ * <p>
+ * The rows of the camera folder are kept as a snapshot, in memory and in the
+ * cache directory, so that a cold start can show the camera roll before the
+ * media store answers. A sync only asks the media store for the id,
+ * modification date, size and orientation of each row, and loads full rows
+ * for the ids which are new or whose values changed.
+ * <p>
+ * All methods do I/O and must be called on a background thread.
+ */
+class CameraRollSync {
+    private static final Log.Tag TAG = new Log.Tag("CameraRollSync");
+    private static final String SNAPSHOT_FILE = "camera_roll_snapshot";
+    private static final int SNAPSHOT_VERSION = 1;
+    static final int TYPE_PHOTO = 0;
+    static final int TYPE_VIDEO = 1;
+
+    private static final String[] PHOTO_KEY_PROJECTION = {
+            MediaStore.Images.ImageColumns._ID,
+            MediaStore.Images.ImageColumns.DATE_MODIFIED,
+            MediaStore.Images.ImageColumns.SIZE,
+            MediaStore.Images.ImageColumns.ORIENTATION,
+    };
+    private static final String[] VIDEO_KEY_PROJECTION = {
+            MediaStore.Video.VideoColumns._ID,
+            MediaStore.Video.VideoColumns.DATE_MODIFIED,
+            MediaStore.Video.VideoColumns.SIZE,
+    };
+
+    /** The changes found by a sync. */
+    static class Delta {
+        /** New rows, newest first. */
+        final List<LocalData> inserted = new ArrayList<LocalData>();
+        /** The new version of changed rows. */
+        final List<LocalData> updated = new ArrayList<LocalData>();
+        /** The last known version of rows which are gone. */
+        final List<LocalData> removed = new ArrayList<LocalData>();
+
+        boolean isEmpty() {
+            return inserted.isEmpty() && updated.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    private final File mSnapshotFile;
+    /** Last known rows by content id, null until loaded. */
+    private Map<Long, LocalMediaData> mPhotos;
+    private Map<Long, LocalMediaData> mVideos;
+
+    CameraRollSync(Context context) {
+        this(new File(context.getCacheDir(), SNAPSHOT_FILE));
+    }
+
+    CameraRollSync(File snapshotFile) {
+        mSnapshotFile = snapshotFile;
+    }
+
+    /** Replaces the known rows, for tests. */
+    synchronized void setRows(Map<Long, LocalMediaData> photos,
+            Map<Long, LocalMediaData> videos) {
+        mPhotos = photos;
+        mVideos = videos;
+    }
+
+    synchronized boolean hasSnapshot() {
+        return mPhotos != null;
+    }
+
+    /** Returns the highest photo id in the snapshot. */
+    synchronized long getLastPhotoId() {
+        long lastId = LocalMediaData.QUERY_ALL_MEDIA_ID;
+        if (mPhotos != null) {
+            for (Long id : mPhotos.keySet()) {
+                lastId = Math.max(lastId, id);
+            }
+        }
+        return lastId;
+    }
+
+    /**
+     * Returns the rows of the snapshot, newest first, reading it from the
+     * cache directory if there is none in memory yet.
+     *
+     * @return The rows, or null if there is no snapshot.
+     */
+    synchronized List<LocalData> getSnapshot() {
+        if (mPhotos == null && !readSnapshot()) {
+            return null;
+        }
+        return merge(sortedNewestFirst(mPhotos.values()), sortedNewestFirst(mVideos.values()));
+    }
+
+    /**
+     * Queries all rows of the camera folder and makes them the snapshot.
+     *
+     * @return All rows, newest first.
+     */
+    synchronized List<LocalData> loadAll(ContentResolver cr) {
+        List<LocalData> photoData = LocalMediaData.PhotoData.query(cr,
+                LocalMediaData.PhotoData.CONTENT_URI, LocalMediaData.QUERY_ALL_MEDIA_ID);
+        List<LocalData> videoData = LocalMediaData.VideoData.query(cr,
+                LocalMediaData.VideoData.CONTENT_URI, LocalMediaData.QUERY_ALL_MEDIA_ID);
+        Log.v(TAG, "retrieved " + photoData.size() + " photos and " + videoData.size()
+                + " videos");
+
+        mPhotos = new HashMap<Long, LocalMediaData>(photoData.size() * 2);
+        for (LocalData data : photoData) {
+            mPhotos.put(data.getContentId(), (LocalMediaData) data);
+        }
+        mVideos = new HashMap<Long, LocalMediaData>(videoData.size() * 2);
+        for (LocalData data : videoData) {
+            mVideos.put(data.getContentId(), (LocalMediaData) data);
+        }
+        // Photos come sorted by id and videos by date, both mostly in date
+        // order, which makes sorting each cheap before merging them.
+        return merge(sortedNewestFirst(photoData), sortedNewestFirst(videoData));
+    }
+
+    /**
+     * Compares the media store with the snapshot and updates the snapshot.
+     * There must be a snapshot.
+     */
+    synchronized Delta sync(ContentResolver cr) {
+        Delta delta = new Delta();
+        syncTable(cr, TYPE_PHOTO, mPhotos, delta);
+        syncTable(cr, TYPE_VIDEO, mVideos, delta);
+        Collections.sort(delta.inserted, new LocalData.NewestFirstComparator());
+        Log.v(TAG, "sync: " + delta.inserted.size() + " inserted, " + delta.updated.size()
+                + " updated, " + delta.removed.size() + " removed");
+        return delta;
+    }
+
+    private static void syncTable(ContentResolver cr, int type, Map<Long, LocalMediaData> rows,
+            Delta delta) {
+        Uri contentUri = (type == TYPE_PHOTO) ? LocalMediaData.PhotoData.CONTENT_URI
+                : LocalMediaData.VideoData.CONTENT_URI;
+        Cursor cursor = cr.query(contentUri,
+                (type == TYPE_PHOTO) ? PHOTO_KEY_PROJECTION : VIDEO_KEY_PROJECTION,
+                LocalMediaData.SELECT_BY_PATH, new String[] { LocalMediaData.CAMERA_PATH }, null);
+        if (cursor == null) {
+            Log.w(TAG, "media store query failed, keeping snapshot");
+            return;
+        }
+
+        List<Long> changedIds;
+        try {
+            changedIds = findChanges(cursor, type, rows, delta);
+        } finally {
+            cursor.close();
+        }
+        if (changedIds.isEmpty()) {
+            return;
+        }
+        long[] ids = new long[changedIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = changedIds.get(i);
+        }
+        List<LocalData> loaded = (type == TYPE_PHOTO)
+                ? LocalMediaData.PhotoData.query(cr, contentUri, ids)
+                : LocalMediaData.VideoData.query(cr, contentUri, ids);
+        addLoaded(rows, changedIds, loaded, delta);
+    }
+
+    /**
+     * Compares the key columns of a table with the known rows, and removes the
+     * rows which are gone from it.
+     *
+     * @param keys The id, modification date, size and, for photos,
+     *            orientation of each row in the table.
+     * @return The ids of the rows which are new or changed.
+     */
+    static List<Long> findChanges(Cursor keys, int type, Map<Long, LocalMediaData> rows,
+            Delta delta) {
+        Set<Long> seen = new HashSet<Long>(rows.size() * 2);
+        List<Long> changedIds = new ArrayList<Long>();
+        while (keys.moveToNext()) {
+            long id = keys.getLong(0);
+            seen.add(id);
+            LocalMediaData known = rows.get(id);
+            if (known == null
+                    || known.mDateModifiedInSeconds != keys.getLong(1)
+                    || known.mSizeInBytes != keys.getLong(2)
+                    || (type == TYPE_PHOTO && known.getRotation() != keys.getInt(3))) {
+                changedIds.add(id);
+            }
+        }
+
+        List<Long> removedIds = new ArrayList<Long>();
+        for (Long id : rows.keySet()) {
+            if (!seen.contains(id)) {
+                removedIds.add(id);
+            }
+        }
+        for (Long id : removedIds) {
+            delta.removed.add(rows.remove(id));
+        }
+        return changedIds;
+    }
+
+    /** Puts the full rows loaded for changed ids into the known rows. */
+    static void addLoaded(Map<Long, LocalMediaData> rows, List<Long> changedIds,
+            List<LocalData> loaded, Delta delta) {
+        Set<Long> loadedIds = new HashSet<Long>(loaded.size() * 2);
+        for (LocalData data : loaded) {
+            loadedIds.add(data.getContentId());
+            LocalMediaData previous = rows.put(data.getContentId(), (LocalMediaData) data);
+            if (previous == null) {
+                delta.inserted.add(data);
+            } else {
+                delta.updated.add(data);
+            }
+        }
+        // Rows which changed but could not be loaded are dropped.
+        for (Long id : changedIds) {
+            if (!loadedIds.contains(id) && rows.containsKey(id)) {
+                delta.removed.add(rows.remove(id));
+            }
+        }
+    }
+
+    /**
+     * Applies a delta to a list sorted newest first, keeping it sorted, and
+     * reports each change to the listener.
+     * <p>
+     * Rows whose date changed are moved, which is reported as a removal and
+     * an insertion.
+     *
+     * @param listener The listener to report to, or null.
+     */
+    static void applyDelta(LocalDataList images, Delta delta, DataAdapter.Listener listener) {
+        for (LocalData data : delta.removed) {
+            int pos = images.indexOf(data.getUri());
+            if (pos >= 0) {
+                removeAt(images, pos, listener);
+            }
+        }
+
+        Comparator<LocalData> comp = new LocalData.NewestFirstComparator();
+        List<LocalData> inserted = new ArrayList<LocalData>(delta.inserted);
+        for (LocalData data : delta.updated) {
+            int pos = images.indexOf(data.getUri());
+            if (pos >= 0 && isInOrderAt(images, pos, data, comp)) {
+                updateAt(images, pos, data, listener);
+                continue;
+            }
+            if (pos >= 0) {
+                removeAt(images, pos, listener);
+            }
+            inserted.add(data);
+        }
+        if (inserted.size() > delta.inserted.size()) {
+            Collections.sort(inserted, comp);
+        }
+
+        // Both lists are sorted newest first, so the insert positions only
+        // move forward.
+        int pos = 0;
+        for (LocalData data : inserted) {
+            int existing = images.indexOf(data.getUri());
+            if (existing >= 0) {
+                // Already added by a LoadNewPhotosTask.
+                if (isInOrderAt(images, existing, data, comp)) {
+                    updateAt(images, existing, data, listener);
+                    continue;
+                }
+                removeAt(images, existing, listener);
+                if (existing < pos) {
+                    pos--;
+                }
+            } else if (Storage.getSessionUriFromContentUri(data.getUri()) != null) {
+                // Session items are added by the session, like in
+                // LoadNewPhotosTask.
+                continue;
+            }
+            while (pos < images.size() && comp.compare(data, images.get(pos)) > 0) {
+                pos++;
+            }
+            images.add(pos, data);
+            if (listener != null) {
+                listener.onDataInserted(pos, data);
+            }
+            pos++;
+        }
+    }
+
+    /** Whether data can replace the item at pos without breaking the order. */
+    private static boolean isInOrderAt(LocalDataList images, int pos, LocalData data,
+            Comparator<LocalData> comp) {
+        return (pos == 0 || comp.compare(images.get(pos - 1), data) <= 0)
+                && (pos == images.size() - 1 || comp.compare(data, images.get(pos + 1)) <= 0);
+    }
+
+    private static void removeAt(LocalDataList images, int pos, DataAdapter.Listener listener) {
+        LocalData removed = images.remove(pos);
+        if (listener != null) {
+            listener.onDataRemoved(pos, removed);
+        }
+    }
+
+    private static void updateAt(LocalDataList images, final int pos, LocalData data,
+            DataAdapter.Listener listener) {
+        images.set(pos, data);
+        if (listener != null) {
+            listener.onDataUpdated(new DataAdapter.UpdateReporter() {
+                @Override
+                public boolean isDataRemoved(int dataID) {
+                    return false;
+                }
+
+                @Override
+                public boolean isDataUpdated(int dataID) {
+                    return dataID == pos;
+                }
+            });
+        }
+    }
+
+    /** Writes the snapshot to the cache directory. */
+    synchronized void saveSnapshot() {
+        if (mPhotos == null) {
+            return;
+        }
+        File tmpFile = new File(mSnapshotFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(mPhotos.size() + mVideos.size());
+            for (LocalMediaData data : mPhotos.values()) {
+                writeRow(out, TYPE_PHOTO, data);
+            }
+            for (LocalMediaData data : mVideos.values()) {
+                writeRow(out, TYPE_VIDEO, data);
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(mSnapshotFile)) {
+                Log.w(TAG, "Failed to replace camera roll snapshot");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write camera roll snapshot", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignored, the file is incomplete anyway.
+                }
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private static void writeRow(DataOutputStream out, int type, LocalMediaData data)
+            throws IOException {
+        out.writeByte(type);
+        out.writeLong(data.mContentId);
+        out.writeUTF(data.mTitle != null ? data.mTitle : "");
+        out.writeUTF(data.mMimeType != null ? data.mMimeType : "");
+        out.writeLong(data.mDateTakenInMilliSeconds);
+        out.writeLong(data.mDateModifiedInSeconds);
+        out.writeUTF(data.mPath != null ? data.mPath : "");
+        out.writeInt(data.mWidth);
+        out.writeInt(data.mHeight);
+        out.writeLong(data.mSizeInBytes);
+        out.writeDouble(data.mLatitude);
+        out.writeDouble(data.mLongitude);
+        if (type == TYPE_PHOTO) {
+            out.writeInt(data.getRotation());
+        } else {
+            out.writeLong(((LocalMediaData.VideoData) data).getDurationInSeconds());
+        }
+    }
+
+    private boolean readSnapshot() {
+        if (!mSnapshotFile.exists()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mSnapshotFile)));
+            if (in.readInt() != SNAPSHOT_VERSION) {
+                return false;
+            }
+            int count = in.readInt();
+            Map<Long, LocalMediaData> photos = new HashMap<Long, LocalMediaData>();
+            Map<Long, LocalMediaData> videos = new HashMap<Long, LocalMediaData>();
+            for (int i = 0; i < count; i++) {
+                int type = in.readByte();
+                long id = in.readLong();
+                String title = in.readUTF();
+                String mimeType = in.readUTF();
+                long dateTaken = in.readLong();
+                long dateModified = in.readLong();
+                String path = in.readUTF();
+                int width = in.readInt();
+                int height = in.readInt();
+                long size = in.readLong();
+                double latitude = in.readDouble();
+                double longitude = in.readDouble();
+                if (type == TYPE_PHOTO) {
+                    int orientation = in.readInt();
+                    photos.put(id, new LocalMediaData.PhotoData(id, title, mimeType, dateTaken,
+                            dateModified, path, orientation, width, height, size, latitude,
+                            longitude));
+                } else {
+                    long duration = in.readLong();
+                    videos.put(id, new LocalMediaData.VideoData(id, title, mimeType, dateTaken,
+                            dateModified, path, width, height, size, latitude, longitude,
+                            duration));
+                }
+            }
+            mPhotos = photos;
+            mVideos = videos;
+            Log.v(TAG, "read snapshot of " + count + " items");
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read camera roll snapshot", e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignored, everything needed was read.
+                }
+            }
+        }
+    }
+
+    private static List<LocalData> sortedNewestFirst(Iterable<? extends LocalData> data) {
+        List<LocalData> sorted = new ArrayList<LocalData>();
+        for (LocalData d : data) {
+            sorted.add(d);
+        }
+        Collections.sort(sorted, new LocalData.NewestFirstComparator());
+        return sorted;
+    }
+
+    /** Merges two lists sorted newest first into one. */
+    private static List<LocalData> merge(List<LocalData> a, List<LocalData> b) {
+        Comparator<LocalData> comparator = new LocalData.NewestFirstComparator();
+        List<LocalData> merged = new ArrayList<LocalData>(a.size() + b.size());
+        int i = 0;
+        int j = 0;
+        while (i < a.size() && j < b.size()) {
+            if (comparator.compare(a.get(i), b.get(j)) <= 0) {
+                merged.add(a.get(i++));
+            } else {
+                merged.add(b.get(j++));
+            }
+        }
+        merged.addAll(a.subList(i, a.size()));
+        merged.addAll(b.subList(j, b.size()));
+        return merged;
+    }
+}
@@ -18,13 +18,13 @@ package com.android.camera.data;
 
 import android.content.Context;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.view.View;
 
 import com.android.camera.data.LocalData.ActionCallback;
 import com.android.camera.debug.Log;
 import com.android.camera.filmstrip.DataAdapter;
 import com.android.camera.filmstrip.ImageData;
+import com.android.camera.util.PriorityTaskExecutor;
 
 /**
  * A {@link LocalDataAdapter} which puts a {@link LocalData} fixed at the first
@@ -203,7 +203,7 @@ public class FixedFirstDataAdapter extends AbstractLocalDataAdapterWrapper
     }
 
     @Override
-    public AsyncTask updateMetadata(int dataId) {
+    public PriorityTaskExecutor.Task updateMetadata(int dataId) {
         if (dataId > 0) {
             return mAdapter.updateMetadata(dataId - 1);
         } else {
@@ -18,11 +18,11 @@ package com.android.camera.data;
 
 import android.content.Context;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.view.View;
 
 import com.android.camera.data.LocalData.ActionCallback;
 import com.android.camera.filmstrip.ImageData;
+import com.android.camera.util.PriorityTaskExecutor;
 
 /**
  * A {@link LocalDataAdapter} which puts a {@link LocalData} fixed at the last
@@ -166,7 +166,7 @@ public class FixedLastDataAdapter extends AbstractLocalDataAdapterWrapper {
     }
 
     @Override
-    public AsyncTask updateMetadata(int dataId) {
+    public PriorityTaskExecutor.Task updateMetadata(int dataId) {
         if (dataId < mAdapter.getTotalNumber()) {
             return mAdapter.updateMetadata(dataId);
         } else {
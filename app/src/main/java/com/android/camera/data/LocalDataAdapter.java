@@ -17,10 +17,10 @@
 package com.android.camera.data;
 
 import android.net.Uri;
-import android.os.AsyncTask;
 
 import com.android.camera.filmstrip.DataAdapter;
 import com.android.camera.util.Callback;
+import com.android.camera.util.PriorityTaskExecutor;
 import com.android.camera.widget.Preloader;
 
 import java.util.List;
@@ -30,7 +30,7 @@ import java.util.List;
  * and defines operations on the data in the local camera folder.
  */
 public interface LocalDataAdapter extends DataAdapter,
-        Preloader.ItemLoader<Integer, AsyncTask>, Preloader.ItemSource<Integer> {
+        Preloader.ItemLoader<Uri, PriorityTaskExecutor.Task>, Preloader.ItemSource<Uri> {
 
     public interface LocalDataListener {
         /**
@@ -131,10 +131,10 @@ public interface LocalDataAdapter extends DataAdapter,
      * {@link com.android.camera.data.LocalDataAdapter.LocalDataListener}.
      *
      * @param dataId The ID of the data to update the metadata for.
-     * @return An {@link android.os.AsyncTask} performing the background load
+     * @return A {@link PriorityTaskExecutor.Task} performing the background load
      *      that can be used to cancel the load if it's no longer needed.
      */
-    public AsyncTask updateMetadata(int dataId);
+    public PriorityTaskExecutor.Task updateMetadata(int dataId);
 
     /**
      * @return whether the metadata is already updated.
@@ -21,42 +21,41 @@ import android.net.Uri;
 import com.android.camera.debug.Log;
 import com.android.camera.debug.Log.Tag;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * Fast access data structure for an ordered LocalData list.
+ * <p>
+ * Items are kept in an array, so positional access is O(1), and each Uri
+ * maps to its item and position. Inserting or removing an item only marks
+ * the positions after it as stale; they are brought up to date the next time
+ * a position is looked up by Uri, so a burst of updates is re-indexed once.
  */
 public class LocalDataList {
-    /**
-     * We use this as a way to compare a Uri to LocalData instances inside a
-     * LinkedList. A linked list in indexOf does a other.equals(get(i)).
-     */
-    private static class UriWrapper {
-        private final Uri mUri;
-
-        public UriWrapper(Uri uri) {
-            mUri = uri;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof LocalData)) {
-                return false;
-            }
-            return mUri.equals(((LocalData) o).getUri());
+    /** An item and its position in the list. */
+    private static class Entry {
+        final LocalData mData;
+        final Uri mUri;
+        int mIndex;
+
+        Entry(LocalData data) {
+            mData = data;
+            mUri = data.getUri();
         }
     }
 
     private static final Tag TAG = new Tag("LocalDataList");
-    private final LinkedList<LocalData> mList = new LinkedList<LocalData>();
-    private final HashMap<Uri, LocalData> mUriMap = new HashMap<Uri, LocalData>();
+    private final ArrayList<Entry> mList = new ArrayList<Entry>();
+    private final HashMap<Uri, Entry> mUriMap = new HashMap<Uri, Entry>();
+    /** Entries from this position on may have a stale mIndex. */
+    private int mFirstStaleIndex;
 
     public LocalData get(int index) {
-        return mList.get(index);
+        return mList.get(index).mData;
     }
 
     /**
@@ -68,9 +67,10 @@ public class LocalDataList {
      */
     public synchronized LocalData remove(int index) {
         try {
-            LocalData removedItem = mList.remove(index);
-            mUriMap.remove(removedItem);
-            return removedItem;
+            Entry removed = mList.remove(index);
+            unmap(removed);
+            invalidateFrom(index);
+            return removed.mData;
         } catch (IndexOutOfBoundsException ex) {
             Log.w(TAG, "Could not remove item. Not found: " + index, ex);
             return null;
@@ -78,25 +78,33 @@ public class LocalDataList {
     }
 
     public LocalData get(Uri uri) {
-        return mUriMap.get(uri);
+        Entry entry = mUriMap.get(uri);
+        return entry != null ? entry.mData : null;
     }
 
     public void set(int pos, LocalData data) {
-        mList.set(pos, data);
-        mUriMap.put(data.getUri(), data);
+        Entry entry = new Entry(data);
+        entry.mIndex = pos;
+        unmap(mList.set(pos, entry));
+        mUriMap.put(entry.mUri, entry);
     }
 
     public void add(LocalData data) {
-        mList.add(data);
-        mUriMap.put(data.getUri(), data);
+        Entry entry = new Entry(data);
+        entry.mIndex = mList.size();
+        mList.add(entry);
+        mUriMap.put(entry.mUri, entry);
     }
 
     public void add(int pos, LocalData data) {
-        mList.add(pos, data);
-        mUriMap.put(data.getUri(), data);
+        Entry entry = new Entry(data);
+        mList.add(pos, entry);
+        mUriMap.put(entry.mUri, entry);
+        invalidateFrom(pos);
     }
 
     public void addAll(List<LocalData> localDataList) {
+        mList.ensureCapacity(mList.size() + localDataList.size());
         for (LocalData localData : localDataList) {
             add(localData);
         }
@@ -106,19 +114,43 @@ public class LocalDataList {
         return mList.size();
     }
 
-    public void sort(Comparator<LocalData> comparator) {
-        Collections.sort(mList, comparator);
+    public void sort(final Comparator<LocalData> comparator) {
+        Collections.sort(mList, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return comparator.compare(lhs.mData, rhs.mData);
+            }
+        });
+        invalidateFrom(0);
     }
 
     /**
-     * This implementation routes through to LinkedList.indexOf, so performs in
-     * O(n) but has a fast exit path for when the uri is not contained in the
-     * list, and immediately returns -1;
+     * Returns the position of the item with the given Uri, or -1 if there is
+     * none. This is O(1), except right after items were inserted or removed
+     * in front of it, when the positions after the first change are updated.
      */
     public int indexOf(Uri uri) {
-        if (!mUriMap.containsKey(uri)) {
+        Entry entry = mUriMap.get(uri);
+        if (entry == null) {
             return -1;
         }
-        return mList.indexOf(new UriWrapper(uri));
+        if (mFirstStaleIndex < mList.size()) {
+            for (int i = mFirstStaleIndex; i < mList.size(); i++) {
+                mList.get(i).mIndex = i;
+            }
+            mFirstStaleIndex = mList.size();
+        }
+        return entry.mIndex;
+    }
+
+    private void invalidateFrom(int index) {
+        mFirstStaleIndex = Math.min(mFirstStaleIndex, index);
+    }
+
+    /** Drops the Uri mapping of a replaced or removed entry, if it still owns it. */
+    private void unmap(Entry entry) {
+        if (mUriMap.get(entry.mUri) == entry) {
+            mUriMap.remove(entry.mUri);
+        }
     }
 }
@@ -31,6 +31,7 @@ import android.widget.ImageView;
 
 import com.android.camera.Storage;
 import com.android.camera.debug.Log;
+import com.android.camera.util.JpegMetadataSniffer;
 import com.android.camera2.R;
 import com.bumptech.glide.BitmapRequestBuilder;
 import com.bumptech.glide.Glide;
@@ -52,8 +53,10 @@ import java.util.Locale;
 public abstract class LocalMediaData implements LocalData {
     /** The minimum id to use to query for all media at a given media store uri */
     static final int QUERY_ALL_MEDIA_ID = -1;
-    private static final String CAMERA_PATH = Storage.DIRECTORY + "%";
-    private static final String SELECT_BY_PATH = MediaStore.MediaColumns.DATA + " LIKE ?";
+    static final String CAMERA_PATH = Storage.DIRECTORY + "%";
+    static final String SELECT_BY_PATH = MediaStore.MediaColumns.DATA + " LIKE ?";
+    /** SQLite allows 999 arguments per statement. */
+    private static final int MAX_IDS_PER_QUERY = 500;
     private static final int MEDIASTORE_THUMB_WIDTH = 512;
     private static final int MEDIASTORE_THUMB_HEIGHT = 384;
 
@@ -128,6 +131,38 @@ public abstract class LocalMediaData implements LocalData {
         return result;
     }
 
+    /**
+     * Queries the rows with the given ids, in no particular order. Rows which
+     * no longer exist are skipped.
+     */
+    private static List<LocalData> queryLocalMediaData(ContentResolver contentResolver,
+            Uri contentUri, String[] projection, long[] ids, CursorToLocalData builder) {
+        List<LocalData> result = new ArrayList<LocalData>(ids.length);
+        for (int start = 0; start < ids.length; start += MAX_IDS_PER_QUERY) {
+            int count = Math.min(MAX_IDS_PER_QUERY, ids.length - start);
+            StringBuilder selection = new StringBuilder(MediaStore.MediaColumns._ID + " IN (");
+            String[] selectionArgs = new String[count];
+            for (int i = 0; i < count; i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                selectionArgs[i] = Long.toString(ids[start + i]);
+            }
+            selection.append(')');
+
+            Cursor cursor = contentResolver.query(contentUri, projection,
+                    selection.toString(), selectionArgs, null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    LocalData data = builder.build(cursor);
+                    if (data != null) {
+                        result.add(data);
+                    }
+                }
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
     @Override
     public long getDateTaken() {
         return mDateTakenInMilliSeconds;
@@ -387,6 +422,10 @@ public abstract class LocalMediaData implements LocalData {
                     new PhotoDataBuilder());
         }
 
+        static List<LocalData> query(ContentResolver cr, Uri uri, long[] ids) {
+            return queryLocalMediaData(cr, uri, QUERY_PROJECTION, ids, new PhotoDataBuilder());
+        }
+
         private static PhotoData buildFromCursor(Cursor c) {
             long id = c.getLong(COL_ID);
             String title = c.getString(COL_TITLE);
@@ -475,7 +514,14 @@ public abstract class LocalMediaData implements LocalData {
         @Override
         public MediaDetails getMediaDetails(Context context) {
             MediaDetails mediaDetails = super.getMediaDetails(context);
-            MediaDetails.extractExifInfo(mediaDetails, mPath);
+            // The EXIF data is usually indexed already, from loading the
+            // metadata of the filmstrip.
+            JpegMetadataSniffer.ExifSummary exif = MetadataLoader.getExifSummary(context, this);
+            if (exif != null) {
+                MediaDetails.addExifSummary(mediaDetails, exif);
+            } else {
+                MediaDetails.extractExifInfo(mediaDetails, mPath);
+            }
             mediaDetails.addDetail(MediaDetails.INDEX_ORIENTATION, mOrientation);
             return mediaDetails;
         }
@@ -678,6 +724,14 @@ public abstract class LocalMediaData implements LocalData {
                     new VideoDataBuilder());
         }
 
+        static List<LocalData> query(ContentResolver cr, Uri uri, long[] ids) {
+            return queryLocalMediaData(cr, uri, QUERY_PROJECTION, ids, new VideoDataBuilder());
+        }
+
+        long getDurationInSeconds() {
+            return mDurationInSeconds;
+        }
+
         /**
          * We can't trust the media store and we can't afford the performance overhead of
          * synchronously decoding the video header for every item when loading our data set
@@ -22,6 +22,7 @@ import android.util.SparseIntArray;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.exif.ExifTag;
+import com.android.camera.util.JpegMetadataSniffer;
 import com.android.camera2.R;
 
 import java.io.FileNotFoundException;
@@ -170,6 +171,47 @@ public class MediaDetails implements Iterable<Entry<Integer, Object>> {
         }
     }
 
+    /**
+     * Stores the EXIF data of an image, as summarized by
+     * {@link JpegMetadataSniffer}, like {@link #extractExifInfo} does.
+     */
+    public static void addExifSummary(MediaDetails details,
+            JpegMetadataSniffer.ExifSummary exif) {
+        if (exif.flash >= 0) {
+            details.addDetail(MediaDetails.INDEX_FLASH, new MediaDetails.FlashState(exif.flash));
+        }
+        if (exif.width > 0) {
+            details.addDetail(MediaDetails.INDEX_WIDTH, String.valueOf(exif.width));
+        }
+        if (exif.height > 0) {
+            details.addDetail(MediaDetails.INDEX_HEIGHT, String.valueOf(exif.height));
+        }
+        if (exif.make != null) {
+            details.addDetail(MediaDetails.INDEX_MAKE, exif.make);
+        }
+        if (exif.model != null) {
+            details.addDetail(MediaDetails.INDEX_MODEL, exif.model);
+        }
+        if (!Double.isNaN(exif.aperture)) {
+            details.addDetail(MediaDetails.INDEX_APERTURE, String.valueOf(exif.aperture));
+        }
+        if (exif.iso >= 0) {
+            details.addDetail(MediaDetails.INDEX_ISO, String.valueOf(exif.iso));
+        }
+        if (exif.whiteBalance >= 0) {
+            details.addDetail(MediaDetails.INDEX_WHITE_BALANCE,
+                    String.valueOf(exif.whiteBalance));
+        }
+        if (!Double.isNaN(exif.exposureTime)) {
+            details.addDetail(MediaDetails.INDEX_EXPOSURE_TIME,
+                    String.valueOf(exif.exposureTime));
+        }
+        if (!Double.isNaN(exif.focalLength)) {
+            details.addDetail(MediaDetails.INDEX_FOCAL_LENGTH, exif.focalLength);
+            details.setUnit(MediaDetails.INDEX_FOCAL_LENGTH, R.string.unit_mm);
+        }
+    }
+
     /**
      * Returns a (localized) string for the given duration (in seconds).
      */
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.data;
+
+import com.android.camera.debug.Log;
+import com.android.camera.util.CameraUtil;
+import com.android.camera.util.JpegMetadataSniffer;
+import com.android.camera.util.PhotoSphereHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A persistent index of the metadata read from the headers of images, so
+ * that known images are not read again after a restart. This includes the
+ * EXIF values shown in the details of an image. Images whose make or model
+ * is too long for a record are not indexed, so that the details always show
+ * them in full.
+ * <p>
+ * The index is a memory-mapped file of fixed-size records, keyed by content
+ * id and valid while the date modified of the image matches. Records are
+ * only ever appended: a changed image gets a new record and a removed one a
+ * tombstone, and the file is compacted once most of its records are stale.
+ * The last record of an id wins. If the file was cut short, the records
+ * which are still whole are kept.
+ * <p>
+ * All methods are synchronized and may do I/O, so they should not be called
+ * on the main thread.
+ */
+class MetadataIndex {
+    private static final Log.Tag TAG = new Log.Tag("MetadataIndex");
+
+    private static final int MAGIC = 0x4d444958;
+    /** Files of other versions are discarded. Not private for tests. */
+    static final int VERSION = 3;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    /** Magic, version and record count. Not private for tests. */
+    static final int HEADER_SIZE = 12;
+    private static final int COUNT_OFFSET = 8;
+
+    // The offsets of the fields of a record.
+    private static final int CONTENT_ID = 0;
+    private static final int DATE_MODIFIED = 8;
+    private static final int ORIENTATION = 16;
+    private static final int FLAGS = 20;
+    private static final int WIDTH = 24;
+    private static final int HEIGHT = 28;
+    private static final int FLASH = 32;
+    private static final int ISO = 36;
+    private static final int WHITE_BALANCE = 40;
+    private static final int APERTURE = 44;
+    private static final int EXPOSURE_TIME = 52;
+    private static final int FOCAL_LENGTH = 60;
+    /** The longest make or model which is indexed. */
+    static final int MAX_STRING_LENGTH = 63;
+    /** A length byte, or -1 for null, then the characters. */
+    private static final int STRING_SIZE = 1 + MAX_STRING_LENGTH;
+    private static final int MAKE = 68;
+    private static final int MODEL = MAKE + STRING_SIZE;
+    static final int RECORD_SIZE = MODEL + STRING_SIZE;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final int FLAG_REMOVED = 1;
+    private static final int FLAG_PANORAMA = 1 << 1;
+    private static final int FLAG_PANORAMA_360 = 1 << 2;
+    private static final int FLAG_USE_PANORAMA_VIEWER = 1 << 3;
+    private static final int FLAG_RGBZ = 1 << 4;
+
+    private final File mFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    private int mCapacity;
+    private int mCount;
+    /** The slot of the last record of each indexed id. */
+    private final Map<Long, Integer> mSlots = new HashMap<Long, Integer>();
+
+    /**
+     * Opens the index in the given file, creating it if needed.
+     *
+     * @return The index, or null if the file cannot be used.
+     */
+    static MetadataIndex open(File file) {
+        MetadataIndex index = new MetadataIndex(file);
+        try {
+            index.load();
+            return index;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open metadata index", e);
+            index.close();
+            return null;
+        }
+    }
+
+    private MetadataIndex(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns the indexed metadata of an image, or null if the image is not
+     * indexed or was modified since.
+     */
+    synchronized JpegMetadataSniffer.Result get(long contentId, long dateModified) {
+        Integer slot = mSlots.get(contentId);
+        if (slot == null || mBuffer == null) {
+            return null;
+        }
+        int offset = HEADER_SIZE + slot * RECORD_SIZE;
+        if (mBuffer.getLong(offset + DATE_MODIFIED) != dateModified) {
+            return null;
+        }
+        int orientation = mBuffer.getInt(offset + ORIENTATION);
+        int flags = mBuffer.getInt(offset + FLAGS);
+        PhotoSphereHelper.PanoramaMetadata panorama = PhotoSphereHelper.NOT_PANORAMA;
+        if ((flags & FLAG_PANORAMA) != 0) {
+            panorama = new PhotoSphereHelper.PanoramaMetadata(
+                    (flags & FLAG_USE_PANORAMA_VIEWER) != 0,
+                    (flags & FLAG_PANORAMA_360) != 0);
+        }
+        JpegMetadataSniffer.ExifSummary exif = new JpegMetadataSniffer.ExifSummary();
+        exif.width = mBuffer.getInt(offset + WIDTH);
+        exif.height = mBuffer.getInt(offset + HEIGHT);
+        exif.flash = mBuffer.getInt(offset + FLASH);
+        exif.iso = mBuffer.getInt(offset + ISO);
+        exif.whiteBalance = mBuffer.getInt(offset + WHITE_BALANCE);
+        exif.aperture = mBuffer.getDouble(offset + APERTURE);
+        exif.exposureTime = mBuffer.getDouble(offset + EXPOSURE_TIME);
+        exif.focalLength = mBuffer.getDouble(offset + FOCAL_LENGTH);
+        exif.make = getString(offset + MAKE);
+        exif.model = getString(offset + MODEL);
+        return new JpegMetadataSniffer.Result(panorama, (flags & FLAG_RGBZ) != 0, orientation,
+                exif);
+    }
+
+    /** Indexes the metadata of an image, replacing any earlier version. */
+    synchronized void put(long contentId, long dateModified, JpegMetadataSniffer.Result result) {
+        if (!fits(result.exif.make) || !fits(result.exif.model)) {
+            // Rare, and such images are simply read again.
+            remove(contentId);
+            return;
+        }
+        int flags = 0;
+        if (result.panorama != PhotoSphereHelper.NOT_PANORAMA) {
+            flags |= FLAG_PANORAMA;
+            if (result.panorama.mIsPanorama360) {
+                flags |= FLAG_PANORAMA_360;
+            }
+            if (result.panorama.mUsePanoramaViewer) {
+                flags |= FLAG_USE_PANORAMA_VIEWER;
+            }
+        }
+        if (result.isRgbz) {
+            flags |= FLAG_RGBZ;
+        }
+        append(contentId, dateModified, result.orientation, flags, result.exif);
+    }
+
+    /** Drops the metadata of an image which no longer exists. */
+    synchronized void remove(long contentId) {
+        if (mSlots.containsKey(contentId)) {
+            append(contentId, 0, 0, FLAG_REMOVED, new JpegMetadataSniffer.ExifSummary());
+        }
+    }
+
+    private void append(long contentId, long dateModified, int orientation, int flags,
+            JpegMetadataSniffer.ExifSummary exif) {
+        if (mBuffer == null) {
+            return;
+        }
+        try {
+            if (mCount - mSlots.size() > mSlots.size() && mCount >= INITIAL_CAPACITY) {
+                compact();
+            }
+            if (mCount == mCapacity) {
+                map(mCapacity * 2);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to grow metadata index, disabling it", e);
+            close();
+            return;
+        }
+        int offset = HEADER_SIZE + mCount * RECORD_SIZE;
+        mBuffer.putLong(offset + CONTENT_ID, contentId);
+        mBuffer.putLong(offset + DATE_MODIFIED, dateModified);
+        mBuffer.putInt(offset + ORIENTATION, orientation);
+        mBuffer.putInt(offset + FLAGS, flags);
+        mBuffer.putInt(offset + WIDTH, exif.width);
+        mBuffer.putInt(offset + HEIGHT, exif.height);
+        mBuffer.putInt(offset + FLASH, exif.flash);
+        mBuffer.putInt(offset + ISO, exif.iso);
+        mBuffer.putInt(offset + WHITE_BALANCE, exif.whiteBalance);
+        mBuffer.putDouble(offset + APERTURE, exif.aperture);
+        mBuffer.putDouble(offset + EXPOSURE_TIME, exif.exposureTime);
+        mBuffer.putDouble(offset + FOCAL_LENGTH, exif.focalLength);
+        putString(offset + MAKE, exif.make);
+        putString(offset + MODEL, exif.model);
+        // The count goes last, so a record is never visible half-written.
+        mBuffer.putInt(COUNT_OFFSET, mCount + 1);
+        index(contentId, mCount, flags);
+        mCount++;
+    }
+
+    /** Returns the number of records in the file, for tests. */
+    synchronized int getRecordCount() {
+        return mCount;
+    }
+
+    private static boolean fits(String value) {
+        return value == null || value.getBytes(US_ASCII).length <= MAX_STRING_LENGTH;
+    }
+
+    private void putString(int offset, String value) {
+        if (value == null) {
+            mBuffer.put(offset, (byte) -1);
+            return;
+        }
+        byte[] bytes = value.getBytes(US_ASCII);
+        mBuffer.put(offset, (byte) bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            mBuffer.put(offset + 1 + i, bytes[i]);
+        }
+    }
+
+    private String getString(int offset) {
+        int length = mBuffer.get(offset);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[Math.min(length, STRING_SIZE - 1)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = mBuffer.get(offset + 1 + i);
+        }
+        return new String(bytes, US_ASCII);
+    }
+
+    private void index(long contentId, int slot, int flags) {
+        if ((flags & FLAG_REMOVED) != 0) {
+            mSlots.remove(contentId);
+        } else {
+            mSlots.put(contentId, slot);
+        }
+    }
+
+    private void load() throws IOException {
+        mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        long size = mChannel.size();
+        int count = -1;
+        if (size >= HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            mChannel.read(header, 0);
+            header.flip();
+            if (header.getInt() == MAGIC && header.getInt() == VERSION) {
+                count = header.getInt();
+            }
+        }
+        if (count < 0) {
+            Log.v(TAG, "Starting a new metadata index");
+            mChannel.truncate(0);
+            count = 0;
+        } else if (HEADER_SIZE + (long) count * RECORD_SIZE > size) {
+            Log.w(TAG, "Metadata index was cut short, keeping the whole records");
+            count = (int) ((size - HEADER_SIZE) / RECORD_SIZE);
+        }
+
+        map(Math.max(INITIAL_CAPACITY, count * 2));
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(COUNT_OFFSET, count);
+        mSlots.clear();
+        for (int slot = 0; slot < count; slot++) {
+            int offset = HEADER_SIZE + slot * RECORD_SIZE;
+            index(mBuffer.getLong(offset + CONTENT_ID), slot, mBuffer.getInt(offset + FLAGS));
+        }
+        mCount = count;
+        Log.v(TAG, "Loaded " + mSlots.size() + " indexed images from " + count + " records");
+    }
+
+    private void map(int capacity) throws IOException {
+        // Mapping past the end grows the file. The old mapping is released
+        // when it is garbage collected.
+        mBuffer = mChannel.map(MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+        mCapacity = capacity;
+    }
+
+    /** Rewrites the index with only the last record of each indexed id. */
+    private void compact() throws IOException {
+        int live = mSlots.size();
+        ByteBuffer records = ByteBuffer.allocate(HEADER_SIZE + live * RECORD_SIZE);
+        records.putInt(MAGIC).putInt(VERSION).putInt(live);
+        byte[] record = new byte[RECORD_SIZE];
+        for (int slot : mSlots.values()) {
+            mBuffer.position(HEADER_SIZE + slot * RECORD_SIZE);
+            mBuffer.get(record);
+            records.put(record);
+        }
+        records.flip();
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(tmpFile, "rw");
+            out.setLength(0);
+            out.getChannel().write(records);
+        } finally {
+            CameraUtil.closeSilently(out);
+        }
+        close();
+        if (!tmpFile.renameTo(mFile)) {
+            tmpFile.delete();
+            throw new IOException("Failed to replace metadata index");
+        }
+        Log.v(TAG, "Compacted " + mCount + " records to " + live);
+        load();
+    }
+
+    /** Releases the file. The index does nothing after this. */
+    synchronized void close() {
+        CameraUtil.closeSilently(mChannel);
+        mChannel = null;
+        mBuffer = null;
+        mSlots.clear();
+        mCount = 0;
+    }
+}
@@ -18,6 +18,11 @@ package com.android.camera.data;
 
 import android.content.Context;
 
+import com.android.camera.util.JpegMetadataSniffer;
+
+import java.io.File;
+import java.util.List;
+
 /**
  * A helper class to load the metadata of
  * {@link com.android.camera.data.LocalData}.
@@ -26,6 +31,12 @@ public class MetadataLoader {
 
     private static final String KEY_METADATA_CACHED = "metadata_cached";
 
+    private static final String INDEX_FILE = "metadata_index";
+
+    /** The persistent index of image metadata, null until first used. */
+    private static MetadataIndex sIndex;
+    private static boolean sIndexOpened;
+
     /**
      * Adds information to the data's metadata bundle if any is available and returns
      * true if metadata was added and false otherwise. In either case, sets
@@ -39,9 +50,13 @@ public class MetadataLoader {
     public static boolean loadMetadata(final Context context, final LocalData data) {
         boolean metadataAdded = false;
         if (data.getLocalDataType() == LocalData.LOCAL_IMAGE) {
-            PanoramaMetadataLoader.loadPanoramaMetadata(context, data.getUri(),
-                    data.getMetadata());
-            RgbzMetadataLoader.loadRgbzMetadata(context, data.getUri(), data.getMetadata());
+            // One pass over the JPEG header answers both loaders.
+            JpegMetadataSniffer.Result result = sniffImage(context, data);
+            if (result != null) {
+                PanoramaMetadataLoader.loadPanoramaMetadata(result.panorama,
+                        data.getMetadata());
+                RgbzMetadataLoader.loadRgbzMetadata(result.isRgbz, data.getMetadata());
+            }
             metadataAdded = true;
         } else if (data.getLocalDataType() == LocalData.LOCAL_VIDEO) {
             VideoRotationMetadataLoader.loadRotationMetdata(data);
@@ -51,6 +66,85 @@ public class MetadataLoader {
         return metadataAdded;
     }
 
+    /**
+     * Fills in the metadata of an image from the persistent index, without
+     * reading the image itself.
+     *
+     * @return Whether the image was indexed and its metadata is now loaded.
+     */
+    static boolean loadIndexedMetadata(final Context context, final LocalData data) {
+        if (data.getLocalDataType() != LocalData.LOCAL_IMAGE || isMetadataCached(data)) {
+            return false;
+        }
+        MetadataIndex index = getIndex(context);
+        if (index == null) {
+            return false;
+        }
+        JpegMetadataSniffer.Result result =
+                index.get(data.getContentId(), data.getDateModified());
+        if (result == null) {
+            return false;
+        }
+        PanoramaMetadataLoader.loadPanoramaMetadata(result.panorama, data.getMetadata());
+        RgbzMetadataLoader.loadRgbzMetadata(result.isRgbz, data.getMetadata());
+        data.getMetadata().putBoolean(MetadataLoader.KEY_METADATA_CACHED, true);
+        return true;
+    }
+
+    /**
+     * Returns the EXIF details of an image, from the persistent index if
+     * possible. Otherwise the image is read once and indexed.
+     *
+     * @return The summary, or null if the image could not be read.
+     */
+    static JpegMetadataSniffer.ExifSummary getExifSummary(final Context context,
+            final LocalData data) {
+        JpegMetadataSniffer.Result result = sniffImage(context, data);
+        return result != null ? result.exif : null;
+    }
+
+    /** Drops the indexed metadata of images which no longer exist. */
+    static void removeIndexedMetadata(final Context context, final List<LocalData> removed) {
+        MetadataIndex index = getIndex(context);
+        if (index == null) {
+            return;
+        }
+        for (LocalData data : removed) {
+            if (data.getLocalDataType() == LocalData.LOCAL_IMAGE) {
+                index.remove(data.getContentId());
+            }
+        }
+    }
+
+    /**
+     * Returns the sniffed header of an image, reading the file only if it is
+     * not indexed or was modified since.
+     */
+    private static JpegMetadataSniffer.Result sniffImage(Context context, LocalData data) {
+        long id = data.getContentId();
+        MetadataIndex index = id > 0 ? getIndex(context) : null;
+        if (index != null) {
+            JpegMetadataSniffer.Result result = index.get(id, data.getDateModified());
+            if (result != null) {
+                return result;
+            }
+        }
+        JpegMetadataSniffer.Result result =
+                JpegMetadataSniffer.sniff(context.getContentResolver(), data.getUri());
+        if (result != null && index != null) {
+            index.put(id, data.getDateModified(), result);
+        }
+        return result;
+    }
+
+    private static synchronized MetadataIndex getIndex(Context context) {
+        if (!sIndexOpened) {
+            sIndexOpened = true;
+            sIndex = MetadataIndex.open(new File(context.getCacheDir(), INDEX_FILE));
+        }
+        return sIndex;
+    }
+
     static boolean isMetadataCached(final LocalData data) {
         return data.getMetadata().getBoolean(MetadataLoader.KEY_METADATA_CACHED);
     }
@@ -16,8 +16,6 @@
 
 package com.android.camera.data;
 
-import android.content.Context;
-import android.net.Uri;
 import android.os.Bundle;
 
 import com.android.camera.util.PhotoSphereHelper;
@@ -68,13 +66,11 @@ public class PanoramaMetadataLoader {
     }
 
     /**
-     * Extracts panorama metadata from the item with the given URI and fills the
-     * {@code metadata}.
+     * Fills the {@code metadata} from panorama metadata which was already
+     * extracted.
      */
-    public static void loadPanoramaMetadata(final Context context, Uri contentUri,
+    static void loadPanoramaMetadata(PhotoSphereHelper.PanoramaMetadata panoramaMetadata,
             Bundle metadata) {
-        PhotoSphereHelper.PanoramaMetadata panoramaMetadata =
-                PhotoSphereHelper.getPanoramaMetadata(context, contentUri);
         if (panoramaMetadata == null) {
             return;
         }
@@ -16,12 +16,8 @@
 
 package com.android.camera.data;
 
-import android.content.Context;
-import android.net.Uri;
 import android.os.Bundle;
 
-import com.android.camera.util.RefocusHelper;
-
 /**
  * Asynchronously loads RGBZ data.
  */
@@ -36,12 +32,10 @@ public class RgbzMetadataLoader {
     }
 
     /**
-     * Checks whether this file is an RGBZ file and fill in the metadata.
-     *
-     * @param context  The app context.
+     * Fills in the metadata from an RGBZ check which was already done.
      */
-    public static void loadRgbzMetadata(final Context context, Uri contentUri, Bundle metadata) {
-        if (RefocusHelper.isRGBZ(context, contentUri)) {
+    static void loadRgbzMetadata(boolean isRgbz, Bundle metadata) {
+        if (isRgbz) {
             metadata.putBoolean(KEY_RGBZ_INFO, true);
         }
     }
@@ -41,6 +41,8 @@ public class DebugPropertyHelper {
     private static final String PROP_ENABLE_ZSL = PREFIX + ".zsl";
     /** Write data about each capture request to disk. */
     private static final String PROP_WRITE_CAPTURE_DATA = PREFIX + ".capture_write";
+    /** Keep recent log entries of all levels, to dump them on failures. */
+    private static final String PROP_LOG_RECENT = PREFIX + ".log_recent";
 
     private static boolean isPropertyOn(String property) {
         return ON_VALUE.equals(SystemProperties.get(property, OFF_VALUE));
@@ -65,4 +67,8 @@ public class DebugPropertyHelper {
     public static boolean writeCaptureData() {
         return isPropertyOn(PROP_WRITE_CAPTURE_DATA);
     }
+
+    public static boolean keepRecentLogEntries() {
+        return isPropertyOn(PROP_LOG_RECENT);
+    }
 }
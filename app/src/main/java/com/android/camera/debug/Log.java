@@ -20,6 +20,30 @@ import android.os.Build;
 
 import com.android.camera.util.ReleaseHelper;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.IllegalFormatException;
+import java.util.Locale;
+
+import static com.android.camera.debug.RecentLogEntries.ARG_BITS;
+import static com.android.camera.debug.RecentLogEntries.ARG_LONG;
+import static com.android.camera.debug.RecentLogEntries.ARG_NONE;
+import static com.android.camera.debug.RecentLogEntries.ARG_OBJECT;
+
+/**
+ * Camera logging, on top of {@link android.util.Log}.
+ * <p>
+ * Besides plain messages, messages can be given as a
+ * {@link String#format} format and up to two arguments, which are only
+ * formatted when the level is logged. When it is not, nothing is allocated
+ * for long arguments, so these are fine on hot paths:
+ * <pre>
+ * Log.d(TAG, "Queue size now: %d", queue.size());
+ * </pre>
+ * The level of each tag is looked up once and cached, until
+ * {@link #refreshLevels} is called. Optionally, the most recent entries of
+ * all levels are also kept in memory, see {@link #keepRecentEntries}.
+ */
 public class Log {
     /**
      * All Camera logging using this class will use this tag prefix.
@@ -29,6 +53,8 @@ public class Log {
      *
      * adb shell setprop log.tag.CAM_ VERBOSE
      * adb shell setprop log.tag.CAM_ ""
+     *
+     * As levels are cached, changes are seen after {@link #refreshLevels}.
      */
     public static final String CAMERA_LOGTAG_PREFIX = "CAM_";
     private static final Log.Tag TAG = new Log.Tag("Log");
@@ -44,6 +70,11 @@ public class Log {
         private static final int MAX_TAG_LEN = 23 - CAMERA_LOGTAG_PREFIX.length();
 
         final String mValue;
+        /**
+         * The lowest level logged for this tag in the low bits, and the
+         * {@link #sLevelGeneration} it was resolved in above them, or -1.
+         */
+        private volatile int mCachedLevel = -1;
 
         public Tag(String tag) {
             final int lenDiff = tag.length() - MAX_TAG_LEN;
@@ -59,69 +90,293 @@ public class Log {
         }
     }
 
+    private static final int LEVEL_BITS = 4;
+    private static final int LEVEL_MASK = (1 << LEVEL_BITS) - 1;
+    private static final int GENERATION_MASK = -1 >>> (LEVEL_BITS + 1);
+    /** Above every level, for tags which log nothing. */
+    private static final int LEVEL_NONE = android.util.Log.ASSERT + 1;
+
+    /** Changed to make tags look up their level again. */
+    private static volatile int sLevelGeneration;
+    private static volatile int sOverrideLevel;
+    private static volatile RecentLogEntries sRecentEntries;
+
+    /**
+     * Makes tags look up their level again, e.g. after log properties were
+     * changed with {@code adb shell setprop}.
+     */
+    public static synchronized void refreshLevels() {
+        sLevelGeneration = (sLevelGeneration + 1) & GENERATION_MASK;
+    }
+
+    /**
+     * Sets the lowest level logged for all tags, taking precedence over the
+     * system properties, e.g. for benchmarks. 0 gives the properties back
+     * control.
+     */
+    public static void overrideLevel(int level) {
+        sOverrideLevel = level;
+        refreshLevels();
+    }
+
+    /**
+     * Starts keeping the given number of recent entries in memory, of all
+     * levels whether logged or not, so that they can be dumped when
+     * something fails. 0 stops keeping entries.
+     */
+    public static void keepRecentEntries(int capacity) {
+        sRecentEntries = capacity > 0 ? new RecentLogEntries(capacity) : null;
+    }
+
+    /** Writes the kept recent entries, oldest first. */
+    public static void dumpRecentEntries(PrintWriter writer) {
+        RecentLogEntries entries = sRecentEntries;
+        if (entries != null) {
+            entries.dump(writer);
+        }
+    }
+
+    /** Writes the kept recent entries to the log, e.g. after a failure. */
+    public static void logRecentEntries() {
+        RecentLogEntries entries = sRecentEntries;
+        if (entries == null) {
+            return;
+        }
+        StringWriter dump = new StringWriter();
+        PrintWriter writer = new PrintWriter(dump);
+        entries.dump(writer);
+        writer.flush();
+        android.util.Log.w(TAG.toString(), "Recent log entries:");
+        for (String line : dump.toString().split("\n")) {
+            android.util.Log.w(TAG.toString(), line);
+        }
+    }
+
+    public static void d(Tag tag, String format, Object arg) {
+        log(android.util.Log.DEBUG, tag, format, ARG_OBJECT, 0, arg, 0, null);
+    }
+
+    public static void d(Tag tag, String format, long arg) {
+        log(android.util.Log.DEBUG, tag, format, ARG_LONG, arg, null, 0, null);
+    }
+
+    public static void d(Tag tag, String format, Object arg0, Object arg1) {
+        log(android.util.Log.DEBUG, tag, format, ARG_OBJECT | ARG_OBJECT << ARG_BITS, 0, arg0,
+                0, arg1);
+    }
+
+    public static void d(Tag tag, String format, long arg0, long arg1) {
+        log(android.util.Log.DEBUG, tag, format, ARG_LONG | ARG_LONG << ARG_BITS, arg0, null,
+                arg1, null);
+    }
+
+    public static void e(Tag tag, String format, Object arg) {
+        log(android.util.Log.ERROR, tag, format, ARG_OBJECT, 0, arg, 0, null);
+    }
+
+    public static void e(Tag tag, String format, long arg) {
+        log(android.util.Log.ERROR, tag, format, ARG_LONG, arg, null, 0, null);
+    }
+
+    public static void e(Tag tag, String format, Object arg0, Object arg1) {
+        log(android.util.Log.ERROR, tag, format, ARG_OBJECT | ARG_OBJECT << ARG_BITS, 0, arg0,
+                0, arg1);
+    }
+
+    public static void e(Tag tag, String format, long arg0, long arg1) {
+        log(android.util.Log.ERROR, tag, format, ARG_LONG | ARG_LONG << ARG_BITS, arg0, null,
+                arg1, null);
+    }
+
+    public static void i(Tag tag, String format, Object arg) {
+        log(android.util.Log.INFO, tag, format, ARG_OBJECT, 0, arg, 0, null);
+    }
+
+    public static void i(Tag tag, String format, long arg) {
+        log(android.util.Log.INFO, tag, format, ARG_LONG, arg, null, 0, null);
+    }
+
+    public static void i(Tag tag, String format, Object arg0, Object arg1) {
+        log(android.util.Log.INFO, tag, format, ARG_OBJECT | ARG_OBJECT << ARG_BITS, 0, arg0,
+                0, arg1);
+    }
+
+    public static void i(Tag tag, String format, long arg0, long arg1) {
+        log(android.util.Log.INFO, tag, format, ARG_LONG | ARG_LONG << ARG_BITS, arg0, null,
+                arg1, null);
+    }
+
+    public static void v(Tag tag, String format, Object arg) {
+        log(android.util.Log.VERBOSE, tag, format, ARG_OBJECT, 0, arg, 0, null);
+    }
+
+    public static void v(Tag tag, String format, long arg) {
+        log(android.util.Log.VERBOSE, tag, format, ARG_LONG, arg, null, 0, null);
+    }
+
+    public static void v(Tag tag, String format, Object arg0, Object arg1) {
+        log(android.util.Log.VERBOSE, tag, format, ARG_OBJECT | ARG_OBJECT << ARG_BITS, 0, arg0,
+                0, arg1);
+    }
+
+    public static void v(Tag tag, String format, long arg0, long arg1) {
+        log(android.util.Log.VERBOSE, tag, format, ARG_LONG | ARG_LONG << ARG_BITS, arg0, null,
+                arg1, null);
+    }
+
+    public static void w(Tag tag, String format, Object arg) {
+        log(android.util.Log.WARN, tag, format, ARG_OBJECT, 0, arg, 0, null);
+    }
+
+    public static void w(Tag tag, String format, long arg) {
+        log(android.util.Log.WARN, tag, format, ARG_LONG, arg, null, 0, null);
+    }
+
+    public static void w(Tag tag, String format, Object arg0, Object arg1) {
+        log(android.util.Log.WARN, tag, format, ARG_OBJECT | ARG_OBJECT << ARG_BITS, 0, arg0,
+                0, arg1);
+    }
+
+    public static void w(Tag tag, String format, long arg0, long arg1) {
+        log(android.util.Log.WARN, tag, format, ARG_LONG | ARG_LONG << ARG_BITS, arg0, null,
+                arg1, null);
+    }
+
     public static void d(Tag tag, String msg) {
+        record(android.util.Log.DEBUG, tag, msg, null);
         if (isLoggable(tag, android.util.Log.DEBUG)) {
             android.util.Log.d(tag.toString(), msg);
         }
     }
 
     public static void d(Tag tag, String msg, Throwable tr) {
+        record(android.util.Log.DEBUG, tag, msg, tr);
         if (isLoggable(tag, android.util.Log.DEBUG)) {
             android.util.Log.d(tag.toString(), msg, tr);
         }
     }
 
     public static void e(Tag tag, String msg) {
+        record(android.util.Log.ERROR, tag, msg, null);
         if (isLoggable(tag, android.util.Log.ERROR)) {
             android.util.Log.e(tag.toString(), msg);
         }
     }
 
     public static void e(Tag tag, String msg, Throwable tr) {
+        record(android.util.Log.ERROR, tag, msg, tr);
         if (isLoggable(tag, android.util.Log.ERROR)) {
             android.util.Log.e(tag.toString(), msg, tr);
         }
     }
 
     public static void i(Tag tag, String msg) {
+        record(android.util.Log.INFO, tag, msg, null);
         if (isLoggable(tag, android.util.Log.INFO)) {
             android.util.Log.i(tag.toString(), msg);
         }
     }
 
     public static void i(Tag tag, String msg, Throwable tr) {
+        record(android.util.Log.INFO, tag, msg, tr);
         if (isLoggable(tag, android.util.Log.INFO)) {
             android.util.Log.i(tag.toString(), msg, tr);
         }
     }
 
     public static void v(Tag tag, String msg) {
+        record(android.util.Log.VERBOSE, tag, msg, null);
         if (isLoggable(tag, android.util.Log.VERBOSE)) {
             android.util.Log.v(tag.toString(), msg);
         }
     }
 
     public static void v(Tag tag, String msg, Throwable tr) {
+        record(android.util.Log.VERBOSE, tag, msg, tr);
         if (isLoggable(tag, android.util.Log.VERBOSE)) {
             android.util.Log.v(tag.toString(), msg, tr);
         }
     }
 
     public static void w(Tag tag, String msg) {
+        record(android.util.Log.WARN, tag, msg, null);
         if (isLoggable(tag, android.util.Log.WARN)) {
             android.util.Log.w(tag.toString(), msg);
         }
     }
 
     public static void w(Tag tag, String msg, Throwable tr) {
+        record(android.util.Log.WARN, tag, msg, tr);
         if (isLoggable(tag, android.util.Log.WARN)) {
             android.util.Log.w(tag.toString(), msg, tr);
         }
     }
 
+    /**
+     * Logs a formatted message and keeps it as a recent entry.
+     *
+     * @param argKinds the kinds of the arguments, as packed by
+     *            {@link RecentLogEntries#add}.
+     */
+    private static void log(int level, Tag tag, String format, int argKinds, long value0,
+            Object object0, long value1, Object object1) {
+        RecentLogEntries entries = sRecentEntries;
+        if (entries != null) {
+            entries.add(level, tag, format, argKinds, value0, object0, value1, object1, null);
+        }
+        if (!isLoggable(tag, level)) {
+            return;
+        }
+        int kind0 = argKinds & ((1 << ARG_BITS) - 1);
+        Object arg0 = kind0 == ARG_LONG ? Long.valueOf(value0) : object0;
+        int kind1 = argKinds >>> ARG_BITS;
+        Object arg1 = kind1 == ARG_LONG ? Long.valueOf(value1) : object1;
+        String msg;
+        try {
+            if (kind1 == ARG_NONE) {
+                msg = String.format(Locale.US, format, arg0);
+            } else {
+                msg = String.format(Locale.US, format, arg0, arg1);
+            }
+        } catch (IllegalFormatException ex) {
+            msg = format + " " + arg0 + (kind1 == ARG_NONE ? "" : " " + arg1);
+        }
+        android.util.Log.println(level, tag.toString(), msg);
+    }
+
+    private static void record(int level, Tag tag, String msg, Throwable tr) {
+        RecentLogEntries entries = sRecentEntries;
+        if (entries != null) {
+            entries.add(level, tag, msg, ARG_NONE, 0, null, 0, null, tr);
+        }
+    }
+
+    /** Returns whether a level is logged for a tag, from its cached level. */
     private static boolean isLoggable(Tag tag, int level) {
+        int generation = sLevelGeneration;
+        int cached = tag.mCachedLevel;
+        if (cached < 0 || cached >>> LEVEL_BITS != generation) {
+            cached = generation << LEVEL_BITS | resolveLevel(tag);
+            tag.mCachedLevel = cached;
+        }
+        return (cached & LEVEL_MASK) <= level;
+    }
+
+    /** Returns the lowest level logged for a tag, or LEVEL_NONE. */
+    private static int resolveLevel(Tag tag) {
+        for (int level = android.util.Log.VERBOSE; level <= android.util.Log.ASSERT; level++) {
+            if (isLoggableUncached(tag, level)) {
+                return level;
+            }
+        }
+        return LEVEL_NONE;
+    }
+
+    private static boolean isLoggableUncached(Tag tag, int level) {
         try {
-            if (LogHelper.getOverrideLevel() != 0) {
+            if (sOverrideLevel != 0) {
+                return sOverrideLevel <= level;
+            } else if (LogHelper.getOverrideLevel() != 0) {
                 // Override system log level and output. VERBOSE is smaller than
                 // ERROR, so the comparison checks that the override value is smaller
                 // than the desired output level. This applies to all tags.
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.debug;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.IllegalFormatException;
+import java.util.Locale;
+
+/**
+ * A ring of the most recent log entries, of all levels, kept in
+ * preallocated arrays so that adding an entry does not allocate.
+ * <p>
+ * Entries keep their format and raw arguments, and are only formatted when
+ * dumped. Object arguments are referenced until their entry is overwritten.
+ */
+final class RecentLogEntries {
+    static final int ARG_NONE = 0;
+    static final int ARG_OBJECT = 1;
+    static final int ARG_LONG = 2;
+    /** The kinds of both arguments of an entry are packed in an int. */
+    static final int ARG_BITS = 2;
+
+    private static final String LEVELS = "??VDIWEA";
+
+    private final long[] mTimesMs;
+    private final long[] mThreadIds;
+    private final byte[] mLevels;
+    private final Log.Tag[] mTags;
+    private final String[] mFormats;
+    private final int[] mArgKinds;
+    private final long[] mValues;
+    private final Object[] mObjects;
+    private final Throwable[] mThrowables;
+    private int mNext;
+    private int mSize;
+
+    RecentLogEntries(int capacity) {
+        mTimesMs = new long[capacity];
+        mThreadIds = new long[capacity];
+        mLevels = new byte[capacity];
+        mTags = new Log.Tag[capacity];
+        mFormats = new String[capacity];
+        mArgKinds = new int[capacity];
+        mValues = new long[capacity * 2];
+        mObjects = new Object[capacity * 2];
+        mThrowables = new Throwable[capacity];
+    }
+
+    /**
+     * Adds an entry, replacing the oldest one if the ring is full.
+     *
+     * @param argKinds the ARG_* kind of the first argument, or'ed with the
+     *            kind of the second one shifted by {@link #ARG_BITS}.
+     */
+    synchronized void add(int level, Log.Tag tag, String format, int argKinds, long value0,
+            Object object0, long value1, Object object1, Throwable tr) {
+        int index = mNext;
+        mTimesMs[index] = System.currentTimeMillis();
+        mThreadIds[index] = Thread.currentThread().getId();
+        mLevels[index] = (byte) level;
+        mTags[index] = tag;
+        mFormats[index] = format;
+        mArgKinds[index] = argKinds;
+        mValues[index * 2] = value0;
+        mValues[index * 2 + 1] = value1;
+        mObjects[index * 2] = object0;
+        mObjects[index * 2 + 1] = object1;
+        mThrowables[index] = tr;
+        mNext = (index + 1) % mTimesMs.length;
+        mSize = Math.min(mSize + 1, mTimesMs.length);
+    }
+
+    /** Writes the entries in the style of logcat, oldest first. */
+    synchronized void dump(PrintWriter writer) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        int capacity = mTimesMs.length;
+        for (int i = 0; i < mSize; i++) {
+            int index = (mNext - mSize + i + capacity) % capacity;
+            writer.print(dateFormat.format(new Date(mTimesMs[index])));
+            writer.print(' ');
+            writer.print(mThreadIds[index]);
+            writer.print(' ');
+            writer.print(LEVELS.charAt(Math.min(mLevels[index], LEVELS.length() - 1)));
+            writer.print(' ');
+            writer.print(mTags[index]);
+            writer.print(": ");
+            writer.println(formatMessage(index));
+            if (mThrowables[index] != null) {
+                mThrowables[index].printStackTrace(writer);
+            }
+        }
+    }
+
+    private String formatMessage(int index) {
+        int kinds = mArgKinds[index];
+        if (kinds == ARG_NONE) {
+            return mFormats[index];
+        }
+        Object arg0 = getArg(index * 2, kinds & ((1 << ARG_BITS) - 1));
+        int kind1 = kinds >>> ARG_BITS;
+        try {
+            if (kind1 == ARG_NONE) {
+                return String.format(Locale.US, mFormats[index], arg0);
+            }
+            return String.format(Locale.US, mFormats[index], arg0, getArg(index * 2 + 1, kind1));
+        } catch (IllegalFormatException ex) {
+            return mFormats[index] + " " + arg0
+                    + (kind1 == ARG_NONE ? "" : " " + getArg(index * 2 + 1, kind1));
+        }
+    }
+
+    private Object getArg(int slot, int kind) {
+        return kind == ARG_LONG ? Long.valueOf(mValues[slot]) : mObjects[slot];
+    }
+}
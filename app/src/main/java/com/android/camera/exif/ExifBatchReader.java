@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import com.android.camera.debug.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Extracts the commonly used EXIF fields from many JPEG files at once.
+ * <p>
+ * Only the first {@link #MAX_HEADER_SIZE} bytes of each file are read, which
+ * covers the EXIF APP1 segment of any camera image, and the tags are decoded
+ * with an {@link ExifBufferReader}. Files are scanned in parallel on a shared
+ * {@link ForkJoinPool} with a small, fixed parallelism so a large batch cannot
+ * starve the rest of the app.
+ * <p>
+ * The results are returned as a {@link Result} with one array per field,
+ * indexed like the input list:
+ *
+ * <pre>
+ * ExifBatchReader.Result r = ExifBatchReader.read(paths,
+ *         ExifBatchReader.OPTION_IFD_0 | ExifBatchReader.OPTION_IFD_GPS);
+ * int rotation = r.orientation[i];
+ * </pre>
+ * <p>
+ * A single file is cheaper to read with an {@link ExifBufferReader}, which
+ * also keeps the mirrored EXIF orientations. Callers that need the XMP
+ * metadata too should use
+ * {@link com.android.camera.util.JpegMetadataSniffer}, which reads both in one
+ * pass.
+ */
+public class ExifBatchReader {
+    private static final Log.Tag TAG = new Log.Tag("ExifBatchReader");
+
+    /** Read orientation and date/time. */
+    public static final int OPTION_IFD_0 = ExifParser.OPTION_IFD_0;
+    /** Read the pixel dimensions and the original date/time. */
+    public static final int OPTION_IFD_EXIF = ExifParser.OPTION_IFD_EXIF;
+    /** Read latitude and longitude. */
+    public static final int OPTION_IFD_GPS = ExifParser.OPTION_IFD_GPS;
+
+    /** Bytes read from the start of each file. */
+    public static final int MAX_HEADER_SIZE = 64 * 1024;
+
+    private static final int MAX_PARALLELISM = 4;
+    /** Files handled by a task before it stops splitting. */
+    private static final int TASK_THRESHOLD = 8;
+
+    private static final ForkJoinPool sPool = new ForkJoinPool(Math.max(1,
+            Math.min(MAX_PARALLELISM, Runtime.getRuntime().availableProcessors())));
+
+    private static final ThreadLocal<byte[]> sHeaderBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[MAX_HEADER_SIZE];
+        }
+    };
+
+    /**
+     * EXIF fields of a batch of files. Fields that were not requested, or are
+     * missing from a file, keep their default: 0 for orientation and
+     * dimensions, null for date/time and NaN for the location.
+     */
+    public static class Result {
+        /** True if the file could be read and contains EXIF data. */
+        public final boolean[] hasExif;
+        /**
+         * True if the file could not be opened or is not a JPEG file. The
+         * other files of the batch are still read.
+         */
+        public final boolean[] failed;
+        /** Clockwise rotation in degrees: 0, 90, 180 or 270. */
+        public final int[] orientation;
+        /** Original date/time if present, otherwise IFD0 date/time. */
+        public final String[] dateTime;
+        public final double[] latitude;
+        public final double[] longitude;
+        public final int[] width;
+        public final int[] height;
+
+        Result(int size) {
+            hasExif = new boolean[size];
+            failed = new boolean[size];
+            orientation = new int[size];
+            dateTime = new String[size];
+            latitude = new double[size];
+            longitude = new double[size];
+            width = new int[size];
+            height = new int[size];
+            Arrays.fill(latitude, Double.NaN);
+            Arrays.fill(longitude, Double.NaN);
+        }
+
+        public int size() {
+            return hasExif.length;
+        }
+    }
+
+    private ExifBatchReader() {
+    }
+
+    /**
+     * Reads the EXIF fields selected by options from the given files. Blocks
+     * until all files are scanned.
+     *
+     * @param paths the JPEG files to read.
+     * @param options a combination of {@link #OPTION_IFD_0},
+     *            {@link #OPTION_IFD_EXIF} and {@link #OPTION_IFD_GPS}.
+     */
+    public static Result read(List<String> paths, int options) {
+        return read(null, paths, null, options);
+    }
+
+    /**
+     * Reads the EXIF fields selected by options from the given content URIs.
+     * Blocks until all URIs are scanned.
+     *
+     * @see #read(List, int)
+     */
+    public static Result read(ContentResolver resolver, List<Uri> uris, int options) {
+        if (resolver == null) {
+            throw new IllegalArgumentException("Argument is null");
+        }
+        return read(resolver, null, uris, options);
+    }
+
+    private static Result read(ContentResolver resolver, List<String> paths, List<Uri> uris,
+            int options) {
+        int size = paths != null ? paths.size() : uris.size();
+        Result result = new Result(size);
+        if (size > 0) {
+            sPool.invoke(new ScanTask(resolver, paths, uris, options, result, 0, size));
+        }
+        return result;
+    }
+
+    private static class ScanTask extends RecursiveAction {
+        private final ContentResolver mResolver;
+        private final List<String> mPaths;
+        private final List<Uri> mUris;
+        private final int mOptions;
+        private final Result mResult;
+        private final int mStart;
+        private final int mEnd;
+
+        ScanTask(ContentResolver resolver, List<String> paths, List<Uri> uris, int options,
+                Result result, int start, int end) {
+            mResolver = resolver;
+            mPaths = paths;
+            mUris = uris;
+            mOptions = options;
+            mResult = result;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart > TASK_THRESHOLD) {
+                int mid = (mStart + mEnd) >>> 1;
+                invokeAll(new ScanTask(mResolver, mPaths, mUris, mOptions, mResult, mStart, mid),
+                        new ScanTask(mResolver, mPaths, mUris, mOptions, mResult, mid, mEnd));
+                return;
+            }
+            byte[] buffer = sHeaderBuffer.get();
+            for (int i = mStart; i < mEnd; i++) {
+                InputStream in = null;
+                try {
+                    in = (mPaths != null) ? new FileInputStream(mPaths.get(i))
+                            : mResolver.openInputStream(mUris.get(i));
+                    if (in == null) {
+                        throw new IOException("The provider returned no stream");
+                    }
+                    int length = readHeader(in, buffer);
+                    scan(new ExifBufferReader(ByteBuffer.wrap(buffer, 0, length)), mOptions,
+                            mResult, i);
+                } catch (IOException e) {
+                    onFailure(i, e);
+                } catch (SecurityException e) {
+                    // The grant of a content URI was revoked.
+                    onFailure(i, e);
+                } catch (IllegalArgumentException e) {
+                    // The provider does not know the URI.
+                    onFailure(i, e);
+                } finally {
+                    ExifInterface.closeSilently(in);
+                }
+            }
+        }
+
+        /** Marks one file as failed without failing the rest of the batch. */
+        private void onFailure(int i, Exception e) {
+            mResult.failed[i] = true;
+            Log.w(TAG, "Failed to read EXIF of "
+                    + (mPaths != null ? mPaths.get(i) : mUris.get(i)), e);
+        }
+    }
+
+    private static int readHeader(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = in.read(buffer, total, buffer.length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static void scan(ExifBufferReader reader, int options, Result result, int i) {
+        if (!reader.hasExif()) {
+            return;
+        }
+        result.hasExif[i] = true;
+        if ((options & OPTION_IFD_0) != 0) {
+            int orientation = reader.getTagIntValue(ExifInterface.TAG_ORIENTATION, 0);
+            result.orientation[i] = ExifInterface.getRotationForOrientationValue(
+                    (short) orientation);
+            result.dateTime[i] = reader.getTagStringValue(ExifInterface.TAG_DATE_TIME);
+        }
+        if ((options & OPTION_IFD_EXIF) != 0) {
+            String original = reader.getTagStringValue(ExifInterface.TAG_DATE_TIME_ORIGINAL);
+            if (original != null) {
+                result.dateTime[i] = original;
+            }
+            result.width[i] = reader.getTagIntValue(ExifInterface.TAG_PIXEL_X_DIMENSION, 0);
+            result.height[i] = reader.getTagIntValue(ExifInterface.TAG_PIXEL_Y_DIMENSION, 0);
+        }
+        if ((options & OPTION_IFD_GPS) != 0) {
+            double[] latLong = reader.getLatLongAsDoubles();
+            if (latLong != null) {
+                result.latitude[i] = latLong[0];
+                result.longitude[i] = latLong[1];
+            }
+        }
+    }
+}
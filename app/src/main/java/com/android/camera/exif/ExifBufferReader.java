@@ -0,0 +1,526 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import com.android.camera.debug.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+
+/**
+ * Reads single EXIF tag values straight out of a {@link ByteBuffer} that
+ * holds a JPEG image, without building an {@link ExifData}.
+ * <p>
+ * The APP1 segment is located once when the reader is created. The position
+ * of each IFD is resolved the first time a tag in that IFD is requested, and
+ * a tag value is only decoded when one of the getters asks for it; no
+ * {@link ExifTag} objects are created. This is much cheaper than
+ * {@link ExifInterface#readExif(String)} when only one or two tags, such as
+ * the orientation or the capture date, are needed from many files.
+ * <p>
+ * Tags are addressed with the same constants as {@link ExifInterface}:
+ *
+ * <pre>
+ * ExifBufferReader reader = ExifBufferReader.open(path);
+ * int orientation = reader.getTagIntValue(ExifInterface.TAG_ORIENTATION,
+ *         ExifInterface.Orientation.TOP_LEFT);
+ * </pre>
+ *
+ * This class is not thread-safe.
+ */
+public class ExifBufferReader {
+    private static final Log.Tag TAG = new Log.Tag("ExifBufferReader");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /** IFD position has not been looked up yet. */
+    private static final int IFD_UNRESOLVED = -1;
+    /** IFD does not exist in this file or is malformed. */
+    private static final int IFD_ABSENT = -2;
+
+    private static final short TAG_EXIF_IFD = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_EXIF_IFD);
+    private static final short TAG_GPS_IFD = ExifInterface.getTrueTagKey(ExifInterface.TAG_GPS_IFD);
+    private static final short TAG_INTEROPERABILITY_IFD = ExifInterface
+            .getTrueTagKey(ExifInterface.TAG_INTEROPERABILITY_IFD);
+
+    private final ByteBuffer mBuffer;
+    private final int mTiffStart;
+    private final int mTiffLength;
+    private final int[] mIfdOffsets = new int[IfdId.TYPE_IFD_COUNT];
+
+    /**
+     * Memory-maps the given JPEG file and creates a reader on top of it. The
+     * file itself is closed before returning; the mapping stays valid until
+     * the reader is garbage collected.
+     *
+     * @throws IOException if the file cannot be read or is not a JPEG file.
+     */
+    public static ExifBufferReader open(String filename) throws IOException {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(filename, "r");
+            FileChannel channel = file.getChannel();
+            return new ExifBufferReader(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            ExifInterface.closeSilently(file);
+        }
+    }
+
+    /**
+     * Creates a reader for the JPEG image starting at the current position of
+     * the given buffer. The position, limit and byte order of the buffer are
+     * not modified.
+     *
+     * @throws IOException if the buffer does not contain a JPEG image.
+     */
+    public ExifBufferReader(ByteBuffer jpeg) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException("Argument is null");
+        }
+        mBuffer = jpeg.duplicate();
+        mBuffer.order(ByteOrder.BIG_ENDIAN);
+
+        int tiffStart = findTiffStart();
+        if (tiffStart < 0) {
+            mTiffStart = 0;
+            mTiffLength = 0;
+            markAllIfdsAbsent();
+            return;
+        }
+        mTiffStart = tiffStart;
+        mTiffLength = computeTiffLength(tiffStart);
+        if (!parseTiffHeader()) {
+            markAllIfdsAbsent();
+        }
+    }
+
+    /**
+     * Returns true if the image contains an EXIF APP1 segment with a valid
+     * TIFF header.
+     */
+    public boolean hasExif() {
+        return mIfdOffsets[IfdId.TYPE_IFD_0] != IFD_ABSENT;
+    }
+
+    /**
+     * Gets the byte order of the EXIF data.
+     */
+    public ByteOrder getByteOrder() {
+        return mBuffer.order();
+    }
+
+    /**
+     * Returns true if the tag exists in its default IFD.
+     *
+     * @param tagId a defined tag constant, e.g.
+     *            {@link ExifInterface#TAG_IMAGE_WIDTH}.
+     */
+    public boolean hasTag(int tagId) {
+        return hasTag(tagId, ExifInterface.getTrueIfd(tagId));
+    }
+
+    /**
+     * Returns true if the tag exists in the given IFD.
+     */
+    public boolean hasTag(int tagId, int ifdId) {
+        return findEntry(ExifInterface.getTrueTagKey(tagId), ifdId) >= 0;
+    }
+
+    /**
+     * Gets the data type of a tag, or -1 if the tag does not exist.
+     *
+     * @see ExifTag#getDataType()
+     */
+    public short getTagDataType(int tagId, int ifdId) {
+        int entry = findEntry(ExifInterface.getTrueTagKey(tagId), ifdId);
+        return entry < 0 ? -1 : getEntryType(entry);
+    }
+
+    /**
+     * Gets the number of components of a tag, or 0 if the tag does not exist.
+     *
+     * @see ExifTag#getComponentCount()
+     */
+    public int getTagComponentCount(int tagId, int ifdId) {
+        int entry = findEntry(ExifInterface.getTrueTagKey(tagId), ifdId);
+        return entry < 0 ? 0 : getEntryCount(entry);
+    }
+
+    /**
+     * Returns the first value of an integral tag in its default IFD, or
+     * defaultValue if the tag does not exist or is not of an integral type.
+     */
+    public int getTagIntValue(int tagId, int defaultValue) {
+        return getTagIntValue(tagId, ExifInterface.getTrueIfd(tagId), defaultValue);
+    }
+
+    /**
+     * @see #getTagIntValue(int, int)
+     */
+    public int getTagIntValue(int tagId, int ifdId, int defaultValue) {
+        return (int) getTagLongValue(tagId, ifdId, defaultValue);
+    }
+
+    /**
+     * Returns the first value of an integral tag in its default IFD, or
+     * defaultValue if the tag does not exist or is not of an integral type.
+     * Values of type {@link ExifTag#TYPE_UNSIGNED_LONG} are returned without
+     * sign extension.
+     */
+    public long getTagLongValue(int tagId, long defaultValue) {
+        return getTagLongValue(tagId, ExifInterface.getTrueIfd(tagId), defaultValue);
+    }
+
+    /**
+     * @see #getTagLongValue(int, long)
+     */
+    public long getTagLongValue(int tagId, int ifdId, long defaultValue) {
+        int entry = findEntry(ExifInterface.getTrueTagKey(tagId), ifdId);
+        if (entry < 0 || getEntryCount(entry) < 1) {
+            return defaultValue;
+        }
+        int value = getValueOffset(entry);
+        if (value < 0) {
+            return defaultValue;
+        }
+        int pos = mTiffStart + value;
+        switch (getEntryType(entry)) {
+            case ExifTag.TYPE_UNSIGNED_BYTE:
+            case ExifTag.TYPE_UNDEFINED:
+                return mBuffer.get(pos) & 0xff;
+            case ExifTag.TYPE_UNSIGNED_SHORT:
+                return mBuffer.getShort(pos) & 0xffff;
+            case ExifTag.TYPE_UNSIGNED_LONG:
+                return mBuffer.getInt(pos) & 0xffffffffL;
+            case ExifTag.TYPE_LONG:
+                return mBuffer.getInt(pos);
+            default:
+                return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the value of an ASCII tag in its default IFD with trailing null
+     * characters removed, or null if the tag does not exist or is not of type
+     * {@link ExifTag#TYPE_ASCII}.
+     */
+    public String getTagStringValue(int tagId) {
+        return getTagStringValue(tagId, ExifInterface.getTrueIfd(tagId));
+    }
+
+    /**
+     * @see #getTagStringValue(int)
+     */
+    public String getTagStringValue(int tagId, int ifdId) {
+        int entry = findEntry(ExifInterface.getTrueTagKey(tagId), ifdId);
+        if (entry < 0 || getEntryType(entry) != ExifTag.TYPE_ASCII) {
+            return null;
+        }
+        int value = getValueOffset(entry);
+        if (value < 0) {
+            return null;
+        }
+        int start = mTiffStart + value;
+        int end = start + getEntryCount(entry);
+        int len = 0;
+        while (start + len < end && mBuffer.get(start + len) != 0) {
+            len++;
+        }
+        byte[] buf = new byte[len];
+        for (int i = 0; i < len; i++) {
+            buf[i] = mBuffer.get(start + i);
+        }
+        return new String(buf, US_ASCII);
+    }
+
+    /**
+     * Returns the raw bytes of a tag in its default IFD, or null if the tag
+     * does not exist or is not of type {@link ExifTag#TYPE_UNSIGNED_BYTE} or
+     * {@link ExifTag#TYPE_UNDEFINED}.
+     */
+    public byte[] getTagByteValues(int tagId) {
+        return getTagByteValues(tagId, ExifInterface.getTrueIfd(tagId));
+    }
+
+    /**
+     * @see #getTagByteValues(int)
+     */
+    public byte[] getTagByteValues(int tagId, int ifdId) {
+        int entry = findEntry(ExifInterface.getTrueTagKey(tagId), ifdId);
+        if (entry < 0) {
+            return null;
+        }
+        short type = getEntryType(entry);
+        if (type != ExifTag.TYPE_UNSIGNED_BYTE && type != ExifTag.TYPE_UNDEFINED) {
+            return null;
+        }
+        int value = getValueOffset(entry);
+        if (value < 0) {
+            return null;
+        }
+        byte[] buf = new byte[getEntryCount(entry)];
+        ByteBuffer src = mBuffer.duplicate();
+        src.position(mTiffStart + value);
+        src.get(buf);
+        return buf;
+    }
+
+    /**
+     * Returns the values of a rational tag in its default IFD, or null if the
+     * tag does not exist or is not of a rational type.
+     */
+    public Rational[] getTagRationalValues(int tagId) {
+        return getTagRationalValues(tagId, ExifInterface.getTrueIfd(tagId));
+    }
+
+    /**
+     * @see #getTagRationalValues(int)
+     */
+    public Rational[] getTagRationalValues(int tagId, int ifdId) {
+        int entry = findEntry(ExifInterface.getTrueTagKey(tagId), ifdId);
+        if (entry < 0) {
+            return null;
+        }
+        short type = getEntryType(entry);
+        if (type != ExifTag.TYPE_UNSIGNED_RATIONAL && type != ExifTag.TYPE_RATIONAL) {
+            return null;
+        }
+        int value = getValueOffset(entry);
+        if (value < 0) {
+            return null;
+        }
+        int pos = mTiffStart + value;
+        Rational[] values = new Rational[getEntryCount(entry)];
+        for (int i = 0; i < values.length; i++, pos += 8) {
+            if (type == ExifTag.TYPE_UNSIGNED_RATIONAL) {
+                values[i] = new Rational(mBuffer.getInt(pos) & 0xffffffffL,
+                        mBuffer.getInt(pos + 4) & 0xffffffffL);
+            } else {
+                values[i] = new Rational(mBuffer.getInt(pos), mBuffer.getInt(pos + 4));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Gets the GPS latitude and longitude as a pair of doubles, or null if
+     * the necessary tags do not exist.
+     *
+     * @see ExifInterface#getLatLongAsDoubles()
+     */
+    public double[] getLatLongAsDoubles() {
+        Rational[] latitude = getTagRationalValues(ExifInterface.TAG_GPS_LATITUDE);
+        String latitudeRef = getTagStringValue(ExifInterface.TAG_GPS_LATITUDE_REF);
+        Rational[] longitude = getTagRationalValues(ExifInterface.TAG_GPS_LONGITUDE);
+        String longitudeRef = getTagStringValue(ExifInterface.TAG_GPS_LONGITUDE_REF);
+        if (latitude == null || longitude == null || latitudeRef == null || longitudeRef == null
+                || latitude.length < 3 || longitude.length < 3) {
+            return null;
+        }
+        double[] latLon = new double[2];
+        latLon[0] = ExifInterface.convertLatOrLongToDouble(latitude, latitudeRef);
+        latLon[1] = ExifInterface.convertLatOrLongToDouble(longitude, longitudeRef);
+        return latLon;
+    }
+
+    /**
+     * Walks the JPEG segments up to the first SOF/SOS marker and returns the
+     * absolute position of the TIFF header in the EXIF APP1 segment, or -1 if
+     * there is none.
+     */
+    private int findTiffStart() throws IOException {
+        int start = mBuffer.position();
+        int limit = mBuffer.limit();
+        if (limit - start < 4 || mBuffer.getShort(start) != JpegHeader.SOI) {
+            throw new IOException("Invalid JPEG format");
+        }
+        int pos = start + 2;
+        while (pos + 4 <= limit) {
+            short marker = mBuffer.getShort(pos);
+            if (marker == JpegHeader.EOI || marker == JpegHeader.SOS
+                    || JpegHeader.isSofMarker(marker)) {
+                break;
+            }
+            int length = mBuffer.getShort(pos + 2) & 0xffff;
+            if (length < 2) {
+                Log.w(TAG, "Invalid JPEG format.");
+                break;
+            }
+            // Some invalid formatted image contains multiple APP1, try to find
+            // the one with Exif data.
+            if (marker == JpegHeader.APP1 && length >= 8 && pos + 10 <= limit
+                    && mBuffer.getInt(pos + 4) == ExifParser.EXIF_HEADER
+                    && mBuffer.getShort(pos + 8) == ExifParser.EXIF_HEADER_TAIL) {
+                return pos + 10;
+            }
+            pos += 2 + length;
+        }
+        return -1;
+    }
+
+    private int computeTiffLength(int tiffStart) {
+        // APP1 length covers the length field, "Exif" and the 2 byte tail.
+        int app1Length = mBuffer.getShort(tiffStart - 8) & 0xffff;
+        return Math.min(app1Length - 8, mBuffer.limit() - tiffStart);
+    }
+
+    private boolean parseTiffHeader() {
+        if (mTiffLength < ExifParser.DEFAULT_IFD0_OFFSET) {
+            return false;
+        }
+        short byteOrder = mBuffer.getShort(mTiffStart);
+        if (byteOrder == ExifParser.LITTLE_ENDIAN_TAG) {
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder != ExifParser.BIG_ENDIAN_TAG) {
+            Log.w(TAG, "Invalid TIFF header");
+            return false;
+        }
+        if (mBuffer.getShort(mTiffStart + 2) != ExifParser.TIFF_HEADER_TAIL) {
+            Log.w(TAG, "Invalid TIFF header");
+            return false;
+        }
+        for (int i = 0; i < mIfdOffsets.length; i++) {
+            mIfdOffsets[i] = IFD_UNRESOLVED;
+        }
+        mIfdOffsets[IfdId.TYPE_IFD_0] = checkIfdOffset(readUnsignedInt(4));
+        return mIfdOffsets[IfdId.TYPE_IFD_0] != IFD_ABSENT;
+    }
+
+    private void markAllIfdsAbsent() {
+        for (int i = 0; i < mIfdOffsets.length; i++) {
+            mIfdOffsets[i] = IFD_ABSENT;
+        }
+    }
+
+    private int getIfdOffset(int ifdId) {
+        if (!ExifTag.isValidIfd(ifdId)) {
+            return IFD_ABSENT;
+        }
+        int offset = mIfdOffsets[ifdId];
+        if (offset == IFD_UNRESOLVED) {
+            offset = resolveIfdOffset(ifdId);
+            mIfdOffsets[ifdId] = offset;
+        }
+        return offset;
+    }
+
+    private int resolveIfdOffset(int ifdId) {
+        switch (ifdId) {
+            case IfdId.TYPE_IFD_1: {
+                // There is a link to IFD1 at the end of IFD0.
+                int ifd0 = getIfdOffset(IfdId.TYPE_IFD_0);
+                if (ifd0 < 0) {
+                    return IFD_ABSENT;
+                }
+                int link = ifd0 + ExifParser.OFFSET_SIZE
+                        + ExifParser.TAG_SIZE * readUnsignedShort(ifd0);
+                return link + 4 > mTiffLength ? IFD_ABSENT : checkIfdOffset(readUnsignedInt(link));
+            }
+            case IfdId.TYPE_IFD_EXIF:
+                return resolvePointer(TAG_EXIF_IFD, IfdId.TYPE_IFD_0);
+            case IfdId.TYPE_IFD_GPS:
+                return resolvePointer(TAG_GPS_IFD, IfdId.TYPE_IFD_0);
+            case IfdId.TYPE_IFD_INTEROPERABILITY:
+                return resolvePointer(TAG_INTEROPERABILITY_IFD, IfdId.TYPE_IFD_EXIF);
+            default:
+                return IFD_ABSENT;
+        }
+    }
+
+    private int resolvePointer(short pointerTag, int parentIfd) {
+        int entry = findEntry(pointerTag, parentIfd);
+        if (entry < 0 || getEntryCount(entry) == 0) {
+            return IFD_ABSENT;
+        }
+        return checkIfdOffset(readUnsignedInt(entry + 8));
+    }
+
+    /**
+     * Returns offset if an IFD with all of its entries fits inside the TIFF
+     * data at that offset, {@link #IFD_ABSENT} otherwise.
+     */
+    private int checkIfdOffset(long offset) {
+        if (offset <= 0 || offset + ExifParser.OFFSET_SIZE > mTiffLength) {
+            return IFD_ABSENT;
+        }
+        int count = readUnsignedShort((int) offset);
+        if (offset + ExifParser.OFFSET_SIZE + (long) count * ExifParser.TAG_SIZE > mTiffLength) {
+            Log.w(TAG, "Invalid size of IFD at " + offset);
+            return IFD_ABSENT;
+        }
+        return (int) offset;
+    }
+
+    /**
+     * Returns the offset of the 12 byte IFD entry for the tag relative to the
+     * TIFF header, or -1 if there is no such entry.
+     */
+    private int findEntry(short tagId, int ifdId) {
+        int ifd = getIfdOffset(ifdId);
+        if (ifd < 0) {
+            return -1;
+        }
+        int count = readUnsignedShort(ifd);
+        int entry = ifd + ExifParser.OFFSET_SIZE;
+        for (int i = 0; i < count; i++, entry += ExifParser.TAG_SIZE) {
+            if (mBuffer.getShort(mTiffStart + entry) == tagId) {
+                return ExifTag.isValidType(getEntryType(entry)) ? entry : -1;
+            }
+        }
+        return -1;
+    }
+
+    private short getEntryType(int entry) {
+        return mBuffer.getShort(mTiffStart + entry + 2);
+    }
+
+    private int getEntryCount(int entry) {
+        long count = readUnsignedInt(entry + 4);
+        return count > Integer.MAX_VALUE ? 0 : (int) count;
+    }
+
+    /**
+     * Returns the offset of the value of an entry relative to the TIFF
+     * header, or -1 if the value lies outside of the APP1 segment.
+     */
+    private int getValueOffset(int entry) {
+        long size = (long) ExifTag.getElementSize(getEntryType(entry)) * getEntryCount(entry);
+        if (size <= 4) {
+            return entry + 8;
+        }
+        long offset = readUnsignedInt(entry + 8);
+        if (offset + size > mTiffLength) {
+            Log.w(TAG, "Invalid value offset " + offset + " for tag "
+                    + mBuffer.getShort(mTiffStart + entry));
+            return -1;
+        }
+        return (int) offset;
+    }
+
+    private int readUnsignedShort(int offset) {
+        return mBuffer.getShort(mTiffStart + offset) & 0xffff;
+    }
+
+    private long readUnsignedInt(int offset) {
+        return mBuffer.getInt(mTiffStart + offset) & 0xffffffffL;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import com.android.camera.debug.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Collection;
+
+/**
+ * Rewrites the EXIF header of a JPEG file without reading the compressed
+ * image data into memory.
+ * <p>
+ * Only the bytes in front of the image data (SOI, APP0, the EXIF APP1
+ * segment, ...) are read and re-encoded. If the new header is not larger than
+ * the old one, it is written back into the memory-mapped header and the APP1
+ * segment is padded to the old size. Otherwise the file is rebuilt from the
+ * new header followed by the untouched image data, which is moved with
+ * {@link FileChannel#transferTo} so it never passes through the Java heap. In
+ * that case some padding is reserved in the APP1 segment so that the next
+ * update of the same file can be done in place.
+ */
+class ExifFileRewriter {
+    private static final Log.Tag TAG = new Log.Tag("ExifFileRewriter");
+    private static final boolean DEBUG = false;
+
+    /** Bytes reserved at the end of APP1 when the header has to grow. */
+    private static final int APP1_RESERVED_PADDING = 1024;
+    private static final int MAX_APP1_LENGTH = 0xffff;
+    /** SOI (2 bytes) followed by the APP1 marker always written by ExifOutputStream. */
+    private static final int APP1_LENGTH_POSITION = 4;
+
+    private final ExifInterface mInterface;
+    private final ByteBuffer mMarkerBuffer = ByteBuffer.allocate(10);
+
+    ExifFileRewriter(ExifInterface iRef) {
+        mInterface = iRef;
+    }
+
+    /**
+     * Replaces the EXIF data of the file with its existing tags merged with
+     * the given tags. The EXIF data of the ExifInterface is replaced with the
+     * data that was written.
+     */
+    protected void rewrite(String filename, Collection<ExifTag> tags) throws IOException {
+        File file = new File(filename);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        byte[] newHeader;
+        long headerEnd;
+        long fileLength;
+        try {
+            FileChannel channel = raf.getChannel();
+            fileLength = channel.size();
+            long[] header = findHeaderEnd(channel, fileLength);
+            headerEnd = header[0];
+            if (headerEnd > Integer.MAX_VALUE) {
+                throw new IOException("Invalid JPEG header size: " + headerEnd);
+            }
+
+            // The header is small (a few 64Kb segments at most), map just that.
+            MappedByteBuffer mapped = channel.map(MapMode.READ_WRITE, 0, headerEnd);
+            byte[] oldHeader = new byte[(int) headerEnd];
+            mapped.get(oldHeader);
+            if (header[1] != 0) {
+                mInterface.readExif(oldHeader);
+            } else {
+                mInterface.clearExif();
+            }
+            mInterface.setTags(tags);
+            newHeader = encodeHeader(oldHeader);
+
+            int slack = (int) headerEnd - newHeader.length;
+            byte[] fitted = null;
+            if (slack == 0) {
+                fitted = newHeader;
+            } else if (slack > 0) {
+                fitted = padApp1(newHeader, slack);
+            }
+            if (fitted != null) {
+                if (DEBUG) {
+                    Log.v(TAG, "Rewriting exif header in place, padding: " + slack);
+                }
+                mapped.clear();
+                mapped.put(fitted);
+                mapped.force();
+                return;
+            }
+        } finally {
+            ExifInterface.closeSilently(raf);
+        }
+
+        byte[] padded = padApp1(newHeader, APP1_RESERVED_PADDING);
+        if (padded != null) {
+            newHeader = padded;
+        }
+        if (DEBUG) {
+            Log.v(TAG, "Growing exif header from " + headerEnd + " to " + newHeader.length);
+        }
+        shiftImageData(file, newHeader, headerEnd, fileLength);
+    }
+
+    /**
+     * Writes the new header and the image data starting at headerEnd into a
+     * temporary file and moves it over the original file.
+     */
+    private void shiftImageData(File file, byte[] newHeader, long headerEnd, long fileLength)
+            throws IOException {
+        File temp = new File(file.getPath() + ".exiftmp");
+        RandomAccessFile src = null;
+        FileOutputStream dst = null;
+        try {
+            src = new RandomAccessFile(file, "r");
+            dst = new FileOutputStream(temp);
+            FileChannel srcChannel = src.getChannel();
+            FileChannel dstChannel = dst.getChannel();
+            dstChannel.write(ByteBuffer.wrap(newHeader));
+            copyImageData(srcChannel, headerEnd, fileLength, dstChannel);
+            dst.getFD().sync();
+        } catch (IOException e) {
+            ExifInterface.closeSilently(dst);
+            temp.delete();
+            throw e;
+        } finally {
+            ExifInterface.closeSilently(src);
+        }
+        dst.close();
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+    }
+
+    /**
+     * Appends the bytes of src from start to end to dst. Not private so that
+     * tests can interrupt it.
+     */
+    void copyImageData(FileChannel src, long start, long end, FileChannel dst)
+            throws IOException {
+        long position = start;
+        while (position < end) {
+            long transferred = src.transferTo(position, end - position, dst);
+            if (transferred <= 0) {
+                throw new IOException("Failed to copy image data");
+            }
+            position += transferred;
+        }
+    }
+
+    /**
+     * Encodes the header with the EXIF data of the interface. Not private so
+     * that tests can make it fail.
+     */
+    byte[] encodeHeader(byte[] oldHeader) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(oldHeader.length
+                + APP1_RESERVED_PADDING);
+        mInterface.writeExif(oldHeader, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Walks the JPEG segments and returns {end, hasExif}: the end of the EXIF
+     * APP1 segment if there is one, otherwise the position of the first
+     * SOF/SOS marker.
+     */
+    private long[] findHeaderEnd(FileChannel channel, long fileLength) throws IOException {
+        if (readMarker(channel, 0, 2) < 2 || mMarkerBuffer.getShort(0) != JpegHeader.SOI) {
+            throw new IOException("Invalid JPEG format");
+        }
+        long pos = 2;
+        int read;
+        while ((read = readMarker(channel, pos, 10)) >= 4) {
+            short marker = mMarkerBuffer.getShort(0);
+            if (marker == JpegHeader.EOI || marker == JpegHeader.SOS
+                    || JpegHeader.isSofMarker(marker)) {
+                return new long[] { pos, 0 };
+            }
+            int length = mMarkerBuffer.getShort(2) & 0xffff;
+            if (length < 2) {
+                break;
+            }
+            long end = pos + 2 + length;
+            if (marker == JpegHeader.APP1 && length >= 8 && read == 10 && end <= fileLength
+                    && mMarkerBuffer.getInt(4) == ExifParser.EXIF_HEADER
+                    && mMarkerBuffer.getShort(8) == ExifParser.EXIF_HEADER_TAIL) {
+                return new long[] { end, 1 };
+            }
+            pos = end;
+        }
+        throw new IOException("Invalid JPEG format");
+    }
+
+    private int readMarker(FileChannel channel, long position, int length) throws IOException {
+        mMarkerBuffer.clear();
+        mMarkerBuffer.order(ByteOrder.BIG_ENDIAN);
+        mMarkerBuffer.limit(length);
+        int total = 0;
+        while (mMarkerBuffer.hasRemaining()) {
+            int read = channel.read(mMarkerBuffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Grows the APP1 segment that directly follows SOI in the given header by
+     * padding zero bytes. Returns null if the segment would become too large.
+     */
+    private static byte[] padApp1(byte[] header, int padding) {
+        int app1Length = ((header[APP1_LENGTH_POSITION] & 0xff) << 8)
+                | (header[APP1_LENGTH_POSITION + 1] & 0xff);
+        int newLength = app1Length + padding;
+        if (newLength > MAX_APP1_LENGTH) {
+            return null;
+        }
+        int app1End = APP1_LENGTH_POSITION + app1Length;
+        byte[] padded = new byte[header.length + padding];
+        System.arraycopy(header, 0, padded, 0, app1End);
+        System.arraycopy(header, app1End, padded, app1End + padding, header.length - app1End);
+        padded[APP1_LENGTH_POSITION] = (byte) (newLength >> 8);
+        padded[APP1_LENGTH_POSITION + 1] = (byte) newLength;
+        return padded;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.exif;
+
+import android.support.v4.util.Pools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Writes a JPEG held in memory together with a new EXIF header using a single
+ * gathering write.
+ * <p>
+ * The output is the same as writing the JPEG through {@link ExifOutputStream}:
+ * SOI, the new APP1 segment, the segments in front of the old APP1 (or SOF),
+ * then the rest of the JPEG. Only the SOI and APP1 bytes are serialized into a
+ * pooled buffer; the rest of the JPEG is written straight from the caller's
+ * array without being staged through a stream buffer.
+ */
+class ExifGatherWriter {
+    /**
+     * Idle buffers kept for reuse. Saves which run while all of them are in
+     * use allocate a buffer which is dropped afterwards.
+     */
+    private static final int POOL_SIZE = 2;
+    private static final int SEGMENT_BUFFER_SIZE = 0x00010000; // 64Kb, the largest APP1
+
+    private static final Pools.SynchronizedPool<SegmentBuffer> sBufferPool =
+            new Pools.SynchronizedPool<SegmentBuffer>(POOL_SIZE);
+
+    /** A ByteArrayOutputStream whose content can be wrapped without a copy. */
+    private static class SegmentBuffer extends ByteArrayOutputStream {
+        SegmentBuffer() {
+            super(SEGMENT_BUFFER_SIZE);
+        }
+
+        ByteBuffer wrap() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private ExifGatherWriter() {
+    }
+
+    /**
+     * Writes the first length bytes of jpeg with the given EXIF data to the
+     * channel.
+     *
+     * @return the number of bytes written.
+     */
+    static long write(byte[] jpeg, int length, ExifData exifData, ExifInterface iRef,
+            GatheringByteChannel channel) throws IOException {
+        if (length < 2 || readShort(jpeg, 0) != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write exif");
+        }
+
+        // Segments in front of the first APP1 or SOF are kept, the first APP1
+        // is dropped and everything after it is copied as-is.
+        int keptEnd = 2;
+        int restStart = -1;
+        while (keptEnd + 4 <= length) {
+            short marker = readShort(jpeg, keptEnd);
+            if (marker == JpegHeader.APP1) {
+                restStart = keptEnd + 2 + (readShort(jpeg, keptEnd + 2) & 0xffff);
+                break;
+            }
+            if (marker == JpegHeader.EOI || JpegHeader.isSofMarker(marker)) {
+                break;
+            }
+            keptEnd += 2 + (readShort(jpeg, keptEnd + 2) & 0xffff);
+        }
+        if (keptEnd > length) {
+            keptEnd = length;
+        }
+        if (restStart < 0) {
+            restStart = keptEnd;
+        } else if (restStart > length) {
+            restStart = length;
+        }
+
+        SegmentBuffer header = sBufferPool.acquire();
+        if (header == null) {
+            header = new SegmentBuffer();
+        }
+        try {
+            header.reset();
+            header.write(jpeg, 0, 2);
+            ExifOutputStream.writeExifSegment(header, iRef, exifData);
+
+            ByteBuffer[] buffers = new ByteBuffer[] {
+                    header.wrap(),
+                    ByteBuffer.wrap(jpeg, 2, keptEnd - 2),
+                    ByteBuffer.wrap(jpeg, restStart, length - restStart)
+            };
+            long total = 0;
+            for (ByteBuffer b : buffers) {
+                total += b.remaining();
+            }
+            long written = 0;
+            while (written < total) {
+                written += channel.write(buffers);
+            }
+            return written;
+        } finally {
+            sBufferPool.release(header);
+        }
+    }
+
+    private static short readShort(byte[] data, int offset) {
+        return (short) (((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff));
+    }
+}
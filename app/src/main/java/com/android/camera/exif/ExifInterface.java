@@ -35,6 +35,7 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.GatheringByteChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -867,6 +868,39 @@ public class ExifInterface {
         s.close();
     }
 
+    /**
+     * Writes the tags from this ExifInterface object into a jpeg image,
+     * removing prior exif tags. The new exif header and the jpeg data are
+     * written with a single gathering write, without copying the jpeg.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @param exifOutChannel a channel to which the jpeg image with added exif
+     *            tags will be written.
+     * @return the number of bytes written.
+     * @throws IOException
+     */
+    public long writeExif(byte[] jpeg, GatheringByteChannel exifOutChannel) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        return writeExif(jpeg, jpeg.length, exifOutChannel);
+    }
+
+    /**
+     * Like {@link #writeExif(byte[], GatheringByteChannel)}, for a jpeg image
+     * stored in the first jpegLength bytes of a larger array.
+     */
+    public long writeExif(byte[] jpeg, int jpegLength, GatheringByteChannel exifOutChannel)
+            throws IOException {
+        if (jpeg == null || exifOutChannel == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        if (jpegLength < 0 || jpegLength > jpeg.length) {
+            throw new IllegalArgumentException("Invalid jpeg length: " + jpegLength);
+        }
+        return ExifGatherWriter.write(jpeg, jpegLength, mData, this, exifOutChannel);
+    }
+
     /**
      * Writes the tags from this ExifInterface object into a jpeg compressed
      * bitmap, removing prior exif tags.
@@ -1029,6 +1063,11 @@ public class ExifInterface {
             is.close();
             is = null;
 
+            // Nothing to rewrite in place if there is no exif header.
+            if (exifSize == 0) {
+                return false;
+            }
+
             // Open file for memory mapping.
             file = new RandomAccessFile(temp, "rw");
             long fileLength = file.length();
@@ -1080,8 +1119,10 @@ public class ExifInterface {
 
     /**
      * Attempts to do an in-place rewrite of the exif metadata. If this fails,
-     * fall back to overwriting file. This preserves tags that are not being
-     * rewritten.
+     * fall back to rewriting the exif header of the file. This preserves tags
+     * that are not being rewritten. The compressed image data is never read
+     * into memory; it is only moved on disk if the new header does not fit
+     * into the space of the old one.
      *
      * @param filename a String containing a filepath for a jpeg file.
      * @param tags tags that will be written into the jpeg file over existing
@@ -1095,24 +1136,12 @@ public class ExifInterface {
             IOException {
         // Attempt in-place write
         if (!rewriteExif(filename, tags)) {
-            // Fall back to doing a copy
+            // Fall back to rewriting the header
             ExifData tempData = mData;
             mData = new ExifData(DEFAULT_BYTE_ORDER);
-            FileInputStream is = null;
-            ByteArrayOutputStream bytes = null;
             try {
-                is = new FileInputStream(filename);
-                bytes = new ByteArrayOutputStream();
-                doExifStreamIO(is, bytes);
-                byte[] imageBytes = bytes.toByteArray();
-                readExif(imageBytes);
-                setTags(tags);
-                writeExif(imageBytes, filename);
-            } catch (IOException e) {
-                closeSilently(is);
-                throw e;
+                new ExifFileRewriter(this).rewrite(filename, tags);
             } finally {
-                is.close();
                 // Prevent clobbering of mData
                 mData = tempData;
             }
@@ -1247,7 +1276,20 @@ public class ExifInterface {
         if (l == null || l.length <= 0) {
             return null;
         }
-        return new Long(l[0]);
+        return Long.valueOf(l[0]);
+    }
+
+    /**
+     * Returns the first value of the tag, or defaultValue if the tag is not
+     * set or has no integer value. Unlike {@link #getTagLongValue(int, int)}
+     * this does not allocate.
+     */
+    public long getTagLongValue(int tagId, int ifdId, long defaultValue) {
+        ExifTag t = getTag(tagId, ifdId);
+        if (t == null) {
+            return defaultValue;
+        }
+        return t.getValueAsLong(defaultValue);
     }
 
     /**
@@ -1262,11 +1304,24 @@ public class ExifInterface {
      * @see #getTagValue
      */
     public Integer getTagIntValue(int tagId, int ifdId) {
-        int[] l = getTagIntValues(tagId, ifdId);
+        long[] l = getTagLongValues(tagId, ifdId);
         if (l == null || l.length <= 0) {
             return null;
         }
-        return new Integer(l[0]);
+        return Integer.valueOf((int) l[0]);
+    }
+
+    /**
+     * Returns the first value of the tag, or defaultValue if the tag is not
+     * set or has no integer value. Unlike {@link #getTagIntValue(int, int)}
+     * this does not allocate.
+     */
+    public int getTagIntValue(int tagId, int ifdId, int defaultValue) {
+        ExifTag t = getTag(tagId, ifdId);
+        if (t == null) {
+            return defaultValue;
+        }
+        return t.getValueAsInt(defaultValue);
     }
 
     /**
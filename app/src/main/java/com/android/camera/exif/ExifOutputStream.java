@@ -83,8 +83,22 @@ class ExifOutputStream extends FilterOutputStream {
     private final ExifInterface mInterface;
 
     protected ExifOutputStream(OutputStream ou, ExifInterface iRef) {
-        super(new BufferedOutputStream(ou, STREAMBUFFER_SIZE));
+        this(new BufferedOutputStream(ou, STREAMBUFFER_SIZE), iRef, null);
+    }
+
+    private ExifOutputStream(OutputStream ou, ExifInterface iRef, ExifData exifData) {
+        super(ou);
         mInterface = iRef;
+        mExifData = exifData;
+    }
+
+    /**
+     * Writes only the APP1 segment for the given ExifData into the stream,
+     * without buffering. Nothing is written if exifData is null.
+     */
+    static void writeExifSegment(OutputStream ou, ExifInterface iRef, ExifData exifData)
+            throws IOException {
+        new ExifOutputStream(ou, iRef, exifData).writeExifData();
     }
 
     /**
@@ -672,11 +672,11 @@ public class ExifTag {
      * @return the tag's value as a int, or the defaultValue.
      */
     public int getValueAsInt(int defaultValue) {
-        int[] i = getValueAsInts();
-        if (i == null || i.length < 1) {
+        long[] l = getValueAsLongs();
+        if (l == null || l.length < 1) {
             return defaultValue;
         }
-        return i[0];
+        return (int) l[0]; // Truncates
     }
 
     /**
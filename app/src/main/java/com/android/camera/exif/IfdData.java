@@ -16,19 +16,26 @@
 
 package com.android.camera.exif;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
- * This class stores all the tags in an IFD.
+ * This class stores all the tags in an IFD. The values stay in the
+ * {@link ExifTag} instances, which callers get and change in place.
  *
  * @see ExifData
  * @see ExifTag
  */
 class IfdData {
 
+    private static final int INITIAL_CAPACITY = 8;
+
     private final int mIfdId;
-    private final Map<Short, ExifTag> mExifTags = new HashMap<Short, ExifTag>();
+    // Tags sorted by tag id, so lookups are a binary search on a short[]
+    // rather than a map of boxed Shorts. This is also the order in which the
+    // entries of an IFD have to be written.
+    private short[] mTagIds = new short[INITIAL_CAPACITY];
+    private ExifTag[] mTags = new ExifTag[INITIAL_CAPACITY];
+    private int mTagCount = 0;
     private int mOffsetToNextIfd = 0;
     private static final int[] sIfds = {
             IfdId.TYPE_IFD_0, IfdId.TYPE_IFD_1, IfdId.TYPE_IFD_EXIF,
@@ -55,7 +62,7 @@ class IfdData {
      * Get a array the contains all {@link ExifTag} in this IFD.
      */
     protected ExifTag[] getAllTags() {
-        return mExifTags.values().toArray(new ExifTag[mExifTags.size()]);
+        return Arrays.copyOf(mTags, mTagCount);
     }
 
     /**
@@ -76,7 +83,8 @@ class IfdData {
      * such tag.
      */
     protected ExifTag getTag(short tagId) {
-        return mExifTags.get(tagId);
+        int index = indexOf(tagId);
+        return index >= 0 ? mTags[index] : null;
     }
 
     /**
@@ -84,25 +92,73 @@ class IfdData {
      */
     protected ExifTag setTag(ExifTag tag) {
         tag.setIfd(mIfdId);
-        return mExifTags.put(tag.getTagId(), tag);
+        short tagId = tag.getTagId();
+        int index = indexOf(tagId);
+        if (index >= 0) {
+            ExifTag old = mTags[index];
+            mTags[index] = tag;
+            return old;
+        }
+        index = -index - 1;
+        if (mTagCount == mTagIds.length) {
+            int capacity = mTagCount * 2;
+            mTagIds = Arrays.copyOf(mTagIds, capacity);
+            mTags = Arrays.copyOf(mTags, capacity);
+        }
+        System.arraycopy(mTagIds, index, mTagIds, index + 1, mTagCount - index);
+        System.arraycopy(mTags, index, mTags, index + 1, mTagCount - index);
+        mTagIds[index] = tagId;
+        mTags[index] = tag;
+        mTagCount++;
+        return null;
     }
 
     protected boolean checkCollision(short tagId) {
-        return mExifTags.get(tagId) != null;
+        return indexOf(tagId) >= 0;
     }
 
     /**
      * Removes the tag of the given ID
      */
     protected void removeTag(short tagId) {
-        mExifTags.remove(tagId);
+        int index = indexOf(tagId);
+        if (index < 0) {
+            return;
+        }
+        mTagCount--;
+        System.arraycopy(mTagIds, index + 1, mTagIds, index, mTagCount - index);
+        System.arraycopy(mTags, index + 1, mTags, index, mTagCount - index);
+        mTags[mTagCount] = null;
     }
 
     /**
      * Gets the tags count in the IFD.
      */
     protected int getTagCount() {
-        return mExifTags.size();
+        return mTagCount;
+    }
+
+    /**
+     * Returns the index of the tag in the sorted arrays, or
+     * (-(insertion point) - 1) if it isn't there. Tag ids are compared as
+     * unsigned shorts, the way they are ordered in the file.
+     */
+    private int indexOf(short tagId) {
+        int key = tagId & 0xffff;
+        int low = 0;
+        int high = mTagCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midKey = mTagIds[mid] & 0xffff;
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
     }
 
     /**
@@ -134,12 +190,12 @@ class IfdData {
         if (obj instanceof IfdData) {
             IfdData data = (IfdData) obj;
             if (data.getId() == mIfdId && data.getTagCount() == getTagCount()) {
-                ExifTag[] tags = data.getAllTags();
-                for (ExifTag tag : tags) {
+                for (int i = 0; i < data.mTagCount; i++) {
+                    ExifTag tag = data.mTags[i];
                     if (ExifInterface.isOffsetTag(tag.getTagId())) {
                         continue;
                     }
-                    ExifTag tag2 = mExifTags.get(tag.getTagId());
+                    ExifTag tag2 = getTag(tag.getTagId());
                     if (!tag.equals(tag2)) {
                         return false;
                     }
@@ -274,7 +274,10 @@ public interface FilmstripController {
          *                             the orientation of the device).
          * @param visibleItemCount The total number of rendered items.
          * @param totalItemCount The total number of items in the filmstrip.
+         * @param velocity The fling velocity in items per second, positive
+         *                 towards larger positions, or 0 when not flinging.
          */
-        public void onScroll(int firstVisiblePosition, int visibleItemCount, int totalItemCount);
+        public void onScroll(int firstVisiblePosition, int visibleItemCount, int totalItemCount,
+                float velocity);
     }
 }
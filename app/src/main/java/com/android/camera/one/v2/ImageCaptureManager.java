@@ -155,7 +155,7 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
                 mImage.close();
                 int numOpenImages = mNumOpenImages.decrementAndGet();
                 if (DEBUG_PRINT_OPEN_IMAGE_COUNT) {
-                    Log.v(TAG, "Closed an image. Number of open images = " + numOpenImages);
+                    Log.v(TAG, "Closed an image. Number of open images = %d", numOpenImages);
                 }
             }
 
@@ -402,8 +402,7 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
 
             for (final MetadataChangeListener listener :
                     mMetadataChangeListeners.get(key)) {
-                Log.v(TAG, "Dispatching to metadata change listener for key: "
-                        + key.toString());
+                Log.v(TAG, "Dispatching to metadata change listener for key: %s", key);
                 mListenerHandler.post(new Runnable() {
                         @Override
                     public void run() {
@@ -472,7 +471,7 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
         if (img != null) {
             int numOpenImages = mNumOpenImages.incrementAndGet();
             if (DEBUG_PRINT_OPEN_IMAGE_COUNT) {
-                Log.v(TAG, "Acquired an image. Number of open images = " + numOpenImages);
+                Log.v(TAG, "Acquired an image. Number of open images = %d", numOpenImages);
             }
 
             // Try to place the newly-acquired image into the ring buffer.
@@ -505,7 +504,7 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
                 img.close();
                 numOpenImages = mNumOpenImages.decrementAndGet();
                 if (DEBUG_PRINT_OPEN_IMAGE_COUNT) {
-                    Log.v(TAG, "Closed an image. Number of open images = " + numOpenImages);
+                    Log.v(TAG, "Closed an image. Number of open images = %d", numOpenImages);
                 }
             }
 
@@ -516,7 +515,7 @@ public class ImageCaptureManager extends CameraCaptureSession.CaptureCallback im
             if (totTime > DEBUG_MAX_IMAGE_CALLBACK_DUR) {
                 // If it takes too long to swap elements, we will start skipping
                 // preview frames, resulting in visible jank.
-                Log.v(TAG, "onImageAvailable() took " + totTime + "ms");
+                Log.v(TAG, "onImageAvailable() took %dms", totTime);
             }
         }
     }
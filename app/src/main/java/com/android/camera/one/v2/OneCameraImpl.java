@@ -35,6 +35,7 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.SystemClock;
+import android.util.CameraPerformanceTracker;
 import android.view.Surface;
 
 import com.android.camera.CaptureModuleUtil;
@@ -51,7 +52,8 @@ import com.android.camera.one.OneCamera;
 import com.android.camera.one.Settings3A;
 import com.android.camera.session.CaptureSession;
 import com.android.camera.util.CameraUtil;
-import com.android.camera.util.CaptureDataSerializer;
+import com.android.camera.util.CaptureDataRecorder;
+import com.android.camera.util.JpegBufferPool;
 import com.android.camera.util.JpegUtilNative;
 import com.android.camera.util.Size;
 
@@ -71,18 +73,23 @@ public class OneCameraImpl extends AbstractOneCamera {
     private static class InFlightCapture {
         final PhotoCaptureParameters parameters;
         final CaptureSession session;
+        /** Measures the time from the shutter until the JPEG is available. */
+        final CameraPerformanceTracker.Span shutterSpan;
 
         public InFlightCapture(PhotoCaptureParameters parameters,
-                CaptureSession session) {
+                CaptureSession session, CameraPerformanceTracker.Span shutterSpan) {
             this.parameters = parameters;
             this.session = session;
+            this.shutterSpan = shutterSpan;
         }
     }
 
     private static final Tag TAG = new Tag("OneCameraImpl2");
 
-    /** If true, will write data about each capture request to disk. */
+    /** If true, will record data about each capture request and result to disk. */
     private static final boolean DEBUG_WRITE_CAPTURE_DATA = DebugPropertyHelper.writeCaptureData();
+    /** The recording of capture data, in the debug data folder. */
+    private static final String CAPTURE_DATA_FILE_NAME = "capture_data.bin";
     /** If true, will log per-frame AF info. */
     private static final boolean DEBUG_FOCUS_LOG = DebugPropertyHelper.showFrameDebugLog();
 
@@ -186,6 +193,11 @@ public class OneCameraImpl extends AbstractOneCamera {
                     if (DEBUG_FOCUS_LOG) {
                         AutoFocusHelper.logExtraFocusInfo(result);
                     }
+                    CaptureDataRecorder recorder = mCaptureDataRecorder;
+                    if (recorder != null) {
+                        recorder.record(request.getTag() == RequestTag.CAPTURE
+                                ? "Capture Result" : "Preview Result", result);
+                    }
                     super.onCaptureCompleted(session, request, result);
                 }
             };
@@ -217,6 +229,11 @@ public class OneCameraImpl extends AbstractOneCamera {
     private volatile boolean mIsClosed = false;
     /** A callback that is called when the device is fully closed. */
     private CloseCallback mCloseCallback = null;
+    /**
+     * Records every request and result once capture data is written for
+     * debugging. Opened by the first capture, as that brings the folder.
+     */
+    private volatile CaptureDataRecorder mCaptureDataRecorder;
 
     /** Receives the normal captured images. */
     private final ImageReader mCaptureImageReader;
@@ -230,6 +247,7 @@ public class OneCameraImpl extends AbstractOneCamera {
                     // result.
                     capture.session.startEmpty();
                     byte[] imageBytes = acquireJpegBytesAndClose(reader);
+                    capture.shutterSpan.end();
                     // TODO: The savePicture call here seems to block UI thread.
                     savePicture(imageBytes, capture.parameters, capture.session);
                     broadcastReadyState(true);
@@ -273,10 +291,12 @@ public class OneCameraImpl extends AbstractOneCamera {
         // Not ready until the picture comes back.
         broadcastReadyState(false);
 
+        final CameraPerformanceTracker.Span shutterSpan = CameraPerformanceTracker.beginSpan(
+                CameraPerformanceTracker.STAGE_SHUTTER_TO_JPEG);
         mTakePictureRunnable = new Runnable() {
             @Override
             public void run() {
-                takePictureNow(params, session);
+                takePictureNow(params, session, shutterSpan);
             }
         };
         mLastPictureCallback = params.callback;
@@ -290,7 +310,7 @@ public class OneCameraImpl extends AbstractOneCamera {
         } else {
             // We could do CONTROL_AF_TRIGGER_START and wait until lens locks,
             // but this would slow down the capture.
-            takePictureNow(params, session);
+            takePictureNow(params, session, shutterSpan);
         }
     }
 
@@ -298,6 +318,12 @@ public class OneCameraImpl extends AbstractOneCamera {
      * Take picture immediately. Parameters passed through from takePicture().
      */
     public void takePictureNow(PhotoCaptureParameters params, CaptureSession session) {
+        takePictureNow(params, session, CameraPerformanceTracker.beginSpan(
+                CameraPerformanceTracker.STAGE_SHUTTER_TO_JPEG));
+    }
+
+    private void takePictureNow(PhotoCaptureParameters params, CaptureSession session,
+            CameraPerformanceTracker.Span shutterSpan) {
         long dt = SystemClock.uptimeMillis() - mTakePictureStartMillis;
         Log.v(TAG, "Taking shot with extra AF delay of " + dt + " ms.");
         // This will throw a RuntimeException, if parameters are not sane.
@@ -320,21 +346,21 @@ public class OneCameraImpl extends AbstractOneCamera {
             CaptureRequest request = builder.build();
 
             if (DEBUG_WRITE_CAPTURE_DATA) {
-                final String debugDataDir = makeDebugDir(params.debugDataFolder,
-                        "normal_capture_debug");
-                Log.i(TAG, "Writing capture data to: " + debugDataDir);
-                CaptureDataSerializer.toFile("Normal Capture", request, new File(debugDataDir,
-                        "capture.txt"));
+                CaptureDataRecorder recorder = openCaptureDataRecorder(params.debugDataFolder);
+                if (recorder != null) {
+                    recorder.record("Normal Capture", request);
+                }
             }
 
             mCaptureSession.capture(request, mAutoFocusStateListener, mCameraHandler);
         } catch (CameraAccessException e) {
             Log.e(TAG, "Could not access camera for still image capture.");
+            shutterSpan.cancel();
             broadcastReadyState(true);
             params.callback.onPictureTakenFailed();
             return;
         }
-        mCaptureQueue.add(new InFlightCapture(params, session));
+        mCaptureQueue.add(new InFlightCapture(params, session, shutterSpan));
     }
 
     @Override
@@ -373,6 +399,29 @@ public class OneCameraImpl extends AbstractOneCamera {
         mCloseCallback = closeCallback;
         mCameraThread.quitSafely();
         mDevice.close();
+        if (mCaptureDataRecorder != null) {
+            mCaptureDataRecorder.close();
+        }
+        // Don't hold on to idle jpeg buffers while the camera is closed.
+        JpegBufferPool.getInstance().clear();
+    }
+
+    /**
+     * Returns the recorder of capture data, opening it in the given folder
+     * the first time, or null if it can't be opened.
+     */
+    private synchronized CaptureDataRecorder openCaptureDataRecorder(File folder) {
+        if (mCaptureDataRecorder == null && folder != null) {
+            File file = new File(folder, CAPTURE_DATA_FILE_NAME);
+            try {
+                mCaptureDataRecorder = new CaptureDataRecorder(file,
+                        CaptureDataRecorder.DEFAULT_CAPACITY);
+                Log.i(TAG, "Writing capture data to: " + file);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open capture data recording " + file, e);
+            }
+        }
+        return mCaptureDataRecorder;
     }
 
     @Override
@@ -465,6 +514,8 @@ public class OneCameraImpl extends AbstractOneCamera {
      * @param listener called when the setup is completed.
      */
     private void setup(Surface previewSurface, final CaptureReadyCallback listener) {
+        final CameraPerformanceTracker.Span configureSpan = CameraPerformanceTracker.beginSpan(
+                CameraPerformanceTracker.STAGE_SESSION_CONFIGURED);
         try {
             if (mCaptureSession != null) {
                 mCaptureSession.abortCaptures();
@@ -478,11 +529,13 @@ public class OneCameraImpl extends AbstractOneCamera {
 
                 @Override
                 public void onConfigureFailed(CameraCaptureSession session) {
+                    configureSpan.cancel();
                     listener.onSetupFailed();
                 }
 
                 @Override
                 public void onConfigured(CameraCaptureSession session) {
+                    configureSpan.end();
                     mCaptureSession = session;
                     mAFRegions = ZERO_WEIGHT_3A_REGION;
                     mAERegions = ZERO_WEIGHT_3A_REGION;
@@ -506,6 +559,7 @@ public class OneCameraImpl extends AbstractOneCamera {
             }, mCameraHandler);
         } catch (CameraAccessException ex) {
             Log.e(TAG, "Could not set up capture session", ex);
+            configureSpan.cancel();
             listener.onSetupFailed();
         }
     }
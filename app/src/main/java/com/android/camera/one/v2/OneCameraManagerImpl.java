@@ -22,6 +22,7 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.os.Handler;
+import android.util.CameraPerformanceTracker;
 import android.util.DisplayMetrics;
 
 import com.android.camera.SoundPlayer;
@@ -64,6 +65,8 @@ public class OneCameraManagerImpl extends OneCameraManager {
     @Override
     public void open(Facing facing, final boolean useHdr, final Size pictureSize,
             final OpenCallback openCallback, Handler handler) {
+        final CameraPerformanceTracker.Span openSpan = CameraPerformanceTracker.beginSpan(
+                CameraPerformanceTracker.STAGE_CAMERA_OPEN);
         try {
             final String cameraId = getCameraId(facing);
             Log.i(TAG, "Opening Camera ID " + cameraId);
@@ -79,6 +82,7 @@ public class OneCameraManagerImpl extends OneCameraManager {
                 public void onDisconnected(CameraDevice device) {
                     if (isFirstCallback) {
                         isFirstCallback = false;
+                        openSpan.cancel();
                         // If the camera is disconnected before it is opened
                         // then we must call close.
                         device.close();
@@ -90,6 +94,7 @@ public class OneCameraManagerImpl extends OneCameraManager {
                 public void onClosed(CameraDevice device) {
                     if (isFirstCallback) {
                         isFirstCallback = false;
+                        openSpan.cancel();
                         openCallback.onCameraClosed();
                     }
                 }
@@ -98,6 +103,7 @@ public class OneCameraManagerImpl extends OneCameraManager {
                 public void onError(CameraDevice device, int error) {
                     if (isFirstCallback) {
                         isFirstCallback = false;
+                        openSpan.cancel();
                         device.close();
                         openCallback.onFailure();
                     }
@@ -107,6 +113,7 @@ public class OneCameraManagerImpl extends OneCameraManager {
                 public void onOpened(CameraDevice device) {
                     if (isFirstCallback) {
                         isFirstCallback = false;
+                        openSpan.end();
                         try {
                             CameraCharacteristics characteristics = mCameraManager
                                     .getCameraCharacteristics(device.getId());
@@ -124,6 +131,7 @@ public class OneCameraManagerImpl extends OneCameraManager {
             }, handler);
         } catch (CameraAccessException ex) {
             Log.e(TAG, "Could not open camera. " + ex.getMessage());
+            openSpan.cancel();
             handler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -132,6 +140,7 @@ public class OneCameraManagerImpl extends OneCameraManager {
             });
         } catch (UnsupportedOperationException ex) {
             Log.e(TAG, "Could not open camera. " + ex.getMessage());
+            openSpan.cancel();
             handler.post(new Runnable() {
                 @Override
                 public void run() {
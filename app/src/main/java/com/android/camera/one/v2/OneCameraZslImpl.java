@@ -40,7 +40,6 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.SystemClock;
-import android.support.v4.util.Pools;
 import android.view.Surface;
 
 import com.android.camera.CaptureModuleUtil;
@@ -59,6 +58,7 @@ import com.android.camera.one.v2.ImageCaptureManager.MetadataChangeListener;
 import com.android.camera.session.CaptureSession;
 import com.android.camera.util.CameraUtil;
 import com.android.camera.util.ConjunctionListenerMux;
+import com.android.camera.util.JpegBufferPool;
 import com.android.camera.util.JpegUtilNative;
 import com.android.camera.util.Size;
 
@@ -172,9 +172,8 @@ public class OneCameraZslImpl extends AbstractOneCamera {
     /** Thread pool for performing slow jpeg encoding and saving tasks. */
     private final ThreadPoolExecutor mImageSaverThreadPool;
 
-    /** Pool of native byte buffers on which to store jpeg-encoded images. */
-    private final Pools.SynchronizedPool<ByteBuffer> mJpegByteBufferPool = new
-            Pools.SynchronizedPool<ByteBuffer>(64);
+    /** Pool of heap and native buffers on which to store jpeg-encoded images. */
+    private final JpegBufferPool mJpegBufferPool = JpegBufferPool.getInstance();
 
     /** Current zoom value. 1.0 is no zoom. */
     private float mZoomValue = 1f;
@@ -321,6 +320,12 @@ public class OneCameraZslImpl extends AbstractOneCamera {
         mCaptureImageReader = ImageReader.newInstance(pictureSize.getWidth(),
                 pictureSize.getHeight(),
                 sCaptureImageFormat, MAX_CAPTURE_IMAGES);
+        if (sCaptureImageFormat == ImageFormat.YUV_420_888) {
+            // Every capture is encoded into a buffer of this size, so don't
+            // round it up to the next size class.
+            mJpegBufferPool.addSizeClass(getEncodeBufferSize(pictureSize.getWidth(),
+                    pictureSize.getHeight()));
+        }
 
         mCaptureImageReader.setOnImageAvailableListener(mCaptureManager, mCameraHandler);
         mMediaActionSound.load(MediaActionSound.SHUTTER_CLICK);
@@ -548,6 +553,8 @@ public class OneCameraZslImpl extends AbstractOneCamera {
         mCameraThread.quitSafely();
         mDevice.close();
         mCaptureManager.close();
+        // Don't hold on to idle jpeg buffers while the camera is closed.
+        mJpegBufferPool.clear();
     }
 
     @Override
@@ -603,7 +610,7 @@ public class OneCameraZslImpl extends AbstractOneCamera {
             exif.setTag(directionTag);
         }
 
-        session.saveAndFinish(acquireJpegBytes(image), width, height, rotation, exif,
+        session.saveAndFinish(acquireJpeg(image), width, height, rotation, exif,
                 new OnMediaSavedListener() {
                 @Override
                     public void onMediaSaved(Uri uri) {
@@ -924,45 +931,53 @@ public class OneCameraZslImpl extends AbstractOneCamera {
     }
 
     /**
-     * Given an image reader, extracts the JPEG image bytes and then closes the
-     * reader.
+     * Returns the size of the buffer a YUV image of the given size is
+     * compressed into: three bytes per pixel.
+     */
+    private static int getEncodeBufferSize(int width, int height) {
+        return width * height * 3;
+    }
+
+    /**
+     * Given an image, extracts the JPEG image bytes, compressing the image
+     * to JPEG first if necessary.
      *
      * @param img the image from which to extract jpeg bytes or compress to
      *            jpeg.
-     * @return The bytes of the JPEG image. Newly allocated.
+     * @return A lease on a pooled buffer holding the JPEG image, which the
+     *         caller must release.
      */
-    private byte[] acquireJpegBytes(Image img) {
+    private JpegBufferPool.Lease acquireJpeg(Image img) {
         ByteBuffer buffer;
 
         if (img.getFormat() == ImageFormat.JPEG) {
             Image.Plane plane0 = img.getPlanes()[0];
             buffer = plane0.getBuffer();
 
-            byte[] imageBytes = new byte[buffer.remaining()];
-            buffer.get(imageBytes);
+            JpegBufferPool.Lease jpeg = mJpegBufferPool.acquireHeap(buffer.remaining());
+            buffer.get(jpeg.getArray(), 0, jpeg.getLength());
             buffer.rewind();
-            return imageBytes;
+            return jpeg;
         } else if (img.getFormat() == ImageFormat.YUV_420_888) {
-            buffer = mJpegByteBufferPool.acquire();
-            if (buffer == null) {
-                buffer = ByteBuffer.allocateDirect(img.getWidth() * img.getHeight() * 3);
-            }
+            JpegBufferPool.Lease encoded = mJpegBufferPool.acquireDirect(
+                    getEncodeBufferSize(img.getWidth(), img.getHeight()));
+            try {
+                buffer = encoded.getBuffer();
+                int numBytes = JpegUtilNative.compressJpegFromYUV420Image(img, buffer,
+                        JPEG_QUALITY);
+
+                if (numBytes < 0) {
+                    throw new RuntimeException("Error compressing jpeg.");
+                }
 
-            int numBytes = JpegUtilNative.compressJpegFromYUV420Image(img, buffer, JPEG_QUALITY);
+                buffer.limit(numBytes);
 
-            if (numBytes < 0) {
-                throw new RuntimeException("Error compressing jpeg.");
+                JpegBufferPool.Lease jpeg = mJpegBufferPool.acquireHeap(numBytes);
+                buffer.get(jpeg.getArray(), 0, numBytes);
+                return jpeg;
+            } finally {
+                encoded.release();
             }
-
-            buffer.limit(numBytes);
-
-            byte[] imageBytes = new byte[buffer.remaining()];
-            buffer.get(imageBytes);
-
-            buffer.clear();
-            mJpegByteBufferPool.release(buffer);
-
-            return imageBytes;
         } else {
             throw new RuntimeException("Unsupported image format.");
         }
@@ -37,12 +37,17 @@ import com.android.camera.session.CaptureSession.ProgressListener;
 import com.android.camera.session.CaptureSessionManager;
 import com.android.camera2.R;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * A service that processes a {@code ProcessingTask}. The service uses a fifo
- * queue so that only one {@code ProcessingTask} is processed at a time.
+ * A service that processes {@code ProcessingTask}s. Tasks are taken from the
+ * queue of the {@link ProcessingServiceManager} by priority, and run
+ * concurrently as long as their memory estimates fit in the native memory
+ * budget of the app, see
+ * {@link com.android.camera.app.MemoryManager#getMaxAllowedNativeMemoryAllocation}.
  * <p>
  * The service is meant to be called via {@code ProcessingService.addTask},
  * which takes care of starting the service and enqueueing the
@@ -73,6 +78,9 @@ public class ProcessingService extends Service implements ProgressListener {
     private static final Log.Tag TAG = new Log.Tag("ProcessingService");
     private static final int THREAD_PRIORITY = Process.THREAD_PRIORITY_DISPLAY;
     private static final int CAMERA_NOTIFICATION_ID = 2;
+    /** The most tasks processed at once, whatever their memory use. */
+    private static final int MAX_CONCURRENT_TASKS = Math.max(1,
+            Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
     private Notification.Builder mNotificationBuilder;
     private NotificationManager mNotificationManager;
 
@@ -93,10 +101,80 @@ public class ProcessingService extends Service implements ProgressListener {
     private CaptureSessionManager mSessionManager;
 
     private ProcessingServiceManager mProcessingServiceManager;
-    private Thread mProcessingThread;
-    private volatile boolean mPaused = false;
-    private ProcessingTask mCurrentTask;
-    private final Lock mSuspendStatusLock = new ReentrantLock();
+    private ExecutorService mExecutor;
+    /** The native memory all running tasks together may use, in megabytes. */
+    private int mMemoryBudgetMb;
+
+    /** Guards the fields below. */
+    private final Object mLock = new Object();
+    private boolean mPaused = false;
+    /** The running tasks, in the order they started. */
+    private final List<RunningTask> mRunningTasks = new ArrayList<RunningTask>();
+    private int mMemoryInUseMb;
+
+    /**
+     * A task being processed. Whether it is suspended is tracked per task, so
+     * that each task is suspended and resumed exactly once, including tasks
+     * which start while processing is paused.
+     */
+    private class RunningTask implements Runnable, ProgressListener {
+        final ProcessingServiceManager.QueuedTask mQueued;
+        final int mMemoryMb;
+        private boolean mSuspended;
+        /** The last progress and message of the task, guarded by mLock. */
+        private int mProgress;
+        private CharSequence mStatusMessage = "…";
+
+        RunningTask(ProcessingServiceManager.QueuedTask queued, int memoryMb) {
+            mQueued = queued;
+            mMemoryMb = memoryMb;
+        }
+
+        synchronized void suspend() {
+            if (!mSuspended) {
+                mSuspended = true;
+                mQueued.task.suspend();
+            }
+        }
+
+        synchronized void resume() {
+            if (mSuspended) {
+                mSuspended = false;
+                mQueued.task.resume();
+            }
+        }
+
+        @Override
+        public void run() {
+            // Set the thread priority
+            android.os.Process.setThreadPriority(THREAD_PRIORITY);
+            try {
+                processAndNotify(this);
+            } finally {
+                onTaskDone(this);
+            }
+        }
+
+        @Override
+        public void onProgressChanged(int progress) {
+            synchronized (mLock) {
+                mProgress = progress;
+                if (isNotificationOwner(this)) {
+                    ProcessingService.this.onProgressChanged(progress);
+                }
+            }
+        }
+
+        @Override
+        public void onStatusMessageChanged(CharSequence message) {
+            synchronized (mLock) {
+                mStatusMessage = message;
+                if (isNotificationOwner(this)) {
+                    ProcessingService.this.onStatusMessageChanged(message);
+                }
+            }
+        }
+    }
 
     @Override
     public void onCreate() {
@@ -115,6 +193,9 @@ public class ProcessingService extends Service implements ProgressListener {
         LocalBroadcastManager.getInstance(this).registerReceiver(mServiceController, intentFilter);
         mNotificationBuilder = createInProgressNotificationBuilder();
         mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+
+        mMemoryBudgetMb = getServices().getMemoryManager().getMaxAllowedNativeMemoryAllocation();
+        mExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_TASKS);
     }
 
     @Override
@@ -128,6 +209,7 @@ public class ProcessingService extends Service implements ProgressListener {
             mWakeLock.release();
         }
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mServiceController);
+        mExecutor.shutdown();
         stopForeground(true);
     }
 
@@ -139,7 +221,7 @@ public class ProcessingService extends Service implements ProgressListener {
         // killed easily when memory pressure is building up.
         startForeground(CAMERA_NOTIFICATION_ID, mNotificationBuilder.build());
 
-        asyncProcessAllTasksAndShutdown();
+        scheduleTasksOrShutdown();
 
         // We want this service to continue running until it is explicitly
         // stopped, so return sticky.
@@ -154,67 +236,82 @@ public class ProcessingService extends Service implements ProgressListener {
 
     private void pause() {
         Log.d(TAG, "Pausing");
-        try {
-            mSuspendStatusLock.lock();
+        synchronized (mLock) {
             mPaused = true;
-            if (mCurrentTask != null) {
-                mCurrentTask.suspend();
+            for (RunningTask task : mRunningTasks) {
+                task.suspend();
             }
-        } finally {
-            mSuspendStatusLock.unlock();
         }
     }
 
     private void resume() {
         Log.d(TAG, "Resuming");
-        try {
-            mSuspendStatusLock.lock();
+        synchronized (mLock) {
             mPaused = false;
-            if (mCurrentTask != null) {
-                mCurrentTask.resume();
+            for (RunningTask task : mRunningTasks) {
+                task.resume();
             }
-        } finally {
-            mSuspendStatusLock.unlock();
         }
     }
 
     /**
-     * Starts a thread to process all tasks. When no more tasks are in the
-     * queue, it exits the thread and shuts down the service.
+     * Starts as many queued tasks as the memory budget allows. When no more
+     * tasks are in the queue and none is running, it shuts down the service.
      */
-    private void asyncProcessAllTasksAndShutdown() {
-        if (mProcessingThread != null) {
-            return;
-        }
-        mProcessingThread = new Thread("CameraProcessingThread") {
-            @Override
-            public void run() {
-                // Set the thread priority
-                android.os.Process.setThreadPriority(THREAD_PRIORITY);
-
-                ProcessingTask task;
-                while ((task = mProcessingServiceManager.popNextSession()) != null) {
-                    mCurrentTask = task;
-                    try {
-                        mSuspendStatusLock.lock();
-                        if (mPaused) {
-                            mCurrentTask.suspend();
-                        }
-                    } finally {
-                        mSuspendStatusLock.unlock();
-                    }
-                    processAndNotify(task);
+    private void scheduleTasksOrShutdown() {
+        synchronized (mLock) {
+            while (mRunningTasks.size() < MAX_CONCURRENT_TASKS) {
+                ProcessingServiceManager.QueuedTask queued = mProcessingServiceManager.pollTask(
+                        mMemoryBudgetMb - mMemoryInUseMb, mMemoryBudgetMb,
+                        mRunningTasks.isEmpty());
+                if (queued == null) {
+                    break;
+                }
+                RunningTask task = new RunningTask(queued, queued.getMemoryMb(mMemoryBudgetMb));
+                if (mPaused) {
+                    task.suspend();
                 }
+                mRunningTasks.add(task);
+                mMemoryInUseMb += task.mMemoryMb;
+                Log.d(TAG, "Starting task, " + mRunningTasks.size() + " running, "
+                        + mMemoryInUseMb + " of " + mMemoryBudgetMb + "MB in use");
+                mExecutor.execute(task);
+            }
+            if (mRunningTasks.isEmpty()) {
                 stopSelf();
             }
-        };
-        mProcessingThread.start();
+        }
+    }
+
+    private void onTaskDone(RunningTask task) {
+        synchronized (mLock) {
+            boolean wasNotificationOwner = isNotificationOwner(task);
+            mRunningTasks.remove(task);
+            mMemoryInUseMb -= task.mMemoryMb;
+            if (wasNotificationOwner && !mRunningTasks.isEmpty()) {
+                // Show the oldest task which is still running.
+                RunningTask next = mRunningTasks.get(0);
+                mNotificationBuilder.setContentText(next.mStatusMessage)
+                        .setProgress(100, next.mProgress, false);
+                postNotification();
+            }
+        }
+        scheduleTasksOrShutdown();
+    }
+
+    /**
+     * The notification shows the progress of the oldest running task. Must be
+     * called with mLock held, which also serializes notification updates.
+     */
+    private boolean isNotificationOwner(RunningTask task) {
+        return !mRunningTasks.isEmpty() && mRunningTasks.get(0) == task;
     }
 
     /**
      * Processes a {@code ProcessingTask} and updates the notification bar.
      */
-    void processAndNotify(ProcessingTask task) {
+    private void processAndNotify(RunningTask runningTask) {
+        ProcessingTask task = runningTask.mQueued.task;
         if (task == null) {
             Log.e(TAG, "Reference to ProcessingTask is null");
             return;
@@ -224,13 +321,16 @@ public class ProcessingService extends Service implements ProgressListener {
             // TODO: Timestamp is not required right now, refactor this to make it clearer.
             session = mSessionManager.createNewSession(task.getName(), 0, task.getLocation());
         }
-        resetNotification();
+        synchronized (mLock) {
+            if (isNotificationOwner(runningTask)) {
+                resetNotification();
+            }
+        }
 
         // Adding the listener also causes it to get called for the session's
         // current status message and percent completed.
-        session.addProgressListener(this);
+        session.addProgressListener(runningTask);
 
-        System.gc();
         Log.d(TAG, "Processing start");
         task.process(this, getServices(), session);
         Log.d(TAG, "Processing done");
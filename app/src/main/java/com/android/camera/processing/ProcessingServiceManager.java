@@ -21,26 +21,83 @@ import android.content.Intent;
 
 import com.android.camera.debug.Log;
 
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
 
 /**
  * Manages a queue of processing tasks as well as the processing service
  * lifecycle.
  * <p>
+ * Tasks are taken from the queue by priority, and in the order they were
+ * enqueued among equal priorities. Each task comes with an estimate of the
+ * native memory it needs, which the {@link ProcessingService} uses to run as
+ * many tasks at once as fit in the memory budget of the app.
+ * <p>
  * Clients should only use this class and not the {@link ProcessingService}
  * directly.
  */
 public class ProcessingServiceManager {
     private static final Log.Tag TAG = new Log.Tag("ProcessingSvcMgr");
 
+    /** The priority of tasks nobody is waiting for. */
+    public static final int PRIORITY_BACKGROUND = 0;
+    /** The priority of tasks whose result the user is looking at. */
+    public static final int PRIORITY_USER_VISIBLE = 10;
+
+    /**
+     * The memory estimate of tasks which don't know how much memory they
+     * need. Such tasks only run alone.
+     */
+    public static final int MEMORY_UNKNOWN = -1;
+
+    /**
+     * The memory estimate of tasks enqueued through
+     * {@link #enqueueTask(ProcessingTask)}, in megabytes. This is about what a
+     * full resolution ARGB frame of a 13 megapixel sensor and its encoding
+     * buffers take, so that such tasks still run next to each other.
+     */
+    public static final int DEFAULT_MEMORY_MB = 64;
+
+    /** A task in the queue, with what the service needs to schedule it. */
+    static class QueuedTask implements Comparable<QueuedTask> {
+        final ProcessingTask task;
+        /** The estimated native memory use in megabytes, or MEMORY_UNKNOWN. */
+        private final int mMemoryMb;
+        private final long mSequence;
+        private int mPriority;
+
+        QueuedTask(ProcessingTask task, int priority, int memoryMb, long sequence) {
+            this.task = task;
+            mMemoryMb = memoryMb;
+            mSequence = sequence;
+            mPriority = priority;
+        }
+
+        /** Returns how much of the given budget the task uses while it runs. */
+        int getMemoryMb(int budgetMb) {
+            return mMemoryMb == MEMORY_UNKNOWN ? budgetMb : Math.min(mMemoryMb, budgetMb);
+        }
+
+        @Override
+        public int compareTo(QueuedTask other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
     /** The singleton instance of this manager. */
     private static ProcessingServiceManager sInstance;
 
     /** The application context. */
     private final Context mAppContext;
 
-    /** Queue of tasks to be processed. */
-    private final LinkedList<ProcessingTask> mQueue = new LinkedList<ProcessingTask>();
+    /** Queue of tasks to be processed, highest priority first. */
+    private final PriorityQueue<QueuedTask> mQueue = new PriorityQueue<QueuedTask>();
+
+    /** Orders tasks of equal priority. */
+    private long mNextSequence;
 
     /** Whether a processing service is currently running. */
     private volatile boolean mServiceRunning = false;
@@ -69,43 +126,110 @@ public class ProcessingServiceManager {
         return sInstance;
     }
 
-    private ProcessingServiceManager(Context context) {
+    /** Not private so that tests can use their own instance. */
+    ProcessingServiceManager(Context context) {
         mAppContext = context;
     }
 
     /**
-     * Enqueues a new task. If the service is not already running, it will be
-     * started.
+     * Enqueues a new background task which needs {@link #DEFAULT_MEMORY_MB}.
+     * The service is started, or told to schedule the task if it is running.
      *
      * @param task The task to be enqueued.
      */
-    public synchronized void enqueueTask(ProcessingTask task) {
-        mQueue.add(task);
-        Log.d(TAG, "Task added. Queue size now: " + mQueue.size());
+    public void enqueueTask(ProcessingTask task) {
+        enqueueTask(task, PRIORITY_BACKGROUND, DEFAULT_MEMORY_MB);
+    }
 
-        if (!mServiceRunning && !mHoldProcessing) {
+    /**
+     * Enqueues a new task. The service is started, or told to schedule the
+     * task if it is running.
+     *
+     * @param task The task to be enqueued.
+     * @param priority The priority of the task, e.g.
+     *            {@link #PRIORITY_USER_VISIBLE}.
+     * @param memoryMb The native memory the task needs at most, in
+     *            megabytes, or {@link #MEMORY_UNKNOWN}.
+     */
+    public synchronized void enqueueTask(ProcessingTask task, int priority, int memoryMb) {
+        mQueue.add(new QueuedTask(task, priority, memoryMb, mNextSequence++));
+        Log.d(TAG, "Task added. Queue size now: %d", mQueue.size());
+
+        // A running service only looks at the queue when a task finishes, so
+        // it is told about each new task to start it next to the running ones.
+        if (!mHoldProcessing) {
             startService();
         }
     }
 
     /**
-     * Remove the next task from the queue and return it.
+     * Changes the priority of a task which is still in the queue, e.g. when
+     * the user opens its session.
      *
-     * @return The next Task or <code>null</code>, if no more tasks are in the
-     *         queue or we have a processing hold. If null is returned the
-     *         service is has to shut down as a new service is started if either
-     *         new items enter the queue or the processing is resumed.
+     * @return Whether the task was found in the queue.
      */
-    public synchronized ProcessingTask popNextSession() {
-        if (!mQueue.isEmpty() && !mHoldProcessing) {
-            Log.d(TAG, "Popping a session. Remaining: " + (mQueue.size() - 1));
-            return mQueue.remove();
-        } else {
-            Log.d(TAG, "Popping null. On hold? " + mHoldProcessing);
-            mServiceRunning = false;
-            // Returning null will shut-down the service.
+    public synchronized boolean setTaskPriority(ProcessingTask task, int priority) {
+        QueuedTask queued = removeQueuedTask(task);
+        if (queued == null) {
+            return false;
+        }
+        queued.mPriority = priority;
+        mQueue.add(queued);
+        return true;
+    }
+
+    /**
+     * Removes a task from the queue if it has not started yet. Tasks which are
+     * already processing run to the end.
+     *
+     * @return Whether the task was found in the queue and removed.
+     */
+    public synchronized boolean cancelTask(ProcessingTask task) {
+        boolean removed = removeQueuedTask(task) != null;
+        Log.d(TAG, "Cancel task. Removed? %b", removed);
+        return removed;
+    }
+
+    private QueuedTask removeQueuedTask(ProcessingTask task) {
+        for (Iterator<QueuedTask> it = mQueue.iterator(); it.hasNext();) {
+            QueuedTask queued = it.next();
+            if (queued.task == task) {
+                it.remove();
+                return queued;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the next task from the queue and returns it, if it fits in the
+     * memory left. Tasks never skip ahead of a higher priority task which is
+     * waiting for memory.
+     *
+     * @param freeMemoryMb The memory not used by running tasks.
+     * @param budgetMb The memory available to all tasks together.
+     * @param idle Whether no task is running, in which case the next task is
+     *            returned even if it needs more than the budget.
+     * @return The next task or <code>null</code>, if no task fits, no more
+     *         tasks are in the queue or we have a processing hold. If null is
+     *         returned while the service is idle, the service has to shut
+     *         down as a new service is started if either new items enter the
+     *         queue or the processing is resumed.
+     */
+    synchronized QueuedTask pollTask(int freeMemoryMb, int budgetMb, boolean idle) {
+        if (mQueue.isEmpty() || mHoldProcessing) {
+            if (idle) {
+                Log.d(TAG, "Popping null. On hold? %b", mHoldProcessing);
+                mServiceRunning = false;
+            }
+            // Returning null while idle will shut-down the service.
+            return null;
+        }
+        if (!idle && mQueue.peek().getMemoryMb(budgetMb) > freeMemoryMb) {
             return null;
         }
+        Log.d(TAG, "Popping a session. Remaining: %d", mQueue.size() - 1);
+        return mQueue.poll();
     }
 
     /**
@@ -138,7 +262,7 @@ public class ProcessingServiceManager {
      * Releases an existing hold.
      */
     public synchronized void resumeProcessing() {
-        Log.d(TAG, "Resume processing. Queue size: " + mQueue.size());
+        Log.d(TAG, "Resume processing. Queue size: %d", mQueue.size());
         if (mHoldProcessing) {
           mHoldProcessing = false;
             if (!mQueue.isEmpty()) {
@@ -148,9 +272,10 @@ public class ProcessingServiceManager {
     }
 
     /**
-     * Starts the service which will then work through the queue. Once the queue
-     * is empty {@link #popNextSession()} returns null), the task will kill
-     * itself automatically and call #stitchingFinished().
+     * Starts the service which will then work through the queue. If it is
+     * already running, it starts the tasks which fit next to the running ones.
+     * Once the queue is empty {@link #pollTask} returns null), the task will
+     * kill itself automatically and call #stitchingFinished().
      */
     private void startService() {
         mAppContext.startService(new Intent(mAppContext, ProcessingService.class));
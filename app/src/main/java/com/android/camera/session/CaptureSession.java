@@ -21,6 +21,7 @@ import android.net.Uri;
 
 import com.android.camera.app.MediaSaver.OnMediaSavedListener;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.util.JpegBufferPool;
 
 /**
  * A session is an item that is in progress of being created and saved, such as
@@ -120,6 +121,14 @@ public interface CaptureSession {
     public void saveAndFinish(byte[] data, int width, int height, int orientation,
             ExifInterface exif, OnMediaSavedListener listener);
 
+    /**
+     * Like {@link #saveAndFinish(byte[], int, int, int, ExifInterface,
+     * OnMediaSavedListener)}, for image data in a pooled buffer. The session
+     * takes over the caller's reference to the lease.
+     */
+    public void saveAndFinish(JpegBufferPool.Lease data, int width, int height, int orientation,
+            ExifInterface exif, OnMediaSavedListener listener);
+
     /**
      * Finishes the session.
      */
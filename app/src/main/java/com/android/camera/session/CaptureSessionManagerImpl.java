@@ -30,6 +30,7 @@ import com.android.camera.data.LocalData;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.util.FileUtil;
+import com.android.camera.util.JpegBufferPool;
 
 import java.io.File;
 import java.io.IOException;
@@ -159,6 +160,12 @@ public class CaptureSessionManagerImpl implements CaptureSessionManager {
         @Override
         public synchronized void saveAndFinish(byte[] data, int width, int height, int orientation,
                 ExifInterface exif, final OnMediaSavedListener listener) {
+            saveAndFinish(JpegBufferPool.wrap(data), width, height, orientation, exif, listener);
+        }
+
+        @Override
+        public synchronized void saveAndFinish(JpegBufferPool.Lease data, int width, int height,
+                int orientation, ExifInterface exif, final OnMediaSavedListener listener) {
             if (mNoPlaceHolderRequired) {
                 mMediaSaver.addImage(
                         data, mTitle, mSessionStartMillis, null, width, height,
@@ -166,14 +173,19 @@ public class CaptureSessionManagerImpl implements CaptureSessionManager {
                 return;
             }
 
-            if (mPlaceHolderSession == null) {
-                throw new IllegalStateException(
-                        "Cannot call saveAndFinish without calling startSession first.");
-            }
+            try {
+                if (mPlaceHolderSession == null) {
+                    throw new IllegalStateException(
+                            "Cannot call saveAndFinish without calling startSession first.");
+                }
 
-            // TODO: This needs to happen outside the UI thread.
-            mContentUri = mPlaceholderManager.finishPlaceholder(mPlaceHolderSession, mLocation,
-                    orientation, exif, data, width, height, LocalData.MIME_TYPE_JPEG);
+                // TODO: This needs to happen outside the UI thread.
+                mContentUri = mPlaceholderManager.finishPlaceholder(mPlaceHolderSession,
+                        mLocation, orientation, exif, data, width, height,
+                        LocalData.MIME_TYPE_JPEG);
+            } finally {
+                data.release();
+            }
 
             removeSession(mUri.toString());
             notifyTaskDone(mPlaceHolderSession.outputUri);
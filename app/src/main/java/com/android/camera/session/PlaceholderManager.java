@@ -28,6 +28,7 @@ import com.android.camera.Storage;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.JpegBufferPool;
 
 /**
  * Handles placeholders in filmstrip that show up temporarily while a final
@@ -104,9 +105,25 @@ public class PlaceholderManager {
      */
     public Uri finishPlaceholder(Session session, Location location, int orientation,
                                  ExifInterface exif, byte[] jpeg, int width, int height, String mimeType) {
+        return finishPlaceholder(session, location, orientation, exif, JpegBufferPool.wrap(jpeg),
+                width, height, mimeType);
+    }
+
+    /**
+     * Converts an existing item into a placeholder for re-processing, with
+     * the image bytes in a pooled buffer. The caller keeps its reference to
+     * the lease.
+     *
+     * @see #finishPlaceholder(Session, Location, int, ExifInterface, byte[],
+     *      int, int, String)
+     */
+    public Uri finishPlaceholder(Session session, Location location, int orientation,
+                                 ExifInterface exif, JpegBufferPool.Lease jpeg, int width,
+                                 int height, String mimeType) {
 
         Uri resultUri = Storage.updateImage(session.outputUri, mContext.getContentResolver(), session.outputTitle,
-                session.time, location, orientation, exif, jpeg, width, height, mimeType);
+                session.time, location, orientation, exif, jpeg.getArray(), jpeg.getLength(),
+                width, height, mimeType);
         CameraUtil.broadcastNewPicture(mContext, resultUri);
         return resultUri;
     }
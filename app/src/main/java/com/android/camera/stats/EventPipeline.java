@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stats;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+
+import com.android.camera.debug.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects events as small binary records and hands them to an
+ * {@link EventSink} in batches, on a background thread.
+ * <p>
+ * The records live in a preallocated ring. Any thread can add an event
+ * without locking or allocating: it claims a record with {@link #claim},
+ * writes the payload to the buffer from {@link #getRecord} and hands the
+ * record over with {@link #publish}. When the ring is full, new events are
+ * dropped and counted, so that the threads adding events never wait.
+ * <p>
+ * Each record is at most {@link #RECORD_SIZE} bytes and starts with its
+ * length (int), its type (short) and its wall clock time in milliseconds
+ * (long), followed by the payload. Strings are written by
+ * {@link #putString}. All values are big endian.
+ */
+public class EventPipeline {
+    private static final Log.Tag TAG = new Log.Tag("EventPipeline");
+
+    public static final int RECORD_SIZE = 256;
+    /** The length, type and time at the start of every record. */
+    public static final int HEADER_SIZE = 4 + 2 + 8;
+    /** The longest string stored, longer ones are truncated. */
+    public static final int MAX_STRING_CHARS = 48;
+
+    private static final int MSG_FLUSH = 1;
+    /**
+     * The tail once the pipeline is closed. No record is ever free at this
+     * position, so claims which raced with closing are dropped and counted.
+     */
+    private static final long CLOSED_TAIL = Long.MAX_VALUE;
+
+    private final EventSink mSink;
+    private final int mCapacity;
+    private final int mMask;
+    private final int mBatchSize;
+    private final long mFlushDelayMs;
+
+    /** The records, one after the other. */
+    private final byte[] mData;
+    private final ByteBuffer mDataBuffer;
+    /** A view of each record of mData, for the thread which claimed it. */
+    private final ByteBuffer[] mRecords;
+    /**
+     * For each record, the position it may be claimed at, or that position
+     * plus one once it is published.
+     */
+    private final AtomicLongArray mSequences;
+    /** The position of the next record to claim. */
+    private final AtomicLong mTail = new AtomicLong();
+    /** The position of the next record to deliver, set by the pipeline thread. */
+    private volatile long mHead;
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private long mLoggedDroppedCount;
+    private final byte[] mBatch;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private final AtomicBoolean mUrgentFlushScheduled = new AtomicBoolean();
+    private volatile boolean mClosed;
+
+    /**
+     * @param name the name of the pipeline thread.
+     * @param capacity the number of records which may wait to be delivered,
+     *            a power of two.
+     * @param batchSize the number of records which are delivered at once, and
+     *            which are delivered right away when they are waiting.
+     * @param flushDelayMs how long records wait for a batch to fill up.
+     */
+    public EventPipeline(String name, EventSink sink, int capacity, int batchSize,
+            long flushDelayMs) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        if (batchSize <= 0 || batchSize > capacity) {
+            throw new IllegalArgumentException("Bad batch size: " + batchSize);
+        }
+        mSink = sink;
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mBatchSize = batchSize;
+        mFlushDelayMs = flushDelayMs;
+
+        mData = new byte[capacity * RECORD_SIZE];
+        mDataBuffer = ByteBuffer.wrap(mData);
+        mRecords = new ByteBuffer[capacity];
+        mSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mRecords[i] = ByteBuffer.wrap(mData, i * RECORD_SIZE, RECORD_SIZE).slice();
+            mSequences.set(i, i);
+        }
+        mBatch = new byte[batchSize * RECORD_SIZE];
+
+        mThread = new HandlerThread(name, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_FLUSH) {
+                    mUrgentFlushScheduled.set(false);
+                    mFlushScheduled.set(false);
+                    drain();
+                }
+            }
+        };
+    }
+
+    /**
+     * Claims a record for a new event and writes its header. The record
+     * must be published by the same thread soon after.
+     *
+     * @return The position of the record, or -1 if the event is dropped
+     *         because the ring is full or the pipeline is closed.
+     */
+    public long claim(short type) {
+        if (mClosed) {
+            return -1;
+        }
+        long position = mTail.get();
+        while (true) {
+            long difference = mSequences.get((int) position & mMask) - position;
+            if (difference == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = mTail.get();
+            } else if (difference < 0) {
+                // The record is still waiting to be delivered, or the
+                // pipeline was closed.
+                mDroppedCount.incrementAndGet();
+                return -1;
+            } else {
+                // Another thread claimed this position first.
+                position = mTail.get();
+            }
+        }
+        ByteBuffer record = mRecords[(int) position & mMask];
+        record.clear();
+        record.putInt(0).putShort(type).putLong(System.currentTimeMillis());
+        return position;
+    }
+
+    /**
+     * Returns the buffer of a claimed record, positioned after what was
+     * written so far.
+     */
+    public ByteBuffer getRecord(long position) {
+        return mRecords[(int) position & mMask];
+    }
+
+    /** Hands a claimed record over for delivery. */
+    public void publish(long position) {
+        int index = (int) position & mMask;
+        ByteBuffer record = mRecords[index];
+        record.putInt(0, record.position());
+        mSequences.set(index, position + 1);
+
+        if (position + 1 - mHead >= mBatchSize) {
+            if (mUrgentFlushScheduled.compareAndSet(false, true)) {
+                mHandler.sendEmptyMessage(MSG_FLUSH);
+            }
+        } else if (mFlushScheduled.compareAndSet(false, true)) {
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH, mFlushDelayMs);
+        }
+    }
+
+    /** Delivers the waiting records soon, without waiting for a batch. */
+    public void requestFlush() {
+        if (mUrgentFlushScheduled.compareAndSet(false, true)) {
+            mHandler.sendEmptyMessage(MSG_FLUSH);
+        }
+    }
+
+    /**
+     * Delivers the published records and waits until they are. Must not be
+     * called on the pipeline thread.
+     */
+    public void flush() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        if (!mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+                done.countDown();
+            }
+        })) {
+            return;
+        }
+        done.await();
+    }
+
+    /**
+     * Delivers the published records, then closes the sink and stops the
+     * pipeline thread. Later events are dropped. Events which were claimed
+     * but not yet published when the pipeline thread closes the sink are
+     * lost, and counted as dropped.
+     */
+    public void close() {
+        mClosed = true;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+                long lost = mTail.getAndSet(CLOSED_TAIL) - mHead;
+                if (lost > 0) {
+                    mDroppedCount.addAndGet(lost);
+                    Log.w(TAG, "Lost " + lost + " events added while closing");
+                }
+                mSink.close();
+                mThread.quitSafely();
+            }
+        });
+    }
+
+    /**
+     * Returns the number of events dropped because the ring was full or the
+     * pipeline was closed while they were added.
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Writes a string, or null, as its length in chars (short, -1 for null)
+     * and its chars. It is truncated to {@link #MAX_STRING_CHARS}.
+     */
+    public static void putString(ByteBuffer record, String value) {
+        if (value == null) {
+            record.putShort((short) -1);
+            return;
+        }
+        int length = Math.min(value.length(), MAX_STRING_CHARS);
+        record.putShort((short) length);
+        for (int i = 0; i < length; i++) {
+            record.putChar(value.charAt(i));
+        }
+    }
+
+    /** Returns the bytes a string takes in a record. */
+    public static int getStringSize(String value) {
+        return 2 + (value == null ? 0 : 2 * Math.min(value.length(), MAX_STRING_CHARS));
+    }
+
+    private void drain() {
+        int length = 0;
+        int count = 0;
+        while (true) {
+            long head = mHead;
+            int index = (int) head & mMask;
+            if (mSequences.get(index) != head + 1) {
+                break;
+            }
+            int recordLength = mDataBuffer.getInt(index * RECORD_SIZE);
+            System.arraycopy(mData, index * RECORD_SIZE, mBatch, length, recordLength);
+            length += recordLength;
+            count++;
+            // Frees the record for the next lap of the ring.
+            mSequences.set(index, head + mCapacity);
+            mHead = head + 1;
+            if (count == mBatchSize) {
+                deliver(length, count);
+                length = 0;
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            deliver(length, count);
+        }
+
+        long dropped = mDroppedCount.get();
+        if (dropped != mLoggedDroppedCount) {
+            Log.w(TAG, "Dropped " + (dropped - mLoggedDroppedCount) + " events");
+            mLoggedDroppedCount = dropped;
+        }
+    }
+
+    private void deliver(int length, int count) {
+        try {
+            mSink.onBatch(mBatch, length, count);
+        } catch (IOException ex) {
+            Log.w(TAG, "Could not store " + count + " events", ex);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stats;
+
+import java.io.IOException;
+
+/**
+ * Receives the batches of events collected by an {@link EventPipeline}. All
+ * calls are made on the pipeline thread.
+ */
+public interface EventSink {
+    /**
+     * Takes a batch of records, laid out back to back as described in
+     * {@link EventPipeline}. The array is reused once this returns.
+     *
+     * @param data holds the records in its first length bytes.
+     * @param eventCount the number of records in the batch.
+     * @throws IOException if the batch could not be stored. It is dropped.
+     */
+    public void onBatch(byte[] data, int length, int eventCount) throws IOException;
+
+    /** Releases the resources of the sink, after the last batch. */
+    public void close();
+}
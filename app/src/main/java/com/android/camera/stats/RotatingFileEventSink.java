@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.stats;
+
+import com.android.camera.debug.Log;
+import com.android.camera.util.CameraUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Appends batches of events to a local file. When the file is full it is
+ * renamed with the suffix ".1", older files move up by one, and the oldest
+ * is deleted, so that the files never take more than a fixed size.
+ * <p>
+ * Each file starts with the bytes of {@link #MAGIC}, followed by records as
+ * described in {@link EventPipeline}.
+ */
+public class RotatingFileEventSink implements EventSink {
+    private static final Log.Tag TAG = new Log.Tag("RotatingEventSink");
+
+    public static final int MAGIC = 0x55535431; // "UST1"
+    private static final byte[] HEADER = {
+            (byte) (MAGIC >>> 24), (byte) (MAGIC >>> 16), (byte) (MAGIC >>> 8), (byte) MAGIC
+    };
+
+    private final File mDirectory;
+    private final String mName;
+    private final long mMaxFileBytes;
+    private final int mMaxFiles;
+    private FileOutputStream mStream;
+    private long mFileBytes;
+
+    /**
+     * @param name the name of the current file.
+     * @param maxFileBytes the size at which a file is rotated.
+     * @param maxFiles the number of files to keep, including the current one.
+     */
+    public RotatingFileEventSink(File directory, String name, long maxFileBytes, int maxFiles) {
+        if (maxFiles < 1) {
+            throw new IllegalArgumentException("Need at least one file.");
+        }
+        mDirectory = directory;
+        mName = name;
+        mMaxFileBytes = maxFileBytes;
+        mMaxFiles = maxFiles;
+    }
+
+    @Override
+    public void onBatch(byte[] data, int length, int eventCount) throws IOException {
+        if (mStream != null && mFileBytes + length > mMaxFileBytes) {
+            rotate();
+        }
+        if (mStream == null) {
+            open();
+        }
+        mStream.write(data, 0, length);
+        mFileBytes += length;
+    }
+
+    @Override
+    public void close() {
+        CameraUtil.closeSilently(mStream);
+        mStream = null;
+    }
+
+    private File getFile(int index) {
+        return new File(mDirectory, index == 0 ? mName : mName + "." + index);
+    }
+
+    private void open() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Could not create " + mDirectory);
+        }
+        File file = getFile(0);
+        mStream = new FileOutputStream(file, true);
+        mFileBytes = file.length();
+        if (mFileBytes == 0) {
+            mStream.write(HEADER);
+            mFileBytes = HEADER.length;
+        }
+    }
+
+    private void rotate() {
+        close();
+        getFile(mMaxFiles - 1).delete();
+        for (int i = mMaxFiles - 2; i >= 0; i--) {
+            File file = getFile(i);
+            if (file.exists() && !file.renameTo(getFile(i + 1))) {
+                Log.w(TAG, "Could not rotate " + file);
+            }
+        }
+    }
+}
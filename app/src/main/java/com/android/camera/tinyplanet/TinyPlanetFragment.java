@@ -21,8 +21,10 @@ import android.app.ProgressDialog;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -47,6 +49,8 @@ import com.android.camera.app.MediaSaver.OnMediaSavedListener;
 import com.android.camera.debug.Log;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.tinyplanet.TinyPlanetPreview.PreviewSizeListener;
+import com.android.camera.util.BitmapCache;
+import com.android.camera.util.ImageLoader;
 import com.android.camera.util.XmpUtil;
 import com.android.camera2.R;
 
@@ -88,6 +92,12 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
     private static final int RENDER_DELAY_MILLIS = 50;
     /** Filename prefix to prepend to the original name for the new file. */
     private static final String FILENAME_PREFIX = "TINYPLANET_";
+    /** Size of the blocks of the coarse pass shown while rendering a preview. */
+    private static final int PREVIEW_COARSE_STEP = 4;
+    /** Rows of the final tiny planet rendered at a time. */
+    private static final int FINAL_BAND_ROWS = 256;
+    /** Rows of the full resolution source image decoded at a time. */
+    private static final int SOURCE_BAND_ROWS = 256;
 
     private Uri mSourceImageUri;
     private TinyPlanetPreview mPreview;
@@ -105,10 +115,16 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
     /** The title of the original panoramic image. */
     private String mOriginalTitle = "";
 
-    /** The padded source bitmap. */
-    private Bitmap mSourceBitmap;
+    /** The colors of the padded source image. */
+    private int[] mSourcePixels;
+    private int mSourceWidth;
+    private int mSourceHeight;
     /** The resulting preview bitmap. */
     private Bitmap mResultBitmap;
+    /** Renders the preview; only used by the preview rendering task. */
+    private TinyPlanetRenderer mRenderer;
+    /** The preview colors before they are copied into the bitmap. */
+    private int[] mResultPixels;
 
     /** Used to delay-post a tiny planet rendering task. */
     private final Handler mHandler = new Handler();
@@ -121,6 +137,20 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
      */
     private Boolean mRenderOneMore = false;
 
+    /**
+     * The colors of the full resolution source image, and where they lie in
+     * the full panorama, in pixels of the source image.
+     */
+    private static final class SourceImage {
+        public int[] mPixels;
+        public int mWidth;
+        public int mHeight;
+        public int mPanoWidth;
+        public int mPanoHeight;
+        public int mLeft;
+        public int mTop;
+    }
+
     /** Tiny planet data plus size. */
     private static final class TinyPlanetImage {
         public final byte[] mJpegData;
@@ -150,24 +180,57 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
             (new AsyncTask<Void, Void, Void>() {
                 @Override
                 protected Void doInBackground(Void... params) {
+                    int[] sourcePixels = mSourcePixels;
+                    int size = mPreviewSizePx;
+                    if (sourcePixels == null || size <= 0) {
+                        return null;
+                    }
+                    if (mRenderer == null || mRenderer.getOutputSize() != size) {
+                        mRenderer = new TinyPlanetRenderer(sourcePixels, mSourceWidth,
+                                mSourceHeight, size);
+                        mResultPixels = new int[size * size];
+                    }
+                    float zoom = mCurrentZoom;
+                    float angle = mCurrentAngle;
+
+                    // Show a coarse version first, and skip the full one if
+                    // the values have changed in the meantime.
+                    mRenderer.render(mResultPixels, zoom, angle, PREVIEW_COARSE_STEP);
+                    publishResult(size);
+                    synchronized (mRendering) {
+                        if (mRenderOneMore) {
+                            return null;
+                        }
+                    }
+                    mRenderer.render(mResultPixels, zoom, angle, 1);
+                    publishResult(size);
+                    return null;
+                }
+
+                /**
+                 * Copies the rendered colors into the preview bitmap, unless
+                 * the preview size has changed.
+                 */
+                private void publishResult(int size) {
                     mResultLock.lock();
                     try {
-                        if (mSourceBitmap == null || mResultBitmap == null) {
-                            return null;
+                        if (mResultBitmap == null || mResultBitmap.getWidth() != size) {
+                            return;
                         }
-                        int width = mSourceBitmap.getWidth();
-                        int height = mSourceBitmap.getHeight();
-                        TinyPlanetNative.process(mSourceBitmap, width, height, mResultBitmap,
-                                mPreviewSizePx, mCurrentZoom, mCurrentAngle);
+                        mResultBitmap.setPixels(mResultPixels, 0, size, 0, 0, size, size);
                     } finally {
                         mResultLock.unlock();
                     }
-                    return null;
+                    publishProgress();
                 }
 
                 @Override
-                protected void onPostExecute(Void result) {
+                protected void onProgressUpdate(Void... values) {
                     mPreview.setBitmap(mResultBitmap, mResultLock);
+                }
+
+                @Override
+                protected void onPostExecute(Void result) {
                     synchronized (mRendering) {
                         mRendering = false;
                         if (mRenderOneMore) {
@@ -245,35 +308,56 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
 
         mOriginalTitle = getArguments().getString(ARGUMENT_TITLE);
         mSourceImageUri = Uri.parse(getArguments().getString(ARGUMENT_URI));
-        mSourceBitmap = createPaddedSourceImage(mSourceImageUri, true);
+        Bitmap sourceBitmap = createPaddedSourceImage(mSourceImageUri);
 
-        if (mSourceBitmap == null) {
+        if (sourceBitmap == null) {
             Log.e(TAG, "Could not decode source image.");
             dismiss();
+        } else {
+            mSourceWidth = sourceBitmap.getWidth();
+            mSourceHeight = sourceBitmap.getHeight();
+            mSourcePixels = getPixels(sourceBitmap);
         }
         return view;
     }
 
     /**
-     * From the given URI this method creates a 360/180 padded image that is
-     * ready to be made a tiny planet.
+     * From the given URI this method creates a 360/180 padded image of about
+     * the display size, for the preview.
      */
-    private Bitmap createPaddedSourceImage(Uri sourceImageUri, boolean previewSize) {
-        InputStream is = getInputStream(sourceImageUri);
-        if (is == null) {
-            Log.e(TAG, "Could not create input stream for image.");
-            dismiss();
+    private Bitmap createPaddedSourceImage(Uri sourceImageUri) {
+        Bitmap sourceBitmap = loadPreviewSourceImage(sourceImageUri);
+        if (sourceBitmap == null) {
+            return null;
         }
-        Bitmap sourceBitmap = BitmapFactory.decodeStream(is);
 
-        is = getInputStream(sourceImageUri);
+        InputStream is = getInputStream(sourceImageUri);
         XMPMeta xmp = XmpUtil.extractXMPMeta(is);
 
+        Bitmap paddedBitmap = sourceBitmap;
         if (xmp != null) {
-            int size = previewSize ? getDisplaySize() : sourceBitmap.getWidth();
-            sourceBitmap = createPaddedBitmap(sourceBitmap, xmp, size);
+            paddedBitmap = createPaddedBitmap(sourceBitmap, xmp, getDisplaySize());
         }
-        return sourceBitmap;
+        // The caller owns the result, while the cached image is shared.
+        if (paddedBitmap == sourceBitmap) {
+            paddedBitmap = sourceBitmap.copy(Bitmap.Config.ARGB_8888, false);
+        }
+        BitmapCache.getInstance().release(sourceBitmap);
+        return paddedBitmap;
+    }
+
+    /**
+     * Loads the source image downsampled to about the display size, through
+     * the bitmap cache so that editing the same image again is quicker.
+     */
+    private Bitmap loadPreviewSourceImage(Uri sourceImageUri) {
+        Rect bounds = ImageLoader.loadBitmapBounds(getActivity(), sourceImageUri);
+        int displaySize = getDisplaySize();
+        int sampleSize = 1;
+        while (bounds.width() / (sampleSize * 2) >= displaySize) {
+            sampleSize *= 2;
+        }
+        return ImageLoader.loadBitmapWithBackouts(getActivity(), sourceImageUri, sampleSize);
     }
 
     /**
@@ -302,6 +386,11 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
 
             @Override
             protected void onPostExecute(TinyPlanetImage image) {
+                if (image == null) {
+                    mDialog.dismiss();
+                    TinyPlanetFragment.this.dismiss();
+                    return;
+                }
                 // Once created, store the new file and add it to the filmstrip.
                 final CameraActivity activity = (CameraActivity) getActivity();
                 MediaSaver mediaSaver = ((CameraApp) activity.getApplication()).getMediaSaver();
@@ -336,28 +425,37 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
         try {
             mResultBitmap.recycle();
             mResultBitmap = null;
-            mSourceBitmap.recycle();
-            mSourceBitmap = null;
+            mSourcePixels = null;
         } finally {
             mResultLock.unlock();
         }
 
-        // Create a high-resolution padded image.
-        Bitmap sourceBitmap = createPaddedSourceImage(mSourceImageUri, false);
-        int width = sourceBitmap.getWidth();
-        int height = sourceBitmap.getHeight();
-
-        int outputSize = width / 2;
+        // Neither the source bitmap nor a padded copy is held next to the
+        // source colors, the renderer does the padding.
+        SourceImage source = loadSourceImage(mSourceImageUri);
+        if (source == null) {
+            return null;
+        }
+        int outputSize = source.mWidth / 2;
+        TinyPlanetRenderer renderer = new TinyPlanetRenderer(source.mPixels, source.mWidth,
+                source.mHeight, source.mPanoWidth, source.mPanoHeight, source.mLeft,
+                source.mTop, outputSize);
+        source = null;
         Bitmap resultBitmap = Bitmap.createBitmap(outputSize, outputSize,
                 Bitmap.Config.ARGB_8888);
 
-        TinyPlanetNative.process(sourceBitmap, width, height, resultBitmap,
-                outputSize, mCurrentZoom, mCurrentAngle);
+        // Render in bands so that the result is never held twice in memory.
+        int[] band = new int[Math.min(FINAL_BAND_ROWS, outputSize) * outputSize];
+        for (int start = 0; start < outputSize; start += FINAL_BAND_ROWS) {
+            int end = Math.min(start + FINAL_BAND_ROWS, outputSize);
+            renderer.render(band, mCurrentZoom, mCurrentAngle, 1, start, end);
+            resultBitmap.setPixels(band, 0, outputSize, 0, start, outputSize, end - start);
+        }
 
-        // Free the sourceImage memory as we don't need it and we need memory
-        // for the JPEG bytes.
-        sourceBitmap.recycle();
-        sourceBitmap = null;
+        // Free the source memory as we don't need it and we need memory for
+        // the JPEG bytes.
+        renderer = null;
+        band = null;
 
         ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
         resultBitmap.compress(CompressFormat.JPEG, 100, jpeg);
@@ -384,6 +482,110 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
         return jpegOut.toByteArray();
     }
 
+    /**
+     * Decodes the full resolution source image straight into an int array,
+     * a band of rows at a time, and reads where it lies in the full panorama.
+     *
+     * @return The source image, or null if it could not be decoded.
+     */
+    private SourceImage loadSourceImage(Uri sourceImageUri) {
+        InputStream is = getInputStream(sourceImageUri);
+        if (is == null) {
+            return null;
+        }
+        SourceImage source = new SourceImage();
+        BitmapRegionDecoder decoder = null;
+        Bitmap band = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(is, false);
+            source.mWidth = decoder.getWidth();
+            source.mHeight = decoder.getHeight();
+            source.mPixels = new int[source.mWidth * source.mHeight];
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            for (int y = 0; y < source.mHeight; y += SOURCE_BAND_ROWS) {
+                int rows = Math.min(SOURCE_BAND_ROWS, source.mHeight - y);
+                // The last band is decoded into the top of the reused bitmap.
+                options.inBitmap = band;
+                band = decoder.decodeRegion(new Rect(0, y, source.mWidth, y + rows), options);
+                if (band == null) {
+                    Log.e(TAG, "Could not decode source image.");
+                    return null;
+                }
+                band.getPixels(source.mPixels, y * source.mWidth, source.mWidth, 0, 0,
+                        source.mWidth, rows);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not decode source image.", e);
+            return null;
+        } finally {
+            if (band != null) {
+                band.recycle();
+            }
+            if (decoder != null) {
+                decoder.recycle();
+            }
+            try {
+                is.close();
+            } catch (IOException e) {
+                // Ignored, the image was read or failed already.
+            }
+        }
+
+        source.mPanoWidth = source.mWidth;
+        source.mPanoHeight = source.mHeight;
+        XMPMeta xmp = XmpUtil.extractXMPMeta(getInputStream(sourceImageUri));
+        if (xmp != null) {
+            setPanoArea(source, xmp);
+        }
+        return source;
+    }
+
+    /**
+     * Places the source image in the full panorama described by the XMP data,
+     * scaled from the cropped area to the size of the source image. Leaves
+     * the source as the full panorama if the data is missing or invalid.
+     */
+    private static void setPanoArea(SourceImage source, XMPMeta xmp) {
+        try {
+            int croppedAreaWidth = getInt(xmp, CROPPED_AREA_IMAGE_WIDTH_PIXELS);
+            int croppedAreaHeight = getInt(xmp, CROPPED_AREA_IMAGE_HEIGHT_PIXELS);
+            int fullPanoWidth = getInt(xmp, CROPPED_AREA_FULL_PANO_WIDTH_PIXELS);
+            int fullPanoHeight = getInt(xmp, CROPPED_AREA_FULL_PANO_HEIGHT_PIXELS);
+            if (croppedAreaWidth <= 0 || croppedAreaHeight <= 0 || fullPanoWidth == 0
+                    || fullPanoHeight == 0) {
+                return;
+            }
+            float scaleX = source.mWidth / (float) croppedAreaWidth;
+            float scaleY = source.mHeight / (float) croppedAreaHeight;
+            int panoWidth = Math.round(fullPanoWidth * scaleX);
+            int panoHeight = Math.round(fullPanoHeight * scaleY);
+            int left = Math.round(getInt(xmp, CROPPED_AREA_LEFT) * scaleX);
+            int top = Math.round(getInt(xmp, CROPPED_AREA_TOP) * scaleY);
+            if (left < 0 || top < 0 || left + source.mWidth > panoWidth
+                    || top + source.mHeight > panoHeight) {
+                Log.w(TAG, "Ignoring cropped area outside of the panorama.");
+                return;
+            }
+            source.mPanoWidth = panoWidth;
+            source.mPanoHeight = panoHeight;
+            source.mLeft = left;
+            source.mTop = top;
+        } catch (XMPException ex) {
+            // Do nothing, just use the source image as is.
+        }
+    }
+
+    /** Copies the colors out of the bitmap and recycles it. */
+    private static int[] getPixels(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+        return pixels;
+    }
+
     private int getDisplaySize() {
         Display display = getActivity().getWindowManager().getDefaultDisplay();
         Point size = new Point();
@@ -481,7 +683,7 @@ public class TinyPlanetFragment extends DialogFragment implements PreviewSizeLis
             paddedCanvas.drawBitmap(bitmapIn, null, destRect, null);
             return paddedBitmap;
         } catch (XMPException ex) {
-            // Do nothing, just use mSourceBitmap as is.
+            // Do nothing, just use the source bitmap as is.
         }
         return bitmapIn;
     }
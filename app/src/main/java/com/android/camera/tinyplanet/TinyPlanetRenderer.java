@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.tinyplanet;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Renders tiny planets from 360x180 degree equirectangular panoramas stored
+ * as ARGB int arrays.
+ * <p>
+ * Every output pixel is mapped back onto the panorama with an inverse
+ * stereographic projection: its angle around the center of the output picks
+ * the column, and its distance from the center picks the row, with the nadir
+ * in the middle and the sky at the edge. Colors are interpolated bilinearly,
+ * wrapping around horizontally.
+ * <p>
+ * The projection only depends on the output size and the zoom, so it is
+ * precomputed into lookup tables for one quadrant of the output and mirrored
+ * into the others. Changing the angle only shifts the columns and costs
+ * nothing extra. Rows are rendered in bands on a shared {@link ForkJoinPool}.
+ * A coarse pass which samples one pixel per block can be rendered first for
+ * quick previews.
+ * <p>
+ * A panorama which covers only part of the sphere can be given as the
+ * covered area and its position in the full panorama. The rest is rendered
+ * black, without building a padded copy of the panorama.
+ */
+public class TinyPlanetRenderer {
+    /** Fractional bits of the fixed-point panorama coordinates. */
+    private static final int FRACTION_BITS = 8;
+    private static final int FRACTION_ONE = 1 << FRACTION_BITS;
+    private static final int FRACTION_MASK = FRACTION_ONE - 1;
+    /** Keeps the planet from collapsing into a point at zoom 0. */
+    private static final float MIN_SCALE = 0.01f;
+    private static final double TWO_PI = 2 * Math.PI;
+
+    private static final int MAX_PARALLELISM = 4;
+    /** Rows handled by a task before it stops splitting. */
+    private static final int ROWS_PER_TASK = 32;
+
+    private static final ForkJoinPool sPool = new ForkJoinPool(Math.max(1,
+            Math.min(MAX_PARALLELISM, Runtime.getRuntime().availableProcessors())));
+
+    private final int[] mInput;
+    private final int mInputWidth;
+    private final int mInputHeight;
+    /** The size of the full panorama, and where the input lies in it. */
+    private final int mPanoWidth;
+    private final int mPanoHeight;
+    private final int mLeft;
+    private final int mTop;
+    /** Whether the input is the full panorama, so samples need no checks. */
+    private final boolean mInputIsPano;
+    private final int mOutputSize;
+    /** The number of rows and columns of a quadrant of the output. */
+    private final int mQuadrantSize;
+    /**
+     * Fixed-point panorama columns of the lower right quadrant, for an angle
+     * of zero.
+     */
+    private final int[] mColumns;
+    /** Fixed-point panorama rows of the lower right quadrant. */
+    private final int[] mRows;
+    private float mRowsScale = Float.NaN;
+
+    /** Processes the rows in [start, end) of the output. */
+    private interface RowPass {
+        void run(int start, int end);
+    }
+
+    private static class RowTask extends RecursiveAction {
+        private final RowPass mPass;
+        private final int mStart;
+        private final int mEnd;
+        private final int mAlign;
+
+        RowTask(RowPass pass, int start, int end, int align) {
+            mPass = pass;
+            mStart = start;
+            mEnd = end;
+            mAlign = align;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart <= Math.max(ROWS_PER_TASK, mAlign)) {
+                mPass.run(mStart, mEnd);
+                return;
+            }
+            // Splits on block boundaries, so that no block spans two tasks.
+            int mid = mStart + ((mEnd - mStart) / 2 / mAlign) * mAlign;
+            invokeAll(new RowTask(mPass, mStart, mid, mAlign),
+                    new RowTask(mPass, mid, mEnd, mAlign));
+        }
+    }
+
+    /**
+     * @param input the colors of the panorama, which must cover 360 degrees
+     *            horizontally and 180 degrees vertically; not copied.
+     * @param inputWidth the width of the panorama.
+     * @param inputHeight the height of the panorama.
+     * @param outputSize the width and height of the square tiny planet.
+     */
+    public TinyPlanetRenderer(int[] input, int inputWidth, int inputHeight, int outputSize) {
+        this(input, inputWidth, inputHeight, inputWidth, inputHeight, 0, 0, outputSize);
+    }
+
+    /**
+     * @param input the colors of the area the panorama covers; not copied.
+     * @param inputWidth the width of the covered area.
+     * @param inputHeight the height of the covered area.
+     * @param panoWidth the width of the full panorama, which covers 360
+     *            degrees, in pixels of the input.
+     * @param panoHeight the height of the full panorama, which covers 180
+     *            degrees.
+     * @param left the column of the full panorama where the input starts.
+     * @param top the row of the full panorama where the input starts.
+     * @param outputSize the width and height of the square tiny planet.
+     */
+    public TinyPlanetRenderer(int[] input, int inputWidth, int inputHeight, int panoWidth,
+            int panoHeight, int left, int top, int outputSize) {
+        if (inputWidth <= 0 || inputHeight <= 0 || input.length < inputWidth * inputHeight) {
+            throw new IllegalArgumentException(
+                    "Invalid input size " + inputWidth + "x" + inputHeight);
+        }
+        if (left < 0 || top < 0 || left + inputWidth > panoWidth
+                || top + inputHeight > panoHeight) {
+            throw new IllegalArgumentException("Input " + inputWidth + "x" + inputHeight
+                    + " at " + left + "," + top + " outside of " + panoWidth + "x"
+                    + panoHeight);
+        }
+        if (outputSize <= 0) {
+            throw new IllegalArgumentException("Invalid output size " + outputSize);
+        }
+        mInput = input;
+        mInputWidth = inputWidth;
+        mInputHeight = inputHeight;
+        mPanoWidth = panoWidth;
+        mPanoHeight = panoHeight;
+        mLeft = left;
+        mTop = top;
+        mInputIsPano = inputWidth == panoWidth && inputHeight == panoHeight;
+        mOutputSize = outputSize;
+        mQuadrantSize = outputSize - outputSize / 2;
+        mColumns = new int[mQuadrantSize * mQuadrantSize];
+        mRows = new int[mQuadrantSize * mQuadrantSize];
+        computeColumns();
+    }
+
+    public int getOutputSize() {
+        return mOutputSize;
+    }
+
+    /**
+     * Renders the whole tiny planet.
+     *
+     * @param out receives the colors, at least outputSize * outputSize of
+     *            them.
+     * @param scale the zoom, larger values show a bigger planet.
+     * @param angleRadians the rotation of the planet.
+     * @param step 1 to sample every pixel, or the size of the blocks a coarse
+     *            pass fills with a single sample.
+     */
+    public void render(int[] out, float scale, float angleRadians, int step) {
+        render(out, scale, angleRadians, step, 0, mOutputSize);
+    }
+
+    /**
+     * Renders the rows in [startRow, endRow) of the tiny planet, so that
+     * large outputs can be produced in bands.
+     *
+     * @param out receives the colors of the rows, starting with startRow at
+     *            index 0.
+     * @see #render(int[], float, float, int)
+     */
+    public synchronized void render(final int[] out, float scale, float angleRadians,
+            final int step, final int startRow, int endRow) {
+        if (startRow < 0 || endRow > mOutputSize || startRow >= endRow
+                || out.length < (endRow - startRow) * mOutputSize) {
+            throw new IllegalArgumentException("Invalid rows " + startRow + "-" + endRow);
+        }
+        if (step <= 0) {
+            throw new IllegalArgumentException("Invalid step " + step);
+        }
+        if (scale != mRowsScale) {
+            computeRows(Math.max(scale, MIN_SCALE));
+            mRowsScale = scale;
+        }
+
+        int fullTurn = mPanoWidth << FRACTION_BITS;
+        double turns = angleRadians / TWO_PI;
+        final int offset = (int) Math.round((turns - Math.floor(turns)) * fullTurn) % fullTurn;
+        forEachRowBand(new RowPass() {
+            @Override
+            public void run(int start, int end) {
+                renderRows(out, startRow, offset, step, start, end);
+            }
+        }, startRow, endRow, step);
+    }
+
+    private void computeColumns() {
+        final int quarterTurn = (mPanoWidth << FRACTION_BITS) / 4;
+        forEachRowBand(new RowPass() {
+            @Override
+            public void run(int start, int end) {
+                float center = mOutputSize / 2f;
+                int first = mOutputSize / 2;
+                for (int qy = start - first; qy < end - first; qy++) {
+                    float dy = first + qy + 0.5f - center;
+                    for (int qx = 0; qx < mQuadrantSize; qx++) {
+                        float dx = first + qx + 0.5f - center;
+                        // Clockwise from the right, in [0, pi / 2].
+                        double angle = Math.atan2(dy, dx);
+                        mColumns[qy * mQuadrantSize + qx] =
+                                (int) Math.round(angle / (Math.PI / 2) * quarterTurn);
+                    }
+                }
+            }
+        }, mOutputSize / 2, mOutputSize, 1);
+    }
+
+    private void computeRows(final float scale) {
+        final int maxRow = (mPanoHeight - 1) << FRACTION_BITS;
+        forEachRowBand(new RowPass() {
+            @Override
+            public void run(int start, int end) {
+                float center = mOutputSize / 2f;
+                int first = mOutputSize / 2;
+                for (int qy = start - first; qy < end - first; qy++) {
+                    float dy = first + qy + 0.5f - center;
+                    for (int qx = 0; qx < mQuadrantSize; qx++) {
+                        float dx = first + qx + 0.5f - center;
+                        double radius = Math.sqrt(dx * dx + dy * dy) / center;
+                        // The angle from the nadir, reaching the horizon at a
+                        // radius of scale.
+                        double polar = 2 * Math.atan(radius / scale);
+                        double row = mPanoHeight * (1 - polar / Math.PI) - 0.5;
+                        int fixed = (int) Math.round(row * FRACTION_ONE);
+                        mRows[qy * mQuadrantSize + qx] = Math.max(0, Math.min(maxRow, fixed));
+                    }
+                }
+            }
+        }, mOutputSize / 2, mOutputSize, 1);
+    }
+
+    private void renderRows(int[] out, int startRow, int offset, int step, int start,
+            int end) {
+        int size = mOutputSize;
+        int first = size / 2;
+        int fullTurn = mPanoWidth << FRACTION_BITS;
+        int halfTurn = fullTurn / 2;
+        for (int y = start; y < end; y += step) {
+            boolean below = y >= first;
+            int qy = below ? y - first : size - 1 - y - first;
+            int blockRows = Math.min(step, end - y);
+            for (int x = 0; x < size; x += step) {
+                boolean right = x >= first;
+                int qx = right ? x - first : size - 1 - x - first;
+                int entry = qy * mQuadrantSize + qx;
+                int column = mColumns[entry];
+                // Mirrors the angle of the quadrant into the others.
+                if (!right) {
+                    column = halfTurn - column;
+                }
+                if (!below) {
+                    column = fullTurn - column;
+                }
+                column += offset;
+                if (column >= fullTurn) {
+                    column -= fullTurn;
+                }
+                int color = sample(column, mRows[entry]);
+
+                int blockColumns = Math.min(step, size - x);
+                for (int by = 0; by < blockRows; by++) {
+                    int p = (y + by - startRow) * size + x;
+                    for (int bx = 0; bx < blockColumns; bx++) {
+                        out[p + bx] = color;
+                    }
+                }
+            }
+        }
+    }
+
+    private int sample(int column, int row) {
+        int x0 = column >> FRACTION_BITS;
+        int y0 = row >> FRACTION_BITS;
+        int fx = column & FRACTION_MASK;
+        int fy = row & FRACTION_MASK;
+        int x1 = (x0 + 1 == mPanoWidth) ? 0 : x0 + 1;
+        int y1 = Math.min(y0 + 1, mPanoHeight - 1);
+
+        int c00, c01, c10, c11;
+        if (mInputIsPano) {
+            int top = y0 * mInputWidth;
+            int bottom = y1 * mInputWidth;
+            c00 = mInput[top + x0];
+            c01 = mInput[top + x1];
+            c10 = mInput[bottom + x0];
+            c11 = mInput[bottom + x1];
+        } else {
+            c00 = pixelAt(x0, y0);
+            c01 = pixelAt(x1, y0);
+            c10 = pixelAt(x0, y1);
+            c11 = pixelAt(x1, y1);
+        }
+        int w00 = (FRACTION_ONE - fx) * (FRACTION_ONE - fy);
+        int w01 = fx * (FRACTION_ONE - fy);
+        int w10 = (FRACTION_ONE - fx) * fy;
+        int w11 = fx * fy;
+
+        int half = 1 << (2 * FRACTION_BITS - 1);
+        int r = (((c00 >> 16) & 0xff) * w00 + ((c01 >> 16) & 0xff) * w01
+                + ((c10 >> 16) & 0xff) * w10 + ((c11 >> 16) & 0xff) * w11 + half)
+                >> (2 * FRACTION_BITS);
+        int g = (((c00 >> 8) & 0xff) * w00 + ((c01 >> 8) & 0xff) * w01
+                + ((c10 >> 8) & 0xff) * w10 + ((c11 >> 8) & 0xff) * w11 + half)
+                >> (2 * FRACTION_BITS);
+        int b = ((c00 & 0xff) * w00 + (c01 & 0xff) * w01
+                + (c10 & 0xff) * w10 + (c11 & 0xff) * w11 + half)
+                >> (2 * FRACTION_BITS);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /** Returns the color at a pixel of the full panorama, black if not covered. */
+    private int pixelAt(int x, int y) {
+        x -= mLeft;
+        y -= mTop;
+        if (x < 0 || y < 0 || x >= mInputWidth || y >= mInputHeight) {
+            return 0;
+        }
+        return mInput[y * mInputWidth + x];
+    }
+
+    private static void forEachRowBand(RowPass pass, int start, int end, int align) {
+        if (end - start <= Math.max(ROWS_PER_TASK, align)) {
+            pass.run(start, end);
+        } else {
+            sPool.invoke(new RowTask(pass, start, end, align));
+        }
+    }
+}
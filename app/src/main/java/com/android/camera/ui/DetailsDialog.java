@@ -20,7 +20,6 @@ import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.text.format.Formatter;
 import android.view.LayoutInflater;
@@ -199,10 +198,13 @@ public class DetailsDialog {
         }
 
         public void resolveResolution(String path) {
-            Bitmap bitmap = BitmapFactory.decodeFile(path);
-            if (bitmap == null)
+            // Only the size is needed, so don't decode the pixels.
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0)
                 return;
-            onResolutionAvailable(bitmap.getWidth(), bitmap.getHeight());
+            onResolutionAvailable(options.outWidth, options.outHeight);
         }
 
         @Override
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import com.android.camera.debug.Log;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of decoded bitmaps, keyed by URI, sample size and orientation and
+ * limited by the bytes they use, which evicts the least recently used ones
+ * first.
+ * <p>
+ * Cached bitmaps are shared, so they must not be modified or recycled. Each
+ * bitmap returned by {@link #acquire} or passed to {@link #put} holds a
+ * reference for the caller, which should be given back with {@link #release}
+ * when the bitmap is no longer drawn. Bitmaps evicted without references go
+ * to a second, smaller pool, from which {@link #prepareReuse} picks targets
+ * for {@link BitmapFactory.Options#inBitmap}, so that decoding reuses their
+ * memory. Bitmaps still referenced when evicted are left to the garbage
+ * collector.
+ */
+public class BitmapCache {
+    private static final Log.Tag TAG = new Log.Tag("BitmapCache");
+
+    /** The share of the heap used by cached bitmaps. */
+    private static final int CACHE_HEAP_FRACTION = 8;
+    /** The share of the heap used by bitmaps waiting to be reused. */
+    private static final int POOL_HEAP_FRACTION = 32;
+
+    private static BitmapCache sInstance;
+
+    private static class Key {
+        final Uri mUri;
+        final int mSampleSize;
+        final int mOrientation;
+
+        Key(Uri uri, int sampleSize, int orientation) {
+            mUri = uri;
+            mSampleSize = sampleSize;
+            mOrientation = orientation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mUri.equals(other.mUri) && mSampleSize == other.mSampleSize
+                    && mOrientation == other.mOrientation;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mUri.hashCode() * 31 + mSampleSize) * 31 + mOrientation;
+        }
+    }
+
+    private static class Entry {
+        final Key mKey;
+        final Bitmap mBitmap;
+        final int mSize;
+        int mRefCount;
+
+        Entry(Key key, Bitmap bitmap) {
+            mKey = key;
+            mBitmap = bitmap;
+            mSize = bitmap.getAllocationByteCount();
+        }
+    }
+
+    private int mMaxSize;
+    private final int mMaxPoolSize;
+    /** The cached entries, least recently used first. */
+    private final LinkedHashMap<Key, Entry> mCache = new LinkedHashMap<Key, Entry>(16, 0.75f,
+            true);
+    /** The cached entries by bitmap, to find them when they are released. */
+    private final Map<Bitmap, Entry> mEntries = new IdentityHashMap<Bitmap, Entry>();
+    private final List<Bitmap> mPool = new ArrayList<Bitmap>();
+    private int mSize;
+    private int mPoolSize;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+    private long mReuseCount;
+
+    /** Returns the cache shared by the app, sized from the heap limit. */
+    public static synchronized BitmapCache getInstance() {
+        if (sInstance == null) {
+            long maxMemory = Runtime.getRuntime().maxMemory();
+            sInstance = new BitmapCache((int) (maxMemory / CACHE_HEAP_FRACTION),
+                    (int) (maxMemory / POOL_HEAP_FRACTION));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param maxSize the bytes of cached bitmaps to keep.
+     * @param maxPoolSize the bytes of evicted bitmaps to keep for reuse.
+     */
+    public BitmapCache(int maxSize, int maxPoolSize) {
+        mMaxSize = maxSize;
+        mMaxPoolSize = maxPoolSize;
+    }
+
+    /**
+     * Returns the cached bitmap for the given image, with a reference for the
+     * caller, or null if it is not cached.
+     *
+     * @param orientation the EXIF orientation the bitmap was transformed to.
+     */
+    public synchronized Bitmap acquire(Uri uri, int sampleSize, int orientation) {
+        Entry entry = mCache.get(new Key(uri, sampleSize, orientation));
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        entry.mRefCount++;
+        return entry.mBitmap;
+    }
+
+    /**
+     * Caches a newly decoded bitmap, which keeps a reference for the caller.
+     * A bitmap larger than the whole cache is not kept.
+     */
+    public synchronized void put(Uri uri, int sampleSize, int orientation, Bitmap bitmap) {
+        if (mEntries.containsKey(bitmap)) {
+            throw new IllegalArgumentException("Bitmap already cached");
+        }
+        Entry entry = new Entry(new Key(uri, sampleSize, orientation), bitmap);
+        entry.mRefCount = 1;
+        Entry previous = mCache.put(entry.mKey, entry);
+        if (previous != null) {
+            removeFromCache(previous, false);
+        }
+        mEntries.put(bitmap, entry);
+        mSize += entry.mSize;
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Gives back a reference to a bitmap returned by {@link #acquire} or
+     * passed to {@link #put}. The caller must not use the bitmap afterwards.
+     * Bitmaps which are not known to the cache are ignored.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        Entry entry = mEntries.get(bitmap);
+        if (entry == null) {
+            return;
+        }
+        if (entry.mRefCount <= 0) {
+            throw new IllegalStateException("Bitmap released too many times");
+        }
+        entry.mRefCount--;
+    }
+
+    /**
+     * Sets {@link BitmapFactory.Options#inBitmap} to a pooled bitmap large
+     * enough for decoding an image of the given size with the sample size of
+     * the options. The pooled bitmap is handed over to the decoder.
+     *
+     * @return Whether a bitmap was found.
+     */
+    public synchronized boolean prepareReuse(BitmapFactory.Options options, int width,
+            int height) {
+        if (!options.inMutable || options.inPreferredConfig != Bitmap.Config.ARGB_8888) {
+            return false;
+        }
+        int sampleSize = Math.max(1, options.inSampleSize);
+        long bytes = 4L * ((width + sampleSize - 1) / sampleSize)
+                * ((height + sampleSize - 1) / sampleSize);
+        // Takes the smallest fitting bitmap, to keep large ones for large
+        // images.
+        Bitmap best = null;
+        for (Bitmap bitmap : mPool) {
+            int size = bitmap.getAllocationByteCount();
+            if (size >= bytes && (best == null || size < best.getAllocationByteCount())) {
+                best = bitmap;
+            }
+        }
+        if (best == null) {
+            return false;
+        }
+        mPool.remove(best);
+        mPoolSize -= best.getAllocationByteCount();
+        mReuseCount++;
+        options.inBitmap = best;
+        return true;
+    }
+
+    /** Returns whether {@link #prepareReuse} may find a bitmap. */
+    public synchronized boolean hasReusableBitmaps() {
+        return !mPool.isEmpty();
+    }
+
+    /**
+     * Frees memory as asked by {@link ComponentCallbacks2#onTrimMemory}. The
+     * pool is always dropped. When the system is low on memory, or the app
+     * is in the background, the cache shrinks to half its size, and it is
+     * emptied when the app is likely to be killed.
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxSize / 2);
+        }
+        mPool.clear();
+        mPoolSize = 0;
+        Log.v(TAG, "Trimmed for level " + level + ": " + this);
+    }
+
+    /** Changes the bytes of cached bitmaps to keep, to tune the cache. */
+    public synchronized void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /** Returns the bytes of cached bitmaps. */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    /** Returns the bytes of bitmaps waiting to be reused. */
+    public synchronized int getPoolSize() {
+        return mPoolSize;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /** Returns how many decodes were given a pooled bitmap. */
+    public synchronized long getReuseCount() {
+        return mReuseCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapCache[size=" + mSize + "/" + mMaxSize + ", pool=" + mPoolSize + "/"
+                + mMaxPoolSize + ", hits=" + mHitCount + ", misses=" + mMissCount
+                + ", evictions=" + mEvictionCount + ", reuses=" + mReuseCount + "]";
+    }
+
+    private void trimToSize(int maxSize) {
+        Iterator<Entry> it = mCache.values().iterator();
+        while (mSize > maxSize && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            removeFromCache(entry, true);
+            mEvictionCount++;
+        }
+    }
+
+    /** Forgets an entry which was taken out of mCache. */
+    private void removeFromCache(Entry entry, boolean reuse) {
+        mSize -= entry.mSize;
+        // A bitmap which is still referenced may never be released, so the
+        // cache forgets it rather than holding on to it, and it is not
+        // reused.
+        mEntries.remove(entry.mBitmap);
+        if (entry.mRefCount == 0 && reuse) {
+            offerToPool(entry.mBitmap);
+        }
+    }
+
+    private void offerToPool(Bitmap bitmap) {
+        int size = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bitmap.isRecycled()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888
+                || mPoolSize + size > mMaxPoolSize) {
+            return;
+        }
+        mPool.add(bitmap);
+        mPoolSize += size;
+    }
+}
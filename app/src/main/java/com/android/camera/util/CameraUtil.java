@@ -118,6 +118,10 @@ public class CameraUtil {
     private static final String EXTRAS_CAMERA_FACING =
             "android.intent.extras.CAMERA_FACING";
 
+    /** Larger blur masks are approximated by box blurs. */
+    public static final int MAX_BLUR_MASK_SIZE = 25;
+    private static final int BLUR_BOX_PASSES = 3;
+
     private static float sPixelDensity = 1;
     private static ImageFileNamer sImageFileNamer;
 
@@ -950,25 +954,6 @@ public class CameraUtil {
 
     }
 
-    /**
-     * Add two pixels together where the second pixel will be applied with a
-     * weight.
-     *
-     * @param pixel pixel color value of weight 1
-     * @param newPixel second pixel color value where the weight will be applied
-     * @param weight a float weight that will be applied to the second pixel
-     *            color
-     * @return the weighted addition of the two pixels
-     */
-    public static int addPixel(int pixel, int newPixel, float weight) {
-        // TODO: scale weight to [0, 1024] to avoid casting to float and back to
-        // int.
-        int r = ((pixel & 0x00ff0000) + (int) ((newPixel & 0x00ff0000) * weight)) & 0x00ff0000;
-        int g = ((pixel & 0x0000ff00) + (int) ((newPixel & 0x0000ff00) * weight)) & 0x0000ff00;
-        int b = ((pixel & 0x000000ff) + (int) ((newPixel & 0x000000ff) * weight)) & 0x000000ff;
-        return 0xff000000 | r | g | b;
-    }
-
     /**
      * Apply blur to the input image represented in an array of colors and put
      * the output image, in the form of an array of colors, into the output
@@ -981,43 +966,23 @@ public class CameraUtil {
      * @param size size of the Gaussian blur mask
      */
     public static void blur(int[] src, int[] out, int w, int h, int size) {
-        float[] k = new float[size];
-        int off = size / 2;
+        blur(src, out, new int[w * h], w, h, size);
+    }
 
+    /**
+     * Like {@link #blur(int[], int[], int, int, int)}, with a scratch array of
+     * at least w * h colors that can be reused across calls. Masks larger than
+     * {@link #MAX_BLUR_MASK_SIZE} are approximated by three box blurs, which
+     * cost the same for any size.
+     */
+    public static void blur(int[] src, int[] out, int[] scratch, int w, int h, int size) {
+        float[] k = new float[size];
         getGaussianMask(k);
-
-        int[] tmp = new int[src.length];
-
-        // Apply the 1d Gaussian mask horizontally to the image and put the
-        // intermediat results in a temporary array.
-        int rowPointer = 0;
-        for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++) {
-                int sum = 0;
-                for (int i = 0; i < k.length; i++) {
-                    int dx = x + i - off;
-                    dx = clamp(dx, 0, w - 1);
-                    sum = addPixel(sum, src[rowPointer + dx], k[i]);
-                }
-                tmp[x + rowPointer] = sum;
-            }
-            rowPointer += w;
-        }
-
-        // Apply the 1d Gaussian mask vertically to the intermediate array, and
-        // the final results will be stored in the output array.
-        for (int x = 0; x < w; x++) {
-            rowPointer = 0;
-            for (int y = 0; y < h; y++) {
-                int sum = 0;
-                for (int i = 0; i < k.length; i++) {
-                    int dy = y + i - off;
-                    dy = clamp(dy, 0, h - 1);
-                    sum = addPixel(sum, tmp[dy * w + x], k[i]);
-                }
-                out[x + rowPointer] = sum;
-                rowPointer += w;
-            }
+        if (size <= MAX_BLUR_MASK_SIZE) {
+            ImageBlur.convolve(src, out, scratch, w, h, ImageBlur.toFixedPoint(k));
+        } else {
+            ImageBlur.boxBlur(src, out, scratch, w, h,
+                    ImageBlur.boxRadiusFor(k, BLUR_BOX_PASSES), BLUR_BOX_PASSES);
         }
     }
 
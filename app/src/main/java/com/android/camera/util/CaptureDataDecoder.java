@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns the files written by {@link CaptureDataRecorder} back into text, in
+ * the format of the old per-capture text dumps: a title line per record
+ * followed by the name and value of each key.
+ * <p>
+ * This only depends on the JDK, so that it can run on a workstation:
+ * <pre>
+ * java com.android.camera.util.CaptureDataDecoder capture_data.bin [out.txt]
+ * </pre>
+ * The file layout is defined here and shared with the recorder. All values
+ * are big endian.
+ * <ul>
+ * <li>A header of {@link #HEADER_SIZE} bytes.</li>
+ * <li>A dictionary of key names and titles, each written once as a short
+ * id, a short length and UTF-8 bytes.</li>
+ * <li>A ring of records, each starting with its length, a kind, the id of
+ * its title, a frame number, a timestamp and the number of entries. An entry
+ * is a key id, a value type and the value. A length of {@link #WRAP} marks
+ * the end of the data before the ring wraps around.</li>
+ * </ul>
+ */
+public class CaptureDataDecoder {
+    static final int MAGIC = 0x43445231; // "CDR1"
+    static final int VERSION = 1;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final int HEADER_SIZE = 64;
+    static final int HEADER_MAGIC = 0;
+    static final int HEADER_VERSION = 4;
+    static final int HEADER_DICTIONARY_CAPACITY = 8;
+    static final int HEADER_DATA_CAPACITY = 12;
+    static final int HEADER_DICTIONARY_END = 16;
+    static final int HEADER_HEAD = 20;
+    static final int HEADER_TAIL = 24;
+    static final int HEADER_LIVE_RECORDS = 28;
+    static final int HEADER_TOTAL_RECORDS = 32;
+
+    /** Length, kind, title, frame number, timestamp and entry count. */
+    static final int RECORD_HEADER_SIZE = 4 + 1 + 2 + 8 + 8 + 2;
+    static final int WRAP = 0;
+
+    static final byte KIND_REQUEST = 1;
+    static final byte KIND_RESULT = 2;
+    static final byte KIND_VALUES = 3;
+
+    static final byte TYPE_BOOLEAN = 1;
+    static final byte TYPE_BYTE = 2;
+    static final byte TYPE_INT = 3;
+    static final byte TYPE_LONG = 4;
+    static final byte TYPE_FLOAT = 5;
+    static final byte TYPE_DOUBLE = 6;
+    static final byte TYPE_BYTE_ARRAY = 7;
+    static final byte TYPE_INT_ARRAY = 8;
+    static final byte TYPE_LONG_ARRAY = 9;
+    static final byte TYPE_FLOAT_ARRAY = 10;
+    static final byte TYPE_DOUBLE_ARRAY = 11;
+    static final byte TYPE_RATIONAL = 12;
+    static final byte TYPE_RECT = 13;
+    static final byte TYPE_RGGB_CHANNEL_VECTOR = 14;
+    /** Any other value, already converted to text. */
+    static final byte TYPE_STRING = 15;
+
+    /** Returns whether a record can't start at the given data offset. */
+    static boolean isWrap(ByteBuffer buffer, int dataStart, int dataCapacity, int offset) {
+        return dataCapacity - offset < 4 || buffer.getInt(dataStart + offset) == WRAP;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: CaptureDataDecoder <recording> [<output>]");
+            System.exit(1);
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(args.length == 2
+                ? new FileOutputStream(args[1]) : System.out, UTF_8));
+        try {
+            decode(new File(args[0]), writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Writes the records of a recording as text, oldest first.
+     *
+     * @throws IOException if the file can't be read or is not a recording.
+     */
+    public static void decode(File file, Writer writer) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            decode(buffer, writer);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    static void decode(ByteBuffer buffer, Writer writer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(HEADER_MAGIC) != MAGIC) {
+            throw new IOException("Not a capture data recording");
+        }
+        if (buffer.getInt(HEADER_VERSION) != VERSION) {
+            throw new IOException("Unsupported version " + buffer.getInt(HEADER_VERSION));
+        }
+        int dictionaryCapacity = buffer.getInt(HEADER_DICTIONARY_CAPACITY);
+        int dataCapacity = buffer.getInt(HEADER_DATA_CAPACITY);
+        int dataStart = HEADER_SIZE + dictionaryCapacity;
+        if (buffer.capacity() < dataStart + dataCapacity) {
+            throw new IOException("Truncated recording");
+        }
+        Map<Integer, String> names = readDictionary(buffer,
+                buffer.getInt(HEADER_DICTIONARY_END));
+
+        int offset = buffer.getInt(HEADER_TAIL);
+        int records = buffer.getInt(HEADER_LIVE_RECORDS);
+        // A record is only written once all of it could be decoded.
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < records; i++) {
+            if (offset < 0 || offset > dataCapacity) {
+                writeCorrupt(writer, offset);
+                return;
+            }
+            if (isWrap(buffer, dataStart, dataCapacity, offset)) {
+                offset = 0;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(dataStart + offset);
+            int length = record.getInt();
+            if (length < RECORD_HEADER_SIZE || length > dataCapacity - offset) {
+                writeCorrupt(writer, offset);
+                return;
+            }
+            record.limit(dataStart + offset + length);
+
+            try {
+                record.get(); // The kind, which the title tells too.
+                String title = getName(names, record.getShort());
+                long frameNumber = record.getLong();
+                long timestampNs = record.getLong();
+                int entries = record.getShort() & 0xffff;
+
+                text.setLength(0);
+                text.append(title);
+                if (frameNumber >= 0) {
+                    text.append(" frame ").append(frameNumber);
+                }
+                text.append(" at ").append(timestampNs).append("ns\n");
+                for (int j = 0; j < entries; j++) {
+                    String name = getName(names, record.getShort());
+                    text.append("    ").append(name).append("\n        ");
+                    if (!appendValue(record, text)) {
+                        writeCorrupt(writer, offset);
+                        return;
+                    }
+                    text.append('\n');
+                }
+                writer.append(text);
+            } catch (BufferUnderflowException e) {
+                // The entries run past the length of the record.
+                writeCorrupt(writer, offset);
+                return;
+            }
+            offset += length;
+        }
+    }
+
+    /**
+     * Ends the output at a record which can't be decoded, such as one which
+     * was being written when the app died. Nothing after it can be trusted.
+     */
+    private static void writeCorrupt(Writer writer, int offset) throws IOException {
+        writer.write("<corrupt record at offset " + offset + ">\n");
+    }
+
+    /**
+     * Returns the name of a dictionary id. Ids are missing when the
+     * dictionary of the recording was full.
+     */
+    private static String getName(Map<Integer, String> names, int id) {
+        String name = names.get(id);
+        return name != null ? name : "<unknown " + id + ">";
+    }
+
+    private static Map<Integer, String> readDictionary(ByteBuffer buffer, int end) {
+        Map<Integer, String> names = new HashMap<Integer, String>();
+        ByteBuffer dictionary = buffer.duplicate();
+        dictionary.position(HEADER_SIZE);
+        while (dictionary.position() < HEADER_SIZE + end) {
+            int id = dictionary.getShort();
+            byte[] bytes = new byte[dictionary.getShort() & 0xffff];
+            dictionary.get(bytes);
+            names.put(id, new String(bytes, UTF_8));
+        }
+        return names;
+    }
+
+    /**
+     * Appends a value the way {@link Object#toString} of the original object
+     * would, with arrays as a bracketed list.
+     *
+     * @return false if the value type is unknown.
+     */
+    private static boolean appendValue(ByteBuffer record, StringBuilder out) {
+        byte type = record.get();
+        switch (type) {
+            case TYPE_BOOLEAN:
+                out.append(record.get() != 0);
+                break;
+            case TYPE_BYTE:
+                out.append(record.get());
+                break;
+            case TYPE_INT:
+                out.append(record.getInt());
+                break;
+            case TYPE_LONG:
+                out.append(record.getLong());
+                break;
+            case TYPE_FLOAT:
+                out.append(record.getFloat());
+                break;
+            case TYPE_DOUBLE:
+                out.append(record.getDouble());
+                break;
+            case TYPE_BYTE_ARRAY:
+            case TYPE_INT_ARRAY:
+            case TYPE_LONG_ARRAY:
+            case TYPE_FLOAT_ARRAY:
+            case TYPE_DOUBLE_ARRAY: {
+                int length = record.getInt();
+                if (length < 0) {
+                    return false;
+                }
+                out.append('[');
+                for (int i = 0; i < length; i++) {
+                    if (i > 0) {
+                        out.append(", ");
+                    }
+                    if (type == TYPE_BYTE_ARRAY) {
+                        out.append(record.get());
+                    } else if (type == TYPE_INT_ARRAY) {
+                        out.append(record.getInt());
+                    } else if (type == TYPE_LONG_ARRAY) {
+                        out.append(record.getLong());
+                    } else if (type == TYPE_FLOAT_ARRAY) {
+                        out.append(record.getFloat());
+                    } else {
+                        out.append(record.getDouble());
+                    }
+                }
+                out.append(']');
+                break;
+            }
+            case TYPE_RATIONAL: {
+                int numerator = record.getInt();
+                int denominator = record.getInt();
+                if (denominator != 0) {
+                    out.append(numerator).append('/').append(denominator);
+                } else if (numerator == 0) {
+                    out.append("NaN");
+                } else {
+                    out.append(numerator > 0 ? "Infinity" : "-Infinity");
+                }
+                break;
+            }
+            case TYPE_RECT:
+                out.append("Rect(").append(record.getInt()).append(", ")
+                        .append(record.getInt()).append(" - ").append(record.getInt())
+                        .append(", ").append(record.getInt()).append(')');
+                break;
+            case TYPE_RGGB_CHANNEL_VECTOR:
+                out.append("RggbChannelVector: R:").append(record.getFloat())
+                        .append(" G(even):").append(record.getFloat())
+                        .append(" G(odd):").append(record.getFloat())
+                        .append(" B:").append(record.getFloat());
+                break;
+            case TYPE_STRING: {
+                int length = record.getInt();
+                if (length < 0 || length > record.remaining()) {
+                    return false;
+                }
+                byte[] bytes = new byte[length];
+                record.get(bytes);
+                out.append(new String(bytes, UTF_8));
+                break;
+            }
+            default:
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.graphics.Rect;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.params.ColorSpaceTransform;
+import android.hardware.camera2.params.RggbChannelVector;
+import android.hardware.camera2.params.TonemapCurve;
+import android.os.SystemClock;
+import android.util.Pair;
+import android.util.Rational;
+
+import com.android.camera.debug.Log;
+import com.android.camera.debug.Log.Tag;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.android.camera.util.CaptureDataDecoder.HEADER_DATA_CAPACITY;
+import static com.android.camera.util.CaptureDataDecoder.HEADER_DICTIONARY_CAPACITY;
+import static com.android.camera.util.CaptureDataDecoder.HEADER_DICTIONARY_END;
+import static com.android.camera.util.CaptureDataDecoder.HEADER_HEAD;
+import static com.android.camera.util.CaptureDataDecoder.HEADER_LIVE_RECORDS;
+import static com.android.camera.util.CaptureDataDecoder.HEADER_MAGIC;
+import static com.android.camera.util.CaptureDataDecoder.HEADER_SIZE;
+import static com.android.camera.util.CaptureDataDecoder.HEADER_TAIL;
+import static com.android.camera.util.CaptureDataDecoder.HEADER_TOTAL_RECORDS;
+import static com.android.camera.util.CaptureDataDecoder.HEADER_VERSION;
+import static com.android.camera.util.CaptureDataDecoder.KIND_REQUEST;
+import static com.android.camera.util.CaptureDataDecoder.KIND_RESULT;
+import static com.android.camera.util.CaptureDataDecoder.KIND_VALUES;
+import static com.android.camera.util.CaptureDataDecoder.MAGIC;
+import static com.android.camera.util.CaptureDataDecoder.RECORD_HEADER_SIZE;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_BOOLEAN;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_BYTE;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_BYTE_ARRAY;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_DOUBLE;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_DOUBLE_ARRAY;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_FLOAT;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_FLOAT_ARRAY;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_INT;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_INT_ARRAY;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_LONG;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_LONG_ARRAY;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_RATIONAL;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_RECT;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_RGGB_CHANNEL_VECTOR;
+import static com.android.camera.util.CaptureDataDecoder.TYPE_STRING;
+import static com.android.camera.util.CaptureDataDecoder.UTF_8;
+import static com.android.camera.util.CaptureDataDecoder.VERSION;
+import static com.android.camera.util.CaptureDataDecoder.WRAP;
+import static com.android.camera.util.CaptureDataDecoder.isWrap;
+
+/**
+ * A flight recorder for Camera2 capture requests and results, cheap enough
+ * to record every frame.
+ * <p>
+ * Records are appended in a compact binary form to a memory-mapped file used
+ * as a ring, so the most recent ones survive a crash and the file never
+ * grows. Key names and titles are written once to a dictionary, and common
+ * value types are stored as raw numbers. Other values are stored as text.
+ * {@link CaptureDataDecoder} turns a recording back into text.
+ */
+public class CaptureDataRecorder {
+    private static final Tag TAG = new Tag("CaptureDataRec");
+
+    /** The default size of a recording, which holds a few thousand results. */
+    public static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+    private static final int DICTIONARY_CAPACITY = 64 * 1024;
+    /**
+     * How often the keys of results are queried, as this is slow. The keys
+     * of a stream of results rarely change.
+     */
+    private static final int RESULT_KEY_REFRESH_INTERVAL = 30;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mDataStart;
+    private final int mDataCapacity;
+    private final Map<String, Integer> mIds = new HashMap<String, Integer>();
+    private int mDictionaryEnd;
+    private int mHead;
+    private int mTail;
+    private int mLiveRecords;
+    private long mTotalRecords;
+    private boolean mDictionaryFull;
+    private boolean mClosed;
+
+    /** The keys seen in results so far, in the order they were first seen. */
+    private final List<CaptureResult.Key<?>> mResultKeys = new ArrayList<CaptureResult.Key<?>>();
+    private final Set<CaptureResult.Key<?>> mResultKeySet = new HashSet<CaptureResult.Key<?>>();
+    private int mResultsUntilKeyRefresh;
+
+    /** Where records are assembled before being copied to the ring. */
+    private ByteBuffer mScratch = ByteBuffer.allocate(16 * 1024);
+
+    /**
+     * Creates a new recording, replacing any existing file.
+     *
+     * @param capacity the size of the ring of records, in bytes.
+     */
+    public CaptureDataRecorder(File file, int capacity) throws IOException {
+        if (capacity < 1024) {
+            throw new IllegalArgumentException("Capacity too small: " + capacity);
+        }
+        mDataStart = HEADER_SIZE + DICTIONARY_CAPACITY;
+        mDataCapacity = capacity;
+        file.delete();
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    mDataStart + mDataCapacity);
+        } catch (IOException ex) {
+            mFile.close();
+            throw ex;
+        }
+        mBuffer.putInt(HEADER_VERSION, VERSION);
+        mBuffer.putInt(HEADER_DICTIONARY_CAPACITY, DICTIONARY_CAPACITY);
+        mBuffer.putInt(HEADER_DATA_CAPACITY, mDataCapacity);
+        writeHeader();
+        // Marks the file as valid last.
+        mBuffer.putInt(HEADER_MAGIC, MAGIC);
+    }
+
+    /** Records all the keys of a request. */
+    public synchronized void record(String title, CaptureRequest request) {
+        if (mClosed) {
+            return;
+        }
+        beginRecord(KIND_REQUEST, title, -1);
+        int entries = 0;
+        for (CaptureRequest.Key<?> key : request.getKeys()) {
+            if (putEntry(key.getName(), request.get(key))) {
+                entries++;
+            }
+        }
+        endRecord(entries);
+    }
+
+    /** Records all the keys of a result. */
+    public synchronized void record(String title, CaptureResult result) {
+        if (mClosed) {
+            return;
+        }
+        if (--mResultsUntilKeyRefresh <= 0) {
+            for (CaptureResult.Key<?> key : result.getKeys()) {
+                if (mResultKeySet.add(key)) {
+                    mResultKeys.add(key);
+                }
+            }
+            mResultsUntilKeyRefresh = RESULT_KEY_REFRESH_INTERVAL;
+        }
+        beginRecord(KIND_RESULT, title, result.getFrameNumber());
+        int entries = 0;
+        for (int i = 0; i < mResultKeys.size(); i++) {
+            CaptureResult.Key<?> key = mResultKeys.get(i);
+            if (putEntry(key.getName(), result.get(key))) {
+                entries++;
+            }
+        }
+        endRecord(entries);
+    }
+
+    /**
+     * Records named values, such as state of the app, with the same value
+     * types as the keys of requests and results.
+     *
+     * @param frameNumber the frame the values belong to, or -1.
+     */
+    public synchronized void record(String title, long frameNumber, Map<String, ?> values) {
+        if (mClosed) {
+            return;
+        }
+        beginRecord(KIND_VALUES, title, frameNumber);
+        int entries = 0;
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            if (putEntry(entry.getKey(), entry.getValue())) {
+                entries++;
+            }
+        }
+        endRecord(entries);
+    }
+
+    /** Writes the recording to storage and closes it. */
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mBuffer.force();
+        CameraUtil.closeSilently(mFile);
+    }
+
+    private void beginRecord(byte kind, String title, long frameNumber) {
+        mScratch.clear();
+        mScratch.putInt(0); // The length, set by endRecord.
+        mScratch.put(kind);
+        mScratch.putShort((short) getId(title));
+        mScratch.putLong(frameNumber);
+        mScratch.putLong(SystemClock.elapsedRealtimeNanos());
+        mScratch.putShort((short) 0); // The entry count, set by endRecord.
+    }
+
+    private void endRecord(int entries) {
+        int length = mScratch.position();
+        if (length > mDataCapacity / 2) {
+            Log.w(TAG, "Dropped a record of " + length + " bytes");
+            return;
+        }
+        mScratch.putInt(0, length);
+        mScratch.putShort(RECORD_HEADER_SIZE - 2, (short) entries);
+
+        boolean wrap = mHead + length > mDataCapacity;
+        int start = mHead;
+        if (wrap) {
+            // Drops the records up to the end, and wraps around.
+            while (mLiveRecords > 0 && mTail >= mHead) {
+                dropOldestRecord();
+            }
+            start = 0;
+            if (mLiveRecords == 0) {
+                mTail = 0;
+            }
+        }
+        while (mLiveRecords > 0 && mTail >= start && mTail < start + length) {
+            dropOldestRecord();
+        }
+        if (mLiveRecords == 0) {
+            mTail = start;
+        }
+        // The header must stop pointing at the dropped records before they
+        // are overwritten, or a crash in between leaves it pointing at a
+        // partly written record.
+        writeHeader();
+
+        if (wrap && mDataCapacity - mHead >= 4) {
+            mBuffer.putInt(mDataStart + mHead, WRAP);
+        }
+        mHead = start;
+        mScratch.flip();
+        putRecord(mHead, mScratch);
+        mHead += length;
+        mLiveRecords++;
+        mTotalRecords++;
+        writeHeader();
+    }
+
+    /**
+     * Copies an assembled record into the ring. Not private so that tests
+     * can interrupt it.
+     */
+    void putRecord(int offset, ByteBuffer record) {
+        mBuffer.position(mDataStart + offset);
+        mBuffer.put(record);
+    }
+
+    private void dropOldestRecord() {
+        mTail += mBuffer.getInt(mDataStart + mTail);
+        mLiveRecords--;
+        if (mLiveRecords > 0 && isWrap(mBuffer, mDataStart, mDataCapacity, mTail)) {
+            mTail = 0;
+        }
+    }
+
+    private void writeHeader() {
+        mBuffer.putInt(HEADER_DICTIONARY_END, mDictionaryEnd);
+        mBuffer.putInt(HEADER_HEAD, mHead);
+        mBuffer.putInt(HEADER_TAIL, mTail);
+        mBuffer.putInt(HEADER_LIVE_RECORDS, mLiveRecords);
+        mBuffer.putLong(HEADER_TOTAL_RECORDS, mTotalRecords);
+    }
+
+    /**
+     * Returns the dictionary id of a key name or title, adding it if needed,
+     * or -1 if the dictionary is full.
+     */
+    private int getId(String name) {
+        Integer id = mIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        byte[] bytes = name.getBytes(UTF_8);
+        if (mDictionaryEnd + 4 + bytes.length > DICTIONARY_CAPACITY
+                || mIds.size() > Short.MAX_VALUE) {
+            if (!mDictionaryFull) {
+                Log.w(TAG, "Dictionary full, dropping " + name);
+                mDictionaryFull = true;
+            }
+            return -1;
+        }
+        id = mIds.size();
+        mBuffer.position(HEADER_SIZE + mDictionaryEnd);
+        mBuffer.putShort((short) (int) id);
+        mBuffer.putShort((short) bytes.length);
+        mBuffer.put(bytes);
+        mDictionaryEnd += 4 + bytes.length;
+        mIds.put(name, id);
+        return id;
+    }
+
+    /**
+     * Appends a key and its value to the current record.
+     *
+     * @return Whether anything was appended; null values are skipped.
+     */
+    private boolean putEntry(String name, Object value) {
+        if (value == null) {
+            return false;
+        }
+        int id = getId(name);
+        if (id < 0) {
+            return false;
+        }
+        ensureScratch(2 + 1 + 16);
+        mScratch.putShort((short) id);
+        if (value instanceof Integer) {
+            mScratch.put(TYPE_INT).putInt((Integer) value);
+        } else if (value instanceof Long) {
+            mScratch.put(TYPE_LONG).putLong((Long) value);
+        } else if (value instanceof Float) {
+            mScratch.put(TYPE_FLOAT).putFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            mScratch.put(TYPE_BOOLEAN).put((byte) ((Boolean) value ? 1 : 0));
+        } else if (value instanceof Byte) {
+            mScratch.put(TYPE_BYTE).put((Byte) value);
+        } else if (value instanceof Double) {
+            mScratch.put(TYPE_DOUBLE).putDouble((Double) value);
+        } else if (value instanceof Rational) {
+            Rational rational = (Rational) value;
+            mScratch.put(TYPE_RATIONAL).putInt(rational.getNumerator())
+                    .putInt(rational.getDenominator());
+        } else if (value instanceof Rect) {
+            Rect rect = (Rect) value;
+            mScratch.put(TYPE_RECT).putInt(rect.left).putInt(rect.top).putInt(rect.right)
+                    .putInt(rect.bottom);
+        } else if (value instanceof RggbChannelVector) {
+            RggbChannelVector vector = (RggbChannelVector) value;
+            mScratch.put(TYPE_RGGB_CHANNEL_VECTOR).putFloat(vector.getRed())
+                    .putFloat(vector.getGreenEven()).putFloat(vector.getGreenOdd())
+                    .putFloat(vector.getBlue());
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            ensureScratch(5 + array.length * 4);
+            mScratch.put(TYPE_INT_ARRAY).putInt(array.length);
+            for (int element : array) {
+                mScratch.putInt(element);
+            }
+        } else if (value instanceof float[]) {
+            float[] array = (float[]) value;
+            ensureScratch(5 + array.length * 4);
+            mScratch.put(TYPE_FLOAT_ARRAY).putInt(array.length);
+            for (float element : array) {
+                mScratch.putFloat(element);
+            }
+        } else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            ensureScratch(5 + array.length * 8);
+            mScratch.put(TYPE_LONG_ARRAY).putInt(array.length);
+            for (long element : array) {
+                mScratch.putLong(element);
+            }
+        } else if (value instanceof byte[]) {
+            byte[] array = (byte[]) value;
+            ensureScratch(5 + array.length);
+            mScratch.put(TYPE_BYTE_ARRAY).putInt(array.length).put(array);
+        } else if (value instanceof double[]) {
+            double[] array = (double[]) value;
+            ensureScratch(5 + array.length * 8);
+            mScratch.put(TYPE_DOUBLE_ARRAY).putInt(array.length);
+            for (double element : array) {
+                mScratch.putDouble(element);
+            }
+        } else {
+            byte[] text = metadataValueToString(value).getBytes(UTF_8);
+            ensureScratch(5 + text.length);
+            mScratch.put(TYPE_STRING).putInt(text.length).put(text);
+        }
+        return true;
+    }
+
+    /** Makes room for the given number of bytes in the scratch buffer. */
+    private void ensureScratch(int bytes) {
+        if (mScratch.remaining() >= bytes) {
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(
+                Math.max(mScratch.capacity() * 2, mScratch.position() + bytes));
+        mScratch.flip();
+        larger.put(mScratch);
+        mScratch = larger;
+    }
+
+    private static String metadataValueToString(Object object) {
+        if (object == null) {
+            return "<null>";
+        }
+        if (object.getClass().isArray()) {
+            StringBuilder builder = new StringBuilder();
+            builder.append("[");
+
+            int length = Array.getLength(object);
+            for (int i = 0; i < length; ++i) {
+                Object item = Array.get(object, i);
+                builder.append(metadataValueToString(item));
+
+                if (i != length - 1) {
+                    builder.append(", ");
+                }
+            }
+            builder.append(']');
+
+            return builder.toString();
+        } else {
+            // These classes don't have a toString() method yet
+            // See: http://b/16899576
+            if (object instanceof RggbChannelVector) {
+                return toString((RggbChannelVector) object);
+            } else if (object instanceof ColorSpaceTransform) {
+                return toString((ColorSpaceTransform) object);
+            } else if (object instanceof TonemapCurve) {
+                return toString((TonemapCurve) object);
+            } else if (object instanceof Pair) {
+                return toString((Pair<?, ?>) object);
+            }
+            return object.toString();
+        }
+    }
+
+    private static String toString(RggbChannelVector vector) {
+        StringBuilder str = new StringBuilder();
+        str.append("RggbChannelVector:");
+        str.append(" R:");
+        str.append(vector.getRed());
+        str.append(" G(even):");
+        str.append(vector.getGreenEven());
+        str.append(" G(odd):");
+        str.append(vector.getGreenOdd());
+        str.append(" B:");
+        str.append(vector.getBlue());
+
+        return str.toString();
+    }
+
+    private static String toString(ColorSpaceTransform transform) {
+        StringBuilder str = new StringBuilder();
+        Rational[] rationals = new Rational[9];
+        transform.copyElements(rationals, 0);
+        str.append("ColorSpaceTransform: ");
+        str.append(Arrays.toString(rationals));
+        return str.toString();
+    }
+
+    private static String toString(TonemapCurve curve) {
+        StringBuilder str = new StringBuilder();
+        str.append("TonemapCurve:");
+
+        float[] reds = new float[curve.getPointCount(TonemapCurve.CHANNEL_RED)
+                * TonemapCurve.POINT_SIZE];
+        curve.copyColorCurve(TonemapCurve.CHANNEL_RED, reds, 0);
+        float[] greens = new float[curve.getPointCount(TonemapCurve.CHANNEL_GREEN)
+                * TonemapCurve.POINT_SIZE];
+        curve.copyColorCurve(TonemapCurve.CHANNEL_GREEN, greens, 0);
+        float[] blues = new float[curve.getPointCount(TonemapCurve.CHANNEL_BLUE)
+                * TonemapCurve.POINT_SIZE];
+        curve.copyColorCurve(TonemapCurve.CHANNEL_BLUE, blues, 0);
+
+        str.append("\n\nReds: ");
+        str.append(Arrays.toString(reds));
+        str.append("\n\nGreens: ");
+        str.append(Arrays.toString(greens));
+        str.append("\n\nBlues: ");
+        str.append(Arrays.toString(blues));
+
+        return str.toString();
+    }
+
+    private static String toString(Pair<?, ?> pair) {
+        return "Pair: " + metadataValueToString(pair.first) + " / "
+                + metadataValueToString(pair.second);
+    }
+}
@@ -22,11 +22,10 @@ import android.util.Pair;
 import com.android.camera.debug.Log.Tag;
 
 import java.security.InvalidParameterException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.Semaphore;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Implements a thread-safe fixed-size pool map of integers to objects such that
@@ -36,6 +35,10 @@ import java.util.concurrent.Semaphore;
  * This class enforces the invariant that a new element can always be swapped
  * in. Thus, requests to pin an element for a particular task may be denied if
  * there are not enough unpinned elements which can be removed. <br>
+ * Elements live in a fixed array of slots. Pinning and releasing only
+ * compare-and-set the pin count of a slot and never block, so they do not
+ * contend with each other or with a swap in progress. Swaps are serialized
+ * among themselves. <br>
  */
 public class ConcurrentSharedRingBuffer<E> {
     private static final Tag TAG = new Tag("CncrrntShrdRingBuf");
@@ -96,50 +99,38 @@ public class ConcurrentSharedRingBuffer<E> {
         public void onPinStateChange(boolean pinsAvailable);
     }
 
+    /** Pin count of a slot that is being swapped out. */
+    private static final int SLOT_SWAPPING = -1;
+    /** Pin count of a slot that has never been filled, or was closed. */
+    private static final int SLOT_EMPTY = -2;
+
     /**
-     * Wraps E with reference counting.
+     * The state of each slot: the generation of the element in the upper 32
+     * bits, and the pin count (or {@link #SLOT_SWAPPING} or {@link #SLOT_EMPTY})
+     * in the lower 32 bits. The generation is bumped each time the slot is
+     * swapped, so a pin that raced with a swap fails its compare-and-set
+     * instead of pinning the new element under the old key.
      */
-    private static class Pinnable<E> {
-        private E mElement;
-
-        /** Reference-counting for the number of tasks holding this element. */
-        private int mPins;
-
-        public Pinnable(E element) {
-            mElement = element;
-            mPins = 0;
-        }
-
-        public E getElement() {
-            return mElement;
-        }
-
-        private boolean isPinned() {
-            return mPins > 0;
-        }
-    }
-
-    /** Allow only one swapping operation at a time. */
-    private final Object mSwapLock = new Object();
+    private final AtomicLongArray mSlotStates;
+    /** The key of each slot; only valid while the slot holds an element. */
+    private final AtomicLongArray mSlotKeys;
+    private final AtomicReferenceArray<E> mSlotElements;
+    /** Number of slots which have been filled, only grows until close(). */
+    private volatile int mSize = 0;
     /**
-     * Lock all transactions involving mElements, mUnpinnedElements,
-     * mCapacitySemaphore, mPinSemaphore, mClosed, mPinStateHandler, and
-     * mPinStateListener and the state of Pinnable instances. <br>
-     * TODO Replace this with a priority semaphore and allow swapLeast()
-     * operations to run faster at the expense of slower tryPin()/release()
-     * calls.
+     * The number of unpinned elements which may still be pinned. This starts
+     * at -1 since we must always have at least one unpinned element available
+     * to swap out as the head of the buffer.
      */
-    private final Object mLock = new Object();
-    /** Stores all elements. */
-    private TreeMap<Long, Pinnable<E>> mElements;
-    /** Stores the subset of mElements which is not pinned. */
-    private TreeMap<Long, Pinnable<E>> mUnpinnedElements;
-    /** Used to acquire space in mElements. */
-    private final Semaphore mCapacitySemaphore;
-    /** This must be acquired while an element is pinned. */
-    private final Semaphore mPinSemaphore;
-    private boolean mClosed = false;
+    private final AtomicInteger mPinPermits = new AtomicInteger(-1);
+    /** Allow only one swapping operation at a time. */
+    private final Object mSwapLock = new Object();
+    /** Used by close() to wait for pins to be released. */
+    private final Object mCloseLock = new Object();
+    private volatile boolean mClosed = false;
 
+    /** Guards mPinStateHandler and mPinStateListener. */
+    private final Object mListenerLock = new Object();
     private Handler mPinStateHandler = null;
     private PinStateListener mPinStateListener = null;
 
@@ -153,13 +144,12 @@ public class ConcurrentSharedRingBuffer<E> {
             throw new IllegalArgumentException("Capacity must be positive.");
         }
 
-        mElements = new TreeMap<Long, Pinnable<E>>();
-        mUnpinnedElements = new TreeMap<Long, Pinnable<E>>();
-        mCapacitySemaphore = new Semaphore(capacity);
-        // Start with -1 permits to pin elements since we must always have at
-        // least one unpinned
-        // element available to swap out as the head of the buffer.
-        mPinSemaphore = new Semaphore(-1);
+        mSlotStates = new AtomicLongArray(capacity);
+        mSlotKeys = new AtomicLongArray(capacity);
+        mSlotElements = new AtomicReferenceArray<E>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mSlotStates.set(i, makeState(0, SLOT_EMPTY));
+        }
     }
 
     /**
@@ -170,7 +160,7 @@ public class ConcurrentSharedRingBuffer<E> {
      *            element changes.
      */
     public void setListener(Handler handler, PinStateListener listener) {
-        synchronized (mLock) {
+        synchronized (mListenerLock) {
             mPinStateHandler = handler;
             mPinStateListener = listener;
         }
@@ -194,81 +184,68 @@ public class ConcurrentSharedRingBuffer<E> {
      *         {@code swapper.create()} may or may not have been invoked.
      */
     public boolean swapLeast(long newKey, SwapTask<E> swapper) {
+        // Swaps only contend with each other, pins and releases never take
+        // this lock.
         synchronized (mSwapLock) {
-            Pinnable<E> existingElement = null;
-
-            synchronized (mLock) {
-                if (mClosed) {
-                    return false;
-                }
-                existingElement = mElements.get(newKey);
+            if (mClosed) {
+                return false;
             }
 
-            if (existingElement != null) {
-                swapper.update(existingElement.getElement());
+            int existing = findSlot(newKey);
+            if (existing >= 0) {
+                swapper.update(mSlotElements.get(existing));
                 return true;
             }
 
-            if (mCapacitySemaphore.tryAcquire()) {
+            int size = mSize;
+            if (size < mSlotStates.length()) {
                 // If we are under capacity, insert the new element and return.
-                Pinnable<E> p = new Pinnable<E>(swapper.create());
+                E element = swapper.create();
+                mSlotKeys.set(size, newKey);
+                mSlotElements.set(size, element);
+                mSlotStates.set(size, makeState(0, 0));
+                mSize = size + 1;
 
-                synchronized (mLock) {
-                    if (mClosed) {
-                        return false;
-                    }
-
-                    // Add the new element and release another permit to pin
-                    // allow pinning another element.
-                    mElements.put(newKey, p);
-                    mUnpinnedElements.put(newKey, p);
-                    mPinSemaphore.release();
-                    if (mPinSemaphore.availablePermits() == 1) {
-                        notifyPinStateChange(true);
-                    }
+                // Allow pinning another element.
+                if (mPinPermits.incrementAndGet() == 1) {
+                    notifyPinStateChange();
                 }
-
                 return true;
-            } else {
-                Pinnable<E> toSwap;
-
-                // Note that this method must be synchronized to avoid
-                // attempting to remove more than one unpinned element at a
-                // time.
-                synchronized (mLock) {
-                    if (mClosed) {
-                        return false;
-                    }
-
-                    Map.Entry<Long, Pinnable<E>> toSwapEntry = mUnpinnedElements.pollFirstEntry();
+            }
 
-                    if (toSwapEntry == null) {
-                        // We should never get here.
-                        throw new RuntimeException("No unpinned element available.");
+            // Claim the least unpinned element. A pin may win the race for
+            // it, in which case we look again: the pin permits guarantee that
+            // some element stays unpinned.
+            int slot;
+            long state;
+            do {
+                slot = -1;
+                state = 0;
+                long leastKey = Long.MAX_VALUE;
+                for (int i = 0; i < size; i++) {
+                    long s = mSlotStates.get(i);
+                    if (getPins(s) == 0 && mSlotKeys.get(i) <= leastKey) {
+                        leastKey = mSlotKeys.get(i);
+                        slot = i;
+                        state = s;
                     }
-
-                    toSwap = toSwapEntry.getValue();
-
-                    // We must remove the element from both mElements and
-                    // mUnpinnedElements because it must be re-added after the
-                    // swap to be placed in the correct order with newKey.
-                    mElements.remove(toSwapEntry.getKey());
                 }
-
-                try {
-                    toSwap.mElement = swapper.swap(toSwap.mElement);
-                } finally {
-                    synchronized (mLock) {
-                        if (mClosed) {
-                            return false;
-                        }
-
-                        mElements.put(newKey, toSwap);
-                        mUnpinnedElements.put(newKey, toSwap);
-                    }
+                if (slot < 0) {
+                    // We should never get here.
+                    throw new RuntimeException("No unpinned element available.");
                 }
-                return true;
+            } while (!mSlotStates.compareAndSet(slot, state,
+                    makeState(getGeneration(state), SLOT_SWAPPING)));
+
+            E element = mSlotElements.get(slot);
+            try {
+                element = swapper.swap(element);
+            } finally {
+                mSlotKeys.set(slot, newKey);
+                mSlotElements.set(slot, element);
+                mSlotStates.set(slot, makeState(getGeneration(state) + 1, 0));
             }
+            return true;
         }
     }
 
@@ -281,82 +258,96 @@ public class ConcurrentSharedRingBuffer<E> {
      *         or null.
      */
     public Pair<Long, E> tryPin(long key) {
+        if (mClosed) {
+            return null;
+        }
 
-        boolean acquiredLastPin = false;
-        Pinnable<E> entry = null;
-
-        synchronized (mLock) {
-            if (mClosed) {
-                return null;
-            }
-
-            if (mElements.isEmpty()) {
-                return null;
+        int size = mSize;
+        for (int i = 0; i < size; i++) {
+            E element = tryPinSlot(i, key);
+            if (element != null) {
+                return Pair.create(key, element);
             }
+        }
+        return null;
+    }
 
-            entry = mElements.get(key);
-
-            if (entry == null) {
+    /**
+     * Pins the element in the slot if it currently holds the given key.
+     *
+     * @return the pinned element, or null if it could not be pinned.
+     */
+    private E tryPinSlot(int slot, long key) {
+        boolean hasPermit = false;
+        while (true) {
+            long state = mSlotStates.get(slot);
+            int pins = getPins(state);
+            // The key is only stable while the generation is unchanged, which
+            // the compare-and-set below verifies.
+            if (pins < 0 || mSlotKeys.get(slot) != key) {
+                if (hasPermit) {
+                    releasePinPermit();
+                }
                 return null;
             }
-
-            if (entry.isPinned()) {
-                // If the element is already pinned by another task, simply
-                // increment the pin count.
-                entry.mPins++;
-            } else {
+            E element = mSlotElements.get(slot);
+            if (pins == 0 && !hasPermit) {
                 // We must ensure that there will still be an unpinned element
                 // after we pin this one.
-                if (mPinSemaphore.tryAcquire()) {
-                    mUnpinnedElements.remove(key);
-                    entry.mPins++;
-
-                    acquiredLastPin = mPinSemaphore.availablePermits() <= 0;
-                } else {
+                if (!tryAcquirePinPermit()) {
                     return null;
                 }
+                hasPermit = true;
+                continue;
+            }
+            if (mSlotStates.compareAndSet(slot, state,
+                    makeState(getGeneration(state), pins + 1))) {
+                if (pins > 0 && hasPermit) {
+                    // Someone else pinned it first, we are only adding a
+                    // reference and don't need the permit.
+                    releasePinPermit();
+                }
+                if (mClosed) {
+                    // close() may have missed this pin; undo it.
+                    release(key);
+                    return null;
+                }
+                return element;
             }
         }
-
-        // If we just grabbed the last permit, we must notify listeners of the
-        // pin
-        // state change.
-        if (acquiredLastPin) {
-            notifyPinStateChange(false);
-        }
-
-        return Pair.create(key, entry.getElement());
     }
 
     public void release(long key) {
-        synchronized (mLock) {
-            // Note that this must proceed even if the buffer has been closed.
-
-            Pinnable<E> element = mElements.get(key);
-
-            if (element == null) {
-                throw new InvalidParameterException("No entry found for the given key.");
-            }
-
-            if (!element.isPinned()) {
-                throw new IllegalArgumentException("Calling release() with unpinned element.");
-            }
-
-            // Unpin the element
-            element.mPins--;
-
-            if (!element.isPinned()) {
-                // If there are now 0 tasks pinning this element...
-                mUnpinnedElements.put(key, element);
-
-                // Allow pinning another element.
-                mPinSemaphore.release();
-
-                if (mPinSemaphore.availablePermits() == 1) {
-                    notifyPinStateChange(true);
+        // Note that this must proceed even if the buffer has been closed.
+        int size = mSize;
+        for (int i = 0; i < size; i++) {
+            while (true) {
+                long state = mSlotStates.get(i);
+                int pins = getPins(state);
+                if (pins < 0 || mSlotKeys.get(i) != key) {
+                    break;
+                }
+                if (pins == 0) {
+                    throw new IllegalArgumentException(
+                            "Calling release() with unpinned element.");
+                }
+                if (mSlotStates.compareAndSet(i, state,
+                        makeState(getGeneration(state), pins - 1))) {
+                    if (pins == 1) {
+                        // If there are now 0 tasks pinning this element,
+                        // allow pinning another element.
+                        releasePinPermit();
+                        if (mClosed) {
+                            synchronized (mCloseLock) {
+                                mCloseLock.notifyAll();
+                            }
+                        }
+                    }
+                    return;
                 }
             }
         }
+        throw new InvalidParameterException("No entry found for the given key.");
     }
 
     /**
@@ -370,17 +361,25 @@ public class ConcurrentSharedRingBuffer<E> {
      *         or null.
      */
     public Pair<Long, E> tryPinGreatest() {
-        synchronized (mLock) {
-            if (mClosed) {
-                return null;
-            }
+        if (mClosed) {
+            return null;
+        }
 
-            if (mElements.isEmpty()) {
-                return null;
+        int size = mSize;
+        int greatest = -1;
+        long greatestKey = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            long key = mSlotKeys.get(i);
+            if (getPins(mSlotStates.get(i)) >= 0 && key >= greatestKey) {
+                greatestKey = key;
+                greatest = i;
             }
-
-            return tryPin(mElements.lastKey());
         }
+        if (greatest < 0) {
+            return null;
+        }
+        E element = tryPinSlot(greatest, greatestKey);
+        return element != null ? Pair.create(greatestKey, element) : null;
     }
 
     /**
@@ -390,27 +389,27 @@ public class ConcurrentSharedRingBuffer<E> {
      * @see #pinGreatest
      */
     public Pair<Long, E> tryPinGreatestSelected(Selector<E> selector) {
-        // (Quickly) get the list of elements to search through.
-        ArrayList<Long> keys = new ArrayList<Long>();
-        synchronized (mLock) {
-            if (mClosed) {
-                return null;
-            }
+        if (mClosed) {
+            return null;
+        }
 
-            if (mElements.isEmpty()) {
-                return null;
+        // (Quickly) get the list of elements to search through.
+        int size = mSize;
+        long[] keys = new long[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (getPins(mSlotStates.get(i)) >= 0) {
+                keys[count++] = mSlotKeys.get(i);
             }
-
-            keys.addAll(mElements.keySet());
         }
 
-        Collections.sort(keys);
+        Arrays.sort(keys, 0, count);
 
         // Pin each element, from greatest key to least, until we find the one
         // we want (the element with the greatest key for which
         // selector.selected() returns true).
-        for (int i = keys.size() - 1; i >= 0; i--) {
-            Pair<Long, E> pinnedCandidate = tryPin(keys.get(i));
+        for (int i = count - 1; i >= 0; i--) {
+            Pair<Long, E> pinnedCandidate = tryPin(keys[i]);
             if (pinnedCandidate != null) {
                 boolean selected = false;
 
@@ -439,41 +438,108 @@ public class ConcurrentSharedRingBuffer<E> {
      * @throws InterruptedException
      */
     public void close(Task<E> task) throws InterruptedException {
-        int numPinnedElements;
-
         // Ensure that any pending swap tasks complete before closing.
         synchronized (mSwapLock) {
-            synchronized (mLock) {
-                mClosed = true;
-                numPinnedElements = mElements.size() - mUnpinnedElements.size();
+            mClosed = true;
+        }
+
+        notifyPinStateChange();
+
+        // Claim each slot once its pins are released, before its element is
+        // closed. A pin which still slips in after mClosed was set is undone
+        // by its release(), which finds the slot unchanged.
+        int size = mSize;
+        for (int i = 0; i < size; i++) {
+            boolean claimed = false;
+            synchronized (mCloseLock) {
+                while (true) {
+                    long state = mSlotStates.get(i);
+                    int pins = getPins(state);
+                    if (pins < 0) {
+                        break;
+                    }
+                    if (pins > 0) {
+                        mCloseLock.wait();
+                    } else if (mSlotStates.compareAndSet(i, state,
+                            makeState(getGeneration(state) + 1, SLOT_EMPTY))) {
+                        claimed = true;
+                        break;
+                    }
+                }
+            }
+            if (claimed) {
+                task.run(mSlotElements.get(i));
+                mSlotElements.set(i, null);
             }
         }
+        mSize = 0;
+    }
 
-        notifyPinStateChange(false);
+    /**
+     * Returns the slot holding the given key, or -1. Must be called with
+     * mSwapLock held, so the keys don't change during the scan.
+     */
+    private int findSlot(long key) {
+        int size = mSize;
+        for (int i = 0; i < size; i++) {
+            if (mSlotKeys.get(i) == key && getPins(mSlotStates.get(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
-        // Wait for all pinned tasks to complete.
-        if (numPinnedElements > 0) {
-            mPinSemaphore.acquire(numPinnedElements);
+    private boolean tryAcquirePinPermit() {
+        while (true) {
+            int permits = mPinPermits.get();
+            if (permits <= 0) {
+                return false;
+            }
+            if (mPinPermits.compareAndSet(permits, permits - 1)) {
+                // If we just grabbed the last permit, we must notify listeners
+                // of the pin state change.
+                if (permits == 1) {
+                    notifyPinStateChange();
+                }
+                return true;
+            }
         }
+    }
 
-        for (Pinnable<E> element : mElements.values()) {
-            task.run(element.mElement);
+    private void releasePinPermit() {
+        if (mPinPermits.incrementAndGet() == 1) {
+            notifyPinStateChange();
         }
+    }
 
-        mUnpinnedElements.clear();
+    private static long makeState(int generation, int pins) {
+        return ((long) generation << 32) | (pins & 0xffffffffL);
+    }
 
-        mElements.clear();
+    private static int getGeneration(long state) {
+        return (int) (state >>> 32);
     }
 
-    private void notifyPinStateChange(final boolean pinsAvailable) {
-        synchronized (mLock) {
+    private static int getPins(long state) {
+        return (int) state;
+    }
+
+    /**
+     * Tells the listener whether pins are available. The permits may change
+     * again before the listener runs, and notifications racing on different
+     * threads may be posted in any order, so the state is read when the
+     * listener runs rather than when the change happened. The last
+     * notification then always reports the current state.
+     */
+    private void notifyPinStateChange() {
+        synchronized (mListenerLock) {
             // We must synchronize on mPinStateHandler and mPinStateListener.
             if (mPinStateHandler != null) {
                 final PinStateListener listener = mPinStateListener;
                 mPinStateHandler.post(new Runnable() {
                         @Override
                     public void run() {
-                        listener.onPinStateChange(pinsAvailable);
+                        listener.onPinStateChange(!mClosed && mPinPermits.get() > 0);
                     }
                 });
             }
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Separable blurs of opaque ARGB images stored as int arrays, as used by
+ * {@link CameraUtil#blur}.
+ * <p>
+ * Kernels are applied in 16.16 fixed point, one horizontal and one vertical
+ * pass through a caller-provided scratch array. Large kernels can be
+ * approximated by repeated box blurs, which cost the same for any radius
+ * thanks to a sliding window. Each pass is split into bands of rows that run
+ * on a shared {@link ForkJoinPool}. The alpha channel of the output is always
+ * opaque.
+ */
+public class ImageBlur {
+    /** Fixed-point weights of a kernel add up to this. */
+    public static final int FIXED_ONE = 1 << 16;
+    private static final int FIXED_SHIFT = 16;
+    private static final int FIXED_HALF = FIXED_ONE >> 1;
+
+    private static final int MAX_PARALLELISM = 4;
+    /** Rows handled by a task before it stops splitting. */
+    private static final int ROWS_PER_TASK = 64;
+
+    private static final ForkJoinPool sPool = new ForkJoinPool(Math.max(1,
+            Math.min(MAX_PARALLELISM, Runtime.getRuntime().availableProcessors())));
+
+    /** Processes the rows in [start, end) of one pass. */
+    private interface RowPass {
+        void run(int start, int end);
+    }
+
+    private static class RowTask extends RecursiveAction {
+        private final RowPass mPass;
+        private final int mStart;
+        private final int mEnd;
+
+        RowTask(RowPass pass, int start, int end) {
+            mPass = pass;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart <= ROWS_PER_TASK) {
+                mPass.run(mStart, mEnd);
+                return;
+            }
+            int mid = (mStart + mEnd) >>> 1;
+            invokeAll(new RowTask(mPass, mStart, mid), new RowTask(mPass, mid, mEnd));
+        }
+    }
+
+    /**
+     * Converts normalized kernel weights to fixed point. Rounding errors are
+     * given to the center tap, so that the weights add up to exactly
+     * {@link #FIXED_ONE} and flat areas keep their color.
+     */
+    public static int[] toFixedPoint(float[] weights) {
+        int[] kernel = new int[weights.length];
+        int sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            kernel[i] = Math.round(weights[i] * FIXED_ONE);
+            sum += kernel[i];
+        }
+        kernel[weights.length / 2] += FIXED_ONE - sum;
+        return kernel;
+    }
+
+    /**
+     * Returns the radius of the box blur which, repeated the given number of
+     * times, spreads like the given normalized kernel.
+     */
+    public static int boxRadiusFor(float[] weights, int passes) {
+        int mid = weights.length / 2;
+        double variance = 0;
+        for (int i = 0; i < weights.length; i++) {
+            variance += weights[i] * (i - mid) * (i - mid);
+        }
+        // A box of width d has a variance of (d * d - 1) / 12.
+        double width = Math.sqrt(12 * variance / passes + 1);
+        return Math.max(0, (int) Math.round((width - 1) / 2));
+    }
+
+    /**
+     * Convolves the image with a symmetric kernel horizontally and then
+     * vertically. Pixels outside the image repeat the nearest edge pixel.
+     *
+     * @param src the source colors, w * h of them.
+     * @param out receives the blurred colors; may not be {@code src}.
+     * @param scratch an array of at least w * h colors for the horizontal
+     *            pass; may be reused across calls.
+     * @param kernel fixed-point weights from {@link #toFixedPoint}, an odd
+     *            number of them.
+     */
+    public static void convolve(final int[] src, final int[] out, final int[] scratch,
+            final int w, final int h, final int[] kernel) {
+        checkArguments(src, out, scratch, w, h);
+        forEachRowBand(new RowPass() {
+            @Override
+            public void run(int start, int end) {
+                convolveRows(src, scratch, w, kernel, start, end);
+            }
+        }, h);
+        forEachRowBand(new RowPass() {
+            @Override
+            public void run(int start, int end) {
+                convolveColumns(scratch, out, w, h, kernel, start, end);
+            }
+        }, h);
+    }
+
+    /**
+     * Applies a box blur of the given radius the given number of times. Three
+     * passes are close to a Gaussian blur. Pixels outside the image repeat the
+     * nearest edge pixel.
+     *
+     * @param src the source colors, w * h of them; not modified.
+     * @param out receives the blurred colors; may not be {@code src}.
+     * @param scratch an array of at least w * h colors; may be reused across
+     *            calls.
+     */
+    public static void boxBlur(final int[] src, final int[] out, final int[] scratch,
+            final int w, final int h, final int radius, int passes) {
+        checkArguments(src, out, scratch, w, h);
+        if (passes <= 0) {
+            throw new IllegalArgumentException("Invalid number of passes " + passes);
+        }
+        for (int i = 0; i < passes; i++) {
+            final int[] input = (i == 0) ? src : out;
+            forEachRowBand(new RowPass() {
+                @Override
+                public void run(int start, int end) {
+                    boxRows(input, scratch, w, radius, start, end);
+                }
+            }, h);
+            forEachRowBand(new RowPass() {
+                @Override
+                public void run(int start, int end) {
+                    boxColumns(scratch, out, w, h, radius, start, end);
+                }
+            }, h);
+        }
+    }
+
+    private static void checkArguments(int[] src, int[] out, int[] scratch, int w, int h) {
+        int size = w * h;
+        if (w <= 0 || h <= 0 || src.length < size || out.length < size
+                || scratch.length < size) {
+            throw new IllegalArgumentException("Invalid image size " + w + "x" + h);
+        }
+        if (src == out || src == scratch || out == scratch) {
+            throw new IllegalArgumentException("Buffers must not overlap");
+        }
+    }
+
+    private static void forEachRowBand(RowPass pass, int h) {
+        if (h <= ROWS_PER_TASK) {
+            pass.run(0, h);
+        } else {
+            sPool.invoke(new RowTask(pass, 0, h));
+        }
+    }
+
+    private static int pack(int r, int g, int b) {
+        return 0xff000000 | ((r + FIXED_HALF) >> FIXED_SHIFT) << 16
+                | ((g + FIXED_HALF) >> FIXED_SHIFT) << 8
+                | ((b + FIXED_HALF) >> FIXED_SHIFT);
+    }
+
+    private static void convolveRows(int[] src, int[] dst, int w, int[] kernel, int start,
+            int end) {
+        int size = kernel.length;
+        int off = size / 2;
+        // Pixels in [firstInner, lastInner] have all their taps in the row.
+        int firstInner = off;
+        int lastInner = w - 1 - (size - 1 - off);
+        for (int y = start; y < end; y++) {
+            int row = y * w;
+            for (int x = 0; x < w; x++) {
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                if (x >= firstInner && x <= lastInner) {
+                    int p = row + x - off;
+                    for (int i = 0; i < size; i++, p++) {
+                        int color = src[p];
+                        int k = kernel[i];
+                        r += ((color >> 16) & 0xff) * k;
+                        g += ((color >> 8) & 0xff) * k;
+                        b += (color & 0xff) * k;
+                    }
+                } else {
+                    for (int i = 0; i < size; i++) {
+                        int color = src[row + CameraUtil.clamp(x + i - off, 0, w - 1)];
+                        int k = kernel[i];
+                        r += ((color >> 16) & 0xff) * k;
+                        g += ((color >> 8) & 0xff) * k;
+                        b += (color & 0xff) * k;
+                    }
+                }
+                dst[row + x] = pack(r, g, b);
+            }
+        }
+    }
+
+    private static void convolveColumns(int[] src, int[] dst, int w, int h, int[] kernel,
+            int start, int end) {
+        int size = kernel.length;
+        int off = size / 2;
+        int[] rows = new int[size];
+        for (int y = start; y < end; y++) {
+            // Clamp the rows once per output row instead of once per tap.
+            for (int i = 0; i < size; i++) {
+                rows[i] = CameraUtil.clamp(y + i - off, 0, h - 1) * w;
+            }
+            int row = y * w;
+            for (int x = 0; x < w; x++) {
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int i = 0; i < size; i++) {
+                    int color = src[rows[i] + x];
+                    int k = kernel[i];
+                    r += ((color >> 16) & 0xff) * k;
+                    g += ((color >> 8) & 0xff) * k;
+                    b += (color & 0xff) * k;
+                }
+                dst[row + x] = pack(r, g, b);
+            }
+        }
+    }
+
+    private static void boxRows(int[] src, int[] dst, int w, int radius, int start, int end) {
+        // Dividing by the window size is a multiplication in fixed point,
+        // rounded down so that white stays in range.
+        int scale = FIXED_ONE / (2 * radius + 1);
+        for (int y = start; y < end; y++) {
+            int row = y * w;
+            int r = 0;
+            int g = 0;
+            int b = 0;
+            for (int i = -radius; i <= radius; i++) {
+                int color = src[row + CameraUtil.clamp(i, 0, w - 1)];
+                r += (color >> 16) & 0xff;
+                g += (color >> 8) & 0xff;
+                b += color & 0xff;
+            }
+            for (int x = 0; x < w; x++) {
+                dst[row + x] = pack(r * scale, g * scale, b * scale);
+                int in = src[row + Math.min(x + radius + 1, w - 1)];
+                int outgoing = src[row + Math.max(x - radius, 0)];
+                r += ((in >> 16) & 0xff) - ((outgoing >> 16) & 0xff);
+                g += ((in >> 8) & 0xff) - ((outgoing >> 8) & 0xff);
+                b += (in & 0xff) - (outgoing & 0xff);
+            }
+        }
+    }
+
+    private static void boxColumns(int[] src, int[] dst, int w, int h, int radius, int start,
+            int end) {
+        int scale = FIXED_ONE / (2 * radius + 1);
+        // The window of every column slides down together, so that the rows
+        // are read in order.
+        int[] sums = new int[3 * w];
+        for (int i = start - radius; i <= start + radius; i++) {
+            int row = CameraUtil.clamp(i, 0, h - 1) * w;
+            for (int x = 0, s = 0; x < w; x++, s += 3) {
+                int color = src[row + x];
+                sums[s] += (color >> 16) & 0xff;
+                sums[s + 1] += (color >> 8) & 0xff;
+                sums[s + 2] += color & 0xff;
+            }
+        }
+        for (int y = start; y < end; y++) {
+            int row = y * w;
+            int inRow = Math.min(y + radius + 1, h - 1) * w;
+            int outRow = Math.max(y - radius, 0) * w;
+            for (int x = 0, s = 0; x < w; x++, s += 3) {
+                dst[row + x] = pack(sums[s] * scale, sums[s + 1] * scale, sums[s + 2] * scale);
+                int in = src[inRow + x];
+                int outgoing = src[outRow + x];
+                sums[s] += ((in >> 16) & 0xff) - ((outgoing >> 16) & 0xff);
+                sums[s + 1] += ((in >> 8) & 0xff) - ((outgoing >> 8) & 0xff);
+                sums[s + 2] += (in & 0xff) - (outgoing & 0xff);
+            }
+        }
+    }
+}
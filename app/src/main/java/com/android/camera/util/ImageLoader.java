@@ -16,6 +16,7 @@
 
 package com.android.camera.util;
 
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
@@ -30,6 +31,7 @@ import android.provider.MediaStore;
 import android.webkit.MimeTypeMap;
 
 import com.android.camera.debug.Log;
+import com.android.camera.exif.ExifBufferReader;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.exif.ExifTag;
 
@@ -127,12 +129,11 @@ public final class ImageLoader {
                 return ORI_NORMAL;
             }
             String path = uri.getPath();
-            ExifInterface exif = new ExifInterface();
             try {
-                exif.readExif(path);
-                Integer tagval = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
-                if (tagval != null) {
-                    int orientation = tagval;
+                // Only the orientation is needed, so avoid parsing every tag.
+                ExifBufferReader exif = ExifBufferReader.open(path);
+                int orientation = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION, -1);
+                if (orientation != -1) {
                     switch(orientation) {
                         case ORI_NORMAL:
                         case ORI_ROTATE_90:
@@ -231,12 +232,38 @@ public final class ImageLoader {
 
     /**
      * Loads a bitmap that has been downsampled using sampleSize from a given url.
+     * <p>
+     * The bitmap is shared through {@link BitmapCache}, so it must not be
+     * modified or recycled. It should be given back with
+     * {@link BitmapCache#release} once it is no longer needed, and so should
+     * the bitmaps of the other loading methods below.
      */
     public static Bitmap loadDownsampledBitmap(Context context, Uri uri, int sampleSize) {
+        BitmapCache cache = BitmapCache.getInstance();
+        Bitmap bitmap = cache.acquire(uri, sampleSize, ORI_NORMAL);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inMutable = true;
         options.inSampleSize = sampleSize;
-        return loadBitmap(context, uri, options);
+        if (cache.hasReusableBitmaps()) {
+            Rect bounds = loadBitmapBounds(context, uri);
+            cache.prepareReuse(options, bounds.width(), bounds.height());
+        }
+        try {
+            bitmap = loadBitmap(context, uri, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder could not use the pooled bitmap after all.
+            Log.v(TAG, "Could not reuse bitmap for " + uri);
+            options.inBitmap = null;
+            bitmap = loadBitmap(context, uri, options);
+        }
+        if (bitmap != null) {
+            cache.put(uri, sampleSize, ORI_NORMAL, bitmap);
+        }
+        return bitmap;
     }
 
     /**
@@ -327,10 +354,14 @@ public final class ImageLoader {
             int orientation, Rect originalBounds) {
         Bitmap bmap = loadConstrainedBitmap(uri, context, maxSideLength, originalBounds, false);
         if (bmap != null) {
+            Bitmap loaded = bmap;
             bmap = orientBitmap(bmap, orientation);
             if (bmap.getConfig()!= Bitmap.Config.ARGB_8888){
                 bmap = bmap.copy( Bitmap.Config.ARGB_8888,true);
             }
+            if (bmap != loaded) {
+                BitmapCache.getInstance().release(loaded);
+            }
         }
         return bmap;
     }
@@ -340,6 +371,15 @@ public final class ImageLoader {
      * low-memory situations, the bitmap may be downsampled further.
      */
     public static Bitmap loadBitmapWithBackouts(Context context, Uri sourceUri, int sampleSize) {
+        return loadBitmapWithBackouts(context, sourceUri, sampleSize, null);
+    }
+
+    /**
+     * @param outSampleSize if not null, its first element is set to the
+     *            sample size the bitmap was actually decoded with.
+     */
+    private static Bitmap loadBitmapWithBackouts(Context context, Uri sourceUri, int sampleSize,
+            int[] outSampleSize) {
         boolean noBitmap = true;
         int num_tries = 0;
         if (sampleSize <= 0) {
@@ -357,10 +397,14 @@ public final class ImageLoader {
                     throw e;
                 }
                 bmap = null;
+                BitmapCache.getInstance().trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
                 System.gc();
                 sampleSize *= 2;
             }
         }
+        if (outSampleSize != null) {
+            outSampleSize[0] = sampleSize;
+        }
         return bmap;
     }
 
@@ -370,13 +414,25 @@ public final class ImageLoader {
      */
     public static Bitmap loadOrientedBitmapWithBackouts(Context context, Uri sourceUri,
             int sampleSize) {
-        Bitmap bitmap = loadBitmapWithBackouts(context, sourceUri, sampleSize);
+        int orientation = getMetadataOrientation(context, sourceUri);
+        BitmapCache cache = BitmapCache.getInstance();
+        Bitmap oriented = cache.acquire(sourceUri, sampleSize, orientation);
+        if (oriented != null) {
+            return oriented;
+        }
+        int[] usedSampleSize = new int[1];
+        Bitmap bitmap = loadBitmapWithBackouts(context, sourceUri, sampleSize, usedSampleSize);
         if (bitmap == null) {
             return null;
         }
-        int orientation = getMetadataOrientation(context, sourceUri);
-        bitmap = orientBitmap(bitmap, orientation);
-        return bitmap;
+        oriented = orientBitmap(bitmap, orientation);
+        if (oriented != bitmap) {
+            cache.release(bitmap);
+            // Cached under the sample size it was decoded with, which is
+            // larger than the requested one after a backoff.
+            cache.put(sourceUri, usedSampleSize[0], orientation, oriented);
+        }
+        return oriented;
     }
 
     /**
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of heap and direct buffers for JPEG data, so that taking pictures in
+ * a burst does not allocate several megabytes per shot.
+ * <p>
+ * Buffers are handed out as reference-counted {@link Lease}s, rounded up to a
+ * size class (powers of two and the midpoints between them, starting at
+ * 64Kb). Sizes which are requested over and over, such as those derived from
+ * the sensor size, can be added as exact classes with {@link #addSizeClass}
+ * so they are not rounded up by up to half.
+ * <p>
+ * A lease starts with one reference, owned by the caller of
+ * {@link #acquireHeap} or {@link #acquireDirect}. Each consumer that keeps the
+ * data past the call that handed it over must {@link Lease#retain} it, and
+ * every reference must be released exactly once. The buffer returns to the
+ * pool when the last reference is released.
+ */
+public class JpegBufferPool {
+    private static final int MIN_SIZE_SHIFT = 16; // 64Kb
+    private static final int MAX_SIZE_SHIFT = 27; // 128Mb
+    private static final long DEFAULT_MAX_POOLED_HEAP_BYTES = 32 * 1024 * 1024;
+    private static final long DEFAULT_MAX_POOLED_DIRECT_BYTES = 64 * 1024 * 1024;
+
+    /** The default size classes in ascending order. */
+    private static final int[] sClassSizes;
+    static {
+        sClassSizes = new int[(MAX_SIZE_SHIFT - MIN_SIZE_SHIFT) * 2 + 1];
+        int i = 0;
+        for (int shift = MIN_SIZE_SHIFT; shift < MAX_SIZE_SHIFT; shift++) {
+            sClassSizes[i++] = 1 << shift;
+            sClassSizes[i++] = 3 << (shift - 1);
+        }
+        sClassSizes[i] = 1 << MAX_SIZE_SHIFT;
+    }
+
+    private static JpegBufferPool sInstance;
+
+    /**
+     * A reference-counted handle to a pooled buffer. The valid data is the
+     * first {@link #getLength()} bytes.
+     */
+    public static final class Lease {
+        private final JpegBufferPool mPool;
+        private final byte[] mArray;
+        private final ByteBuffer mBuffer;
+        private final AtomicInteger mRefCount = new AtomicInteger(1);
+        private int mLength;
+
+        private Lease(JpegBufferPool pool, byte[] array, ByteBuffer buffer, int length) {
+            mPool = pool;
+            mArray = array;
+            mBuffer = buffer;
+            mLength = length;
+        }
+
+        /**
+         * Returns the backing array of a heap lease.
+         *
+         * @throws IllegalStateException if this is a direct lease.
+         */
+        public byte[] getArray() {
+            if (mArray == null) {
+                throw new IllegalStateException("Direct lease has no array.");
+            }
+            return mArray;
+        }
+
+        /**
+         * Returns the buffer of a direct lease.
+         *
+         * @throws IllegalStateException if this is a heap lease.
+         */
+        public ByteBuffer getBuffer() {
+            if (mBuffer == null) {
+                throw new IllegalStateException("Heap lease has no direct buffer.");
+            }
+            return mBuffer;
+        }
+
+        public int getCapacity() {
+            return mArray != null ? mArray.length : mBuffer.capacity();
+        }
+
+        /** Returns the number of valid bytes at the start of the buffer. */
+        public int getLength() {
+            return mLength;
+        }
+
+        public void setLength(int length) {
+            if (length < 0 || length > getCapacity()) {
+                throw new IllegalArgumentException("Invalid length " + length);
+            }
+            mLength = length;
+        }
+
+        /** Adds a reference, which must be matched by {@link #release()}. */
+        public Lease retain() {
+            if (mRefCount.getAndIncrement() <= 0) {
+                throw new IllegalStateException("Lease already released.");
+            }
+            return this;
+        }
+
+        /**
+         * Drops a reference. The buffer must not be used by the caller
+         * afterwards.
+         */
+        public void release() {
+            int refCount = mRefCount.decrementAndGet();
+            if (refCount < 0) {
+                throw new IllegalStateException("Lease released too many times.");
+            }
+            if (refCount == 0 && mPool != null) {
+                mPool.recycle(this);
+            }
+        }
+    }
+
+    private final long mMaxPooledHeapBytes;
+    private final long mMaxPooledDirectBytes;
+    /** The size classes in ascending order, indexing the buffer arrays. */
+    private int[] mClassSizes;
+    private ArrayDeque<byte[]>[] mHeapBuffers;
+    private ArrayDeque<ByteBuffer>[] mDirectBuffers;
+    private long mPooledHeapBytes;
+    private long mPooledDirectBytes;
+
+    /** Returns the pool shared by the capture pipeline. */
+    public static synchronized JpegBufferPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new JpegBufferPool(DEFAULT_MAX_POOLED_HEAP_BYTES,
+                    DEFAULT_MAX_POOLED_DIRECT_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Wraps data which does not come from a pool into a lease, so it can be
+     * passed where a lease is expected. Releasing it does nothing.
+     */
+    public static Lease wrap(byte[] data) {
+        return new Lease(null, data, null, data.length);
+    }
+
+    /**
+     * @param maxPooledHeapBytes the number of bytes of idle heap buffers to
+     *            keep; buffers released beyond that are dropped.
+     * @param maxPooledDirectBytes the same for direct buffers.
+     */
+    @SuppressWarnings("unchecked")
+    public JpegBufferPool(long maxPooledHeapBytes, long maxPooledDirectBytes) {
+        mMaxPooledHeapBytes = maxPooledHeapBytes;
+        mMaxPooledDirectBytes = maxPooledDirectBytes;
+        mClassSizes = sClassSizes;
+        mHeapBuffers = new ArrayDeque[sClassSizes.length];
+        mDirectBuffers = new ArrayDeque[sClassSizes.length];
+        for (int i = 0; i < sClassSizes.length; i++) {
+            mHeapBuffers[i] = new ArrayDeque<byte[]>();
+            mDirectBuffers[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    /**
+     * Adds a size class of exactly size bytes, so that leases of that size
+     * are not rounded up to the next default class. A 4000x3000 YUV image
+     * needs 36Mb, for example, which would otherwise take a 48Mb buffer.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void addSizeClass(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid size " + size);
+        }
+        int index = Arrays.binarySearch(mClassSizes, size);
+        if (index >= 0) {
+            return;
+        }
+        index = -index - 1;
+        int count = mClassSizes.length + 1;
+        int[] classSizes = new int[count];
+        ArrayDeque<byte[]>[] heapBuffers = new ArrayDeque[count];
+        ArrayDeque<ByteBuffer>[] directBuffers = new ArrayDeque[count];
+        System.arraycopy(mClassSizes, 0, classSizes, 0, index);
+        System.arraycopy(mHeapBuffers, 0, heapBuffers, 0, index);
+        System.arraycopy(mDirectBuffers, 0, directBuffers, 0, index);
+        classSizes[index] = size;
+        heapBuffers[index] = new ArrayDeque<byte[]>();
+        directBuffers[index] = new ArrayDeque<ByteBuffer>();
+        System.arraycopy(mClassSizes, index, classSizes, index + 1, count - index - 1);
+        System.arraycopy(mHeapBuffers, index, heapBuffers, index + 1, count - index - 1);
+        System.arraycopy(mDirectBuffers, index, directBuffers, index + 1, count - index - 1);
+        mClassSizes = classSizes;
+        mHeapBuffers = heapBuffers;
+        mDirectBuffers = directBuffers;
+    }
+
+    /**
+     * Returns a lease on a heap buffer of at least minCapacity bytes, with its
+     * length set to minCapacity.
+     */
+    public Lease acquireHeap(int minCapacity) {
+        int size;
+        byte[] array;
+        synchronized (this) {
+            int sizeClass = getSizeClass(minCapacity);
+            if (sizeClass < 0) {
+                return new Lease(null, new byte[minCapacity], null, minCapacity);
+            }
+            size = mClassSizes[sizeClass];
+            array = mHeapBuffers[sizeClass].pollFirst();
+            if (array != null) {
+                mPooledHeapBytes -= array.length;
+            }
+        }
+        if (array == null) {
+            array = new byte[size];
+        }
+        return new Lease(this, array, null, minCapacity);
+    }
+
+    /**
+     * Returns a lease on a direct buffer of at least minCapacity bytes, with
+     * its length set to minCapacity. The buffer is cleared.
+     */
+    public Lease acquireDirect(int minCapacity) {
+        int size;
+        ByteBuffer buffer;
+        synchronized (this) {
+            int sizeClass = getSizeClass(minCapacity);
+            if (sizeClass < 0) {
+                return new Lease(null, null, ByteBuffer.allocateDirect(minCapacity),
+                        minCapacity);
+            }
+            size = mClassSizes[sizeClass];
+            buffer = mDirectBuffers[sizeClass].pollFirst();
+            if (buffer != null) {
+                mPooledDirectBytes -= buffer.capacity();
+            }
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear();
+        return new Lease(this, null, buffer, minCapacity);
+    }
+
+    private synchronized void recycle(Lease lease) {
+        // Every pooled buffer is exactly the size of its class.
+        int sizeClass = Arrays.binarySearch(mClassSizes, lease.getCapacity());
+        if (sizeClass < 0) {
+            return;
+        }
+        if (lease.mArray != null) {
+            if (mPooledHeapBytes + lease.mArray.length <= mMaxPooledHeapBytes) {
+                mHeapBuffers[sizeClass].addFirst(lease.mArray);
+                mPooledHeapBytes += lease.mArray.length;
+            }
+        } else {
+            if (mPooledDirectBytes + lease.mBuffer.capacity() <= mMaxPooledDirectBytes) {
+                mDirectBuffers[sizeClass].addFirst(lease.mBuffer);
+                mPooledDirectBytes += lease.mBuffer.capacity();
+            }
+        }
+    }
+
+    /** Drops all idle buffers. The size classes are kept. */
+    public synchronized void clear() {
+        for (int i = 0; i < mClassSizes.length; i++) {
+            mHeapBuffers[i].clear();
+            mDirectBuffers[i].clear();
+        }
+        mPooledHeapBytes = 0;
+        mPooledDirectBytes = 0;
+    }
+
+    /**
+     * Returns the index of the smallest size class which fits capacity, or -1
+     * if it is too large to pool.
+     */
+    private int getSizeClass(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        int index = Arrays.binarySearch(mClassSizes, capacity);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index < mClassSizes.length ? index : -1;
+    }
+}
@@ -0,0 +1,617 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A baseline JPEG encoder for YUV 4:2:0 images, written in Java so that it
+ * works with any kind of buffer and without the native library.
+ * <p>
+ * Planes are described like {@link android.media.Image.Plane}, by a buffer, a
+ * pixel stride and a row stride, so both planar and semi-planar layouts are
+ * supported. The image is encoded with the standard quantization and Huffman
+ * tables of the JPEG specification and a float DCT. A restart marker ends
+ * every row of 16x16 macroblocks, which makes the rows independent, so they
+ * are encoded in parallel on a shared {@link ForkJoinPool}. The output only
+ * depends on the input and the quality.
+ */
+public class JpegEncoder {
+    public static final int ERROR_OUT_BUF_TOO_SMALL = -1;
+
+    private static final int MAX_PARALLELISM = 4;
+    /** MCU rows encoded by a task before it stops splitting. */
+    private static final int ROWS_PER_TASK = 2;
+    /** The largest width and height a JPEG file can describe. */
+    private static final int MAX_DIMENSION = 65535;
+
+    private static final ForkJoinPool sPool = new ForkJoinPool(Math.max(1,
+            Math.min(MAX_PARALLELISM, Runtime.getRuntime().availableProcessors())));
+
+    /** The natural order index of each coefficient in zigzag order. */
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    private static final int[] LUMA_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+
+    private static final int[] CHROMA_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+
+    private static final int[] LUMA_DC_BITS = {
+            0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0
+    };
+    private static final int[] CHROMA_DC_BITS = {
+            0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0
+    };
+    private static final int[] DC_VALUES = {
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11
+    };
+
+    private static final int[] LUMA_AC_BITS = {
+            0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d
+    };
+    private static final int[] LUMA_AC_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+            0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+            0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+            0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+            0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+            0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+            0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+            0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+            0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+            0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    private static final int[] CHROMA_AC_BITS = {
+            0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77
+    };
+    private static final int[] CHROMA_AC_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+            0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+            0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+            0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+            0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+            0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+            0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+            0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+            0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+            0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    private static final HuffmanTable LUMA_DC = new HuffmanTable(LUMA_DC_BITS, DC_VALUES);
+    private static final HuffmanTable CHROMA_DC = new HuffmanTable(CHROMA_DC_BITS, DC_VALUES);
+    private static final HuffmanTable LUMA_AC = new HuffmanTable(LUMA_AC_BITS, LUMA_AC_VALUES);
+    private static final HuffmanTable CHROMA_AC =
+            new HuffmanTable(CHROMA_AC_BITS, CHROMA_AC_VALUES);
+
+    /** The scale factors of the rows and columns of the AAN DCT. */
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602,
+            1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    /** The code and code length of every symbol of a Huffman table. */
+    private static class HuffmanTable {
+        final int[] mBits;
+        final int[] mValues;
+        final int[] mCodes = new int[256];
+        final int[] mLengths = new int[256];
+
+        HuffmanTable(int[] bits, int[] values) {
+            mBits = bits;
+            mValues = values;
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++, k++) {
+                    mCodes[values[k]] = code++;
+                    mLengths[values[k]] = length;
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+    /** A plane of an image, as described by {@link android.media.Image.Plane}. */
+    private static class Plane {
+        final ByteBuffer mBuffer;
+        final int mPixelStride;
+        final int mRowStride;
+        final int mWidth;
+        final int mHeight;
+
+        Plane(ByteBuffer buffer, int pixelStride, int rowStride, int width, int height) {
+            mBuffer = buffer.duplicate();
+            mBuffer.clear();
+            mPixelStride = pixelStride;
+            mRowStride = rowStride;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        /** Returns a copy with its own view of the buffer, for another task. */
+        Plane copy() {
+            return new Plane(mBuffer, mPixelStride, mRowStride, mWidth, mHeight);
+        }
+
+        /**
+         * Copies a row into the array and repeats its last sample up to the
+         * length of the array. Rows past the bottom repeat the last row.
+         */
+        void readRow(int row, byte[] dst) {
+            int start = Math.min(row, mHeight - 1) * mRowStride;
+            if (mPixelStride == 1) {
+                mBuffer.position(start);
+                mBuffer.get(dst, 0, mWidth);
+            } else {
+                for (int x = 0, i = start; x < mWidth; x++, i += mPixelStride) {
+                    dst[x] = mBuffer.get(i);
+                }
+            }
+            Arrays.fill(dst, mWidth, dst.length, dst[mWidth - 1]);
+        }
+    }
+
+    /** Accumulates entropy-coded data, stuffing a zero after each 0xff. */
+    private static class BitWriter {
+        private byte[] mData = new byte[4096];
+        private int mLength;
+        private int mBits;
+        private int mBitCount;
+
+        void write(int bits, int count) {
+            mBits = (mBits << count) | (bits & ((1 << count) - 1));
+            mBitCount += count;
+            while (mBitCount >= 8) {
+                int b = (mBits >> (mBitCount - 8)) & 0xff;
+                writeByte(b);
+                if (b == 0xff) {
+                    writeByte(0);
+                }
+                mBitCount -= 8;
+            }
+            mBits &= (1 << mBitCount) - 1;
+        }
+
+        /** Pads the last byte with ones. */
+        void flush() {
+            if (mBitCount > 0) {
+                write(0xff, 8 - mBitCount);
+            }
+        }
+
+        void writeByte(int b) {
+            if (mLength == mData.length) {
+                mData = Arrays.copyOf(mData, mData.length * 2);
+            }
+            mData[mLength++] = (byte) b;
+        }
+    }
+
+    /** The state shared by the tasks encoding one image. */
+    private static class Encoding {
+        final Plane mY;
+        final Plane mCb;
+        final Plane mCr;
+        final int mMcuColumns;
+        final float[] mLumaDivisors;
+        final float[] mChromaDivisors;
+        /** The entropy-coded data of every MCU row. */
+        final BitWriter[] mRows;
+
+        Encoding(Plane y, Plane cb, Plane cr, int mcuColumns, int mcuRows,
+                int[] lumaTable, int[] chromaTable) {
+            mY = y;
+            mCb = cb;
+            mCr = cr;
+            mMcuColumns = mcuColumns;
+            mLumaDivisors = getDivisors(lumaTable);
+            mChromaDivisors = getDivisors(chromaTable);
+            mRows = new BitWriter[mcuRows];
+        }
+    }
+
+    private static class RowTask extends RecursiveAction {
+        private final Encoding mEncoding;
+        private final int mStart;
+        private final int mEnd;
+
+        RowTask(Encoding encoding, int start, int end) {
+            mEncoding = encoding;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart <= ROWS_PER_TASK) {
+                encodeRows(mEncoding, mStart, mEnd);
+                return;
+            }
+            int mid = (mStart + mEnd) >>> 1;
+            invokeAll(new RowTask(mEncoding, mStart, mid), new RowTask(mEncoding, mid, mEnd));
+        }
+    }
+
+    /**
+     * Compresses a YUV 4:2:0 image to JPEG. The arguments match
+     * {@link JpegUtilNative#compressJpegFromYUV420p}, but the buffers do not
+     * need to be direct. Their positions and limits are not used or changed.
+     *
+     * @param outBuf receives the JPEG file from index 0 up to its capacity.
+     *            Its position and limit are not changed.
+     * @param quality the quality level (1 to 100) to use.
+     * @return The number of bytes written, or
+     *         {@link #ERROR_OUT_BUF_TOO_SMALL}.
+     */
+    public static int compressYUV420p(
+            int width, int height,
+            ByteBuffer yBuf, int yPStride, int yRStride,
+            ByteBuffer cbBuf, int cbPStride, int cbRStride,
+            ByteBuffer crBuf, int crPStride, int crRStride,
+            ByteBuffer outBuf, int quality) {
+        if (width <= 0 || height <= 0 || width > MAX_DIMENSION || height > MAX_DIMENSION) {
+            throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+        }
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int[] lumaTable = getQuantizationTable(LUMA_QUANTIZATION, quality);
+        int[] chromaTable = getQuantizationTable(CHROMA_QUANTIZATION, quality);
+        int mcuColumns = (width + 15) / 16;
+        int mcuRows = (height + 15) / 16;
+        Encoding encoding = new Encoding(
+                new Plane(yBuf, yPStride, yRStride, width, height),
+                new Plane(cbBuf, cbPStride, cbRStride, chromaWidth, chromaHeight),
+                new Plane(crBuf, crPStride, crRStride, chromaWidth, chromaHeight),
+                mcuColumns, mcuRows, lumaTable, chromaTable);
+        if (mcuRows <= ROWS_PER_TASK) {
+            encodeRows(encoding, 0, mcuRows);
+        } else {
+            sPool.invoke(new RowTask(encoding, 0, mcuRows));
+        }
+
+        BitWriter header = new BitWriter();
+        writeHeaders(header, width, height, mcuColumns, lumaTable, chromaTable);
+        // Every row but the last is followed by a restart marker, and the
+        // last one by EOI.
+        int length = header.mLength;
+        for (int i = 0; i < mcuRows; i++) {
+            length += encoding.mRows[i].mLength + 2;
+        }
+        if (length > outBuf.capacity()) {
+            return ERROR_OUT_BUF_TOO_SMALL;
+        }
+
+        ByteBuffer out = outBuf.duplicate();
+        out.clear();
+        out.put(header.mData, 0, header.mLength);
+        for (int i = 0; i < mcuRows; i++) {
+            out.put(encoding.mRows[i].mData, 0, encoding.mRows[i].mLength);
+            if (i < mcuRows - 1) {
+                out.put((byte) 0xff).put((byte) (0xd0 + (i & 7)));
+            }
+        }
+        out.put((byte) 0xff).put((byte) 0xd9);
+        return out.position();
+    }
+
+    /** Scales a base quantization table like the IJG library does. */
+    private static int[] getQuantizationTable(int[] base, int quality) {
+        quality = CameraUtil.clamp(quality, 1, 100);
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        int[] table = new int[64];
+        for (int i = 0; i < 64; i++) {
+            table[i] = CameraUtil.clamp((base[i] * scale + 50) / 100, 1, 255);
+        }
+        return table;
+    }
+
+    /** Folds the quantization and the scaling of the AAN DCT together. */
+    private static float[] getDivisors(int[] table) {
+        float[] divisors = new float[64];
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                divisors[row * 8 + col] = (float) (1.0 / (table[row * 8 + col]
+                        * AAN_SCALE[row] * AAN_SCALE[col] * 8.0));
+            }
+        }
+        return divisors;
+    }
+
+    private static void writeHeaders(BitWriter out, int width, int height, int mcuColumns,
+            int[] lumaTable, int[] chromaTable) {
+        // SOI and a JFIF APP0 segment, no thumbnail.
+        writeShort(out, 0xffd8);
+        writeShort(out, 0xffe0);
+        writeShort(out, 16);
+        for (char c : "JFIF\0".toCharArray()) {
+            out.writeByte(c);
+        }
+        out.writeByte(1);
+        out.writeByte(1);
+        out.writeByte(0);
+        writeShort(out, 1);
+        writeShort(out, 1);
+        out.writeByte(0);
+        out.writeByte(0);
+
+        // DQT, in zigzag order.
+        writeShort(out, 0xffdb);
+        writeShort(out, 2 + 2 * 65);
+        int[][] tables = { lumaTable, chromaTable };
+        for (int t = 0; t < tables.length; t++) {
+            out.writeByte(t);
+            for (int i = 0; i < 64; i++) {
+                out.writeByte(tables[t][ZIGZAG[i]]);
+            }
+        }
+
+        // SOF0: Y sampled 2x2 with table 0, Cb and Cr 1x1 with table 1.
+        writeShort(out, 0xffc0);
+        writeShort(out, 8 + 3 * 3);
+        out.writeByte(8);
+        writeShort(out, height);
+        writeShort(out, width);
+        out.writeByte(3);
+        out.writeByte(1);
+        out.writeByte(0x22);
+        out.writeByte(0);
+        for (int id = 2; id <= 3; id++) {
+            out.writeByte(id);
+            out.writeByte(0x11);
+            out.writeByte(1);
+        }
+
+        writeShort(out, 0xffc4);
+        int length = 2;
+        HuffmanTable[] huffmanTables = { LUMA_DC, LUMA_AC, CHROMA_DC, CHROMA_AC };
+        for (HuffmanTable table : huffmanTables) {
+            length += 1 + 16 + table.mValues.length;
+        }
+        writeShort(out, length);
+        int[] classAndIds = { 0x00, 0x10, 0x01, 0x11 };
+        for (int t = 0; t < huffmanTables.length; t++) {
+            out.writeByte(classAndIds[t]);
+            for (int bits : huffmanTables[t].mBits) {
+                out.writeByte(bits);
+            }
+            for (int value : huffmanTables[t].mValues) {
+                out.writeByte(value);
+            }
+        }
+
+        // DRI: a restart interval of one MCU row.
+        writeShort(out, 0xffdd);
+        writeShort(out, 4);
+        writeShort(out, mcuColumns);
+
+        // SOS: all components, Y with tables 0 and Cb and Cr with tables 1.
+        writeShort(out, 0xffda);
+        writeShort(out, 6 + 2 * 3);
+        out.writeByte(3);
+        out.writeByte(1);
+        out.writeByte(0x00);
+        out.writeByte(2);
+        out.writeByte(0x11);
+        out.writeByte(3);
+        out.writeByte(0x11);
+        out.writeByte(0);
+        out.writeByte(63);
+        out.writeByte(0);
+    }
+
+    private static void writeShort(BitWriter out, int value) {
+        out.writeByte(value >> 8);
+        out.writeByte(value);
+    }
+
+    private static void encodeRows(Encoding encoding, int start, int end) {
+        Plane y = encoding.mY.copy();
+        Plane cb = encoding.mCb.copy();
+        Plane cr = encoding.mCr.copy();
+        int paddedWidth = encoding.mMcuColumns * 16;
+        byte[][] lumaRows = new byte[16][paddedWidth];
+        byte[][] cbRows = new byte[8][paddedWidth / 2];
+        byte[][] crRows = new byte[8][paddedWidth / 2];
+        float[] block = new float[64];
+        int[] coefficients = new int[64];
+        for (int mcuRow = start; mcuRow < end; mcuRow++) {
+            for (int i = 0; i < 16; i++) {
+                y.readRow(mcuRow * 16 + i, lumaRows[i]);
+            }
+            for (int i = 0; i < 8; i++) {
+                cb.readRow(mcuRow * 8 + i, cbRows[i]);
+                cr.readRow(mcuRow * 8 + i, crRows[i]);
+            }
+
+            BitWriter out = new BitWriter();
+            int lumaDc = 0;
+            int cbDc = 0;
+            int crDc = 0;
+            for (int mcu = 0; mcu < encoding.mMcuColumns; mcu++) {
+                int x = mcu * 16;
+                for (int i = 0; i < 4; i++) {
+                    loadBlock(lumaRows, (i >> 1) * 8, x + (i & 1) * 8, block);
+                    quantize(block, encoding.mLumaDivisors, coefficients);
+                    lumaDc = encodeBlock(out, coefficients, lumaDc, LUMA_DC, LUMA_AC);
+                }
+                loadBlock(cbRows, 0, mcu * 8, block);
+                quantize(block, encoding.mChromaDivisors, coefficients);
+                cbDc = encodeBlock(out, coefficients, cbDc, CHROMA_DC, CHROMA_AC);
+                loadBlock(crRows, 0, mcu * 8, block);
+                quantize(block, encoding.mChromaDivisors, coefficients);
+                crDc = encodeBlock(out, coefficients, crDc, CHROMA_DC, CHROMA_AC);
+            }
+            out.flush();
+            encoding.mRows[mcuRow] = out;
+        }
+    }
+
+    /** Copies an 8x8 block of samples, centered around zero. */
+    private static void loadBlock(byte[][] rows, int top, int left, float[] block) {
+        for (int y = 0, i = 0; y < 8; y++) {
+            byte[] row = rows[top + y];
+            for (int x = 0; x < 8; x++, i++) {
+                block[i] = (row[left + x] & 0xff) - 128;
+            }
+        }
+    }
+
+    /**
+     * Transforms a block in place with the AAN float DCT, as in the IJG
+     * library, and quantizes it into coefficients in natural order.
+     */
+    private static void quantize(float[] d, float[] divisors, int[] coefficients) {
+        for (int pass = 0; pass < 2; pass++) {
+            // The first pass transforms the rows, the second the columns.
+            int step = pass == 0 ? 1 : 8;
+            int next = pass == 0 ? 8 : 1;
+            for (int line = 0, p = 0; line < 8; line++, p += next) {
+                float tmp0 = d[p] + d[p + 7 * step];
+                float tmp7 = d[p] - d[p + 7 * step];
+                float tmp1 = d[p + step] + d[p + 6 * step];
+                float tmp6 = d[p + step] - d[p + 6 * step];
+                float tmp2 = d[p + 2 * step] + d[p + 5 * step];
+                float tmp5 = d[p + 2 * step] - d[p + 5 * step];
+                float tmp3 = d[p + 3 * step] + d[p + 4 * step];
+                float tmp4 = d[p + 3 * step] - d[p + 4 * step];
+
+                // Even part.
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                d[p] = tmp10 + tmp11;
+                d[p + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                d[p + 2 * step] = tmp13 + z1;
+                d[p + 6 * step] = tmp13 - z1;
+
+                // Odd part.
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                d[p + 5 * step] = z13 + z2;
+                d[p + 3 * step] = z13 - z2;
+                d[p + step] = z11 + z4;
+                d[p + 7 * step] = z11 - z4;
+            }
+        }
+        for (int i = 0; i < 64; i++) {
+            // Rounds to the nearest integer, also for negative values.
+            coefficients[i] = (int) (d[i] * divisors[i] + 16384.5f) - 16384;
+        }
+    }
+
+    /**
+     * Huffman-codes a block of quantized coefficients.
+     *
+     * @return The DC coefficient, to predict the next block from.
+     */
+    private static int encodeBlock(BitWriter out, int[] coefficients, int previousDc,
+            HuffmanTable dcTable, HuffmanTable acTable) {
+        int dc = coefficients[0];
+        int diff = dc - previousDc;
+        int category = getCategory(diff);
+        out.write(dcTable.mCodes[category], dcTable.mLengths[category]);
+        if (category > 0) {
+            out.write(diff < 0 ? diff - 1 : diff, category);
+        }
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = coefficients[ZIGZAG[k]];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                // ZRL, a run of 16 zeros.
+                out.write(acTable.mCodes[0xf0], acTable.mLengths[0xf0]);
+                run -= 16;
+            }
+            category = getCategory(value);
+            int symbol = (run << 4) | category;
+            out.write(acTable.mCodes[symbol], acTable.mLengths[symbol]);
+            out.write(value < 0 ? value - 1 : value, category);
+            run = 0;
+        }
+        if (run > 0) {
+            // EOB.
+            out.write(acTable.mCodes[0], acTable.mLengths[0]);
+        }
+        return dc;
+    }
+
+    /** Returns the number of bits needed for the magnitude of the value. */
+    private static int getCategory(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import com.adobe.internal.xmp.XMPException;
+import com.adobe.internal.xmp.XMPMeta;
+import com.android.camera.debug.Log;
+import com.android.camera.exif.ExifBufferReader;
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.exif.Rational;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Collects the metadata the filmstrip needs from a JPEG file in a single pass
+ * over its header: whether it is a photo sphere, whether it carries a depth
+ * map for refocus, its EXIF orientation, and the EXIF values shown in its
+ * details.
+ * <p>
+ * Only the segment headers and the payloads of the EXIF and XMP APP1 segments
+ * are read. All other segments, including extended XMP which holds the depth
+ * map itself, are skipped, and scanning stops at the start of the image data.
+ */
+public class JpegMetadataSniffer {
+    private static final Log.Tag TAG = new Log.Tag("JpegMetaSniffer");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /** Big enough to hold the markers and lengths of a typical header. */
+    private static final int BUFFER_SIZE = 4096;
+
+    private static final int M_SOI = 0xd8;
+    private static final int M_EOI = 0xd9;
+    private static final int M_SOS = 0xda;
+    private static final int M_APP1 = 0xe1;
+    private static final int M_TEM = 0x01;
+    private static final int M_RST0 = 0xd0;
+    private static final int M_RST7 = 0xd7;
+
+    private static final byte[] EXIF_HEADER = "Exif\0\0".getBytes(US_ASCII);
+
+    private static final String GOOGLE_DEPTH_NAMESPACE =
+            "http://ns.google.com/photos/1.0/depthmap/";
+    private static final String GPANO_USE_PANORAMA_VIEWER = "UsePanoramaViewer";
+    private static final String GPANO_FULL_PANO_WIDTH = "FullPanoWidthPixels";
+    private static final String GPANO_CROPPED_AREA_WIDTH = "CroppedAreaImageWidthPixels";
+    private static final String GDEPTH_FORMAT = "Format";
+    private static final String GDEPTH_MIME = "Mime";
+
+    /**
+     * The EXIF values shown in the details of an image, as
+     * {@link com.android.camera.data.MediaDetails#extractExifInfo} reads
+     * them. Values which were not found are 0 for dimensions, -1 for other
+     * integers, NaN for other numbers and null for strings.
+     */
+    public static class ExifSummary {
+        public int width;
+        public int height;
+        public int flash = -1;
+        public int iso = -1;
+        public int whiteBalance = -1;
+        public double aperture = Double.NaN;
+        public double exposureTime = Double.NaN;
+        public double focalLength = Double.NaN;
+        public String make;
+        public String model;
+    }
+
+    /** The facts found in the header of one JPEG file. */
+    public static class Result {
+        /** {@link PhotoSphereHelper#NOT_PANORAMA} unless GPano data was found. */
+        public final PhotoSphereHelper.PanoramaMetadata panorama;
+        /** Whether the image carries a depth map and can be refocused. */
+        public final boolean isRgbz;
+        /** The EXIF orientation in clockwise degrees, 0 if there is none. */
+        public final int orientation;
+        /** Never null, but empty if the image has no EXIF data. */
+        public final ExifSummary exif;
+
+        public Result(PhotoSphereHelper.PanoramaMetadata panorama, boolean isRgbz,
+                int orientation, ExifSummary exif) {
+            this.panorama = panorama;
+            this.isRgbz = isRgbz;
+            this.orientation = orientation;
+            this.exif = exif;
+        }
+    }
+
+    /**
+     * Scans the JPEG file behind the given URI.
+     *
+     * @return The metadata found, or null if the file cannot be read or is
+     *         not a JPEG file.
+     */
+    public static Result sniff(ContentResolver resolver, Uri uri) {
+        InputStream is = null;
+        try {
+            is = resolver.openInputStream(uri);
+            return sniff(is);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the header of " + uri, e);
+            return null;
+        } catch (SecurityException e) {
+            // The image was e.g. shared by an app which revoked the grant.
+            Log.w(TAG, "Not allowed to read " + uri, e);
+            return null;
+        } catch (IllegalArgumentException e) {
+            // The provider does not know the URI (any more).
+            Log.w(TAG, "Cannot open " + uri, e);
+            return null;
+        } finally {
+            CameraUtil.closeSilently(is);
+        }
+    }
+
+    /**
+     * Scans the JPEG image at the start of the stream. The stream is left
+     * positioned somewhere after the last segment header read and is not
+     * closed.
+     *
+     * @return The metadata found, or null if the stream does not contain a
+     *         JPEG image.
+     * @throws IOException if the stream cannot be read.
+     */
+    public static Result sniff(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is, BUFFER_SIZE));
+        if (in.read() != 0xff || in.read() != M_SOI) {
+            return null;
+        }
+
+        PhotoSphereHelper.PanoramaMetadata panorama = PhotoSphereHelper.NOT_PANORAMA;
+        boolean isRgbz = false;
+        int orientation = 0;
+        ExifSummary exif = new ExifSummary();
+        boolean exifFound = false;
+        boolean xmpFound = false;
+        byte[] header = new byte[XmpUtil.XMP_HEADER_SIZE];
+        try {
+            while (!(exifFound && xmpFound)) {
+                if (in.readUnsignedByte() != 0xff) {
+                    Log.v(TAG, "Lost marker sync, stopping");
+                    break;
+                }
+                int marker;
+                do {
+                    marker = in.readUnsignedByte();
+                } while (marker == 0xff);
+                if (marker == M_SOS || marker == M_EOI) {
+                    break;
+                }
+                if (marker == M_TEM || (marker >= M_RST0 && marker <= M_RST7)) {
+                    // Stand-alone markers have no length.
+                    continue;
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) {
+                    break;
+                }
+                if (marker != M_APP1 || length < EXIF_HEADER.length) {
+                    skipFully(in, length);
+                    continue;
+                }
+
+                int headerLength = Math.min(length, header.length);
+                in.readFully(header, 0, headerLength);
+                if (!exifFound && startsWith(header, EXIF_HEADER)) {
+                    exifFound = true;
+                    orientation = readExif(in, header, headerLength, length, exif);
+                } else if (!xmpFound && headerLength == XmpUtil.XMP_HEADER_SIZE
+                        && XmpUtil.hasXMPHeader(header)) {
+                    xmpFound = true;
+                    byte[] data = new byte[length];
+                    System.arraycopy(header, 0, data, 0, headerLength);
+                    in.readFully(data, headerLength, length - headerLength);
+                    XMPMeta xmp = XmpUtil.parseXMPSection(data);
+                    if (xmp != null) {
+                        panorama = getPanoramaMetadata(xmp);
+                        isRgbz = xmp.doesPropertyExist(GOOGLE_DEPTH_NAMESPACE, GDEPTH_FORMAT)
+                                || xmp.doesPropertyExist(GOOGLE_DEPTH_NAMESPACE, GDEPTH_MIME);
+                    }
+                } else {
+                    skipFully(in, length - headerLength);
+                }
+            }
+        } catch (EOFException e) {
+            Log.v(TAG, "Truncated JPEG header");
+        }
+        return new Result(panorama, isRgbz, orientation, exif);
+    }
+
+    /**
+     * Reads the EXIF segment into the summary.
+     *
+     * @return The orientation.
+     */
+    private static int readExif(DataInputStream in, byte[] header, int headerLength,
+            int length, ExifSummary summary) throws IOException {
+        // Rebuild the segment as a tiny JPEG so that it can be read in place.
+        byte[] segment = new byte[length + 6];
+        segment[0] = (byte) 0xff;
+        segment[1] = (byte) M_SOI;
+        segment[2] = (byte) 0xff;
+        segment[3] = (byte) M_APP1;
+        segment[4] = (byte) ((length + 2) >> 8);
+        segment[5] = (byte) (length + 2);
+        System.arraycopy(header, 0, segment, 6, headerLength);
+        in.readFully(segment, 6 + headerLength, length - headerLength);
+        ExifBufferReader exif = new ExifBufferReader(ByteBuffer.wrap(segment));
+
+        summary.width = exif.getTagIntValue(ExifInterface.TAG_IMAGE_WIDTH, 0);
+        summary.height = exif.getTagIntValue(ExifInterface.TAG_IMAGE_LENGTH, 0);
+        summary.flash = exif.getTagIntValue(ExifInterface.TAG_FLASH, -1);
+        summary.iso = exif.getTagIntValue(ExifInterface.TAG_ISO_SPEED_RATINGS, -1);
+        summary.whiteBalance = exif.getTagIntValue(ExifInterface.TAG_WHITE_BALANCE, -1);
+        summary.aperture = getDouble(exif, ExifInterface.TAG_APERTURE_VALUE);
+        summary.exposureTime = getDouble(exif, ExifInterface.TAG_EXPOSURE_TIME);
+        summary.focalLength = getDouble(exif, ExifInterface.TAG_FOCAL_LENGTH);
+        summary.make = exif.getTagStringValue(ExifInterface.TAG_MAKE);
+        summary.model = exif.getTagStringValue(ExifInterface.TAG_MODEL);
+
+        int value = exif.getTagIntValue(ExifInterface.TAG_ORIENTATION, 0);
+        return value == 0 ? 0 : ExifInterface.getRotationForOrientationValue((short) value);
+    }
+
+    private static double getDouble(ExifBufferReader exif, int tagId) {
+        Rational[] values = exif.getTagRationalValues(tagId);
+        return values != null && values.length > 0 ? values[0].toDouble() : Double.NaN;
+    }
+
+    private static PhotoSphereHelper.PanoramaMetadata getPanoramaMetadata(XMPMeta xmp) {
+        String ns = XmpUtil.GOOGLE_PANO_NAMESPACE;
+        if (!xmp.doesPropertyExist(ns, GPANO_FULL_PANO_WIDTH)
+                || !xmp.doesPropertyExist(ns, GPANO_CROPPED_AREA_WIDTH)) {
+            return PhotoSphereHelper.NOT_PANORAMA;
+        }
+        try {
+            Boolean usePanoramaViewer = xmp.getPropertyBoolean(ns, GPANO_USE_PANORAMA_VIEWER);
+            Integer fullWidth = xmp.getPropertyInteger(ns, GPANO_FULL_PANO_WIDTH);
+            Integer croppedWidth = xmp.getPropertyInteger(ns, GPANO_CROPPED_AREA_WIDTH);
+            return new PhotoSphereHelper.PanoramaMetadata(
+                    usePanoramaViewer == null || usePanoramaViewer,
+                    fullWidth != null && fullWidth.equals(croppedWidth));
+        } catch (XMPException e) {
+            Log.d(TAG, "Malformed GPano data", e);
+            return PhotoSphereHelper.NOT_PANORAMA;
+        }
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        if (in.skipBytes(count) < count) {
+            throw new EOFException();
+        }
+    }
+}
@@ -19,14 +19,28 @@ import android.graphics.ImageFormat;
 import android.media.Image;
 import android.media.Image.Plane;
 
+import com.android.camera.debug.Log;
+
 import java.nio.ByteBuffer;
 
 /**
- * Provides direct access to libjpeg-turbo via the NDK.
+ * Provides direct access to libjpeg-turbo via the NDK. When the library is
+ * not available, or the buffers are not direct, images are compressed with
+ * {@link JpegEncoder} instead.
  */
 public class JpegUtilNative {
+    private static final Log.Tag TAG = new Log.Tag("JpegUtilNative");
+    private static final boolean sNativeAvailable;
+
     static {
-        System.loadLibrary("jni_jpegutil");
+        boolean loaded = false;
+        try {
+            System.loadLibrary("jni_jpegutil");
+            loaded = true;
+        } catch (UnsatisfiedLinkError e) {
+            Log.w(TAG, "Native JPEG library unavailable, using the Java encoder", e);
+        }
+        sNativeAvailable = loaded;
     }
 
     public static final int ERROR_OUT_BUF_TOO_SMALL = -1;
@@ -63,16 +77,21 @@ public class JpegUtilNative {
             ByteBuffer cbBuf, int cbPStride, int cbRStride,
             ByteBuffer crBuf, int crPStride, int crRStride,
             ByteBuffer outBuf, int quality) {
+        if (!sNativeAvailable || !yBuf.isDirect() || !cbBuf.isDirect() || !crBuf.isDirect()
+                || !outBuf.isDirect()) {
+            return JpegEncoder.compressYUV420p(width, height, yBuf, yPStride, yRStride, cbBuf,
+                    cbPStride, cbRStride, crBuf, crPStride, crRStride, outBuf, quality);
+        }
         return compressJpegFromYUV420pNative(width, height, yBuf, yPStride, yRStride, cbBuf,
                 cbPStride, cbRStride, crBuf, crPStride, crRStride, outBuf, outBuf.capacity(), quality);
     }
 
     /**
      * Compresses the given image to jpeg. Note that only ImageFormat.YUV_420_888 is currently
-     * supported. Furthermore, all planes must use direct byte buffers.
+     * supported.
      *
      * @param img the image to compress
-     * @param outBuf a direct byte buffer to hold the output jpeg.
+     * @param outBuf a byte buffer to hold the output jpeg, preferably direct.
      * @return The number of bytes written to outBuf
      */
     public static int compressJpegFromYUV420Image(Image img, ByteBuffer outBuf, int quality) {
@@ -83,11 +102,7 @@ public class JpegUtilNative {
         final int NUM_PLANES = 3;
 
         if (img.getPlanes().length != NUM_PLANES) {
-            throw new RuntimeException("Output buffer must be direct.");
-        }
-
-        if (!outBuf.isDirect()) {
-            throw new RuntimeException("Output buffer must be direct.");
+            throw new RuntimeException("Unexpected number of planes.");
         }
 
         ByteBuffer[] planeBuf = new ByteBuffer[NUM_PLANES];
@@ -96,11 +111,6 @@ public class JpegUtilNative {
 
         for (int i = 0; i < NUM_PLANES; i++) {
             Plane plane = img.getPlanes()[i];
-
-            if (!plane.getBuffer().isDirect()) {
-                return -1;
-            }
-
             planeBuf[i] = plane.getBuffer();
             pixelStride[i] = plane.getPixelStride();
             rowStride[i] = plane.getRowStride();
@@ -115,7 +125,9 @@ public class JpegUtilNative {
                 planeBuf[2], pixelStride[2], rowStride[2],
                 outBuf, quality);
 
-        outBuf.limit(numBytesWritten);
+        if (numBytesWritten >= 0) {
+            outBuf.limit(numBytesWritten);
+        }
 
         return numBytesWritten;
     }
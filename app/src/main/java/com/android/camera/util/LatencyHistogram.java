@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of durations, with logarithmic buckets so that
+ * recording a sample is a couple of atomic increments and never allocates.
+ * <p>
+ * As in HDR histograms, each power of two of microseconds is split into
+ * {@link #SUB_BUCKET_COUNT} linear sub-buckets, and durations under
+ * {@link #SUB_BUCKET_COUNT} microseconds get a bucket per microsecond.
+ * Percentiles are reported as the upper bound of the bucket they fall in,
+ * which is within 25% of the actual value.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /** Covers durations of up to about 12 days. */
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT * 40;
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalNs = new AtomicLong();
+    private final AtomicLong mMaxNs = new AtomicLong();
+
+    /** Adds a sample. Negative durations are counted as 0. */
+    public void record(long durationNs) {
+        if (durationNs < 0) {
+            durationNs = 0;
+        }
+        mBuckets.incrementAndGet(getBucket(durationNs / NANOS_PER_MICRO));
+        mCount.incrementAndGet();
+        mTotalNs.addAndGet(durationNs);
+        updateMax(durationNs);
+    }
+
+    /**
+     * Adds all the samples of another histogram, which may be recording at
+     * the same time.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.mBuckets.get(i);
+            if (count != 0) {
+                mBuckets.addAndGet(i, count);
+            }
+        }
+        mCount.addAndGet(other.mCount.get());
+        mTotalNs.addAndGet(other.mTotalNs.get());
+        updateMax(other.mMaxNs.get());
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxNs() {
+        return mMaxNs.get();
+    }
+
+    public long getMeanNs() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mTotalNs.get() / count;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, in
+     * nanoseconds, or 0 if there are no samples.
+     *
+     * @param percentile a value in [0, 100].
+     */
+    public long getPercentileNs(double percentile) {
+        long count = 0;
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= rank && buckets[i] > 0) {
+                return Math.min(getUpperBoundMicros(i) * NANOS_PER_MICRO, mMaxNs.get());
+            }
+        }
+        return mMaxNs.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalNs.set(0);
+        mMaxNs.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n=%d mean=%.2fms p50=%.2fms p95=%.2fms max=%.2fms",
+                getCount(), toMillis(getMeanNs()), toMillis(getPercentileNs(50)),
+                toMillis(getPercentileNs(95)), toMillis(getMaxNs()));
+    }
+
+    private void updateMax(long durationNs) {
+        long max;
+        while (durationNs > (max = mMaxNs.get())) {
+            if (mMaxNs.compareAndSet(max, durationNs)) {
+                break;
+            }
+        }
+    }
+
+    private static int getBucket(long micros) {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        // micros >> shift is in [SUB_BUCKET_COUNT, 2 * SUB_BUCKET_COUNT).
+        int bucket = shift * SUB_BUCKET_COUNT + (int) (micros >> shift);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /** Returns the exclusive upper bound of a bucket, in microseconds. */
+    private static long getUpperBoundMicros(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket + 1;
+        }
+        int shift = bucket / SUB_BUCKET_COUNT - 1;
+        return (long) (bucket - shift * SUB_BUCKET_COUNT + 1) << shift;
+    }
+
+    private static double toMillis(long ns) {
+        return ns / 1000000.0;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.util;
+
+import android.os.Process;
+
+import com.android.camera.debug.Log;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs background tasks on a few threads, most urgent first, with a bounded
+ * queue.
+ * <p>
+ * Tasks with lower priority values run first, and tasks of equal priority
+ * run in submission order. The priority of a task which has not started can
+ * be changed, and such a task can be cancelled. When the queue is full, the
+ * least urgent queued task is dropped, which cancels it. Tasks which are
+ * urgent enough to be kept are never dropped, and queue beyond the limit.
+ */
+public class PriorityTaskExecutor {
+    private static final Log.Tag TAG = new Log.Tag("PriorityTaskExec");
+
+    private static final int KEEP_ALIVE_SECONDS = 10;
+
+    private static final int STATE_QUEUED = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_DONE = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    /** A submitted task, which can be reprioritized or cancelled. */
+    public final class Task implements Runnable, Comparable<Task> {
+        private final Runnable mRunnable;
+        private final long mSequence;
+        /** Guarded by the executor. */
+        private int mPriority;
+        /** Guarded by the executor. */
+        private int mState = STATE_QUEUED;
+
+        private Task(Runnable runnable, int priority, long sequence) {
+            mRunnable = runnable;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        /**
+         * Returns whether the task is queued or running, and so will finish
+         * without being submitted again.
+         */
+        public boolean isPending() {
+            synchronized (PriorityTaskExecutor.this) {
+                return mState == STATE_QUEUED || mState == STATE_RUNNING;
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (PriorityTaskExecutor.this) {
+                if (mState != STATE_QUEUED) {
+                    return;
+                }
+                mState = STATE_RUNNING;
+            }
+            try {
+                mRunnable.run();
+            } finally {
+                synchronized (PriorityTaskExecutor.this) {
+                    mState = STATE_DONE;
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final PriorityBlockingQueue<Runnable> mQueue;
+    private final int mMaxQueued;
+    private final int mMinDroppedPriority;
+    private long mNextSequence;
+
+    /**
+     * @param name the name of the threads.
+     * @param threads the number of tasks to run in parallel.
+     * @param maxQueued the number of tasks which may wait to run.
+     * @param minDroppedPriority the most urgent priority which may be dropped
+     *            when the queue is full. More urgent tasks are always kept.
+     */
+    public PriorityTaskExecutor(final String name, int threads, int maxQueued,
+            int minDroppedPriority) {
+        if (threads <= 0 || maxQueued <= 0) {
+            throw new IllegalArgumentException("Need at least one thread and queue slot.");
+        }
+        mMaxQueued = maxQueued;
+        mMinDroppedPriority = minDroppedPriority;
+        mQueue = new PriorityBlockingQueue<Runnable>();
+        mExecutor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, mQueue, new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, name + "-" + mCount.incrementAndGet());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a task. If the queue is full, the least urgent of the queued
+     * tasks and the new one is cancelled, which may be the new one. If even
+     * that task is more urgent than the minimum dropped priority, nothing is
+     * dropped and the queue grows past its limit.
+     *
+     * @param priority lower values run first.
+     */
+    public synchronized Task submit(Runnable runnable, int priority) {
+        Task task = new Task(runnable, priority, mNextSequence++);
+        if (mQueue.size() >= mMaxQueued) {
+            Task last = task;
+            for (Runnable queued : mQueue) {
+                if (((Task) queued).compareTo(last) > 0) {
+                    last = (Task) queued;
+                }
+            }
+            if (last.mPriority < mMinDroppedPriority) {
+                // Everything queued is too urgent to drop.
+                mExecutor.execute(task);
+                return task;
+            }
+            if (last != task) {
+                mQueue.remove(last);
+            }
+            last.mState = STATE_CANCELLED;
+            Log.v(TAG, "Queue full, dropped a task of priority " + last.mPriority);
+            if (last == task) {
+                return task;
+            }
+        }
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Changes the priority of a queued task.
+     *
+     * @return Whether the task is still pending, as {@link Task#isPending}.
+     */
+    public synchronized boolean setPriority(Task task, int priority) {
+        if (task.mState != STATE_QUEUED) {
+            return task.mState == STATE_RUNNING;
+        }
+        if (task.mPriority != priority && mQueue.remove(task)) {
+            task.mPriority = priority;
+            mExecutor.execute(task);
+        }
+        return true;
+    }
+
+    /**
+     * Cancels a task which has not started yet. Running tasks are left to
+     * finish.
+     */
+    public synchronized void cancel(Task task) {
+        if (task.mState == STATE_QUEUED) {
+            mQueue.remove(task);
+            task.mState = STATE_CANCELLED;
+        }
+    }
+}
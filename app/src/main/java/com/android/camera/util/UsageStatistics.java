@@ -20,65 +20,324 @@ package com.android.camera.util;
 import android.content.Context;
 
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.stats.EventPipeline;
+import com.android.camera.stats.EventSink;
+import com.android.camera.stats.RotatingFileEventSink;
 import com.android.camera.ui.TouchCoordinate;
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Records usage events, such as captures and failures, in a local
+ * {@link EventPipeline}. Each event becomes a record of one of the EVENT_*
+ * types, whose payload is written in the order of the arguments of the
+ * method which records it. Events are dropped until {@link #initialize} is
+ * called.
+ */
 public class UsageStatistics {
     public static final long VIEW_TIMEOUT_MILLIS = 0;
     public static final int NONE = -1;
 
-    private static UsageStatistics sInstance;
+    // Types of the records.
+    public static final short EVENT_MEDIA_INTERACTION = 1;
+    public static final short EVENT_MEDIA_VIEW = 2;
+    public static final short EVENT_FOREGROUNDED = 3;
+    public static final short EVENT_BACKGROUNDED = 4;
+    public static final short EVENT_STORAGE_WARNING = 5;
+    public static final short EVENT_VIDEO_CAPTURE_DONE = 6;
+    public static final short EVENT_PHOTO_CAPTURE_DONE = 7;
+    public static final short EVENT_CAMERA_FAILURE = 8;
+    public static final short EVENT_CHANGE_SCREEN = 9;
+    public static final short EVENT_CONTROL_USED = 10;
+    public static final short EVENT_TAP_TO_FOCUS = 11;
+    public static final short EVENT_MEMORY_CONSUMED = 12;
+    public static final short EVENT_LATENCY = 13;
+
+    // The bits of the flags of EVENT_PHOTO_CAPTURE_DONE.
+    public static final int FLAG_FRONT = 1;
+    public static final int FLAG_HDR = 1 << 1;
+    public static final int FLAG_GRID_LINES = 1 << 2;
+    public static final int FLAG_VOLUME_BUTTON_SHUTTER = 1 << 3;
+
+    private static final String EVENTS_DIRECTORY = "usage_stats";
+    private static final String EVENTS_FILE = "events.bin";
+    private static final long EVENTS_FILE_BYTES = 256 * 1024;
+    private static final int EVENTS_FILES = 4;
+    private static final int PIPELINE_CAPACITY = 256;
+    private static final int PIPELINE_BATCH_SIZE = 32;
+    private static final long PIPELINE_FLUSH_DELAY_MS = 10000;
+
+    private static final UsageStatistics sInstance = new UsageStatistics();
+
+    private volatile EventPipeline mPipeline;
 
     public static UsageStatistics instance() {
-        if (sInstance == null) {
-            sInstance = new UsageStatistics();
-        }
         return sInstance;
     }
 
     public void initialize(Context context) {
+        initialize(new RotatingFileEventSink(new File(context.getFilesDir(), EVENTS_DIRECTORY),
+                EVENTS_FILE, EVENTS_FILE_BYTES, EVENTS_FILES));
+    }
+
+    /**
+     * Starts sending events to the given sink, replacing the previous one.
+     * Events which other threads are adding to the previous pipeline at that
+     * moment may be lost, and are counted as dropped by it.
+     */
+    public synchronized void initialize(EventSink sink) {
+        close();
+        mPipeline = new EventPipeline("UsageStatistics", sink, PIPELINE_CAPACITY,
+                PIPELINE_BATCH_SIZE, PIPELINE_FLUSH_DELAY_MS);
+    }
+
+    /**
+     * Stores the recorded events and closes the sink. Events are dropped until
+     * {@link #initialize} is called again.
+     */
+    public synchronized void close() {
+        if (mPipeline != null) {
+            mPipeline.close();
+            mPipeline = null;
+        }
+    }
+
+    /**
+     * Sends the recorded events to the sink and waits until they are.
+     */
+    public void flush() throws InterruptedException {
+        EventPipeline pipeline = mPipeline;
+        if (pipeline != null) {
+            pipeline.flush();
+        }
     }
 
     public void mediaInteraction(String ref, int interactionType, int cause, float age) {
+        EventPipeline pipeline = mPipeline;
+        long position = claim(pipeline, EVENT_MEDIA_INTERACTION);
+        if (position < 0) {
+            return;
+        }
+        ByteBuffer record = pipeline.getRecord(position);
+        EventPipeline.putString(record, ref);
+        record.putInt(interactionType).putInt(cause).putFloat(age);
+        pipeline.publish(position);
     }
 
     public void mediaView(String ref, long modifiedMillis, float zoom) {
+        EventPipeline pipeline = mPipeline;
+        long position = claim(pipeline, EVENT_MEDIA_VIEW);
+        if (position < 0) {
+            return;
+        }
+        ByteBuffer record = pipeline.getRecord(position);
+        EventPipeline.putString(record, ref);
+        record.putLong(modifiedMillis).putFloat(zoom);
+        pipeline.publish(position);
     }
 
     public void foregrounded(int source, int mode) {
+        EventPipeline pipeline = mPipeline;
+        long position = claim(pipeline, EVENT_FOREGROUNDED);
+        if (position < 0) {
+            return;
+        }
+        pipeline.getRecord(position).putInt(source).putInt(mode);
+        pipeline.publish(position);
     }
 
+    /** Also stores the recorded events, as the app may be killed. */
     public void backgrounded() {
+        EventPipeline pipeline = mPipeline;
+        long position = claim(pipeline, EVENT_BACKGROUNDED);
+        if (position < 0) {
+            return;
+        }
+        pipeline.publish(position);
+        pipeline.requestFlush();
     }
 
     public void storageWarning(long storageSpace) {
+        EventPipeline pipeline = mPipeline;
+        long position = claim(pipeline, EVENT_STORAGE_WARNING);
+        if (position < 0) {
+            return;
+        }
+        pipeline.getRecord(position).putLong(storageSpace);
+        pipeline.publish(position);
     }
 
     public void videoCaptureDoneEvent(String ref, long durationMsec, boolean front,
                                       float zoom, int width, int height, long size,
                                       String flashSetting, boolean gridLinesOn) {
+        EventPipeline pipeline = mPipeline;
+        long position = claim(pipeline, EVENT_VIDEO_CAPTURE_DONE);
+        if (position < 0) {
+            return;
+        }
+        ByteBuffer record = pipeline.getRecord(position);
+        EventPipeline.putString(record, ref);
+        record.putLong(durationMsec).put((byte) (front ? 1 : 0)).putFloat(zoom).putInt(width)
+                .putInt(height).putLong(size);
+        EventPipeline.putString(record, flashSetting);
+        record.put((byte) (gridLinesOn ? 1 : 0));
+        pipeline.publish(position);
     }
 
+    /**
+     * The EXIF data is not recorded. Null values are recorded as NaN, or as
+     * a missing flag.
+     */
     public void photoCaptureDoneEvent(int mode, String fileRef, ExifInterface exifRef,
                                       boolean front, boolean isHDR, float zoom,
                                       String flashSetting, boolean gridLinesOn,
                                       Float timerSeconds, TouchCoordinate touch,
                                       Boolean volumeButtonShutter) {
+        EventPipeline pipeline = mPipeline;
+        long position = claim(pipeline, EVENT_PHOTO_CAPTURE_DONE);
+        if (position < 0) {
+            return;
+        }
+        int flags = (front ? FLAG_FRONT : 0) | (isHDR ? FLAG_HDR : 0)
+                | (gridLinesOn ? FLAG_GRID_LINES : 0)
+                | (volumeButtonShutter != null && volumeButtonShutter
+                        ? FLAG_VOLUME_BUTTON_SHUTTER : 0);
+        ByteBuffer record = pipeline.getRecord(position);
+        record.putInt(mode);
+        EventPipeline.putString(record, fileRef);
+        record.put((byte) flags).putFloat(zoom);
+        EventPipeline.putString(record, flashSetting);
+        record.putFloat(timerSeconds != null ? timerSeconds : Float.NaN);
+        putTouch(record, touch);
+        pipeline.publish(position);
     }
 
     public void cameraFailure(int cause, String info, int agentAction, int agentState) {
+        EventPipeline pipeline = mPipeline;
+        long position = claim(pipeline, EVENT_CAMERA_FAILURE);
+        if (position < 0) {
+            return;
+        }
+        ByteBuffer record = pipeline.getRecord(position);
+        record.putInt(cause);
+        EventPipeline.putString(record, info);
+        record.putInt(agentAction).putInt(agentState);
+        pipeline.publish(position);
     }
 
     public void changeScreen(int newScreen, Integer interactionCause) {
+        EventPipeline pipeline = mPipeline;
+        long position = claim(pipeline, EVENT_CHANGE_SCREEN);
+        if (position < 0) {
+            return;
+        }
+        pipeline.getRecord(position).putInt(newScreen)
+                .putInt(interactionCause != null ? interactionCause : NONE);
+        pipeline.publish(position);
     }
 
     public void controlUsed(int control) {
+        EventPipeline pipeline = mPipeline;
+        long position = claim(pipeline, EVENT_CONTROL_USED);
+        if (position < 0) {
+            return;
+        }
+        pipeline.getRecord(position).putInt(control);
+        pipeline.publish(position);
     }
 
     public void tapToFocus(TouchCoordinate touch, Float duration) {
+        EventPipeline pipeline = mPipeline;
+        long position = claim(pipeline, EVENT_TAP_TO_FOCUS);
+        if (position < 0) {
+            return;
+        }
+        ByteBuffer record = pipeline.getRecord(position);
+        putTouch(record, touch);
+        record.putFloat(duration != null ? duration : Float.NaN);
+        pipeline.publish(position);
     }
 
+    /**
+     * Records the numeric and boolean values of the report, as a key and a
+     * long each, after the report type and the number of values. Reports
+     * which don't fit a record continue in further records.
+     */
     public void reportMemoryConsumed(HashMap memoryData, String reportType) {
+        EventPipeline pipeline = mPipeline;
+        if (pipeline == null) {
+            return;
+        }
+        long position = -1;
+        int count = 0;
+        int countOffset = 0;
+        for (Object object : memoryData.entrySet()) {
+            Map.Entry entry = (Map.Entry) object;
+            long value;
+            if (entry.getValue() instanceof Number) {
+                value = ((Number) entry.getValue()).longValue();
+            } else if (entry.getValue() instanceof Boolean) {
+                value = (Boolean) entry.getValue() ? 1 : 0;
+            } else {
+                continue;
+            }
+            String key = String.valueOf(entry.getKey());
+            if (position >= 0 && pipeline.getRecord(position).remaining()
+                    < EventPipeline.getStringSize(key) + 8) {
+                pipeline.getRecord(position).putShort(countOffset, (short) count);
+                pipeline.publish(position);
+                position = -1;
+            }
+            if (position < 0) {
+                position = pipeline.claim(EVENT_MEMORY_CONSUMED);
+                if (position < 0) {
+                    return;
+                }
+                ByteBuffer record = pipeline.getRecord(position);
+                EventPipeline.putString(record, reportType);
+                countOffset = record.position();
+                record.putShort((short) 0);
+                count = 0;
+            }
+            ByteBuffer record = pipeline.getRecord(position);
+            EventPipeline.putString(record, key);
+            record.putLong(value);
+            count++;
+        }
+        if (position >= 0) {
+            pipeline.getRecord(position).putShort(countOffset, (short) count);
+            pipeline.publish(position);
+        }
+    }
+
+    /** Records the duration of a stage of the app, such as a capture. */
+    public void latency(String stage, long durationNs) {
+        EventPipeline pipeline = mPipeline;
+        long position = claim(pipeline, EVENT_LATENCY);
+        if (position < 0) {
+            return;
+        }
+        ByteBuffer record = pipeline.getRecord(position);
+        EventPipeline.putString(record, stage);
+        record.putLong(durationNs);
+        pipeline.publish(position);
+    }
+
+    private static long claim(EventPipeline pipeline, short type) {
+        return pipeline == null ? -1 : pipeline.claim(type);
+    }
+
+    /** Writes the position and size of a touch, or NaNs without one. */
+    private static void putTouch(ByteBuffer record, TouchCoordinate touch) {
+        if (touch != null) {
+            record.putFloat(touch.getX()).putFloat(touch.getY()).putFloat(touch.getMaxX())
+                    .putFloat(touch.getMaxY());
+        } else {
+            record.putFloat(Float.NaN).putFloat(Float.NaN).putFloat(Float.NaN)
+                    .putFloat(Float.NaN);
+        }
     }
 }
@@ -47,11 +47,11 @@ import java.util.List;
  */
 public class XmpUtil {
   private static final Log.Tag TAG = new Log.Tag("XmpUtil");
-  private static final int XMP_HEADER_SIZE = 29;
+  static final int XMP_HEADER_SIZE = 29;
   private static final String XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0";
   private static final int MAX_XMP_BUFFER_SIZE = 65502;
 
-  private static final String GOOGLE_PANO_NAMESPACE = "http://ns.google.com/photos/1.0/panorama/";
+  static final String GOOGLE_PANO_NAMESPACE = "http://ns.google.com/photos/1.0/panorama/";
   private static final String PANO_PREFIX = "GPano";
 
   private static final int M_SOI = 0xd8; // File start marker.
@@ -110,22 +110,30 @@ public class XmpUtil {
     // Now we don't support extended xmp.
     for (Section section : sections) {
       if (hasXMPHeader(section.data)) {
-        int end = getXMPContentEnd(section.data);
-        byte[] buffer = new byte[end - XMP_HEADER_SIZE];
-        System.arraycopy(
-            section.data, XMP_HEADER_SIZE, buffer, 0, buffer.length);
-        try {
-          XMPMeta result = XMPMetaFactory.parseFromBuffer(buffer);
-          return result;
-        } catch (XMPException e) {
-          Log.d(TAG, "XMP parse error", e);
-          return null;
-        }
+        return parseXMPSection(section.data);
       }
     }
     return null;
   }
 
+  /**
+   * Parses the payload of an XMP APP1 section, starting with XMP_HEADER.
+   *
+   * @param data The section data, without the marker and length.
+   * @return Extracted XMPMeta or null.
+   */
+  static XMPMeta parseXMPSection(byte[] data) {
+    int end = getXMPContentEnd(data);
+    byte[] buffer = new byte[end - XMP_HEADER_SIZE];
+    System.arraycopy(data, XMP_HEADER_SIZE, buffer, 0, buffer.length);
+    try {
+      return XMPMetaFactory.parseFromBuffer(buffer);
+    } catch (XMPException e) {
+      Log.d(TAG, "XMP parse error", e);
+      return null;
+    }
+  }
+
   /**
    * Creates a new XMPMeta.
    */
@@ -288,7 +296,7 @@ public class XmpUtil {
    *
    * @param data Xmp metadata.
    */
-  private static boolean hasXMPHeader(byte[] data) {
+  static boolean hasXMPHeader(byte[] data) {
     if (data.length < XMP_HEADER_SIZE) {
       return false;
     }
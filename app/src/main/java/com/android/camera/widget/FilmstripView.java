@@ -929,10 +929,17 @@ public class FilmstripView extends ViewGroup {
         invalidate();
         if (mListener != null) {
             mListener.onDataFocusChanged(prevDataId, mViewItem[mCurrentItem].getId());
-            final int firstVisible = mViewItem[mCurrentItem].getId() - 2;
-            final int visibleItemCount = firstVisible + BUFFER_SIZE;
+            final ViewItem current = mViewItem[mCurrentItem];
+            final int firstVisible = current.getId() - 2;
+            final int visibleItemCount = BUFFER_SIZE;
             final int totalItemCount = mDataAdapter.getTotalNumber();
-            mListener.onScroll(firstVisible, visibleItemCount, totalItemCount);
+            // Converts the fling velocity of the center from pixels to items.
+            float velocity = mController.getFlingVelocity()
+                    / Math.max(1, current.getMeasuredWidth() + mViewGapInPixel);
+            if (adjust < 0) {
+                velocity = -velocity;
+            }
+            mListener.onScroll(firstVisible, visibleItemCount, totalItemCount, velocity);
         }
         zoomAtIndexChanged();
     }
@@ -2028,6 +2035,11 @@ public class FilmstripView extends ViewGroup {
             return !mScroller.isFinished();
         }
 
+        /** Returns the speed of the current fling in pixels per second, or 0. */
+        float getFlingVelocity() {
+            return mScroller.getFlingVelocity();
+        }
+
         @Override
         public boolean isScaling() {
             return mScaleAnimator.isRunning();
@@ -2465,6 +2477,8 @@ public class FilmstripView extends ViewGroup {
         private final Listener mListener;
 
         private final Scroller mScroller;
+        /** Whether mScroller was last started by a fling. */
+        private boolean mFlinging;
 
         private final ValueAnimator mXScrollAnimator;
         private final Runnable mScrollChecker = new Runnable() {
@@ -2529,14 +2543,24 @@ public class FilmstripView extends ViewGroup {
                 int minX, int maxX,
                 int minY, int maxY) {
             mScroller.fling(startX, startY, velocityX, velocityY, minX, maxX, minY, maxY);
+            mFlinging = true;
             runChecker();
         }
 
         public void startScroll(int startX, int startY, int dx, int dy) {
             mScroller.startScroll(startX, startY, dx, dy);
+            mFlinging = false;
             runChecker();
         }
 
+        /** Returns the current speed of a fling, or 0 if not flinging. */
+        public float getFlingVelocity() {
+            if (!mFlinging || mScroller.isFinished()) {
+                return 0f;
+            }
+            return mScroller.getCurrVelocity();
+        }
+
         /** Only starts and updates scroll in x-axis. */
         public void startScroll(int startX, int startY, int dx, int dy, int duration) {
             mXScrollAnimator.cancel();
@@ -4,21 +4,39 @@ import android.widget.AbsListView;
 
 import com.android.camera.debug.Log;
 
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
 
 /**
  * Responsible for controlling preloading logic. Intended usage is for ListViews that
  * benefit from initiating a load before the row appear on screen.
- * @param <T> The type of items this class preload.
+ * <p>
+ * Visible items are loaded first, then a window of items ahead in the direction of the scroll,
+ * the closest first. The faster the scroll, the longer the window, and the further ahead it
+ * starts, since the items right behind the screen edge would scroll past before their loads
+ * finish. Loads are tracked per item: when the window moves, items which are still in it are
+ * reprioritized and only the items which left it are cancelled.
+ * @param <T> The type of items this class preload. Items are compared with equals, so they
+ *           should identify the content, not its position, which shifts as items are added.
  * @param <Y> The type of load tokens that can be used to cancel loads for the items this class
  *           preloads.
  */
 public class Preloader<T, Y> implements AbsListView.OnScrollListener {
     private static final Log.Tag TAG = new Log.Tag("Preloader");
 
+    /** The priority of the loads of visible items. Larger values load later. */
+    public static final int PRIORITY_VISIBLE = 0;
+
+    /** How far ahead the window grows with the scroll velocity, in seconds of scrolling. */
+    private static final float LOOKAHEAD_SECONDS = 0.5f;
+    /** The time a load takes, for the items skipped at the start of the window, in seconds. */
+    private static final float LOAD_LATENCY_SECONDS = 0.05f;
+    /** The longest window, as a multiple of the items to load ahead at rest. */
+    private static final int MAX_LOOKAHEAD_FACTOR = 3;
+
     /**
      * Implemented by the source for items that should be preloaded.
      */
@@ -39,32 +57,34 @@ public class Preloader<T, Y> implements AbsListView.OnScrollListener {
      */
     public interface ItemLoader<T, Y> {
         /**
-         * Initiates a load for the specified items and returns a list of 0 or more load tokens that
-         * can be used to cancel the loads for the given items. Should preload the items in the list
-         * order,preloading the 0th item in the list fist.
+         * Initiates a load for the specified item.
+         *
+         * @param priority {@link #PRIORITY_VISIBLE} for visible items, larger values for items
+         *                 which are needed later.
+         * @return A load token that can be used to reprioritize or cancel the load, or null if
+         *         the item needs no load.
          */
-        public List<Y> preloadItems(List<T> items);
+        public Y preloadItem(T item, int priority);
 
         /**
-         * Cancels all of the loads represented by the given load tokens.
+         * Changes the priority of a load which has not started yet.
+         *
+         * @return Whether the load is still queued or running. If not, it finished or was
+         *         dropped, and the item may be preloaded again.
          */
-        public void cancelItems(List<Y> loadTokens);
-    }
+        public boolean setItemPriority(Y loadToken, int priority);
 
-    private final int mMaxConcurrentPreloads;
-
-    /**
-     * Keep track of the largest/smallest item we requested (depending on scroll direction) so
-     *  we don't preload the same items repeatedly. Without this var, scrolling down we preload
-     *  0-5, then 1-6 etc. Using this we instead preload 0-5, then 5-6, 6-7 etc.
-     */
-    private int mLastEnd = -1;
-    private int mLastStart;
+        /**
+         * Cancels the load represented by the given load token, if it has not started yet.
+         */
+        public void cancelItem(Y loadToken);
+    }
 
     private final int mLoadAheadItems;
     private ItemSource<T> mItemSource;
     private ItemLoader<T, Y> mItemLoader;
-    private Queue<List<Y>> mItemLoadTokens = new LinkedBlockingQueue<List<Y>>();
+    /** The loads started for the items in the current window, by item. */
+    private final Map<T, Y> mItemLoadTokens = new HashMap<T, Y>();
 
     private int mLastVisibleItem;
     private boolean mScrollingDown = false;
@@ -73,65 +93,86 @@ public class Preloader<T, Y> implements AbsListView.OnScrollListener {
         mItemSource = itemSource;
         mItemLoader = itemLoader;
         mLoadAheadItems = loadAheadItems;
-        // Add an additional item so we don't cancel a preload before we start a real load.
-        mMaxConcurrentPreloads = loadAheadItems + 1;
     }
 
     /**
-     * Initiates a pre load.
+     * Moves the preload window.
      *
-     * @param first The source position to load from
-     * @param increasing The direction we're going in (increasing -> source positions are
-     *                   increasing -> we're scrolling down the list)
+     * @param firstVisible The position of the first visible item.
+     * @param visibleItemCount The number of visible items.
+     * @param velocity The scroll velocity, in items per second, positive when source positions
+     *                 are increasing, or 0 if it is not known.
      */
-    private void preload(int first, boolean increasing) {
-        final int start;
-        final int end;
-        if (increasing) {
-            start = Math.max(first, mLastEnd);
-            end = Math.min(first + mLoadAheadItems, mItemSource.getCount());
+    private void preload(int firstVisible, int visibleItemCount, float velocity) {
+        final int count = mItemSource.getCount();
+        final int visibleStart = Math.max(0, firstVisible);
+        final int visibleEnd = Math.min(count, firstVisible + visibleItemCount);
+        final float speed = Math.abs(velocity);
+        final int skip = (int) (speed * LOAD_LATENCY_SECONDS);
+        final int lookAhead = Math.min(mLoadAheadItems * MAX_LOOKAHEAD_FACTOR,
+                mLoadAheadItems + (int) (speed * LOOKAHEAD_SECONDS));
+        final int aheadStart;
+        final int aheadEnd;
+        if (mScrollingDown) {
+            aheadStart = Math.min(count, visibleEnd + skip);
+            aheadEnd = Math.min(count, aheadStart + lookAhead);
         } else {
-            start = Math.max(0, first - mLoadAheadItems);
-            end = Math.min(first, mLastStart);
+            aheadEnd = Math.max(0, visibleStart - skip);
+            aheadStart = Math.max(0, aheadEnd - lookAhead);
         }
 
-        Log.v(TAG, "preload first=" + first + " increasing=" + increasing + " start=" + start +
-                " end=" + end);
+        Log.v(TAG, "preload visible=" + visibleStart + "-" + visibleEnd + " ahead=" + aheadStart
+                + "-" + aheadEnd + " velocity=" + velocity);
 
-        mLastEnd = end;
-        mLastStart = start;
+        // The items in the window and their priorities, the most urgent first.
+        Map<T, Integer> window = new LinkedHashMap<T, Integer>();
+        if (visibleStart < visibleEnd) {
+            for (T item : mItemSource.getItemsInRange(visibleStart, visibleEnd)) {
+                window.put(item, PRIORITY_VISIBLE);
+            }
+        }
+        if (aheadStart < aheadEnd) {
+            List<T> items = mItemSource.getItemsInRange(aheadStart, aheadEnd);
+            for (int i = 0; i < items.size(); i++) {
+                // The closest items to the screen go first.
+                int distance = mScrollingDown ? i : items.size() - 1 - i;
+                if (!window.containsKey(items.get(i))) {
+                    window.put(items.get(i), PRIORITY_VISIBLE + 1 + distance);
+                }
+            }
+        }
 
-        if (start == 0 && end == 0) {
-            return;
+        // Cancels the loads of the items which left the window.
+        Iterator<Map.Entry<T, Y>> it = mItemLoadTokens.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<T, Y> entry = it.next();
+            if (!window.containsKey(entry.getKey())) {
+                mItemLoader.cancelItem(entry.getValue());
+                it.remove();
+            }
         }
 
-        final List<T> items = mItemSource.getItemsInRange(start, end);
-        if (!increasing) {
-            Collections.reverse(items);
+        for (Map.Entry<T, Integer> entry : window.entrySet()) {
+            preloadItem(entry.getKey(), entry.getValue());
         }
-        registerLoadTokens(mItemLoader.preloadItems(items));
     }
 
-    private void registerLoadTokens(List<Y> loadTokens) {
-        mItemLoadTokens.offer(loadTokens);
-        // We pretend that one batch of load tokens corresponds to one item in the list. This isn't
-        // strictly true because we may batch preload multiple items at once when we first start
-        // scrolling in the list or change the direction we're scrolling in. In those cases, we will
-        // have a single large batch of load tokens for multiple items, and then go back to getting
-        // one batch per item as we continue to scroll. This means we may not cancel as many
-        // preloads as we expect when we change direction, but we can at least be sure we won't
-        // cancel preloads for items we still care about. We can't be more precise here because
-        // there is no guarantee that there is a one to one relationship between load tokens
-        // and list items.
-        if (mItemLoadTokens.size() > mMaxConcurrentPreloads) {
-            final List<Y> loadTokensToCancel = mItemLoadTokens.poll();
-            mItemLoader.cancelItems(loadTokensToCancel);
+    private void preloadItem(T item, int priority) {
+        Y loadToken = mItemLoadTokens.get(item);
+        if (loadToken != null && mItemLoader.setItemPriority(loadToken, priority)) {
+            return;
+        }
+        loadToken = mItemLoader.preloadItem(item, priority);
+        if (loadToken != null) {
+            mItemLoadTokens.put(item, loadToken);
+        } else {
+            mItemLoadTokens.remove(item);
         }
     }
 
     public void cancelAllLoads() {
-        for (List<Y> loadTokens : mItemLoadTokens) {
-            mItemLoader.cancelItems(loadTokens);
+        for (Y loadToken : mItemLoadTokens.values()) {
+            mItemLoader.cancelItem(loadToken);
         }
         mItemLoadTokens.clear();
     }
@@ -144,28 +185,34 @@ public class Preloader<T, Y> implements AbsListView.OnScrollListener {
     @Override
     public void onScroll(AbsListView absListView, int firstVisible, int visibleItemCount,
             int totalItemCount) {
-        boolean wasScrollingDown = mScrollingDown;
-        int preloadStart = -1;
-        if (firstVisible > mLastVisibleItem) {
+        onScroll(firstVisible, visibleItemCount, totalItemCount, 0f);
+    }
+
+    /**
+     * Updates the preload window after a scroll.
+     *
+     * @param velocity The scroll velocity, in items per second, positive when source positions
+     *                 are increasing, or 0 if it is not known.
+     */
+    public void onScroll(int firstVisible, int visibleItemCount, int totalItemCount,
+            float velocity) {
+        boolean moved = true;
+        if (velocity != 0f) {
+            mScrollingDown = velocity > 0f;
+        } else if (firstVisible > mLastVisibleItem) {
             // Scrolling list down
             mScrollingDown = true;
-            preloadStart = firstVisible + visibleItemCount;
         } else if (firstVisible < mLastVisibleItem) {
             // Scrolling list Up
             mScrollingDown = false;
-            preloadStart = firstVisible;
-        }
-
-        if (wasScrollingDown != mScrollingDown) {
-            // If we've changed directions, we don't care about any of our old preloads, so cancel
-            // all of them.
-            cancelAllLoads();
+        } else {
+            moved = false;
         }
 
         // onScroll can be called multiple times with the same arguments, so we only want to preload
         // if we've actually scrolled at least an item in either direction.
-        if (preloadStart != -1) {
-            preload(preloadStart, mScrollingDown);
+        if (moved) {
+            preload(firstVisible, visibleItemCount, velocity);
         }
 
         mLastVisibleItem = firstVisible;
@@ -439,13 +439,12 @@ class AndroidCamera2AgentImpl extends CameraAgent {
 
                         // Send a one-time capture to trigger the camera driver to lock focus.
                         changeState(AndroidCamera2StateHolder.CAMERA_FOCUS_LOCKED);
-                        Camera2RequestSettingsSet trigger =
-                                new Camera2RequestSettingsSet(mPersistentSettings);
-                        trigger.set(CaptureRequest.CONTROL_AF_TRIGGER,
-                                CaptureRequest.CONTROL_AF_TRIGGER_START);
                         try {
                             mSession.capture(
-                                    trigger.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW,
+                                    mPersistentSettings.createRequest(mCamera,
+                                            CameraDevice.TEMPLATE_PREVIEW,
+                                            CaptureRequest.CONTROL_AF_TRIGGER,
+                                            CaptureRequest.CONTROL_AF_TRIGGER_START,
                                             mPreviewSurface),
                                     /*listener*/deferredCallbackSetter, /*handler*/ this);
                         } catch(CameraAccessException ex) {
@@ -468,13 +467,12 @@ class AndroidCamera2AgentImpl extends CameraAgent {
 
                         // Send a one-time capture to trigger the camera driver to resume scanning.
                         changeState(AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE);
-                        Camera2RequestSettingsSet cancel =
-                                new Camera2RequestSettingsSet(mPersistentSettings);
-                        cancel.set(CaptureRequest.CONTROL_AF_TRIGGER,
-                                CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
                         try {
                             mSession.capture(
-                                    cancel.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW,
+                                    mPersistentSettings.createRequest(mCamera,
+                                            CameraDevice.TEMPLATE_PREVIEW,
+                                            CaptureRequest.CONTROL_AF_TRIGGER,
+                                            CaptureRequest.CONTROL_AF_TRIGGER_CANCEL,
                                             mPreviewSurface),
                                     /*listener*/null, /*handler*/this);
                         } catch(CameraAccessException ex) {
@@ -618,13 +616,12 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                                 }};
 
                             // Set a one-time capture to trigger the camera driver's autoexposure:
-                            Camera2RequestSettingsSet expose =
-                                    new Camera2RequestSettingsSet(mPersistentSettings);
-                            expose.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
-                                    CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
                             try {
                                 mSession.capture(
-                                        expose.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW,
+                                        mPersistentSettings.createRequest(mCamera,
+                                                CameraDevice.TEMPLATE_PREVIEW,
+                                                CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+                                                CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START,
                                                 mPreviewSurface),
                                         /*listener*/deferredCallbackSetter, /*handler*/this);
                             } catch (CameraAccessException ex) {
@@ -688,11 +685,12 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         private void applyToRequest(AndroidCamera2Settings settings) {
             // TODO: If invoked when in PREVIEW_READY state, a new preview size will not take effect
 
-            mPersistentSettings.union(settings.getRequestSettings());
+            boolean changed = mPersistentSettings.union(settings.getRequestSettings());
             mPreviewSize = settings.getCurrentPreviewSize();
             mPhotoSize = settings.getCurrentPhotoSize();
 
-            if (mCameraState.getState() >= AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE) {
+            if (mCameraState.getState() >= AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE
+                    && changed) {
                 // If we're already previewing, reflect most settings immediately
                 try {
                     mSession.setRepeatingRequest(
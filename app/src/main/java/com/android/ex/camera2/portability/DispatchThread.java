@@ -18,28 +18,80 @@ package com.android.ex.camera2.portability;
 
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.SystemClock;
 
 import com.android.ex.camera2.portability.debug.Log;
 
-import java.util.LinkedList;
-import java.util.Queue;
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs camera jobs one at a time, in the order they were queued. After each
+ * job the thread waits until the camera handler has processed everything the
+ * job posted to it.
+ * <p>
+ * Jobs are queued on a lock-free multi-producer, single-consumer linked
+ * queue, so that queuing never blocks on the dispatch thread. Idle threads
+ * park instead of waiting on a monitor.
+ */
 public class DispatchThread extends Thread {
     private static final Log.Tag TAG = new Log.Tag("DispatchThread");
-    private static final long MAX_MESSAGE_QUEUE_LENGTH = 256;
+    /** Queue length above which a backlog is reported. */
+    private static final int MAX_MESSAGE_QUEUE_LENGTH = 256;
+
+    /** A queued job, and the node of the job queue holding it. */
+    private static class Job {
+        final Runnable mRunnable;
+        final long mEnqueueTimeNs;
+        /** The thread waiting in runJobSync() for this job, if any. */
+        final Thread mWaiter;
+        volatile boolean mDone;
+        volatile Job mNext;
+
+        Job(Runnable runnable, Thread waiter) {
+            mRunnable = runnable;
+            mWaiter = waiter;
+            mEnqueueTimeNs = System.nanoTime();
+        }
+    }
+
+    /**
+     * The last job queued. Producers swap themselves in here and then link
+     * the previous tail to their job.
+     */
+    private final AtomicReference<Job> mTail;
+    /** The last job taken by the dispatch thread, whose mNext is the next one. */
+    private Job mHead;
+    private final AtomicInteger mQueueLength = new AtomicInteger();
+
+    private volatile boolean mIsEnded;
+    /** Set while the dispatch thread is parked waiting for a job. */
+    private volatile boolean mIsIdle;
+    /** Enqueue time of the job being dispatched, 0 between jobs. */
+    private volatile long mRunningJobEnqueueTimeNs;
+
+    private volatile boolean mHandlerDrained;
+    private final Runnable mHandlerDrainedNotifier = new Runnable() {
+        @Override
+        public void run() {
+            mHandlerDrained = true;
+            LockSupport.unpark(DispatchThread.this);
+        }
+    };
 
-    private final Queue<Runnable> mJobQueue;
-    private Boolean mIsEnded;
     private Handler mCameraHandler;
     private HandlerThread mCameraHandlerThread;
 
     public DispatchThread(Handler cameraHandler, HandlerThread cameraHandlerThread) {
         super("Camera Job Dispatch Thread");
-        mJobQueue = new LinkedList<Runnable>();
-        mIsEnded = new Boolean(false);
+        mHead = new Job(null, null);
+        mTail = new AtomicReference<Job>(mHead);
         mCameraHandler = cameraHandler;
         mCameraHandlerThread = cameraHandlerThread;
+        if (cameraHandler instanceof HistoryHandler) {
+            ((HistoryHandler) cameraHandler).setDispatchThread(this);
+        }
     }
 
     /**
@@ -48,42 +100,36 @@ public class DispatchThread extends Thread {
      * @param job The job to run.
      */
     public void runJob(Runnable job) {
-        if (isEnded()) {
-            throw new IllegalStateException(
-                    "Trying to run job on interrupted dispatcher thread");
-        }
-        synchronized (mJobQueue) {
-            if (mJobQueue.size() == MAX_MESSAGE_QUEUE_LENGTH) {
-                throw new RuntimeException("Camera master thread job queue full");
-            }
-
-            mJobQueue.add(job);
-            mJobQueue.notifyAll();
-        }
+        enqueue(new Job(job, null));
     }
 
     /**
-     * Queues up the job and wait for it to be done.
+     * Queues up the job and wait for it to be done, which includes the camera
+     * handler processing all the messages the job sends it.
      *
      * @param job The job to run.
+     * @param waitLock Unused, the job is waited for directly.
      * @param timeoutMs Timeout limit in milliseconds.
      * @param jobMsg The message to log when the job runs timeout.
-     * @return Whether the job finishes before timeout.
+     * @throws IllegalStateException if the job does not finish before timeout.
      */
     public void runJobSync(final Runnable job, Object waitLock, long timeoutMs, String jobMsg) {
-        String timeoutMsg = "Timeout waiting " + timeoutMs + "ms for " + jobMsg;
-        synchronized (waitLock) {
-            long timeoutBound = SystemClock.uptimeMillis() + timeoutMs;
-            try {
-                runJob(job);
-                waitLock.wait(timeoutMs);
-                if (SystemClock.uptimeMillis() > timeoutBound) {
-                    throw new IllegalStateException(timeoutMsg);
-                }
-            } catch (InterruptedException ex) {
-                if (SystemClock.uptimeMillis() > timeoutBound) {
-                    throw new IllegalStateException(timeoutMsg);
-                }
+        Job syncJob = new Job(job, Thread.currentThread());
+        enqueue(syncJob);
+
+        long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (!syncJob.mDone) {
+            long remainingNs = deadlineNs - System.nanoTime();
+            if (remainingNs <= 0) {
+                throw new IllegalStateException(
+                        "Timeout waiting " + timeoutMs + "ms for " + jobMsg);
+            }
+            LockSupport.parkNanos(this, remainingNs);
+            if (Thread.interrupted()) {
+                // Give up waiting but leave the job queued, like an
+                // interrupted wait() did.
+                Thread.currentThread().interrupt();
+                return;
             }
         }
     }
@@ -92,61 +138,110 @@ public class DispatchThread extends Thread {
      * Gracefully ends this thread. Will stop after all jobs are processed.
      */
     public void end() {
-        synchronized (mIsEnded) {
-            mIsEnded = true;
+        mIsEnded = true;
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Returns the time, in {@link System#nanoTime()}, at which the job being
+     * dispatched was queued, or 0 if no job is being dispatched. The camera
+     * handler is drained before the next job starts, so messages it handles
+     * meanwhile were sent on behalf of this job.
+     */
+    long getRunningJobEnqueueTimeNs() {
+        return mRunningJobEnqueueTimeNs;
+    }
+
+    private void enqueue(Job job) {
+        if (mIsEnded) {
+            throw new IllegalStateException(
+                    "Trying to run job on interrupted dispatcher thread");
         }
-        synchronized(mJobQueue) {
-            mJobQueue.notifyAll();
+        int length = mQueueLength.incrementAndGet();
+        if (length == MAX_MESSAGE_QUEUE_LENGTH) {
+            Log.w(TAG, "Camera master thread job queue has " + length + " pending jobs");
+        }
+        Job previous = mTail.getAndSet(job);
+        previous.mNext = job;
+        if (mIsIdle) {
+            LockSupport.unpark(this);
         }
     }
 
-    private boolean isEnded() {
-        synchronized (mIsEnded) {
-            return mIsEnded;
+    /** Takes the next job, or returns null if none is queued. */
+    private Job poll() {
+        Job next = mHead.mNext;
+        if (next == null) {
+            if (mTail.get() == mHead) {
+                return null;
+            }
+            // A producer has swapped in its job but not linked it yet.
+            do {
+                Thread.yield();
+                next = mHead.mNext;
+            } while (next == null);
         }
+        // The taken node becomes the new stub, drop what it no longer needs.
+        mHead.mNext = null;
+        mHead = next;
+        mQueueLength.decrementAndGet();
+        return next;
     }
 
-    @Override
-    public void run() {
-        while(true) {
-            Runnable job = null;
-            synchronized (mJobQueue) {
-                while (mJobQueue.size() == 0 && !isEnded()) {
-                    try {
-                        mJobQueue.wait();
-                    } catch (InterruptedException ex) {
-                        Log.w(TAG, "Dispatcher thread wait() interrupted, exiting");
-                        break;
-                    }
-                }
-
-                job = mJobQueue.poll();
+    private Job take() {
+        while (true) {
+            Job job = poll();
+            if (job != null) {
+                return job;
+            }
+            if (mIsEnded) {
+                return null;
+            }
+            mIsIdle = true;
+            // Check again, a producer may have missed mIsIdle.
+            job = poll();
+            if (job == null && !mIsEnded) {
+                LockSupport.park(this);
+            }
+            mIsIdle = false;
+            if (Thread.interrupted()) {
+                Log.w(TAG, "Dispatcher thread interrupted, ignoring");
             }
+            if (job != null) {
+                return job;
+            }
+        }
+    }
+
+    /** Waits until the camera handler has processed the messages sent so far. */
+    private void waitForCameraHandler() {
+        mHandlerDrained = false;
+        if (!mCameraHandler.post(mHandlerDrainedNotifier)) {
+            // The handler thread has quit, nothing to wait for.
+            return;
+        }
+        while (!mHandlerDrained) {
+            LockSupport.park(this);
+            Thread.interrupted();
+        }
+    }
 
+    @Override
+    public void run() {
+        while (true) {
+            Job job = take();
             if (job == null) {
-                // mJobQueue.poll() returning null means wait() is
-                // interrupted and the queue is empty.
-                if (isEnded()) {
-                    break;
-                }
-                continue;
+                break;
             }
-
-            job.run();
-
-            synchronized (DispatchThread.this) {
-                mCameraHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        synchronized (DispatchThread.this) {
-                            DispatchThread.this.notifyAll();
-                        }
-                    }
-                });
-                try {
-                    DispatchThread.this.wait();
-                } catch (InterruptedException ex) {
-                    // TODO: do something here.
+            mRunningJobEnqueueTimeNs = job.mEnqueueTimeNs;
+            try {
+                job.mRunnable.run();
+                waitForCameraHandler();
+            } finally {
+                mRunningJobEnqueueTimeNs = 0;
+                if (job.mWaiter != null) {
+                    job.mDone = true;
+                    LockSupport.unpark(job.mWaiter);
                 }
             }
         }
@@ -19,14 +19,57 @@ package com.android.ex.camera2.portability;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.util.SparseArray;
 
 import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 class HistoryHandler extends Handler {
     private static final int MAX_HISTORY_SIZE = 400;
 
     final LinkedList<Integer> mMsgHistory;
 
+    /** Latencies of each {@link CameraActions} action, guarded by itself. */
+    private final SparseArray<ActionLatency> mLatencies = new SparseArray<ActionLatency>();
+    private DispatchThread mDispatchThread;
+
+    /**
+     * Enqueue-to-execute latencies of one action, in power-of-two buckets:
+     * bucket i counts latencies in [2^(i-1), 2^i) microseconds.
+     */
+    private static class ActionLatency {
+        private static final int BUCKET_COUNT = 32;
+
+        final long[] mBuckets = new long[BUCKET_COUNT];
+        long mCount;
+        long mTotalNs;
+        long mMaxNs;
+
+        void record(long latencyNs) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(latencyNs);
+            int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+            mBuckets[bucket]++;
+            mCount++;
+            mTotalNs += latencyNs;
+            mMaxNs = Math.max(mMaxNs, latencyNs);
+        }
+
+        /** Returns the upper bound of the bucket holding the percentile. */
+        long getPercentileNs(double percentile) {
+            long rank = (long) Math.ceil(mCount * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && mBuckets[i] > 0) {
+                    return Math.min(TimeUnit.MICROSECONDS.toNanos(1L << i), mMaxNs);
+                }
+            }
+            return mMaxNs;
+        }
+    }
+
     HistoryHandler(Looper looper) {
         super(looper);
         mMsgHistory = new LinkedList<Integer>();
@@ -35,20 +78,57 @@ class HistoryHandler extends Handler {
         mMsgHistory.offerLast(-1);
     }
 
+    /**
+     * Sets the thread dispatching jobs to this handler, so that latencies are
+     * measured from when the job sending a message was queued.
+     */
+    void setDispatchThread(DispatchThread dispatchThread) {
+        mDispatchThread = dispatchThread;
+    }
+
     Integer getCurrentMessage() {
         return mMsgHistory.peekLast();
     }
 
+    /**
+     * Returns the recent messages, followed by the latencies of each action.
+     * History is only generated to report a failure, which is when the
+     * latencies leading up to it are interesting.
+     */
     String generateHistoryString(int cameraId) {
         String info = new String("HIST");
         info += "_ID" + cameraId;
         for (Integer msg : mMsgHistory) {
             info = info + '_' + msg.toString();
         }
+        info += "_LAT_" + generateLatencyString();
         info += "_HEND";
         return info;
     }
 
+    /**
+     * Returns the count, mean, median, 95th percentile and max of the
+     * enqueue-to-execute latency of each action handled so far.
+     */
+    String generateLatencyString() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (mLatencies) {
+            for (int i = 0; i < mLatencies.size(); i++) {
+                ActionLatency latency = mLatencies.valueAt(i);
+                if (i > 0) {
+                    builder.append("; ");
+                }
+                builder.append(String.format(Locale.US,
+                        "%s: n=%d mean=%.1fms p50=%.1fms p95=%.1fms max=%.1fms",
+                        CameraActions.stringify(mLatencies.keyAt(i)), latency.mCount,
+                        latency.mTotalNs / 1e6 / latency.mCount,
+                        latency.getPercentileNs(50) / 1e6, latency.getPercentileNs(95) / 1e6,
+                        latency.mMaxNs / 1e6));
+            }
+        }
+        return builder.toString();
+    }
+
     /**
      * Subclasses' implementations should call this one before doing their work.
      */
@@ -58,5 +138,27 @@ class HistoryHandler extends Handler {
         while (mMsgHistory.size() > MAX_HISTORY_SIZE) {
             mMsgHistory.pollFirst();
         }
+        recordLatency(msg);
+    }
+
+    private void recordLatency(Message msg) {
+        long enqueueTimeNs =
+                (mDispatchThread != null) ? mDispatchThread.getRunningJobEnqueueTimeNs() : 0;
+        long latencyNs;
+        if (enqueueTimeNs != 0) {
+            latencyNs = System.nanoTime() - enqueueTimeNs;
+        } else {
+            // Not sent by a dispatch job, count from when it was due.
+            latencyNs = TimeUnit.MILLISECONDS.toNanos(
+                    Math.max(0, SystemClock.uptimeMillis() - msg.getWhen()));
+        }
+        synchronized (mLatencies) {
+            ActionLatency latency = mLatencies.get(msg.what);
+            if (latency == null) {
+                latency = new ActionLatency();
+                mLatencies.put(msg.what, latency);
+            }
+            latency.record(latencyNs);
+        }
     }
 }
@@ -24,16 +24,78 @@ import android.hardware.camera2.CaptureRequest.Key;
 import android.util.Log;
 import android.view.Surface;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
 /**
  * A set of settings to be used when filing a {@link CaptureRequest}.
+ *
+ * <p>Copies share their settings until either side is modified, so copying is
+ * cheap. Requests are cached per template and targets: creating a request
+ * from unchanged settings returns the previously built one, and after a
+ * modification only the changed settings are applied to the cached
+ * {@link Builder}, which saves asking the camera for a new template.</p>
  */
 public class Camera2RequestSettingsSet {
-    private final Map<Key<?>, Object> mDictionary;
+    /** The number of template and targets combinations with cached requests. */
+    static final int MAX_CACHED_REQUESTS = 4;
+
+    /**
+     * The part of {@link Builder} used here. Not private so that tests can
+     * see what is applied to the builders without a camera.
+     */
+    interface RequestBuilder {
+        <T> void set(Key<T> key, T value);
+
+        void addTarget(Surface target);
+
+        CaptureRequest build();
+    }
+
+    /**
+     * A builder for one template, set of targets and one-shot setting, and
+     * the last request it built.
+     */
+    private static class CachedRequest {
+        final CameraDevice mCamera;
+        final int mTemplate;
+        final Surface[] mTargets;
+        final Key<?> mOneShotKey;
+        final RequestBuilder mBuilder;
+        /** The settings applied to mBuilder, which are never modified. */
+        Map<Key<?>, Object> mApplied;
+        Object mOneShotValue;
+        long mRevision;
+        CaptureRequest mRequest;
+
+        CachedRequest(CameraDevice camera, int template, Surface[] targets, Key<?> oneShotKey,
+                RequestBuilder builder) {
+            mCamera = camera;
+            mTemplate = template;
+            mTargets = targets;
+            mOneShotKey = oneShotKey;
+            mBuilder = builder;
+        }
+
+        boolean matches(CameraDevice camera, int template, Surface[] targets, Key<?> oneShotKey) {
+            return mCamera == camera && mTemplate == template
+                    && Objects.equals(mOneShotKey, oneShotKey) && Arrays.equals(mTargets, targets);
+        }
+    }
+
+    private Map<Key<?>, Object> mDictionary;
+    /**
+     * Whether mDictionary is also used by a copy or a cached request, and so
+     * must be copied before it is modified.
+     */
+    private boolean mShared;
     private long mRevision;
+    /** Cached requests, the most recently used first. */
+    private final List<CachedRequest> mCachedRequests = new ArrayList<>();
 
     /**
      * Create a new instance with no settings defined.
@@ -49,7 +111,11 @@ public class Camera2RequestSettingsSet {
     }
 
     /**
-     * Perform a deep copy of the defined settings and revision number.
+     * Perform a copy of the defined settings and revision number.
+     *
+     * <p>The settings are shared with {@code other} until either is
+     * modified, so this does not depend on the number of settings. Cached
+     * requests are not copied.</p>
      *
      * @param other The reference instance.
      *
@@ -60,7 +126,9 @@ public class Camera2RequestSettingsSet {
             throw new NullPointerException("Tried to copy null Camera2RequestSettingsSet");
         }
 
-        mDictionary = new HashMap<>(other.mDictionary);
+        mDictionary = other.mDictionary;
+        mShared = true;
+        other.mShared = true;
         mRevision = other.mRevision;
     }
 
@@ -89,6 +157,7 @@ public class Camera2RequestSettingsSet {
         Object currentValue = get(key);
         // Only save the value if it's different from the one we already have
         if (!mDictionary.containsKey(key) || !Objects.equals(value, currentValue)) {
+            prepareForWrite();
             mDictionary.put(key, value);
             ++mRevision;
             return true;
@@ -115,6 +184,7 @@ public class Camera2RequestSettingsSet {
         }
 
         if (mDictionary.containsKey(key)) {
+            prepareForWrite();
             mDictionary.remove(key);
             ++mRevision;
             return true;
@@ -196,27 +266,46 @@ public class Camera2RequestSettingsSet {
      * to this method take precedence. Unset settings are not propagated, but
      * those forced to default as described in {@link set} are also forced to
      * default in {@code this} set. Invoking this method increments {@code this}
-     * object's revision counter, but leaves the argument's unchanged.</p>
+     * object's revision counter if any setting changed, but leaves the
+     * argument's unchanged.</p>
      *
      * @param moreSettings The source of the additional settings ({@code null}
      *                     is allowed here).
-     * @return Whether these settings were updated, which can only fail if the
-     *         target itself is also given as the argument.
+     * @return Whether these settings were updated, which only occurs if
+     *         {@code moreSettings} defines a setting which is missing here or
+     *         has a different value.
      */
     public boolean union(Camera2RequestSettingsSet moreSettings) {
-        if (moreSettings == null || moreSettings == this) {
+        if (moreSettings == null || moreSettings == this
+                || moreSettings.mDictionary == mDictionary) {
             return false;
         }
 
-        mDictionary.putAll(moreSettings.mDictionary);
-        ++mRevision;
-        return true;
+        boolean changed = false;
+        for (Map.Entry<Key<?>, Object> entry : moreSettings.mDictionary.entrySet()) {
+            Object value = entry.getValue();
+            if (!mDictionary.containsKey(entry.getKey())
+                    || !Objects.equals(mDictionary.get(entry.getKey()), value)) {
+                if (!changed) {
+                    prepareForWrite();
+                    changed = true;
+                }
+                mDictionary.put(entry.getKey(), value);
+            }
+        }
+        if (changed) {
+            ++mRevision;
+        }
+        return changed;
     }
 
     /**
      * Create a {@link CaptureRequest} specialized for the specified
      * {@link CameraDevice} and targeting the given {@link Surface}s.
      *
+     * <p>The request is built from a cached {@link Builder} when possible, and
+     * the same instance is returned until the settings change.</p>
+     *
      * @param camera The camera from which to capture.
      * @param template A {@link CaptureRequest} template defined in
      *                 {@link CameraDevice}.
@@ -228,28 +317,157 @@ public class Camera2RequestSettingsSet {
      */
     public CaptureRequest createRequest(CameraDevice camera, int template, Surface... targets)
             throws CameraAccessException {
+        return createRequest(camera, template, null, null, targets);
+    }
+
+    /**
+     * Create a {@link CaptureRequest} like
+     * {@link #createRequest(CameraDevice, int, Surface...)}, with one more
+     * setting which only applies to this request, such as a trigger.
+     *
+     * <p>This is cheaper than copying the settings and modifying the copy,
+     * and the request is cached too.</p>
+     *
+     * @param oneShotKey The additional setting, which overrides any value
+     *                   stored for it here.
+     * @param oneShotValue The value for that setting.
+     *
+     * @throws CameraAccessException Upon an underlying framework API failure.
+     * @throws NullPointerException If any argument other than
+     *                              {@code oneShotValue} is {@code null}.
+     */
+    public <T> CaptureRequest createRequest(CameraDevice camera, int template, Key<T> oneShotKey,
+            T oneShotValue, Surface... targets) throws CameraAccessException {
         if (camera == null) {
             throw new NullPointerException("Tried to create request using null CameraDevice");
         }
-
-        Builder reqBuilder = camera.createCaptureRequest(template);
-
-        for (Key<?> key : mDictionary.keySet()) {
-            setRequestFieldIfNonNull(reqBuilder, key);
-        }
         for (Surface target : targets) {
             if (target == null) {
                 throw new NullPointerException("Tried to add null Surface as request target");
             }
-            reqBuilder.addTarget(target);
         }
-        return reqBuilder.build();
+
+        CachedRequest cached = findCachedRequest(camera, template, targets, oneShotKey);
+        if (cached != null && cached.mRevision == mRevision
+                && Objects.equals(cached.mOneShotValue, oneShotValue)) {
+            return cached.mRequest;
+        }
+        if (cached == null || !applyChanges(cached)) {
+            if (cached != null) {
+                mCachedRequests.remove(cached);
+            }
+            cached = new CachedRequest(camera, template, targets.clone(), oneShotKey,
+                    newBuilder(camera, template));
+            for (Map.Entry<Key<?>, Object> entry : mDictionary.entrySet()) {
+                if (entry.getValue() != null && !entry.getKey().equals(oneShotKey)) {
+                    setRequestField(cached.mBuilder, entry.getKey(), entry.getValue());
+                }
+            }
+            for (Surface target : targets) {
+                cached.mBuilder.addTarget(target);
+            }
+            cacheRequest(cached);
+        }
+        if (oneShotKey != null) {
+            cached.mBuilder.set(oneShotKey, oneShotValue);
+        }
+        // The builder now holds these settings, so they must not change under it.
+        cached.mApplied = mDictionary;
+        mShared = true;
+        cached.mOneShotValue = oneShotValue;
+        cached.mRevision = mRevision;
+        cached.mRequest = cached.mBuilder.build();
+        return cached.mRequest;
+    }
+
+    /**
+     * Asks the camera for a builder with the defaults of {@code template}.
+     * Not private so that tests can replace the camera.
+     */
+    RequestBuilder newBuilder(CameraDevice camera, int template) throws CameraAccessException {
+        final Builder builder = camera.createCaptureRequest(template);
+        return new RequestBuilder() {
+            @Override
+            public <T> void set(Key<T> key, T value) {
+                builder.set(key, value);
+            }
+
+            @Override
+            public void addTarget(Surface target) {
+                builder.addTarget(target);
+            }
+
+            @Override
+            public CaptureRequest build() {
+                return builder.build();
+            }
+        };
+    }
+
+    private CachedRequest findCachedRequest(CameraDevice camera, int template, Surface[] targets,
+            Key<?> oneShotKey) {
+        for (int i = 0; i < mCachedRequests.size(); i++) {
+            CachedRequest cached = mCachedRequests.get(i);
+            if (cached.matches(camera, template, targets, oneShotKey)) {
+                if (i > 0) {
+                    mCachedRequests.remove(i);
+                    mCachedRequests.add(0, cached);
+                }
+                return cached;
+            }
+        }
+        return null;
     }
 
-    private <T> void setRequestFieldIfNonNull(Builder requestBuilder, Key<T> key) {
-        T value = get(key);
-        if (value != null) {
-            requestBuilder.set(key, value);
+    private void cacheRequest(CachedRequest cached) {
+        mCachedRequests.add(0, cached);
+        while (mCachedRequests.size() > MAX_CACHED_REQUESTS) {
+            mCachedRequests.remove(mCachedRequests.size() - 1);
         }
     }
+
+    /**
+     * Applies the settings which changed since the cached builder was last
+     * used.
+     *
+     * @return Whether that was possible. A setting can't be reverted to the
+     *         template's default on a builder, so removed settings or those
+     *         forced to default need a new builder.
+     */
+    private boolean applyChanges(CachedRequest cached) {
+        Map<Key<?>, Object> applied = cached.mApplied;
+        if (applied == mDictionary) {
+            return true;
+        }
+        for (Map.Entry<Key<?>, Object> entry : applied.entrySet()) {
+            if (entry.getValue() != null && mDictionary.get(entry.getKey()) == null
+                    && !entry.getKey().equals(cached.mOneShotKey)) {
+                return false;
+            }
+        }
+        for (Map.Entry<Key<?>, Object> entry : mDictionary.entrySet()) {
+            Key<?> key = entry.getKey();
+            Object value = entry.getValue();
+            if (value == null || key.equals(cached.mOneShotKey)
+                    || Objects.equals(applied.get(key), value)) {
+                continue;
+            }
+            setRequestField(cached.mBuilder, key, value);
+        }
+        return true;
+    }
+
+    /** Copies the settings if they are shared, before modifying them. */
+    private void prepareForWrite() {
+        if (mShared) {
+            mDictionary = new HashMap<>(mDictionary);
+            mShared = false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void setRequestField(RequestBuilder requestBuilder, Key<T> key,
+            Object value) {
+        requestBuilder.set(key, (T) value);
+    }
 }